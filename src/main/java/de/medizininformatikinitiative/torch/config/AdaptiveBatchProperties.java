@@ -0,0 +1,27 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for heap-feedback adaptive batch sizing.
+ *
+ * @param enabled                 split claimed batches that are larger than the current target size
+ * @param minSize                 the smallest target size batches are split into
+ * @param heapBudget              the fraction of the maximum heap a batch may occupy before the target size shrinks
+ * @param maxResourcesPerPatient  the average number of extracted resources per patient above which the target size
+ *                                shrinks, or {@code 0} to only consider heap occupancy
+ */
+@ConfigurationProperties(prefix = "torch.batch.adaptive")
+@Validated
+public record AdaptiveBatchProperties(
+        boolean enabled,
+        @Min(value = 1, message = "Min size must be at least 1") int minSize,
+        @DecimalMin(value = "0.1", message = "Heap budget must be at least 0.1")
+        @DecimalMax(value = "0.95", message = "Heap budget must be at most 0.95") double heapBudget,
+        @Min(value = 0, message = "Max resources per patient must not be negative") int maxResourcesPerPatient
+) {
+}
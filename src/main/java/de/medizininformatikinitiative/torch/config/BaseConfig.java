@@ -7,24 +7,31 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.medizininformatikinitiative.torch.consent.ConsentCache;
 import de.medizininformatikinitiative.torch.consent.ConsentValidator;
 import de.medizininformatikinitiative.torch.cql.CqlClient;
 import de.medizininformatikinitiative.torch.cql.FhirHelper;
+import de.medizininformatikinitiative.torch.jobhandling.AdaptiveBatchSizer;
+import de.medizininformatikinitiative.torch.jobhandling.BatchPipeline;
 import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
 import de.medizininformatikinitiative.torch.jobhandling.FileIo;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.LeaseStore;
 import de.medizininformatikinitiative.torch.management.CompartmentManager;
 import de.medizininformatikinitiative.torch.management.StructureDefinitionHandler;
 import de.medizininformatikinitiative.torch.model.consent.ConsentCodeConfig;
 import de.medizininformatikinitiative.torch.model.consent.ProspectiveEntry;
 import de.medizininformatikinitiative.torch.model.mapping.DseMappingTreeBase;
 import de.medizininformatikinitiative.torch.model.mapping.DseTreeRoot;
+import de.medizininformatikinitiative.torch.service.CohortCache;
 import de.medizininformatikinitiative.torch.service.CohortQueryService;
 import de.medizininformatikinitiative.torch.service.DataStore;
 import de.medizininformatikinitiative.torch.service.ExtractDataService;
 import de.medizininformatikinitiative.torch.service.JobPersistenceService;
 import de.medizininformatikinitiative.torch.service.PatientBatchToCoreBundleWriter;
 import de.medizininformatikinitiative.torch.service.ReferenceBundleLoader;
+import de.medizininformatikinitiative.torch.service.SearchResponseCache;
+import de.medizininformatikinitiative.torch.util.BatchCheckpointStore;
 import de.medizininformatikinitiative.torch.util.ResourceReader;
 import de.medizininformatikinitiative.torch.util.ResultFileManager;
 import de.numcodex.sq2cql.Translator;
@@ -32,6 +39,7 @@ import de.numcodex.sq2cql.model.Mapping;
 import de.numcodex.sq2cql.model.MappingContext;
 import de.numcodex.sq2cql.model.MappingTreeBase;
 import de.numcodex.sq2cql.model.MappingTreeModuleRoot;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -40,9 +48,12 @@ import org.springframework.web.reactive.function.client.WebClient;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Function;
@@ -67,8 +78,21 @@ public class BaseConfig {
     @Bean
     public JobExecutionContext jobExecutionContext(JobPersistenceService persistence,
                                                    ExtractDataService extractDataService,
-                                                   CohortQueryService cohortQueryService, TorchProperties properties) {
-        return new JobExecutionContext(persistence, extractDataService, cohortQueryService, properties.batchsize(), 5, 2);
+                                                   CohortQueryService cohortQueryService, TorchProperties properties,
+                                                   AdaptiveBatchProperties adaptiveBatchProperties,
+                                                   CoreProcessingProperties coreProcessingProperties) {
+        return new JobExecutionContext(persistence, extractDataService, cohortQueryService, properties.batchsize(), 5, 2,
+                AdaptiveBatchSizer.of(adaptiveBatchProperties, properties.batchsize()), coreProcessingProperties.shards());
+    }
+
+    @Bean
+    public BatchPipeline batchPipeline(BatchPipelineProperties properties) {
+        return BatchPipeline.of(properties);
+    }
+
+    @Bean
+    public MeterBinder readyQueueMetrics(JobPersistenceService persistence) {
+        return persistence.readyQueue();
     }
 
     @Bean
@@ -209,6 +233,44 @@ public class BaseConfig {
         );
     }
 
+    @Bean
+    public ConsentCache consentCache(ConsentCacheProperties properties, DataStore dataStore, FhirContext fhirContext,
+                                     FileIo fileIo, ObjectMapper objectMapper) {
+        return properties.enabled()
+                ? new ConsentCache(properties.dir(), properties.ttl(), dataStore, fhirContext, fileIo, objectMapper)
+                : ConsentCache.disabled();
+    }
+
+    @Bean
+    public SearchResponseCache searchResponseCache(SearchCacheProperties properties, FileIo fileIo) {
+        return properties.enabled()
+                ? new SearchResponseCache(properties.dir(), properties.maxSize().toBytes(), properties.ttl(), fileIo)
+                : SearchResponseCache.disabled();
+    }
+
+    @Bean
+    public LeaseStore leaseStore(ClusterProperties properties, FileIo fileIo, ObjectMapper objectMapper) {
+        if (!properties.enabled()) {
+            return LeaseStore.disabled();
+        }
+        String instanceId = properties.instanceId() == null || properties.instanceId().isBlank()
+                ? UUID.randomUUID().toString()
+                : properties.instanceId();
+        LeaseStore leaseStore = new LeaseStore(fileIo, objectMapper, instanceId, properties.leaseTtl(),
+                Clock.systemUTC());
+        leaseStore.startHeartbeat();
+        return leaseStore;
+    }
+
+    @Bean
+    public BatchCheckpointStore batchCheckpointStore(FhirContext fhirContext, TorchProperties torchProperties,
+                                                     BatchProcessingProperties batchProperties, FileIo fileIo,
+                                                     ObjectMapper objectMapper) {
+        return batchProperties.checkpoint()
+                ? new BatchCheckpointStore(torchProperties.results().dir(), fhirContext, fileIo, objectMapper)
+                : BatchCheckpointStore.disabled();
+    }
+
     // ----------------------------------------------------------------------
     // BUNDLE + PATIENT WRITER
     // ----------------------------------------------------------------------
@@ -243,8 +305,22 @@ public class BaseConfig {
     @Bean
     CohortQueryService queryService(@Qualifier("flareClient") WebClient webClient,
                                     Translator cqlQueryTranslator,
-                                    CqlClient cqlClient, TorchProperties properties) {
-        return new CohortQueryService(webClient, cqlQueryTranslator, cqlClient, properties.useCql());
+                                    CqlClient cqlClient, TorchProperties properties, CohortCache cohortCache) {
+        return new CohortQueryService(webClient, cqlQueryTranslator, cqlClient, properties.useCql(), cohortCache);
+    }
+
+    @Bean
+    public CohortCache cohortCache(CohortCacheProperties properties, TorchProperties torchProperties,
+                                   FhirProperties fhirProperties, FileIo fileIo) throws IOException {
+        if (!properties.enabled()) {
+            return CohortCache.disabled();
+        }
+        String backend = torchProperties.useCql()
+                ? "cql " + fhirProperties.url()
+                : "flare " + torchProperties.flare().url();
+        String ontologyVersion = CohortCache.ontologyVersion(List.of(Path.of(torchProperties.mappingsFile()),
+                Path.of(torchProperties.conceptTreeFile())));
+        return new CohortCache(properties.dir(), properties.ttl(), backend, ontologyVersion, fileIo);
     }
     // ----------------------------------------------------------------------
     // UTIL
@@ -0,0 +1,32 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for pipelined batch processing, in which the stages of consecutive batches overlap.
+ *
+ * @param enabled         run the fetch and the transform stages of batches through separately limited stages, so
+ *                        one batch can fetch while another one is transformed and written
+ * @param maxFetching     the maximum number of batches in the fetch stage (consent fetch, direct load and
+ *                        reference resolve) at the same time
+ * @param maxTransforming the maximum number of batches in the transform stage (cascading delete, copy/redact and
+ *                        write) at the same time
+ * @param maxInFlight     the maximum number of batches started and not yet finished, including batches waiting
+ *                        for a stage
+ * @param heapBudget      the fraction of the maximum heap above which no further batch is started
+ */
+@ConfigurationProperties(prefix = "torch.batch.pipeline")
+@Validated
+public record BatchPipelineProperties(
+        boolean enabled,
+        @Min(value = 1, message = "Max fetching must be at least 1") int maxFetching,
+        @Min(value = 1, message = "Max transforming must be at least 1") int maxTransforming,
+        @Min(value = 1, message = "Max in flight must be at least 1") int maxInFlight,
+        @DecimalMin(value = "0.1", message = "Heap budget must be at least 0.1")
+        @DecimalMax(value = "0.95", message = "Heap budget must be at most 0.95") double heapBudget
+) {
+}
@@ -0,0 +1,43 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for the patient batch processing phase of a job.
+ *
+ * @param streaming   transform, encode and write the patient bundles of a batch one patient at a time, releasing
+ *                    each patient's resources once its line is written, instead of transforming the whole batch
+ *                    before writing it
+ * @param maxInFlight the maximum number of patients of a batch that are transformed and encoded concurrently
+ *                    while streaming
+ * @param lazyDecode  keep directly loaded resources as compact JSON in the batch cache and decode them on access,
+ *                    instead of holding parsed resources from direct load until they are written, implies
+ *                    {@code streaming}
+ * @param checkpoint  persist the completed stages of a batch to the job directory, so that a retried or restarted
+ *                    batch resumes from its last completed stage
+ * @param shareSearches let the consent fetch of a batch run a search of its direct load that covers its own search
+ *                    instead, so that the direct load reuses the results instead of requesting them again
+ * @param consentWindows the maximum number of consent windows the patients of a batch are grouped into, restricting
+ *                    the direct load searches of each window to resources dated within it, or 0 to search all
+ *                    resources of the patients
+ */
+@ConfigurationProperties(prefix = "torch.batch")
+@Validated
+public record BatchProcessingProperties(
+        boolean streaming,
+        @Min(value = 1, message = "Max in flight must be at least 1") int maxInFlight,
+        boolean lazyDecode,
+        boolean checkpoint,
+        boolean shareSearches,
+        @Min(value = 0, message = "Consent windows must not be negative") int consentWindows
+) {
+
+    /**
+     * @return whether the patient bundles of a batch are written one patient at a time
+     */
+    public boolean streamsPatients() {
+        return streaming || lazyDecode;
+    }
+}
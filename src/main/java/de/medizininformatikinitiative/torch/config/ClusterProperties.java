@@ -0,0 +1,30 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Settings for several instances processing jobs in a shared results directory.
+ *
+ * @param enabled       coordinate with other instances through lease files in the job directories, so that each job
+ *                      is owned by one instance and its batches may be processed by all of them
+ * @param instanceId    the id of this instance, recorded in its leases; a random id is used if blank
+ * @param leaseTtl      the time after which the leases of an instance that stopped renewing them may be taken over
+ * @param syncInterval  the interval in which an instance applies batches processed by others, takes over the jobs
+ *                      and batches of gone instances and looks for batches of other instances to process
+ * @param sharedBatches the maximum number of batches of jobs owned by other instances processed concurrently
+ */
+@ConfigurationProperties(prefix = "torch.cluster")
+@Validated
+public record ClusterProperties(
+        boolean enabled,
+        String instanceId,
+        @NotNull(message = "Cluster lease ttl is required") Duration leaseTtl,
+        @NotNull(message = "Cluster sync interval is required") Duration syncInterval,
+        @Min(value = 0, message = "Cluster shared batches must not be negative") int sharedBatches
+) {
+}
@@ -0,0 +1,26 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Settings for keeping the patient ids of evaluated cohorts across jobs.
+ *
+ * @param enabled reuse the patient ids of a cohort already evaluated by a former job with the same cohort definition
+ *                instead of running the cohort query again
+ * @param dir     the directory holding the cached cohorts
+ * @param ttl     the time after which a cached cohort is evaluated again, bounding how long new or changed patients
+ *                stay unnoticed
+ */
+@ConfigurationProperties(prefix = "torch.cohort-cache")
+@Validated
+public record CohortCacheProperties(
+        boolean enabled,
+        @NotBlank(message = "Cohort cache dir is required") String dir,
+        @NotNull(message = "Cohort cache ttl is required") Duration ttl
+) {
+}
@@ -0,0 +1,26 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Settings for keeping the consent periods of patients across jobs.
+ *
+ * @param enabled keep the consent periods calculated for patients on disk and reuse them in later jobs with the same
+ *                consent codes, as long as their Consents and Encounters are unchanged on the server
+ * @param dir     the directory holding the cached consent periods
+ * @param ttl     the time after which cached consent periods are calculated again, bounding how long deleted
+ *                resources stay unnoticed
+ */
+@ConfigurationProperties(prefix = "torch.consent-cache")
+@Validated
+public record ConsentCacheProperties(
+        boolean enabled,
+        @NotBlank(message = "Consent cache dir is required") String dir,
+        @NotNull(message = "Consent cache ttl is required") Duration ttl
+) {
+}
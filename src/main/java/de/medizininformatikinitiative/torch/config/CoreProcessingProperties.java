@@ -0,0 +1,24 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for the core (non-patient) processing phase of a job.
+ *
+ * @param spillToDisk keep core resources encoded in a disk-backed store during core processing and stream
+ *                    copy/redact and writing from it, instead of holding all parsed resources on heap
+ * @param shards      the number of shards the core resources are split into by id hash, each processed as a work
+ *                    unit of its own and written to its own file; {@code 1} processes the core phase as a whole
+ * @param incremental fetch and stage the core resources referenced by each finished batch in the background while
+ *                    further batches are still running, so the core phase only fetches what was not staged
+ */
+@ConfigurationProperties(prefix = "torch.core")
+@Validated
+public record CoreProcessingProperties(
+        boolean spillToDisk,
+        @Min(value = 1, message = "Core shards must be at least 1") int shards,
+        boolean incremental
+) {
+}
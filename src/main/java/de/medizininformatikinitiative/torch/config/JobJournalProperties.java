@@ -0,0 +1,21 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for persisting job state changes.
+ *
+ * @param enabled      append each state change of a job as a small record to a journal in the job directory,
+ *                     written in groups by a single writer outside the registry lock, instead of rewriting the full
+ *                     {@code job.json} on every change
+ * @param compactAfter the number of journal records of a job after which they are compacted into {@code job.json}
+ */
+@ConfigurationProperties(prefix = "torch.journal")
+@Validated
+public record JobJournalProperties(
+        boolean enabled,
+        @Min(value = 1, message = "Compact after must be at least 1") int compactAfter
+) {
+}
@@ -0,0 +1,28 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Settings for the execution of work units by the job scheduler.
+ *
+ * @param virtualThreads execute every work unit on its own virtual thread, limited per phase by {@code maxCohort},
+ *                       {@code maxBatch} and {@code maxCore}, instead of on a fixed pool of {@code maxConcurrency}
+ *                       platform threads shared by all phases
+ * @param maxCohort      the maximum number of cohort queries executing concurrently
+ * @param maxBatch       the maximum number of patient batches processed concurrently
+ * @param maxCore        the maximum number of core phases processed concurrently
+ * @param fairShare      dispatch the work units of ready jobs by deficit round-robin weighted by job priority,
+ *                       instead of strictly by priority and start time
+ */
+@ConfigurationProperties(prefix = "torch.scheduler")
+@Validated
+public record SchedulerProperties(
+        boolean virtualThreads,
+        @Min(value = 1, message = "Max cohort must be at least 1") int maxCohort,
+        @Min(value = 1, message = "Max batch must be at least 1") int maxBatch,
+        @Min(value = 1, message = "Max core must be at least 1") int maxCore,
+        boolean fairShare
+) {
+}
@@ -0,0 +1,28 @@
+package de.medizininformatikinitiative.torch.config;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Settings for keeping the raw responses of FHIR searches on disk.
+ *
+ * @param enabled reuse the responses of searches already executed by a former batch or job instead of asking the FHIR
+ *                server again
+ * @param dir     the directory holding the cached responses
+ * @param maxSize the maximum size of all cached responses, above which the least recently used ones are evicted
+ * @param ttl     the time after which a cached response is fetched from the FHIR server again
+ */
+@ConfigurationProperties(prefix = "torch.search-cache")
+@Validated
+public record SearchCacheProperties(
+        boolean enabled,
+        @NotBlank(message = "Search cache dir is required") String dir,
+        @NotNull(message = "Search cache max size is required") DataSize maxSize,
+        @NotNull(message = "Search cache ttl is required") Duration ttl
+) {
+}
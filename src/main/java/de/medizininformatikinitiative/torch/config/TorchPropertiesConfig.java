@@ -6,8 +6,18 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 @EnableConfigurationProperties({
         TorchProperties.class,
+        AdaptiveBatchProperties.class,
+        BatchPipelineProperties.class,
+        BatchProcessingProperties.class,
+        ClusterProperties.class,
+        CohortCacheProperties.class,
+        ConsentCacheProperties.class,
+        CoreProcessingProperties.class,
         FhirProperties.class,
-        JvmMetricsLoggerProperties.class
+        JobJournalProperties.class,
+        JvmMetricsLoggerProperties.class,
+        SchedulerProperties.class,
+        SearchCacheProperties.class
 })
 public class TorchPropertiesConfig {
 }
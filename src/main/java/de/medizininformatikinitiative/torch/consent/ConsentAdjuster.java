@@ -3,9 +3,11 @@ package de.medizininformatikinitiative.torch.consent;
 import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
 import de.medizininformatikinitiative.torch.model.consent.ConsentProvisions;
 import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
 import de.medizininformatikinitiative.torch.service.DataStore;
+import de.medizininformatikinitiative.torch.service.SharedSearches;
 import de.medizininformatikinitiative.torch.util.ResourceUtils;
 import org.hl7.fhir.r4.model.Encounter;
 import org.slf4j.Logger;
@@ -37,6 +39,10 @@ public class ConsentAdjuster {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsentAdjuster.class);
     private static final String CDS_ENCOUNTER_PROFILE_URL = "https://www.medizininformatik-initiative.de/fhir/core/modul-fall/StructureDefinition/KontaktGesundheitseinrichtung";
+    private static final String ENCOUNTER_ELEMENTS = "subject,period";
+    private static final Query ENCOUNTER_QUERY = Query.of("Encounter",
+            QueryParams.of("_profile:below", stringValue(CDS_ENCOUNTER_PROFILE_URL))
+                    .appendParam("_elements", stringValue(ENCOUNTER_ELEMENTS)));
 
     private final DataStore dataStore;
 
@@ -63,7 +69,7 @@ public class ConsentAdjuster {
             PatientBatch batch,
             Map<String, List<ConsentProvisions>> provisions,
             Set<TermCode> adjustableCodes) {
-        return fetchAndGroupEncounterByPatient(batch)
+        return fetchEncountersByPatient(batch)
                 .map(encountersByPatient ->
                         adjustProvisionsByEncounters(provisions, encountersByPatient, adjustableCodes)
                 );
@@ -72,22 +78,42 @@ public class ConsentAdjuster {
     /**
      * Builds a FHIR Search {@code Query} to fetch all Encounters for a given patient batch
      * that conform to the CDS Encounter profile.
+     * <p>
+     * Only the subject and period of the encounters are requested, as nothing else is needed for the adjustment.
      *
      * @param batch The patient batch for which to fetch encounters.
      * @return A {@link Query} configured for the batch.
      */
-    private static Query getEncounterQuery(PatientBatch batch) {
-        return Query.of("Encounter", batch.compartmentSearchParam("Encounter").appendParam("_profile:below", stringValue(CDS_ENCOUNTER_PROFILE_URL)));
+    static Query getEncounterQuery(PatientBatch batch) {
+        return Query.of("Encounter", batch.compartmentSearchParam("Encounter").appendParams(ENCOUNTER_QUERY.params()));
     }
 
     /**
      * Fetches all encounters for the patients in the batch and groups them by patient ID.
+     * <p>
+     * The encounters don't depend on the consent provisions, so they can be fetched concurrently with them.
      *
      * @param batch The patient batch containing the patient IDs.
      * @return A {@link Mono} emitting a map of patient ID to their associated encounters.
      */
-    private Mono<Map<String, Collection<Encounter>>> fetchAndGroupEncounterByPatient(PatientBatch batch) {
-        return dataStore.search(getEncounterQuery(batch), Encounter.class)
+    public Mono<Map<String, Collection<Encounter>>> fetchEncountersByPatient(PatientBatch batch) {
+        return fetchEncountersByPatient(batch, SharedSearches.disabled());
+    }
+
+    /**
+     * Fetches all encounters for the patients in the batch and groups them by patient ID, sharing the encounter
+     * search with the later stages of the batch.
+     * <p>
+     * If the direct load of the batch searches all CDS encounters, that search is run instead, so that the encounters
+     * are only requested once. Its encounters aren't reduced to subject and period.
+     *
+     * @param batch    The patient batch containing the patient IDs.
+     * @param searches the shared searches of the batch
+     * @return A {@link Mono} emitting a map of patient ID to their associated encounters.
+     */
+    public Mono<Map<String, Collection<Encounter>>> fetchEncountersByPatient(PatientBatch batch,
+                                                                             SharedSearches searches) {
+        return searches.searchAndShare(dataStore, batch, ENCOUNTER_QUERY, Encounter.class)
                 .doOnSubscribe(s -> logger.trace("Fetching encounters for batch: {}", batch.ids()))
                 .flatMap(encounter -> {
                     try {
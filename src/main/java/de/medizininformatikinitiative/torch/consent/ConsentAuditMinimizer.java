@@ -16,7 +16,7 @@ public class ConsentAuditMinimizer {
     }
 
     /**
-     * Reduces a Consent resource to id, meta.profile, patient, provision, dateTime and status.
+     * Reduces a Consent resource to id, meta.profile, meta.lastUpdated, patient, provision, dateTime and status.
      */
     public static Consent minimize(Consent source) {
         Consent minimized = new Consent();
@@ -30,7 +30,7 @@ public class ConsentAuditMinimizer {
     }
 
     /**
-     * Reduces an Encounter resource to id, meta.profile, subject and period.
+     * Reduces an Encounter resource to id, meta.profile, meta.lastUpdated, subject and period.
      */
     public static Encounter minimize(Encounter source) {
         Encounter minimized = new Encounter();
@@ -44,6 +44,7 @@ public class ConsentAuditMinimizer {
     private static Meta minimizedMeta(Meta source) {
         Meta meta = new Meta();
         source.getProfile().forEach(profile -> meta.addProfile(profile.getValue()));
+        meta.setLastUpdatedElement(source.getLastUpdatedElement().copy());
         return meta;
     }
 }
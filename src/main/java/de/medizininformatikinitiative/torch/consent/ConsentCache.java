@@ -0,0 +1,414 @@
+package de.medizininformatikinitiative.torch.consent;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.diagnostics.ConsentAuditEntry;
+import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
+import de.medizininformatikinitiative.torch.model.consent.Period;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.management.TermCode;
+import de.medizininformatikinitiative.torch.model.sq.Comparator;
+import de.medizininformatikinitiative.torch.service.DataStore;
+import de.medizininformatikinitiative.torch.util.ResourceUtils;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.dateValue;
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.stringValue;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps the consent periods calculated for patients on disk, so that later jobs with the same consent codes reuse
+ * them instead of fetching and calculating them again.
+ * <p>
+ * Each entry holds the consent periods of one patient for one set of consent codes, together with the latest
+ * {@code meta.lastUpdated} of the Consents and Encounters they were calculated from and the minimized resources of
+ * the consent audit. Before entries are reused for a batch, a single search per resource type asks the server for
+ * Consents, and Encounters if they shift the consent, of the cached patients updated since their oldest entry. A
+ * patient with a resource updated after its entry is calculated again. Deleted resources are not seen by this
+ * check, so entries expire after a fixed time to live.
+ * <p>
+ * Entries are stored as one file per patient in a directory per set of consent codes. The cache is shared by all
+ * jobs of the instance and survives restarts.
+ */
+public class ConsentCache implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsentCache.class);
+    private static final ConsentCache DISABLED = new ConsentCache();
+    private static final String ENTRY_SUFFIX = ".json";
+
+    @Nullable
+    private final Path dir;
+    private final Duration ttl;
+    private final DataStore dataStore;
+    private final FhirContext fhirContext;
+    private final FileIo fileIo;
+    private final ObjectMapper mapper;
+    private final Clock clock;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong changed = new AtomicLong();
+
+    /**
+     * Creates a consent cache.
+     *
+     * @param dir         the directory holding the entries
+     * @param ttl         the time after which entries are calculated again
+     * @param dataStore   the data store searched for changed resources
+     * @param fhirContext FHIR context used to encode and decode the consent audit
+     * @param fileIo      FileIO used for file interaction
+     * @param mapper      object mapper used for the entries
+     */
+    public ConsentCache(String dir, Duration ttl, DataStore dataStore, FhirContext fhirContext, FileIo fileIo,
+                        ObjectMapper mapper) {
+        this(dir, ttl, dataStore, fhirContext, fileIo, mapper, Clock.systemUTC());
+    }
+
+    ConsentCache(String dir, Duration ttl, DataStore dataStore, FhirContext fhirContext, FileIo fileIo,
+                 ObjectMapper mapper, Clock clock) {
+        this.dir = Paths.get(dir).toAbsolutePath();
+        this.ttl = requireNonNull(ttl);
+        this.dataStore = requireNonNull(dataStore);
+        this.fhirContext = requireNonNull(fhirContext);
+        this.fileIo = requireNonNull(fileIo);
+        this.mapper = requireNonNull(mapper);
+        this.clock = requireNonNull(clock);
+    }
+
+    private ConsentCache() {
+        this.dir = null;
+        this.ttl = Duration.ZERO;
+        this.dataStore = null;
+        this.fhirContext = null;
+        this.fileIo = null;
+        this.mapper = null;
+        this.clock = null;
+    }
+
+    /**
+     * @return a cache that holds nothing
+     */
+    public static ConsentCache disabled() {
+        return DISABLED;
+    }
+
+    public boolean enabled() {
+        return dir != null;
+    }
+
+    /**
+     * Returns the key of the entries calculated for a set of consent codes.
+     *
+     * @param consentCodes         the consent codes of the CRTDL
+     * @param enableEncounterShift whether the consent periods were shifted by encounters
+     * @return the key, usable as directory name
+     */
+    public static String key(Set<TermCode> consentCodes, boolean enableEncounterShift) {
+        String canonical = consentCodes.stream()
+                .map(code -> code.system() + "|" + code.code())
+                .sorted()
+                .collect(Collectors.joining(",", "", ";shift=" + enableEncounterShift));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the consent periods of the patients of a batch that are cached and unchanged on the server.
+     * <p>
+     * The consent audit of the returned patients is added to the diagnostics of the batch. Expired and changed
+     * entries are removed.
+     *
+     * @param key                  the key of the consent codes
+     * @param batch                the batch
+     * @param enableEncounterShift whether Encounters are checked for changes too
+     * @return the cached consent periods by patient id, which may be empty
+     */
+    public Mono<Map<String, NonContinuousPeriod>> lookup(String key, PatientBatch batch, boolean enableEncounterShift) {
+        if (!enabled()) {
+            return Mono.just(Map.of());
+        }
+        return Mono.fromCallable(() -> read(key, batch.ids()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(entries -> entries.isEmpty()
+                        ? Mono.just(entries)
+                        : changedPatients(batch, entries, enableEncounterShift).map(changedIds -> {
+                    changedIds.forEach(patientId -> {
+                        entries.remove(patientId);
+                        delete(key, patientId);
+                    });
+                    changed.addAndGet(changedIds.size());
+                    return entries;
+                }))
+                .map(entries -> {
+                    Map<String, NonContinuousPeriod> periods = new HashMap<>();
+                    entries.values().forEach(entry -> {
+                        periods.put(entry.patientId(), new NonContinuousPeriod(entry.periods()));
+                        entry.audit().forEach(resource ->
+                                batch.diagnostics().consentAudit().add(entry.patientId(), parse(resource)));
+                    });
+                    record(batch, periods.size());
+                    return periods;
+                });
+    }
+
+    /**
+     * Stores the consent periods calculated for patients.
+     * <p>
+     * Patients without any consent audit resource carrying {@code meta.lastUpdated} are not stored, as changes to
+     * their resources could not be detected.
+     *
+     * @param key     the key of the consent codes
+     * @param periods the consent periods by patient id
+     * @param audit   the consent audit the periods were calculated from
+     * @return a {@link Mono} completing once the entries are written
+     */
+    public Mono<Void> store(String key, Map<String, NonContinuousPeriod> periods, List<ConsentAuditEntry> audit) {
+        if (!enabled() || periods.isEmpty()) {
+            return Mono.empty();
+        }
+        return Mono.<Void>fromRunnable(() -> {
+            Map<String, List<Resource>> auditByPatient = audit.stream().collect(Collectors.groupingBy(
+                    ConsentAuditEntry::patientId, Collectors.mapping(ConsentAuditEntry::resource, Collectors.toList())));
+            Instant cachedAt = clock.instant();
+            periods.forEach((patientId, consent) -> {
+                List<Resource> resources = auditByPatient.getOrDefault(patientId, List.of());
+                Instant lastUpdated = resources.stream()
+                        .map(resource -> resource.getMeta().getLastUpdated())
+                        .filter(Objects::nonNull)
+                        .map(Date::toInstant)
+                        .max(Instant::compareTo)
+                        .orElse(null);
+                if (lastUpdated == null || consent.isEmpty()) {
+                    return;
+                }
+                write(key, new Entry(patientId, cachedAt, lastUpdated, consent.periods(),
+                        resources.stream().map(this::toJson).toList()));
+            });
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidateAll() throws IOException {
+        if (enabled() && fileIo.exists(dir)) {
+            fileIo.deleteDir(dir);
+            logger.info("Invalidated the consent cache");
+        }
+    }
+
+    /**
+     * Removes the entries of a patient for all consent codes.
+     *
+     * @param patientId the patient id
+     */
+    public void invalidate(String patientId) throws IOException {
+        if (!enabled() || !fileIo.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> keys = fileIo.listDirectories(dir)) {
+            for (Path keyDir : keys.toList()) {
+                fileIo.deleteIfExists(keyDir.resolve(patientId + ENTRY_SUFFIX));
+            }
+        }
+        logger.debug("Invalidated the consent cache of patient {}", patientId);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("torch.consent.cache.hits", hits, AtomicLong::get)
+                .description("Number of patients whose consent was taken from the consent cache")
+                .register(registry);
+        FunctionCounter.builder("torch.consent.cache.misses", misses, AtomicLong::get)
+                .description("Number of patients whose consent was not in the consent cache or had changed")
+                .register(registry);
+        FunctionCounter.builder("torch.consent.cache.changed", changed, AtomicLong::get)
+                .description("Number of cached consents dropped because their resources changed on the server")
+                .register(registry);
+    }
+
+    private void record(PatientBatch batch, int hitCount) {
+        int missCount = batch.ids().size() - hitCount;
+        hits.addAndGet(hitCount);
+        misses.addAndGet(missCount);
+        batch.diagnostics().batchDetails().record(BatchMeasurement.CONSENT_CACHE_HITS, hitCount);
+        batch.diagnostics().batchDetails().record(BatchMeasurement.CONSENT_CACHE_MISSES, missCount);
+    }
+
+    /**
+     * Returns the patients with a Consent, or Encounter, updated after their entry was calculated.
+     * <p>
+     * A failed search marks all patients as changed, so that their consent is fetched again.
+     */
+    private Mono<Set<String>> changedPatients(PatientBatch batch, Map<String, Entry> entries,
+                                              boolean enableEncounterShift) {
+        PatientBatch cached = new PatientBatch(List.copyOf(entries.keySet()), batch.batchId(), batch.diagnostics());
+        // _lastUpdated is searched by day, one day earlier so that no time zone of the server misses a change
+        LocalDate since = entries.values().stream().map(Entry::lastUpdated).min(Instant::compareTo).orElseThrow()
+                .atZone(ZoneOffset.UTC).toLocalDate().minusDays(1);
+        Flux<DomainResource> updated = updatedResources(cached, "Consent", "patient", since);
+        if (enableEncounterShift) {
+            updated = updated.concatWith(updatedResources(cached, "Encounter", "subject", since));
+        }
+        return updated
+                .filter(resource -> isChanged(resource, entries))
+                .<String>handle((resource, sink) -> {
+                    try {
+                        sink.next(ResourceUtils.patientId(resource));
+                    } catch (PatientIdNotFoundException e) {
+                        logger.debug("Ignoring updated {} without patient", resource.getId());
+                    }
+                })
+                .collect(Collectors.toSet())
+                .onErrorResume(e -> {
+                    logger.warn("Failed to check the cached consent of batch {} for changes: {}", batch.batchId(),
+                            e.getMessage());
+                    return Mono.just(new HashSet<>(entries.keySet()));
+                });
+    }
+
+    private Flux<DomainResource> updatedResources(PatientBatch batch, String type, String patientElement,
+                                                  LocalDate since) {
+        return dataStore.searchFresh(Query.of(type, batch.compartmentSearchParam(type)
+                        .appendParam("_lastUpdated", dateValue(Comparator.GREATER_EQUAL, since))
+                        .appendParam("_elements", stringValue(patientElement))),
+                DomainResource.class);
+    }
+
+    private static boolean isChanged(DomainResource resource, Map<String, Entry> entries) {
+        if (resource.getMeta().getLastUpdated() == null) {
+            return true;
+        }
+        try {
+            Entry entry = entries.get(ResourceUtils.patientId(resource));
+            return entry != null && resource.getMeta().getLastUpdated().toInstant().isAfter(entry.lastUpdated());
+        } catch (PatientIdNotFoundException e) {
+            return false;
+        }
+    }
+
+    private Map<String, Entry> read(String key, Collection<String> patientIds) {
+        Map<String, Entry> entries = new HashMap<>();
+        Instant expiredBefore = clock.instant().minus(ttl);
+        for (String patientId : patientIds) {
+            Path path = entryPath(key, patientId);
+            if (!fileIo.exists(path)) {
+                continue;
+            }
+            try (var reader = fileIo.newBufferedReader(path)) {
+                Entry entry = mapper.readValue(reader, Entry.class);
+                if (entry.cachedAt().isBefore(expiredBefore)) {
+                    delete(key, patientId);
+                } else {
+                    entries.put(patientId, entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Ignoring unreadable consent cache entry of patient {}: {}", patientId, e.getMessage());
+                delete(key, patientId);
+            }
+        }
+        return entries;
+    }
+
+    private void write(String key, Entry entry) {
+        Path target = entryPath(key, entry.patientId());
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            fileIo.createDirectories(target.getParent());
+            try (BufferedWriter out = fileIo.newBufferedWriter(tmp)) {
+                mapper.writeValue(out, entry);
+            }
+            fileIo.atomicMove(tmp, target);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to cache the consent of patient {}: {}", entry.patientId(), e.getMessage());
+        }
+    }
+
+    private void delete(String key, String patientId) {
+        try {
+            fileIo.deleteIfExists(entryPath(key, patientId));
+        } catch (IOException e) {
+            logger.warn("Failed to remove the consent cache entry of patient {}: {}", patientId, e.getMessage());
+        }
+    }
+
+    private Path entryPath(String key, String patientId) {
+        return dir.resolve(key).resolve(patientId + ENTRY_SUFFIX);
+    }
+
+    private JsonNode toJson(Resource resource) {
+        try {
+            return mapper.readTree(fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(resource));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Resource parse(JsonNode resource) {
+        return (Resource) fhirContext.newJsonParser().parseResource(resource.toString());
+    }
+
+    /**
+     * The cached consent of a patient.
+     *
+     * @param patientId   the patient id
+     * @param cachedAt    when the entry was calculated
+     * @param lastUpdated the latest {@code meta.lastUpdated} of the resources the entry was calculated from
+     * @param periods     the consent periods
+     * @param audit       the minimized resources of the consent audit
+     */
+    record Entry(String patientId, Instant cachedAt, Instant lastUpdated, List<Period> periods, List<JsonNode> audit) {
+
+        Entry {
+            requireNonNull(patientId);
+            requireNonNull(cachedAt);
+            requireNonNull(lastUpdated);
+            periods = List.copyOf(periods);
+            audit = List.copyOf(audit);
+        }
+    }
+}
@@ -5,9 +5,11 @@ import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
 import de.medizininformatikinitiative.torch.model.consent.ConsentProvisions;
 import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
 import de.medizininformatikinitiative.torch.service.DataStore;
+import de.medizininformatikinitiative.torch.service.SharedSearches;
 import de.medizininformatikinitiative.torch.util.ResourceUtils;
 import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.DateTimeType;
@@ -39,6 +41,11 @@ public class ConsentFetcher {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsentFetcher.class);
     private static final String CDS_CONSENT_PROFILE_URL = "https://www.medizininformatik-initiative.de/fhir/modul-consent/StructureDefinition/mii-pr-consent-einwilligung";
+    /**
+     * The query for the active consents of a batch, without the compartment param of the batch.
+     */
+    private static final Query CONSENT_QUERY = Query.of("Consent", QueryParams.of("status", stringValue("active"))
+            .appendParam("_profile:below", stringValue(CDS_CONSENT_PROFILE_URL)));
     private final DataStore dataStore;
     private final ProvisionExtractor provisionExtractor;
 
@@ -53,10 +60,6 @@ public class ConsentFetcher {
         this.provisionExtractor = provisionExtractor;
     }
 
-    private static Query getConsentQuery(PatientBatch batch) {
-        return Query.of("Consent", (batch.compartmentSearchParam("Consent").appendParam("status", stringValue("active"))).appendParam("_profile:below", stringValue(CDS_CONSENT_PROFILE_URL)));
-    }
-
     /**
      * Builds consent information for a batch of patients based on the provided key and patient IDs.
      *
@@ -68,9 +71,23 @@ public class ConsentFetcher {
      * @return A {@link Flux} emitting maps containing consent information structured by patient ID and consent codes.
      */
     public Mono<Map<String, List<ConsentProvisions>>> fetchConsentInfo(Set<TermCode> codes, PatientBatch batch) {
+        return fetchConsentInfo(codes, batch, SharedSearches.disabled());
+    }
+
+    /**
+     * Builds consent information for a batch of patients, sharing the consent search with the later stages of the
+     * batch.
+     *
+     * @param codes    Set of relevant consent codes from the {@link ConsentCodeMapper}.
+     * @param batch    A list of patient IDs to process in this batch.
+     * @param searches the shared searches of the batch
+     * @return A {@link Flux} emitting maps containing consent information structured by patient ID and consent codes.
+     */
+    public Mono<Map<String, List<ConsentProvisions>>> fetchConsentInfo(Set<TermCode> codes, PatientBatch batch,
+                                                                       SharedSearches searches) {
         logger.debug("Starting to build consent info for codes {} and {} patients", codes, batch.ids().size());
 
-        return dataStore.search(getConsentQuery(batch), Consent.class)
+        return searches.searchAndShare(dataStore, batch, CONSENT_QUERY, Consent.class)
                 .doOnSubscribe(subscription -> logger.trace("Fetching resources for batch: {}", batch.ids()))
                 .doOnNext(resource -> logger.trace("Consent resource with id {} fetched for ConsentBuild", resource.getIdPart()))
                 .filter(consent -> consent.getStatus() == Consent.ConsentState.ACTIVE)
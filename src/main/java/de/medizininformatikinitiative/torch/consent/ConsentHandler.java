@@ -1,14 +1,26 @@
 package de.medizininformatikinitiative.torch.consent;
 
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.model.consent.ConsentCodeConfig;
+import de.medizininformatikinitiative.torch.model.consent.ConsentProvisions;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
 import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
 import de.medizininformatikinitiative.torch.service.DataStore;
+import de.medizininformatikinitiative.torch.service.SharedSearches;
+import org.hl7.fhir.r4.model.Encounter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Timed;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
@@ -28,6 +40,7 @@ public class ConsentHandler {
     private final ConsentAdjuster consentAdjuster;
     private final ConsentCalculator consentCalculator;
     private final ConsentCodeConfig consentCodeConfig;
+    private final ConsentCache consentCache;
     private final boolean enableEncounterShift;
 
     /**
@@ -37,15 +50,17 @@ public class ConsentHandler {
      * @param consentAdjuster the {@link ConsentAdjuster} for adjusting consent periods by encounter periods
      * @param consentCalculator the {@link ConsentCalculator} for calculating effective consent periods
      * @param consentCodeConfig the {@link ConsentCodeConfig} describing supported codes and their roles
+     * @param consentCache the {@link ConsentCache} keeping the consent periods of patients across jobs
      * @param enableEncounterShift whether data-period provisions are shifted to overlapping encounter starts
      *                             ({@code torch.enableEncounterShift})
      */
     public ConsentHandler(ConsentFetcher consentFetcher, ConsentAdjuster consentAdjuster, ConsentCalculator consentCalculator, ConsentCodeConfig consentCodeConfig,
-                           @Value("${torch.enableEncounterShift}") boolean enableEncounterShift) {
+                          ConsentCache consentCache, @Value("${torch.enableEncounterShift}") boolean enableEncounterShift) {
         this.consentFetcher = requireNonNull(consentFetcher);
         this.consentAdjuster = requireNonNull(consentAdjuster);
         this.consentCalculator = requireNonNull(consentCalculator);
         this.consentCodeConfig = requireNonNull(consentCodeConfig);
+        this.consentCache = requireNonNull(consentCache);
         this.enableEncounterShift = enableEncounterShift;
     }
 
@@ -56,7 +71,9 @@ public class ConsentHandler {
      * <ol>
      *     <li>Fetches consent provisions from a FHIR server for the given {@code consentCodes} and patient batch.</li>
      *     <li>Adjusts the fetched consent periods based on patient encounters, unless disabled via
-     *     {@code torch.enableEncounterShift}.</li>
+     *     {@code torch.enableEncounterShift}. The encounters are fetched concurrently with the consent provisions,
+     *     and the time saved compared to fetching one after the other is recorded as
+     *     {@link BatchMeasurement#CONSENT_FETCH_SAVED_NANOS}.</li>
      *     <li>Calculates the effective consent periods per patient.</li>
      *     <li>Filters the batch to include only patients with valid consent periods.</li>
      * </ol>
@@ -69,20 +86,96 @@ public class ConsentHandler {
      * @return a {@link Mono} emitting a {@link PatientBatchWithConsent} containing patients with valid consent periods
      */
     public Mono<PatientBatchWithConsent> fetchAndBuildConsentInfo(Set<TermCode> consentCodes, PatientBatch batch) {
+        return fetchAndBuildConsentInfo(consentCodes, batch, SharedSearches.disabled());
+    }
+
+    /**
+     * Fetches and builds consent information for a batch of patients, sharing the consent and encounter searches
+     * with the later stages of the batch.
+     * <p>
+     * If the {@link ConsentCache} is enabled, only the patients without unchanged cached consent periods are fetched,
+     * and their calculated consent periods are cached for later jobs.
+     *
+     * @param consentCodes the set of consent codes from the CRTDL for which consent information should be built
+     * @param batch        the batch of patient IDs to process
+     * @param searches     the shared searches of the batch
+     * @return a {@link Mono} emitting a {@link PatientBatchWithConsent} containing patients with valid consent periods
+     * @see #fetchAndBuildConsentInfo(Set, PatientBatch)
+     */
+    public Mono<PatientBatchWithConsent> fetchAndBuildConsentInfo(Set<TermCode> consentCodes, PatientBatch batch,
+                                                                  SharedSearches searches) {
+        if (!consentCache.enabled()) {
+            return calculateConsent(consentCodes, batch, searches)
+                    .flatMap(consentPeriodsMap ->
+                            Mono.fromCallable(() -> PatientBatchWithConsent.fromBatchAndConsent(batch, consentPeriodsMap))
+                    );
+        }
+        String key = ConsentCache.key(consentCodes, enableEncounterShift);
+        return consentCache.lookup(key, batch, enableEncounterShift)
+                .flatMap(cached -> {
+                    List<String> uncachedIds = batch.ids().stream().filter(id -> !cached.containsKey(id)).toList();
+                    if (uncachedIds.isEmpty()) {
+                        return Mono.just(new BatchConsent(batch, cached));
+                    }
+                    if (cached.isEmpty()) {
+                        return calculateAndCacheConsent(key, consentCodes, batch, searches)
+                                .map(calculated -> new BatchConsent(batch, calculated));
+                    }
+                    // the searches are shared for all patients of the batch, so they don't fit the uncached ones
+                    PatientBatch uncached = new PatientBatch(uncachedIds, batch.batchId(), batch.diagnostics());
+                    PatientBatch cachedOnly = new PatientBatch(batch.ids().stream().filter(cached::containsKey).toList(),
+                            batch.batchId(), batch.diagnostics());
+                    return calculateAndCacheConsent(key, consentCodes, uncached, SharedSearches.disabled())
+                            .map(calculated -> {
+                                Map<String, NonContinuousPeriod> all = new HashMap<>(cached);
+                                all.putAll(calculated);
+                                return new BatchConsent(batch, all);
+                            })
+                            // the fetch has already excluded the uncached patients
+                            .onErrorResume(ConsentViolatedException.class,
+                                    e -> Mono.just(new BatchConsent(cachedOnly, cached)));
+                })
+                .flatMap(consent -> Mono.fromCallable(() ->
+                        PatientBatchWithConsent.fromBatchAndConsent(consent.batch(), consent.periods())));
+    }
+
+    private Mono<Map<String, NonContinuousPeriod>> calculateAndCacheConsent(String key, Set<TermCode> consentCodes,
+                                                                           PatientBatch batch,
+                                                                           SharedSearches searches) {
+        return calculateConsent(consentCodes, batch, searches)
+                .flatMap(calculated -> consentCache
+                        .store(key, calculated, batch.diagnostics().consentAudit().entries())
+                        .thenReturn(calculated));
+    }
+
+    private Mono<Map<String, NonContinuousPeriod>> calculateConsent(Set<TermCode> consentCodes, PatientBatch batch,
+                                                                    SharedSearches searches) {
         Set<TermCode> prospectiveCodes = consentCodeConfig.extractRequestedProspectiveCodes(consentCodes);
         Set<TermCode> codesToFetch = consentCodeConfig.withRetroModifiers(prospectiveCodes, consentCodes);
         Set<TermCode> encounterAdjustCodes = consentCodeConfig.nonGateCodes(prospectiveCodes);
 
-        return consentFetcher.fetchConsentInfo(codesToFetch, batch)
-                .flatMap(consentProvisions ->
-                        enableEncounterShift
-                                ? consentAdjuster.fetchEncounterAndAdjustByEncounter(batch, consentProvisions, encounterAdjustCodes)
-                                : Mono.just(consentProvisions)
-                )
-                .map(consentProvisions -> consentCalculator.calculateConsent(prospectiveCodes, consentProvisions))
-                .flatMap(consentPeriodsMap ->
-                        Mono.fromCallable(() -> PatientBatchWithConsent.fromBatchAndConsent(batch, consentPeriodsMap))
-                );
+        Mono<Map<String, List<ConsentProvisions>>> provisions = consentFetcher.fetchConsentInfo(codesToFetch, batch, searches);
+        if (enableEncounterShift) {
+            provisions = Mono.zip(provisions.timed(), consentAdjuster.fetchEncountersByPatient(batch, searches).timed())
+                    .timed()
+                    .map(fetched -> {
+                        Timed<Map<String, List<ConsentProvisions>>> consents = fetched.get().getT1();
+                        Timed<Map<String, Collection<Encounter>>> encounters = fetched.get().getT2();
+                        Duration saved = consents.elapsed().plus(encounters.elapsed()).minus(fetched.elapsed());
+                        batch.diagnostics().batchDetails().record(BatchMeasurement.CONSENT_FETCH_SAVED_NANOS,
+                                Math.max(0, saved.toNanos()));
+                        return consentAdjuster.adjustProvisionsByEncounters(consents.get(), encounters.get(),
+                                encounterAdjustCodes);
+                    });
+        }
+        return provisions
+                .map(consentProvisions -> consentCalculator.calculateConsent(prospectiveCodes, consentProvisions));
+    }
+
+    /**
+     * The consent periods of the patients of a batch.
+     */
+    private record BatchConsent(PatientBatch batch, Map<String, NonContinuousPeriod> periods) {
     }
 
 }
@@ -1,13 +1,17 @@
 package de.medizininformatikinitiative.torch.consent;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import com.fasterxml.jackson.databind.JsonNode;
 import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
 import de.medizininformatikinitiative.torch.exceptions.ReferenceToPatientException;
+import de.medizininformatikinitiative.torch.model.consent.ConsentIndex;
 import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
 import de.medizininformatikinitiative.torch.model.consent.Period;
 import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
+import de.medizininformatikinitiative.torch.util.FhirPathEngines;
 import de.medizininformatikinitiative.torch.util.ResourceUtils;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.DomainResource;
@@ -15,7 +19,10 @@ import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static java.util.Objects.requireNonNull;
@@ -24,12 +31,94 @@ public class ConsentValidator {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsentValidator.class);
 
-    private final FhirContext ctx;
-    private final JsonNode resourceToField;
+    private final ThreadLocal<IFhirPath> fhirPathEngine;
+    /**
+     * The parsed consent date expression per resource type, empty for types that are consented without a date.
+     */
+    private final Map<String, Optional<IFhirPath.IParsedExpression>> dateExpressions;
+    /**
+     * The date search param searching the consent date expression per resource type, if the type has one.
+     */
+    private final Map<String, String> dateSearchParams;
 
+    /**
+     * Creates a validator, parsing the consent date expression of each resource type once.
+     *
+     * @param ctx             the FHIR context
+     * @param resourceToField the FHIRPath expression of the consent relevant date per resource type
+     * @throws IllegalArgumentException if an expression can't be parsed
+     */
     public ConsentValidator(FhirContext ctx, JsonNode resourceToField) {
-        this.ctx = requireNonNull(ctx);
-        this.resourceToField = requireNonNull(resourceToField);
+        this.fhirPathEngine = FhirPathEngines.threadLocal(requireNonNull(ctx));
+        this.dateExpressions = parseDateExpressions(ctx.newFhirPath(), requireNonNull(resourceToField));
+        this.dateSearchParams = dateSearchParams(ctx, resourceToField);
+    }
+
+    /**
+     * Finds the date search param of each resource type whose path is the consent date expression of the type.
+     */
+    private static Map<String, String> dateSearchParams(FhirContext ctx, JsonNode resourceToField) {
+        Map<String, String> params = new HashMap<>();
+        resourceToField.properties().forEach(field -> {
+            String expression = field.getValue().asText();
+            if (expression.isEmpty() || !ctx.getResourceTypes().contains(field.getKey())) {
+                return;
+            }
+            ctx.getResourceDefinition(field.getKey()).getSearchParams().stream()
+                    .filter(param -> param.getParamType() == RestSearchParameterTypeEnum.DATE)
+                    .filter(param -> param.getPath() != null && Arrays.stream(param.getPath().split("\\|"))
+                            .map(ConsentValidator::simplePath)
+                            .anyMatch(expression::equals))
+                    .findFirst()
+                    .ifPresent(param -> params.put(field.getKey(), param.getName()));
+        });
+        return Map.copyOf(params);
+    }
+
+    /**
+     * Strips the parentheses and type cast of a single search param path, like {@code (RiskAssessment.occurrence as
+     * dateTime)}.
+     */
+    private static String simplePath(String path) {
+        String simple = path.trim();
+        if (simple.startsWith("(") && simple.endsWith(")")) {
+            simple = simple.substring(1, simple.length() - 1).trim();
+        }
+        int cast = simple.indexOf(" as ");
+        return cast < 0 ? simple : simple.substring(0, cast).trim();
+    }
+
+    /**
+     * Returns the date search param that searches the consent relevant date of resources of the given type.
+     * <p>
+     * Searches can be restricted to a consented window with this param, while {@link #checkConsent} stays the exact
+     * check of each resource.
+     *
+     * @param resourceType the resource type
+     * @return the name of the search param, or empty if the type is consented without a date or no search param
+     * searches its consent date
+     */
+    public Optional<String> dateSearchParam(String resourceType) {
+        return Optional.ofNullable(dateSearchParams.get(resourceType));
+    }
+
+    private static Map<String, Optional<IFhirPath.IParsedExpression>> parseDateExpressions(IFhirPath fhirPath,
+                                                                                          JsonNode resourceToField) {
+        Map<String, Optional<IFhirPath.IParsedExpression>> expressions = new HashMap<>();
+        resourceToField.properties().forEach(field -> {
+            String expression = field.getValue().asText();
+            if (expression.isEmpty()) {
+                expressions.put(field.getKey(), Optional.empty());
+                return;
+            }
+            try {
+                expressions.put(field.getKey(), Optional.of(fhirPath.parse(expression)));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid consent date expression `%s` of resource type %s"
+                        .formatted(expression, field.getKey()), e);
+            }
+        });
+        return Map.copyOf(expressions);
     }
 
     /**
@@ -65,27 +154,24 @@ public class ConsentValidator {
     }
 
     public boolean checkConsent(DomainResource resource, PatientResourceBundle patientResourceBundle) {
-        JsonNode fieldValue = null;
-        if (resourceToField.has(resource.getResourceType().toString())) {
-            logger.trace("Handling the following Profile {}", resource.getResourceType());
-            fieldValue = resourceToField.get(resource.getResourceType().toString());
-        }
+        Optional<IFhirPath.IParsedExpression> dateExpression = dateExpressions.get(resource.fhirType());
 
-        if (fieldValue == null) {
+        if (dateExpression == null) {
             logger.warn("CONSENT_VALIDATOR_02 No supported ResourceType found for resource of type: {}", resource.getResourceType());
             return false;
         }
-        if (fieldValue.asText().isEmpty()) {
+        if (dateExpression.isEmpty()) {
             logger.trace("Field value is empty, consent is automatically granted if patient has consents in general.");
             return true;
         }
 
-        List<Base> values = ctx.newFhirPath().evaluate(resource, fieldValue.asText(), Base.class);
+        List<Base> values = fhirPathEngine.get().evaluate(resource, dateExpression.get(), Base.class);
+        ConsentIndex consent = patientResourceBundle.consentPeriods().index();
 
         for (Base value : values) {
             Optional<Period> period = Period.fromHapi(value);
             if (period.isEmpty()) continue;
-            boolean hasValidConsent = patientResourceBundle.consentPeriods().within(period.get());
+            boolean hasValidConsent = consent.within(period.get());
             if (hasValidConsent) {
                 return true;
             }
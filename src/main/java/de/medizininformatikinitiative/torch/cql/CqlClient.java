@@ -29,6 +29,15 @@ public class CqlClient {
         this.dataStore = dataStore;
     }
 
+    /**
+     * Evaluates the CQL query as measure and pages through the resulting subject list.
+     * <p>
+     * Only the ids of the patients are requested, so that large cohorts don't transfer and parse whole Patient
+     * resources. The ids are emitted page by page as they arrive.
+     *
+     * @param cqlQuery the CQL query selecting the patients
+     * @return flux emitting the ids of the matching patients
+     */
     public Flux<String> fetchPatientIds(String cqlQuery) {
         var libraryUri = "urn:uuid:" + UUID.randomUUID();
         var measureUri = "urn:uuid:" + UUID.randomUUID();
@@ -44,7 +53,7 @@ public class CqlClient {
                 .map(measureReport -> extractSubjectListId(measureReport, measureUri))
                 .map(CqlClient::createPatientQuery)
                 .flux()
-                .flatMap(query -> dataStore.search(query, Patient.class))
+                .flatMap(query -> dataStore.searchFresh(query, Patient.class))
                 .flatMap(patient -> {
                     var id = patient.getIdPart();
                     return id == null ? Flux.error(new RuntimeException("Encountered Patient Resource without ID")) : Flux.just(id);
@@ -79,6 +88,7 @@ public class CqlClient {
     }
 
     private static Query createPatientQuery(String subjectListId) {
-        return new Query("Patient", QueryParams.of("_list", stringValue(subjectListId)));
+        return new Query("Patient", QueryParams.of("_list", stringValue(subjectListId))
+                .appendParam("_elements", stringValue("id")));
     }
 }
@@ -10,19 +10,42 @@ import java.util.concurrent.ConcurrentHashMap;
  * @param numCohortPatients   the amount of patients in the original cohort of this batch before extraction (i.e. before any exclusions)
  * @param numFinalPatients    the amount of patients in this batch after extraction (i.e. after exclusions could have occurred)
  * @param resourceInclusions  the amount of resources that successfully completed extraction, per AttributeGroup-ID
+ * @param measurements        further numeric measurements of this batch, see {@link BatchMeasurement}
  */
 public record BatchDetails(Map<PipelineStage, Long> nanosElapsed, int numCohortPatients, int numFinalPatients,
-                           Map<String, Integer> resourceInclusions) {
+                           Map<String, Integer> resourceInclusions, Map<BatchMeasurement, Long> measurements) {
+
+    public BatchDetails {
+        // batch details written before measurements existed are read without them
+        if (measurements == null) {
+            measurements = new ConcurrentHashMap<>();
+        }
+    }
+
+    public BatchDetails(Map<PipelineStage, Long> nanosElapsed, int numCohortPatients, int numFinalPatients,
+                        Map<String, Integer> resourceInclusions) {
+        this(nanosElapsed, numCohortPatients, numFinalPatients, resourceInclusions, new ConcurrentHashMap<>());
+    }
 
     public static BatchDetails empty() {
-        return new BatchDetails(new ConcurrentHashMap<>(), 0, 0, new ConcurrentHashMap<>());
+        return new BatchDetails(new ConcurrentHashMap<>(), 0, 0, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
     }
 
     public BatchDetails setNumCohortPatients(int numCohortPatients) {
-        return new BatchDetails(nanosElapsed, numCohortPatients, numFinalPatients, resourceInclusions);
+        return new BatchDetails(nanosElapsed, numCohortPatients, numFinalPatients, resourceInclusions, measurements);
     }
 
     public BatchDetails setFinalPatientCount(int numFinalPatients) {
-        return new BatchDetails(nanosElapsed, numCohortPatients, numFinalPatients, resourceInclusions);
+        return new BatchDetails(nanosElapsed, numCohortPatients, numFinalPatients, resourceInclusions, measurements);
+    }
+
+    /**
+     * Records a measurement, combining it with an already recorded value as defined by the measurement.
+     *
+     * @param measurement the measurement to record
+     * @param value       the measured value
+     */
+    public void record(BatchMeasurement measurement, long value) {
+        measurements.merge(measurement, value, measurement::combine);
     }
 }
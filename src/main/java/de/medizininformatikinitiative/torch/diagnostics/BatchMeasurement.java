@@ -0,0 +1,79 @@
+package de.medizininformatikinitiative.torch.diagnostics;
+
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Numeric measurements recorded per batch besides the stage durations.
+ * <p>
+ * Each measurement defines how two values are combined, both when recorded repeatedly during a single batch
+ * and when summarized across all batches of a job.
+ */
+public enum BatchMeasurement {
+
+    /**
+     * The highest used heap in bytes observed while processing the batch.
+     */
+    PEAK_HEAP_BYTES(Math::max),
+
+    /**
+     * The number of bytes held by resources kept encoded in the batch cache after direct load.
+     */
+    ENCODED_CACHE_BYTES(Long::sum),
+
+    /**
+     * The nanoseconds the batch waited to enter the stages of the batch pipeline.
+     */
+    PIPELINE_WAIT_NANOS(Long::sum),
+
+    /**
+     * The number of completed stages restored from the checkpoints of an earlier attempt of the batch.
+     */
+    CHECKPOINT_RESTORED_STAGES(Long::sum),
+
+    /**
+     * The nanoseconds saved by fetching the consents and the encounters of the batch concurrently instead of one
+     * after the other.
+     */
+    CONSENT_FETCH_SAVED_NANOS(Long::sum),
+
+    /**
+     * The number of searches of an earlier stage widened to a search of the direct load that covers them, so that
+     * the direct load can reuse their results.
+     */
+    SHARED_SEARCHES_WIDENED(Long::sum),
+
+    /**
+     * The number of searches served from the results of a shared search instead of requesting the server again.
+     */
+    SHARED_SEARCHES_SAVED(Long::sum),
+
+    /**
+     * The number of patient compartment resources downloaded by the direct load.
+     */
+    DIRECT_LOAD_DOWNLOADED_RESOURCES(Long::sum),
+
+    /**
+     * The number of patient compartment resources downloaded by the direct load that passed the consent check.
+     */
+    DIRECT_LOAD_CONSENTED_RESOURCES(Long::sum),
+
+    /**
+     * The number of patients whose consent periods were taken from the consent cache.
+     */
+    CONSENT_CACHE_HITS(Long::sum),
+
+    /**
+     * The number of patients whose consent periods were not cached, expired or changed on the server.
+     */
+    CONSENT_CACHE_MISSES(Long::sum);
+
+    private final LongBinaryOperator combiner;
+
+    BatchMeasurement(LongBinaryOperator combiner) {
+        this.combiner = combiner;
+    }
+
+    public long combine(long a, long b) {
+        return combiner.applyAsLong(a, b);
+    }
+}
@@ -26,6 +26,7 @@ import java.util.stream.Collectors;
  * @param patientSummaries      sum amount of patient exclusion events across all batches
  * @param resourceSummaries     resource exclusion events grouped by AttributeGroup-ID
  * @param resourceInclusions    resources that successfully completed extraction, grouped by AttributeGroup-ID
+ * @param measurements          per-batch {@link BatchMeasurement}s combined across all batches
  */
 public record JobDiagnosticSummary(@JsonProperty("Num-Cohort-Patients") int numCohortPatients,
                                    @JsonProperty("Num-Final-Patients") int numFinalPatients,
@@ -33,12 +34,13 @@ public record JobDiagnosticSummary(@JsonProperty("Num-Cohort-Patients") int numC
                                    @JsonProperty("Duration-Measurements") Map<PipelineStage, DurationSummary> durationSummaries,
                                    @JsonProperty("Patient-Exclusions") Map<PatientExclusionStage, Integer> patientSummaries,
                                    @JsonProperty("Resource-Exclusions")Map<String, GroupSummary> resourceSummaries,
-                                   @JsonProperty("Resource-Inclusions") Map<String, Integer> resourceInclusions
+                                   @JsonProperty("Resource-Inclusions") Map<String, Integer> resourceInclusions,
+                                   @JsonProperty("Measurements") Map<BatchMeasurement, Long> measurements
 ) {
 
     public static JobDiagnosticSummary empty() {
         return new JobDiagnosticSummary(0, 0, null, new HashMap<>(),
-                new HashMap<>(), new HashMap<>(), new HashMap<>()
+                new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>()
         );
     }
 
@@ -56,8 +58,10 @@ public record JobDiagnosticSummary(@JsonProperty("Num-Cohort-Patients") int numC
         var resourceInclusions = computeResourceInclusionSummary(batchDiagnostics);
         var cohortPatients = sumCohortPatients(batchDiagnostics);
         var finalPatients = sumFinalPatients(batchDiagnostics);
+        var measurements = combineMeasurements(batchDiagnostics);
 
-        return new JobDiagnosticSummary(cohortPatients, finalPatients, cohortQueryDurationMs, durations, patientExclusions, resourcesExclusions, resourceInclusions);
+        return new JobDiagnosticSummary(cohortPatients, finalPatients, cohortQueryDurationMs, durations, patientExclusions,
+                resourcesExclusions, resourceInclusions, measurements);
     }
 
     /**
@@ -188,6 +192,20 @@ public record JobDiagnosticSummary(@JsonProperty("Num-Cohort-Patients") int numC
         return resourceInclusions;
     }
 
+    /**
+     * Combines the {@link BatchMeasurement}s of all batch diagnostics as defined by each measurement.
+     *
+     * @param diagnostics   the batch diagnostics of each batch of the job
+     * @return              the combined value per {@link BatchMeasurement}
+     */
+    private static Map<BatchMeasurement, Long> combineMeasurements(List<BatchDiagnostics> diagnostics) {
+        Map<BatchMeasurement, Long> measurements = new HashMap<>();
+        diagnostics.forEach(d -> d.batchDetails().measurements()
+                .forEach((measurement, value) -> measurements.merge(measurement, value, measurement::combine)));
+
+        return measurements;
+    }
+
     /**
      * Computes the sum of patient exclusion events across all batch diagnostics
      *
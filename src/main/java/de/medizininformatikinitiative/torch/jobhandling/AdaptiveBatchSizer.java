@@ -0,0 +1,144 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.config.AdaptiveBatchProperties;
+import de.medizininformatikinitiative.torch.diagnostics.BatchDetails;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Derives the target size of patient batches from the heap feedback of finished batches.
+ *
+ * <p>Batches are created with {@code torch.batchsize} patients. While adaptive sizing is enabled, a claimed batch
+ * larger than {@link #targetSize()} is split into sub-batches of the target size before it is processed.</p>
+ *
+ * <p>The target size halves whenever a batch exceeded the heap budget or the resources-per-patient budget, or
+ * when the heap is already above budget at claim time. It grows by half again, up to {@code torch.batchsize},
+ * after a batch stayed below half of the heap budget.</p>
+ */
+public class AdaptiveBatchSizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    private final boolean enabled;
+    private final int minSize;
+    private final int maxSize;
+    private final double heapBudget;
+    private final int maxResourcesPerPatient;
+    private final LongSupplier usedHeap;
+    private final long maxHeap;
+    private final AtomicInteger target;
+
+    AdaptiveBatchSizer(boolean enabled, int minSize, int maxSize, double heapBudget, int maxResourcesPerPatient,
+                       LongSupplier usedHeap, long maxHeap) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid batch size bounds [" + minSize + ", " + maxSize + "]");
+        }
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.heapBudget = heapBudget;
+        this.maxResourcesPerPatient = maxResourcesPerPatient;
+        this.usedHeap = requireNonNull(usedHeap);
+        this.maxHeap = maxHeap;
+        this.target = new AtomicInteger(maxSize);
+    }
+
+    /**
+     * Creates a sizer for the JVM heap.
+     *
+     * @param properties the adaptive sizing settings
+     * @param batchSize  the configured {@code torch.batchsize}, which is also the maximum target size
+     * @return the sizer
+     */
+    public static AdaptiveBatchSizer of(AdaptiveBatchProperties properties, int batchSize) {
+        Runtime runtime = Runtime.getRuntime();
+        return new AdaptiveBatchSizer(properties.enabled(), Math.min(properties.minSize(), batchSize), batchSize,
+                properties.heapBudget(), properties.maxResourcesPerPatient(),
+                () -> runtime.totalMemory() - runtime.freeMemory(), runtime.maxMemory());
+    }
+
+    /**
+     * Creates a sizer that never splits batches.
+     *
+     * @param batchSize the configured {@code torch.batchsize}
+     * @return the sizer
+     */
+    public static AdaptiveBatchSizer disabled(int batchSize) {
+        return new AdaptiveBatchSizer(false, batchSize, batchSize, 1.0, 0, () -> 0L, 1L);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of patients a batch should have at most
+     */
+    public int targetSize() {
+        return enabled ? target.get() : maxSize;
+    }
+
+    /**
+     * Checks the current heap occupancy before a claimed batch is processed and shrinks the target size if it is
+     * already above budget.
+     *
+     * @return the target size after the check
+     */
+    public int targetSizeForClaim() {
+        if (enabled && heapRatio(usedHeap.getAsLong()) > heapBudget) {
+            shrink("heap above budget at claim time");
+        }
+        return targetSize();
+    }
+
+    /**
+     * Adjusts the target size from the measurements of a finished batch.
+     *
+     * @param details the details of the finished batch
+     */
+    public void onBatchFinished(BatchDetails details) {
+        if (!enabled) {
+            return;
+        }
+        // batches without a heap measurement only count towards the resources-per-patient budget
+        Long peakHeap = details.measurements().get(BatchMeasurement.PEAK_HEAP_BYTES);
+        double heapRatio = peakHeap == null ? heapBudget : heapRatio(peakHeap);
+        int patients = details.numFinalPatients();
+        long resources = details.resourceInclusions().values().stream().mapToLong(Integer::longValue).sum();
+        long resourcesPerPatient = patients == 0 ? 0 : resources / patients;
+
+        if (heapRatio > heapBudget) {
+            shrink("peak heap %.0f%% above budget".formatted(heapRatio * 100));
+        } else if (maxResourcesPerPatient > 0 && resourcesPerPatient > maxResourcesPerPatient) {
+            shrink("%d resources per patient above budget".formatted(resourcesPerPatient));
+        } else if (heapRatio < heapBudget / 2) {
+            grow();
+        }
+    }
+
+    private double heapRatio(long used) {
+        return maxHeap <= 0 ? 0 : (double) used / maxHeap;
+    }
+
+    private void shrink(String reason) {
+        int before = target.get();
+        int after = target.updateAndGet(size -> Math.max(minSize, size / 2));
+        if (after != before) {
+            logger.info("Shrinking target batch size from {} to {}: {}", before, after, reason);
+        }
+    }
+
+    private void grow() {
+        int before = target.get();
+        int after = target.updateAndGet(size -> Math.min(maxSize, size + Math.max(1, size / 2)));
+        if (after != before) {
+            logger.info("Growing target batch size from {} to {}", before, after);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.config.BatchPipelineProperties;
+import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Overlaps the stages of consecutive batches.
+ *
+ * <p>Batch processing is split into a network-bound {@link Stage#FETCH} stage and a CPU- and disk-bound
+ * {@link Stage#TRANSFORM} stage, each admitting a limited number of batches at a time. While one batch is
+ * transformed and written, the next one can already fetch its consent and resources. Batches waiting for a stage
+ * don't block a thread, they queue in arrival order.</p>
+ *
+ * <p>The number of batches in flight is limited, and no further batch is admitted while the used heap exceeds the
+ * heap budget, since a fetched batch holds its resources until it has been written. The scheduler consults
+ * {@link #admitsBatch()} before it starts a batch.</p>
+ *
+ * <p>Metrics: {@code torch.batch.pipeline.in.flight} is the number of batches in flight,
+ * {@code torch.batch.pipeline.active} and {@code torch.batch.pipeline.waiting} are the number of batches in and
+ * waiting for a stage, {@code torch.batch.pipeline.busy} is the accumulated time batches spent in a stage, and
+ * {@code torch.batch.pipeline.utilization} is the fraction of the stage capacity used since the previous reading,
+ * all tagged by {@code stage}.</p>
+ */
+public class BatchPipeline implements MeterBinder {
+
+    /**
+     * The stages a batch passes in order.
+     */
+    public enum Stage {
+        FETCH, TRANSFORM;
+
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final boolean enabled;
+    private final int maxInFlight;
+    private final double heapBudget;
+    private final LongSupplier usedHeap;
+    private final long maxHeap;
+    private final LongSupplier nanoTime;
+    private final Map<Stage, Gate> gates = new EnumMap<>(Stage.class);
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    BatchPipeline(boolean enabled, int maxFetching, int maxTransforming, int maxInFlight, double heapBudget,
+                  LongSupplier usedHeap, long maxHeap, LongSupplier nanoTime) {
+        this.enabled = enabled;
+        this.maxInFlight = maxInFlight;
+        this.heapBudget = heapBudget;
+        this.usedHeap = requireNonNull(usedHeap);
+        this.maxHeap = maxHeap;
+        this.nanoTime = requireNonNull(nanoTime);
+        gates.put(Stage.FETCH, new Gate(maxFetching));
+        gates.put(Stage.TRANSFORM, new Gate(maxTransforming));
+    }
+
+    /**
+     * Creates a pipeline for the JVM heap.
+     *
+     * @param properties the pipeline settings
+     * @return the pipeline
+     */
+    public static BatchPipeline of(BatchPipelineProperties properties) {
+        Runtime runtime = Runtime.getRuntime();
+        return new BatchPipeline(properties.enabled(), properties.maxFetching(), properties.maxTransforming(),
+                properties.maxInFlight(), properties.heapBudget(),
+                () -> runtime.totalMemory() - runtime.freeMemory(), runtime.maxMemory(), System::nanoTime);
+    }
+
+    /**
+     * Creates a pipeline that runs batches without stage limits.
+     *
+     * @return the pipeline
+     */
+    public static BatchPipeline disabled() {
+        return new BatchPipeline(false, 1, 1, 1, 1.0, () -> 0L, 1L, System::nanoTime);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the number of batches in flight
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return whether a further batch may be started, always {@code true} if the pipeline is disabled
+     */
+    public boolean admitsBatch() {
+        return !enabled || (inFlight.get() < maxInFlight && usedHeap.getAsLong() <= heapBudget * maxHeap);
+    }
+
+    /**
+     * Counts the given batch processing as in flight while it runs.
+     *
+     * @param processing the processing of a batch
+     * @param <T>        the result type
+     * @return the processing, counted while subscribed
+     */
+    public <T> Mono<T> batch(Mono<T> processing) {
+        if (!enabled) {
+            return processing;
+        }
+        return processing
+                .doFirst(inFlight::incrementAndGet)
+                .doFinally(signal -> inFlight.decrementAndGet());
+    }
+
+    /**
+     * Runs the given part of a batch's processing in a stage, once the stage admits the batch.
+     *
+     * <p>The time spent waiting for the stage is recorded as {@link BatchMeasurement#PIPELINE_WAIT_NANOS}. The stage
+     * is left when the returned mono terminates or is cancelled.</p>
+     *
+     * @param stage       the stage
+     * @param diagnostics the diagnostics of the batch
+     * @param body        creates the mono to run in the stage
+     * @param <T>         the result type
+     * @return the mono running in the stage
+     */
+    public <T> Mono<T> stage(Stage stage, BatchDiagnostics diagnostics, Supplier<Mono<T>> body) {
+        if (!enabled) {
+            return Mono.defer(body);
+        }
+        Gate gate = gates.get(stage);
+        return Mono.defer(() -> {
+            long requested = nanoTime.getAsLong();
+            return Mono.usingWhen(
+                    Mono.<Long>create(gate::acquire)
+                            // a stage entered by a batch that was cancelled while waiting is left right away
+                            .doOnDiscard(Long.class, entered -> gate.release(entered).subscribe())
+                            .doOnNext(entered -> diagnostics.batchDetails()
+                                    .record(BatchMeasurement.PIPELINE_WAIT_NANOS, entered - requested)),
+                    entered -> Mono.defer(body),
+                    gate::release,
+                    (entered, error) -> gate.release(entered),
+                    gate::release);
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("torch.batch.pipeline.in.flight", inFlight, AtomicInteger::get)
+                .description("Number of batches started and not yet finished")
+                .register(registry);
+        gates.forEach((stage, gate) -> {
+            Gauge.builder("torch.batch.pipeline.active", gate, Gate::active)
+                    .description("Number of batches in the stage")
+                    .tag("stage", stage.tag())
+                    .register(registry);
+            Gauge.builder("torch.batch.pipeline.waiting", gate, Gate::waiting)
+                    .description("Number of batches waiting for the stage")
+                    .tag("stage", stage.tag())
+                    .register(registry);
+            FunctionCounter.builder("torch.batch.pipeline.busy", gate,
+                            g -> g.busyNanos() / (double) TimeUnit.SECONDS.toNanos(1))
+                    .description("Accumulated time batches spent in the stage")
+                    .baseUnit("seconds")
+                    .tag("stage", stage.tag())
+                    .register(registry);
+            Gauge.builder("torch.batch.pipeline.utilization", gate, Gate::utilization)
+                    .description("Fraction of the stage capacity used since the previous reading")
+                    .tag("stage", stage.tag())
+                    .register(registry);
+        });
+    }
+
+    /**
+     * @param stage a stage
+     * @return the fraction of the stage capacity used since the previous call
+     */
+    double utilization(Stage stage) {
+        return gates.get(stage).utilization();
+    }
+
+    /**
+     * @param stage a stage
+     * @return the number of batches waiting for the stage
+     */
+    int waiting(Stage stage) {
+        return gates.get(stage).waiting();
+    }
+
+    /**
+     * Non-blocking semaphore of a stage, handing out the time a batch entered the stage.
+     */
+    private final class Gate {
+
+        private final int limit;
+        private final Deque<MonoSink<Long>> waiters = new ArrayDeque<>();
+        private int active;
+        private long busyNanos;
+        private long activeSinceSum;
+        private long sampledAt;
+        private long sampledBusyNanos;
+
+        Gate(int limit) {
+            this.limit = limit;
+            this.sampledAt = nanoTime.getAsLong();
+        }
+
+        void acquire(MonoSink<Long> sink) {
+            long now = nanoTime.getAsLong();
+            synchronized (this) {
+                if (active >= limit) {
+                    waiters.add(sink);
+                    sink.onCancel(() -> {
+                        synchronized (this) {
+                            waiters.remove(sink);
+                        }
+                    });
+                    return;
+                }
+                enter(now);
+            }
+            sink.success(now);
+        }
+
+        Mono<Void> release(long entered) {
+            return Mono.fromRunnable(() -> {
+                MonoSink<Long> next;
+                long now = nanoTime.getAsLong();
+                synchronized (this) {
+                    active--;
+                    activeSinceSum -= entered;
+                    busyNanos += now - entered;
+                    // hand the place in the stage over to the next waiting batch
+                    next = waiters.poll();
+                    if (next != null) {
+                        enter(now);
+                    }
+                }
+                if (next != null) {
+                    next.success(now);
+                }
+            });
+        }
+
+        private void enter(long now) {
+            active++;
+            activeSinceSum += now;
+        }
+
+        synchronized int active() {
+            return active;
+        }
+
+        synchronized int waiting() {
+            return waiters.size();
+        }
+
+        synchronized long busyNanos() {
+            return busyNanos + (long) active * nanoTime.getAsLong() - activeSinceSum;
+        }
+
+        synchronized double utilization() {
+            long now = nanoTime.getAsLong();
+            long busy = busyNanos();
+            long elapsed = now - sampledAt;
+            double utilization = elapsed <= 0 ? 0 : (double) (busy - sampledBusyNanos) / ((double) elapsed * limit);
+            sampledAt = now;
+            sampledBusyNanos = busy;
+            return Math.min(1.0, utilization);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
 
+import javax.annotation.Nullable;
 import java.time.Instant;
 import java.util.UUID;
 
@@ -13,11 +15,18 @@ import java.util.UUID;
  * A finished batch state requires the persistence of the result ndjson named "[batchid]-result.ndjson"
  * and a core resource group relation  "[batchid]-core.ndjson" ndjson.
  *
- * @param batchId unique ID of the batch
+ * @param batchId   unique ID of the batch
  * @param state
+ * @param coreStage state of staging the core resources referenced by the finished batch ahead of the core phase,
+ *                  {@code null} if they are not staged
  */
 public record BatchState(@JsonProperty UUID batchId,
-                         @JsonProperty WorkUnitState state) {
+                         @JsonProperty WorkUnitState state,
+                         @JsonProperty @JsonInclude(JsonInclude.Include.NON_NULL) @Nullable WorkUnitState coreStage) {
+
+    public BatchState(UUID batchId, WorkUnitState state) {
+        this(batchId, state, null);
+    }
 
     public static BatchState init() {
         return new BatchState(UUID.randomUUID(), WorkUnitState.initNow());
@@ -35,27 +44,39 @@ public record BatchState(@JsonProperty UUID batchId,
         return state.retry();
     }
 
+    /**
+     * @return the status of staging the batch's core resources, or {@code null} if they are not staged
+     */
+    @Nullable
+    public WorkUnitStatus coreStageStatus() {
+        return coreStage == null ? null : coreStage.status();
+    }
+
     public BatchState startNow() {
-        return new BatchState(batchId, WorkUnitState.startNow());
+        return new BatchState(batchId, WorkUnitState.startNow(), coreStage);
     }
 
     public BatchState rerollToInit() {
-        return new BatchState(batchId, WorkUnitState.initNow());
+        return new BatchState(batchId, WorkUnitState.initNow(), coreStage);
     }
 
     public BatchState finishNow(WorkUnitStatus terminal) {
-        return new BatchState(batchId, state.finishNow(terminal));
+        return new BatchState(batchId, state.finishNow(terminal), coreStage);
     }
 
     public BatchState skip() {
-        return new BatchState(batchId, state.skip());
+        return new BatchState(batchId, state.skip(), coreStage);
     }
 
     public BatchState onFailure(boolean retryable) {
-        return new BatchState(batchId, state.onFailure(retryable));
+        return new BatchState(batchId, state.onFailure(retryable), coreStage);
     }
 
     public BatchState rerollFromTempFailed() {
-        return new BatchState(batchId, state.rerollFromTempFailed());
+        return new BatchState(batchId, state.rerollFromTempFailed(), coreStage);
+    }
+
+    public BatchState withCoreStage(@Nullable WorkUnitState newCoreStage) {
+        return new BatchState(batchId, state, newCoreStage);
     }
 }
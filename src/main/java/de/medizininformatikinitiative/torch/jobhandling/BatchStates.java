@@ -0,0 +1,261 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Immutable map of the batch states of a {@link Job}, keyed by batch id.
+ *
+ * <p>Backed by a {@link PersistentHashMap} plus one per {@link WorkUnitStatus}, so updating the state of a single
+ * batch and finding a batch with a given status are O(log n) and share all unchanged structure with the previous
+ * map, instead of copying and scanning all batches. Serializes like any other map.</p>
+ *
+ * <p>Batches whose core resources are staged are additionally indexed by the status of their
+ * {@linkplain BatchState#coreStage() core stage}.</p>
+ *
+ * <p>The hash code is kept up to date on every change and equality only compares the structure two batch states
+ * don't share, so comparing a job with its updated version doesn't walk all batches.</p>
+ */
+public final class BatchStates extends AbstractMap<UUID, BatchState> {
+
+    private static final BatchStates EMPTY = new BatchStates(PersistentHashMap.empty(), emptyIndex(), emptyIndex(),
+            0);
+
+    private final PersistentHashMap<UUID, BatchState> all;
+    private final PersistentHashMap<UUID, BatchState>[] byStatus;
+    private final PersistentHashMap<UUID, BatchState>[] byCoreStage;
+    private final int hash;
+
+    private BatchStates(PersistentHashMap<UUID, BatchState> all, PersistentHashMap<UUID, BatchState>[] byStatus,
+                        PersistentHashMap<UUID, BatchState>[] byCoreStage, int hash) {
+        this.all = all;
+        this.byStatus = byStatus;
+        this.byCoreStage = byCoreStage;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the hash code of the state as an entry of the map, as defined by {@link Map.Entry#hashCode()}
+     */
+    private static int entryHash(BatchState state) {
+        return state.batchId().hashCode() ^ state.hashCode();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PersistentHashMap<UUID, BatchState>[] emptyIndex() {
+        PersistentHashMap<UUID, BatchState>[] index = new PersistentHashMap[WorkUnitStatus.values().length];
+        Arrays.fill(index, PersistentHashMap.empty());
+        return index;
+    }
+
+    public static BatchStates empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the given batch states as {@code BatchStates}.
+     *
+     * @param batches the batch states by batch id
+     * @return the given map if it already is a {@code BatchStates}, otherwise a copy
+     * @throws IllegalArgumentException if a key doesn't match the id of its batch state
+     */
+    public static BatchStates copyOf(Map<UUID, BatchState> batches) {
+        if (batches instanceof BatchStates states) {
+            return states;
+        }
+        BatchStates states = EMPTY;
+        for (Map.Entry<UUID, BatchState> entry : batches.entrySet()) {
+            BatchState state = requireNonNull(entry.getValue());
+            if (!state.batchId().equals(entry.getKey())) {
+                throw new IllegalArgumentException("Batch state " + state.batchId() + " stored under id "
+                        + entry.getKey());
+            }
+            states = states.with(state);
+        }
+        return states;
+    }
+
+    /**
+     * @param state the new state of a batch
+     * @return batch states with the given state added or replacing the previous state of the batch
+     */
+    public BatchStates with(BatchState state) {
+        BatchState previous = all.get(state.batchId());
+        PersistentHashMap<UUID, BatchState> nextAll = all.put(state.batchId(), state);
+        if (nextAll == all) {
+            return this;
+        }
+        PersistentHashMap<UUID, BatchState>[] nextIndex = byStatus.clone();
+        if (previous != null) {
+            nextIndex[previous.status().ordinal()] = nextIndex[previous.status().ordinal()].remove(state.batchId());
+        }
+        nextIndex[state.status().ordinal()] = nextIndex[state.status().ordinal()].put(state.batchId(), state);
+        int nextHash = hash - (previous == null ? 0 : entryHash(previous)) + entryHash(state);
+        return new BatchStates(nextAll, nextIndex, withCoreStage(previous, state), nextHash);
+    }
+
+    private PersistentHashMap<UUID, BatchState>[] withCoreStage(BatchState previous, BatchState state) {
+        if ((previous == null || previous.coreStage() == null) && state.coreStage() == null) {
+            return byCoreStage;
+        }
+        PersistentHashMap<UUID, BatchState>[] nextIndex = byCoreStage.clone();
+        if (previous != null && previous.coreStage() != null) {
+            int ordinal = previous.coreStageStatus().ordinal();
+            nextIndex[ordinal] = nextIndex[ordinal].remove(previous.batchId());
+        }
+        if (state.coreStage() != null) {
+            int ordinal = state.coreStageStatus().ordinal();
+            nextIndex[ordinal] = nextIndex[ordinal].put(state.batchId(), state);
+        }
+        return nextIndex;
+    }
+
+    /**
+     * @param batchId id of a batch
+     * @return batch states without the batch
+     */
+    public BatchStates without(UUID batchId) {
+        BatchState previous = all.get(batchId);
+        if (previous == null) {
+            return this;
+        }
+        PersistentHashMap<UUID, BatchState>[] nextIndex = byStatus.clone();
+        nextIndex[previous.status().ordinal()] = nextIndex[previous.status().ordinal()].remove(batchId);
+        PersistentHashMap<UUID, BatchState>[] nextCoreStageIndex = byCoreStage;
+        if (previous.coreStage() != null) {
+            nextCoreStageIndex = byCoreStage.clone();
+            int ordinal = previous.coreStageStatus().ordinal();
+            nextCoreStageIndex[ordinal] = nextCoreStageIndex[ordinal].remove(batchId);
+        }
+        return new BatchStates(all.remove(batchId), nextIndex, nextCoreStageIndex, hash - entryHash(previous));
+    }
+
+    /**
+     * @param status a status
+     * @return the id of some batch with the status, or empty if there is none
+     */
+    public Optional<UUID> anyWithStatus(WorkUnitStatus status) {
+        Map.Entry<UUID, BatchState> entry = byStatus[status.ordinal()].any();
+        return entry == null ? Optional.empty() : Optional.of(entry.getKey());
+    }
+
+    /**
+     * @param status a status
+     * @return the number of batches with the status
+     */
+    public int count(WorkUnitStatus status) {
+        return byStatus[status.ordinal()].size();
+    }
+
+    /**
+     * @param status a status
+     * @return the id of some batch whose core stage has the status, or empty if there is none
+     */
+    public Optional<UUID> anyWithCoreStage(WorkUnitStatus status) {
+        Map.Entry<UUID, BatchState> entry = byCoreStage[status.ordinal()].any();
+        return entry == null ? Optional.empty() : Optional.of(entry.getKey());
+    }
+
+    /**
+     * @param status a status
+     * @return the number of batches whose core stage has the status
+     */
+    public int countCoreStage(WorkUnitStatus status) {
+        return byCoreStage[status.ordinal()].size();
+    }
+
+    /**
+     * @return the number of batches that are {@linkplain WorkUnitStatus#isDone() done}
+     */
+    public int countDone() {
+        int done = 0;
+        for (WorkUnitStatus status : WorkUnitStatus.values()) {
+            if (status.isDone()) {
+                done += count(status);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Reports the differences from these batch states to the other ones, skipping all structure they share.
+     *
+     * @param other   the other batch states
+     * @param changed called with the states of the other batch states that are added or changed
+     * @param removed called with the ids of batches the other batch states don't contain
+     */
+    public void diff(BatchStates other, BiConsumer<UUID, BatchState> changed, Consumer<UUID> removed) {
+        all.diff(other.all, changed, removed);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof BatchStates other)) {
+            return super.equals(o);
+        }
+        if (all == other.all) {
+            return true;
+        }
+        if (hash != other.hash || all.size() != other.all.size()) {
+            return false;
+        }
+        boolean[] differs = {false};
+        all.diff(other.all, (batchId, state) -> differs[0] = true, batchId -> differs[0] = true);
+        return !differs[0];
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public BatchState get(Object key) {
+        return all.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return all.get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return all.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return all.isEmpty();
+    }
+
+    @Override
+    public Set<Entry<UUID, BatchState>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<UUID, BatchState>> iterator() {
+                return all.iterator();
+            }
+
+            @Override
+            public int size() {
+                return all.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,17 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+/**
+ * Whether the patient ids of a cohort were served from the cohort cache.
+ */
+public enum CohortCacheStatus {
+
+    /**
+     * The patient ids were read from an unexpired cache entry, without running the cohort query.
+     */
+    HIT,
+
+    /**
+     * The cohort query was run, and its patient ids were stored in the cache.
+     */
+    MISS
+}
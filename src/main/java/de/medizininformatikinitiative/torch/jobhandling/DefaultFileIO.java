@@ -5,10 +5,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.UUID;
 import java.util.stream.Stream;
 
 /**
@@ -87,6 +90,47 @@ public class DefaultFileIO implements FileIo {
         }
     }
 
+    @Override
+    public void deleteIfExists(Path path) throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Writes the content to a temporary file first and links it to the target, which fails if the target exists.
+     * Falls back to an exclusive create on file systems without hard links, where a reader may see a partly written
+     * file.
+     */
+    @Override
+    public boolean createNew(Path path, String content) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.writeString(tmp, content);
+        try {
+            Files.createLink(path, tmp);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            try {
+                Files.writeString(path, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return true;
+            } catch (FileAlreadyExistsException exists) {
+                return false;
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public long size(Path path) throws IOException {
+        return Files.size(path);
+    }
+
+    @Override
+    public Instant lastModified(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).toInstant();
+    }
+
     @Override
     public File createTempFile(File originalFile) {
         return new File(originalFile.getAbsolutePath() + ".tmp");
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.stream.Stream;
 
 
@@ -44,5 +45,30 @@ public interface FileIo {
 
     void deleteDir(Path path) throws IOException;
 
+    /**
+     * Deletes a single file, if it exists.
+     */
+    void deleteIfExists(Path path) throws IOException;
+
+    /**
+     * Creates a file with the given content unless it already exists.
+     * <p>
+     * The file appears atomically with its full content, so a concurrent reader, also of another process sharing the
+     * directory, either sees no file or the complete content.
+     *
+     * @return {@code true} if the file was created, {@code false} if it already existed
+     */
+    boolean createNew(Path path, String content) throws IOException;
+
+    /**
+     * Returns the size of a file in bytes.
+     */
+    long size(Path path) throws IOException;
+
+    /**
+     * Returns the time a file was last modified.
+     */
+    Instant lastModified(Path path) throws IOException;
+
     File createTempFile(File originalFile) throws IOException;
 }
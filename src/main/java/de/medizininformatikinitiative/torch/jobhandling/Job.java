@@ -1,6 +1,7 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import de.medizininformatikinitiative.torch.exceptions.StateConflictException;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
@@ -8,19 +9,25 @@ import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil
 import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessBatchWorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCohortWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCoreShardWorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCoreWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.StageCoreWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static de.medizininformatikinitiative.torch.jobhandling.failure.Issue.merge;
@@ -33,6 +40,25 @@ import static java.util.Objects.requireNonNull;
  * it tracks overall {@link JobStatus}, batch states ({@link BatchState}),
  * core state ({@link WorkUnitState}), and accumulated {@link Issue}s.</p>
  *
+ * <p>A core phase split into shards runs in three steps: the core work unit prepares the core resources and
+ * partitions them into {@code coreShards}, each shard is claimed and processed as a work unit of its own, and once
+ * all shards are done the core work unit runs again to reconcile the references between the shards.</p>
+ *
+ * <p>With incremental core processing, the core resources referenced by a finished batch are staged by a work unit
+ * of the core phase while further batches are still running. The state of staging is kept with the
+ * {@link BatchState} of the batch, so staging is resumed after a restart, and the core phase only starts processing
+ * once no staging is pending anymore.</p>
+ *
+ * <p>A {@code maxConcurrentBatches} above zero limits the number of batches of the job in progress at the same time.
+ * While the limit is reached, the job hands out no further batches.</p>
+ *
+ * <p>The {@code cohortCache} records whether the patient ids of the last completed cohort came from the cohort cache.
+ * It is empty if the cache wasn't consulted, because the cache is disabled or the patient ids were given.</p>
+ *
+ * <p>The cohort is streamed into batches: each batch is added by {@link #onCohortBatch(Instant, BatchState, int)}
+ * as soon as its ids arrived, and is handed out while the cohort is still running. Cohort results are only applied
+ * to the attempt that produced them, identified by the start of the {@code cohortState}, so a late result of an
+ * abandoned attempt can't add batches twice. A retried cohort keeps the batches of former attempts.</p>
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public record Job(
@@ -48,7 +74,10 @@ public record Job(
         @JsonProperty JobParameters parameters,
         @JsonProperty JobPriority priority,
         @JsonProperty WorkUnitState coreState,
-        @JsonProperty(defaultValue = "0") long version) {
+        @JsonProperty(defaultValue = "0") long version,
+        @JsonProperty @JsonInclude(JsonInclude.Include.NON_EMPTY) Map<Integer, WorkUnitState> coreShards,
+        @JsonProperty(defaultValue = "0") @JsonInclude(JsonInclude.Include.NON_DEFAULT) int maxConcurrentBatches,
+        @JsonProperty @JsonInclude(JsonInclude.Include.NON_ABSENT) Optional<CohortCacheStatus> cohortCache) {
 
     // -------------------- ctor invariants --------------------
 
@@ -56,7 +85,7 @@ public record Job(
         requireNonNull(id);
         requireNonNull(status);
         requireNonNull(cohortState);
-        batches = Map.copyOf(batches);
+        batches = BatchStates.copyOf(batches);
         requireNonNull(startedAt);
         requireNonNull(updatedAt);
         requireNonNull(finishedAt);
@@ -68,6 +97,34 @@ public record Job(
         if (version < 0) {
             throw new IllegalArgumentException("version must not be negative");
         }
+        coreShards = coreShards == null ? Map.of() : Map.copyOf(coreShards);
+        if (maxConcurrentBatches < 0) {
+            throw new IllegalArgumentException("maxConcurrentBatches must not be negative");
+        }
+        cohortCache = cohortCache == null ? Optional.empty() : cohortCache;
+    }
+
+    public Job(UUID id, JobStatus status, WorkUnitState cohortState, int cohortSize, Map<UUID, BatchState> batches,
+               Instant startedAt, Instant updatedAt, Optional<Instant> finishedAt, List<Issue> issues,
+               JobParameters parameters, JobPriority priority, WorkUnitState coreState, long version) {
+        this(id, status, cohortState, cohortSize, batches, startedAt, updatedAt, finishedAt, issues, parameters,
+                priority, coreState, version, Map.of());
+    }
+
+    public Job(UUID id, JobStatus status, WorkUnitState cohortState, int cohortSize, Map<UUID, BatchState> batches,
+               Instant startedAt, Instant updatedAt, Optional<Instant> finishedAt, List<Issue> issues,
+               JobParameters parameters, JobPriority priority, WorkUnitState coreState, long version,
+               Map<Integer, WorkUnitState> coreShards) {
+        this(id, status, cohortState, cohortSize, batches, startedAt, updatedAt, finishedAt, issues, parameters,
+                priority, coreState, version, coreShards, 0);
+    }
+
+    public Job(UUID id, JobStatus status, WorkUnitState cohortState, int cohortSize, Map<UUID, BatchState> batches,
+               Instant startedAt, Instant updatedAt, Optional<Instant> finishedAt, List<Issue> issues,
+               JobParameters parameters, JobPriority priority, WorkUnitState coreState, long version,
+               Map<Integer, WorkUnitState> coreShards, int maxConcurrentBatches) {
+        this(id, status, cohortState, cohortSize, batches, startedAt, updatedAt, finishedAt, issues, parameters,
+                priority, coreState, version, coreShards, maxConcurrentBatches, Optional.empty());
     }
 
     // -------------------- factories --------------------
@@ -139,30 +196,76 @@ public record Job(
         return updated.withStatus(JobStatus.RUNNING_PROCESS_BATCH);
     }
 
+    /**
+     * Adds a batch of the cohort while the cohort is still running, so that it can be processed right away.
+     * <p>
+     * Applies only if the job is still in the {@link JobStatus#RUNNING_GET_COHORT} phase of the given attempt.
+     *
+     * @param attempt   the start of the cohort attempt that produced the batch
+     * @param batch     the initial state of the batch
+     * @param batchSize the number of patients in the batch
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCohortBatch(Instant attempt, BatchState batch, int batchSize) {
+        if (!isCohortAttempt(attempt)) {
+            return this;
+        }
+        return new Job(id, status, cohortState, cohortSize + batchSize, batchStates().with(batch), startedAt,
+                Instant.now(), finishedAt, issues, parameters, priority, coreState, version, coreShards,
+                maxConcurrentBatches, cohortCache);
+    }
+
+    /**
+     * Records that all batches of the cohort were added by {@link #onCohortBatch(Instant, BatchState, int)}.
+     * <p>
+     * Applies only if the job is still in the {@link JobStatus#RUNNING_GET_COHORT} phase of the given attempt. The
+     * job continues with the remaining batches, or with the core phase if all batches are done already or the cohort
+     * is empty.
+     *
+     * @param attempt     the start of the cohort attempt
+     * @param cohortCache whether the cohort was served from the cohort cache, empty if the cache wasn't consulted
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCohortComplete(Instant attempt, Optional<CohortCacheStatus> cohortCache) {
+        if (!isCohortAttempt(attempt)) {
+            return this;
+        }
+        Job updated = onCohortSuccess(batches, cohortSize).withCohortCache(cohortCache);
+        if (cohortSize > 0 && allBatchesDone(updated.batches())) {
+            return updated.withStatus(JobStatus.RUNNING_PROCESS_CORE)
+                    .withCoreState(WorkUnitState.initNow());
+        }
+        return updated;
+    }
+
+    private boolean isCohortAttempt(Instant attempt) {
+        return status == JobStatus.RUNNING_GET_COHORT && cohortState.startedAt().equals(attempt);
+    }
+
 
     /**
      * Records a successful batch processing result.
-     * Applies a batch processing success only if the job is still in the
-     * {@link JobStatus#RUNNING_PROCESS_BATCH} phase.
+     * Applies a batch processing success only if the job is still {@linkplain #processesBatches() processing
+     * batches}.
      * <p>
      * This method acts as a concurrency/staleness guard for asynchronous results.
      * If the job has already transitioned to a different state (e.g. failed, paused,
      * or moved to core processing), the result is considered stale and ignored.
      *
-     * <p>If all batches are finished or skipped, the job transitions to
+     * <p>If all batches are finished or skipped and the cohort is complete, the job transitions to
      * {@link JobStatus#RUNNING_PROCESS_CORE}.</p>
      *
      * @param result the batch processing result
      * @return updated job state
      */
     public Job onBatchProcessingSuccess(BatchResult result) {
-        if (status != JobStatus.RUNNING_PROCESS_BATCH) {
+        if (!processesBatches()) {
             return this;
         }
         Job updated = withBatchState(result.batchState())
                 .withIssuesAdded(result.issues());
 
-        if (allBatchesDone(updated.batches())) {
+        if (status == JobStatus.RUNNING_PROCESS_BATCH && allBatchesDone(updated.batches())) {
             return updated.withStatus(JobStatus.RUNNING_PROCESS_CORE)
                     .withCoreState(WorkUnitState.initNow());
         }
@@ -190,6 +293,97 @@ public record Job(
                 .withCoreState(coreState.finishNow(result.status()));
     }
 
+    /**
+     * Records that the core resources were partitioned into the given number of shards.
+     * <p>
+     * Applies only if the job is still in the {@link JobStatus#RUNNING_PROCESS_CORE} phase and not partitioned yet.
+     * The core state is reset to {@link WorkUnitStatus#INIT}, so the core work unit runs again to reconcile the
+     * shards once all of them are done.
+     *
+     * @param shards the number of shards, at least one
+     * @param issues issues raised while preparing the core resources
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCorePartitioned(int shards, List<Issue> issues) {
+        if (status != JobStatus.RUNNING_PROCESS_CORE || !coreShards.isEmpty()) {
+            return this;
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1");
+        }
+        Map<Integer, WorkUnitState> initial = new HashMap<>();
+        for (int shard = 0; shard < shards; shard++) {
+            initial.put(shard, WorkUnitState.initNow());
+        }
+        return withCoreShards(initial)
+                .withCoreState(WorkUnitState.initNow())
+                .withIssuesAdded(issues);
+    }
+
+    /**
+     * Records a successfully processed core shard.
+     * <p>
+     * Applies only if the job is still in the {@link JobStatus#RUNNING_PROCESS_CORE} phase and the shard is
+     * {@link WorkUnitStatus#IN_PROGRESS}.
+     *
+     * @param result the shard processing result
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCoreShardSuccess(CoreShardResult result) {
+        WorkUnitState shardState = coreShards.get(result.shard());
+        if (status != JobStatus.RUNNING_PROCESS_CORE || shardState == null
+                || shardState.status() != WorkUnitStatus.IN_PROGRESS) {
+            return this;
+        }
+        return withCoreShardState(result.shard(), shardState.finishNow(result.status()))
+                .withIssuesAdded(result.issues());
+    }
+
+    /**
+     * @return whether all core shards are finished or skipped, {@code false} if the core is not partitioned
+     */
+    public boolean allCoreShardsDone() {
+        return !coreShards.isEmpty() && coreShards.values().stream().allMatch(s -> s.status().isDone());
+    }
+
+    /**
+     * Records that the core resources of a batch were staged.
+     * <p>
+     * Applies only if the staging of the batch is {@link WorkUnitStatus#IN_PROGRESS}.
+     *
+     * @param batchId the batch whose core resources were staged
+     * @param result  {@link WorkUnitStatus#FINISHED} if resources were staged, {@link WorkUnitStatus#SKIPPED} if
+     *                there was nothing to stage
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCoreStaged(UUID batchId, WorkUnitStatus result) {
+        BatchState bs = batches.get(batchId);
+        if (status.isFinal() || bs == null || bs.coreStageStatus() != WorkUnitStatus.IN_PROGRESS) {
+            return this;
+        }
+        return withBatchState(bs.withCoreStage(bs.coreStage().finishNow(result)));
+    }
+
+    /**
+     * Records that staging the core resources of a batch failed.
+     * <p>
+     * Staging is an optimization only, the core phase fetches resources that were not staged itself. So the staging
+     * is skipped instead of failing the batch or the job.
+     *
+     * @param batchId the batch whose core resources failed to stage
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job onCoreStageError(UUID batchId) {
+        return onCoreStaged(batchId, WorkUnitStatus.SKIPPED);
+    }
+
+    /**
+     * @return whether the core resources of any batch are still to be staged or being staged
+     */
+    public boolean coreStagingPending() {
+        return batchStates().countCoreStage(WorkUnitStatus.INIT) + batchStates().countCoreStage(WorkUnitStatus.IN_PROGRESS) > 0;
+    }
+
     // -------------------- domain transitions (error path) --------------------
 
     /**
@@ -225,8 +419,8 @@ public record Job(
     }
 
     /**
-     * Applies a batch-level error only if the job is still in the
-     * {@link JobStatus#RUNNING_PROCESS_BATCH} phase.
+     * Applies a batch-level error only if the job is still {@linkplain #processesBatches() processing
+     * batches}.
      * <p>
      * This guards against late or duplicate batch errors that may arrive after
      * the job has already transitioned due to other failures or retries.
@@ -241,7 +435,7 @@ public record Job(
      * @return updated job state
      */
     public Job onBatchError(UUID batchId, Throwable e, List<Issue> issues) {
-        if (status != JobStatus.RUNNING_PROCESS_BATCH) {
+        if (!processesBatches()) {
             return this;
         }
         boolean retryable = RetryabilityUtil.isRetryable(e);
@@ -311,6 +505,42 @@ public record Job(
         return updated.withStatus(JobStatus.TEMP_FAILED);
     }
 
+    /**
+     * Applies a core shard error only if the job is still in the {@link JobStatus#RUNNING_PROCESS_CORE} phase.
+     *
+     * <p>Handled like a batch error: non-retryable errors fail the job immediately, retryable errors move the
+     * shard and the job to {@link JobStatus#TEMP_FAILED}.</p>
+     *
+     * @param shard  the failed shard
+     * @param e      the failure cause
+     * @param issues domain issues to attach
+     * @return updated job state
+     */
+    public Job onCoreShardError(int shard, Throwable e, List<Issue> issues) {
+        if (status != JobStatus.RUNNING_PROCESS_CORE) {
+            return this;
+        }
+        boolean retryable = RetryabilityUtil.isRetryable(e);
+        Job updated = withIssuesAdded(merge(issues, List.of(Issue.fromException(
+                retryable ? Severity.WARNING : Severity.ERROR,
+                "Core shard " + shard + " failed: " + e.getMessage(),
+                e
+        ))));
+
+        WorkUnitState shardState = coreShards.get(shard);
+        if (shardState == null) {
+            return updated.withIssuesAdded(List.of(Issue.fromException(Severity.ERROR,
+                            "Missing core shard " + shard + " in job " + id, e)))
+                    .withStatus(JobStatus.FAILED);
+        }
+
+        Job withShard = updated.withCoreShardState(shard, shardState.onFailure(retryable));
+        if (!retryable) {
+            return withShard.withStatus(JobStatus.FAILED);
+        }
+        return withShard.withStatus(JobStatus.TEMP_FAILED);
+    }
+
     /**
      * Handles job-level errors that occur outside work-unit execution
      * (e.g. persistence or orchestration failures like saveCoreBatch/job.json).
@@ -346,32 +576,94 @@ public record Job(
 
     // -------------------- scheduling / selection --------------------
 
+    /**
+     * @return whether the job hands out batches, either while its cohort is streamed into batches or afterwards
+     */
+    public boolean processesBatches() {
+        return status == JobStatus.RUNNING_GET_COHORT || status == JobStatus.RUNNING_PROCESS_BATCH;
+    }
+
     public Optional<UUID> getNextBatch() {
-        return batches.values().stream()
-                .filter(bs -> bs.status() == WorkUnitStatus.INIT)
-                .map(BatchState::batchId)
-                .findFirst();
+        return batchStates().anyWithStatus(WorkUnitStatus.INIT);
+    }
+
+    /**
+     * @return the number of batches currently in progress
+     */
+    public int batchesInProgress() {
+        return batchStates().count(WorkUnitStatus.IN_PROGRESS);
+    }
+
+    /**
+     * @return whether a further batch may be started without exceeding {@code maxConcurrentBatches}
+     */
+    public boolean batchSlotAvailable() {
+        return maxConcurrentBatches == 0 || batchesInProgress() < maxConcurrentBatches;
+    }
+
+    /**
+     * @return a batch whose core resources are still to be staged, or empty if there is none
+     */
+    public Optional<UUID> getNextCoreStage() {
+        return batchStates().anyWithCoreStage(WorkUnitStatus.INIT);
+    }
+
+    /**
+     * @return the lowest core shard not claimed yet, or empty if there is none
+     */
+    public Optional<Integer> getNextCoreShard() {
+        return coreShards.entrySet().stream()
+                .filter(e -> e.getValue().status() == WorkUnitStatus.INIT)
+                .map(Map.Entry::getKey)
+                .min(Integer::compare);
     }
 
     public Optional<WorkUnit> selectNextWorkUnit() {
+        return selectNextWorkUnit(EnumSet.allOf(WorkPhase.class));
+    }
+
+    /**
+     * Selects the next work unit of one of the given phases.
+     * <p>
+     * While batches are running, a job can have work units of the batch phase and, for staging core resources, of
+     * the core phase at the same time. Batches are preferred if both phases are given.
+     *
+     * @param phases the phases that may be selected
+     * @return the work unit, or empty if the job has none of these phases to hand out
+     */
+    public Optional<WorkUnit> selectNextWorkUnit(Set<WorkPhase> phases) {
         return switch (status) {
-            case PENDING -> Optional.of(new ProcessCohortWorkUnit(
+            case PENDING -> phases.contains(WorkPhase.COHORT)
+                    ? Optional.of(new ProcessCohortWorkUnit(
                     withCohortState(WorkUnitState.initNow()).withStatus(JobStatus.RUNNING_GET_COHORT)
-            ));
+            ))
+                    : Optional.empty();
 
-            case RUNNING_PROCESS_BATCH -> {
+            case RUNNING_GET_COHORT, RUNNING_PROCESS_BATCH -> {
                 Optional<UUID> next = getNextBatch();
-                if (next.isPresent()) {
-                    yield Optional.of(new ProcessBatchWorkUnit(
-                            withStatus(JobStatus.RUNNING_PROCESS_BATCH),
-                            next.get()
-                    ));
+                if (next.isPresent() && phases.contains(WorkPhase.BATCH) && batchSlotAvailable()) {
+                    // The job is handed out unchanged, so it stays out of the ready queue until the batch is claimed
+                    yield Optional.of(new ProcessBatchWorkUnit(this, next.get()));
                 }
-                yield Optional.empty();
+                yield phases.contains(WorkPhase.CORE) ? selectCoreStage() : Optional.empty();
             }
 
             case RUNNING_PROCESS_CORE -> {
-                if (coreState.status() == WorkUnitStatus.INIT) {
+                if (!phases.contains(WorkPhase.CORE)) {
+                    yield Optional.empty();
+                }
+                Optional<WorkUnit> stage = selectCoreStage();
+                if (stage.isPresent()) {
+                    yield stage;
+                }
+                Optional<Integer> shard = getNextCoreShard();
+                if (shard.isPresent()) {
+                    yield Optional.of(new ProcessCoreShardWorkUnit(
+                            withCoreShardState(shard.get(), WorkUnitState.startNow()),
+                            shard.get()
+                    ));
+                }
+                if (coreRunnable()) {
                     yield Optional.of(new ProcessCoreWorkUnit(
                             withStatus(JobStatus.RUNNING_PROCESS_CORE)
                                     .withCoreState(WorkUnitState.startNow())
@@ -384,6 +676,71 @@ public record Job(
         };
     }
 
+    /**
+     * Claims the staging of the core resources of some batch, if any is left.
+     */
+    private Optional<WorkUnit> selectCoreStage() {
+        return getNextCoreStage().map(batchId -> new StageCoreWorkUnit(
+                withBatchState(batches.get(batchId).withCoreStage(WorkUnitState.startNow())),
+                batchId
+        ));
+    }
+
+    /**
+     * @return whether the core work unit may run, i.e. it is not claimed yet and neither staging nor shards are
+     * pending
+     */
+    private boolean coreRunnable() {
+        return coreState.status() == WorkUnitStatus.INIT && !coreStagingPending()
+                && (coreShards.isEmpty() || allCoreShardsDone());
+    }
+
+    /**
+     * Checks whether {@link #selectNextWorkUnit()} would return a work unit, without creating it.
+     *
+     * @return true if the job has a work unit to hand out
+     */
+    public boolean hasRunnableWork() {
+        return !runnablePhases().isEmpty();
+    }
+
+    /**
+     * Returns the phase of the work unit {@link #selectNextWorkUnit()} would return, without creating it.
+     *
+     * @return the phase, or empty if the job has no work unit to hand out
+     */
+    public Optional<WorkPhase> runnablePhase() {
+        return runnablePhases().stream().findFirst();
+    }
+
+    /**
+     * Returns the phases {@link #selectNextWorkUnit(Set)} would return a work unit of, without creating it.
+     *
+     * @return the phases, empty if the job has no work unit to hand out
+     */
+    public Set<WorkPhase> runnablePhases() {
+        Set<WorkPhase> phases = EnumSet.noneOf(WorkPhase.class);
+        switch (status) {
+            case PENDING -> phases.add(WorkPhase.COHORT);
+            case RUNNING_GET_COHORT, RUNNING_PROCESS_BATCH -> {
+                if (getNextBatch().isPresent() && batchSlotAvailable()) {
+                    phases.add(WorkPhase.BATCH);
+                }
+                if (getNextCoreStage().isPresent()) {
+                    phases.add(WorkPhase.CORE);
+                }
+            }
+            case RUNNING_PROCESS_CORE -> {
+                if (getNextCoreStage().isPresent() || getNextCoreShard().isPresent() || coreRunnable()) {
+                    phases.add(WorkPhase.CORE);
+                }
+            }
+            default -> {
+            }
+        }
+        return phases;
+    }
+
     // -------------------- restart job --------------------
 
     /**
@@ -393,7 +750,8 @@ public record Job(
      * <ul>
      *   <li>If job is in {@link JobStatus#RUNNING_GET_COHORT}, it is rolled back to {@link JobStatus#PENDING}
      *       so {@link #selectNextWorkUnit()} re-emits the cohort work unit deterministically.</li>
-     *   <li>Any unit substate left in {@link WorkUnitStatus#IN_PROGRESS} is rerolled to {@code INIT}.</li>
+     *   <li>Any unit substate left in {@link WorkUnitStatus#IN_PROGRESS} is rerolled to {@code INIT}, including
+     *       the staging of core resources of a batch.</li>
      * </ul>
      *
      * @return rolled-back job
@@ -404,7 +762,10 @@ public record Job(
         // 0) stable terminal substates should win (as-is)
         if (cohortState.status().isTerminalFailure()) return withStatus(JobStatus.FAILED);
         if (coreState.status().isTerminalFailure()) return withStatus(JobStatus.FAILED);
-        if (batches.values().stream().anyMatch(bs -> bs.status().isTerminalFailure())) {
+        if (batchStates().count(WorkUnitStatus.FAILED) > 0) {
+            return withStatus(JobStatus.FAILED);
+        }
+        if (coreShards.values().stream().anyMatch(s -> s.status().isTerminalFailure())) {
             return withStatus(JobStatus.FAILED);
         }
 
@@ -425,6 +786,14 @@ public record Job(
             updated = updated.withCoreState(WorkUnitState.initNow());
         }
 
+        for (Map.Entry<Integer, WorkUnitState> shard : updated.coreShards.entrySet()) {
+            if (shard.getValue().status() == WorkUnitStatus.TEMP_FAILED) {
+                updated = updated.withCoreShardState(shard.getKey(), shard.getValue().rerollFromTempFailed());
+            } else if (shard.getValue().status().shouldRerollToInit()) {
+                updated = updated.withCoreShardState(shard.getKey(), WorkUnitState.initNow());
+            }
+        }
+
         for (BatchState bs : updated.batches.values()) {
             if (bs.status() == WorkUnitStatus.TEMP_FAILED) {
                 // requires BatchState.rerollFromTempFailed() (see note below)
@@ -434,6 +803,12 @@ public record Job(
             }
         }
 
+        // interrupted staging of core resources is resumed
+        Optional<UUID> staging;
+        while ((staging = updated.batchStates().anyWithCoreStage(WorkUnitStatus.IN_PROGRESS)).isPresent()) {
+            updated = updated.withBatchState(updated.batches.get(staging.get()).withCoreStage(WorkUnitState.initNow()));
+        }
+
         Optional<Job> failed = failIfRetriesExhaustedAfterReroll(updated);
         if (failed.isPresent()) return failed.get();
 
@@ -479,6 +854,11 @@ public record Job(
         if (updated.coreState.status().isTerminalFailure()) {
             exhausted.add("core");
         }
+        updated.coreShards.forEach((shard, state) -> {
+            if (state.status().isTerminalFailure()) {
+                exhausted.add("core shard " + shard);
+            }
+        });
         for (BatchState bs : updated.batches.values()) {
             if (bs.status().isTerminalFailure()) {
                 exhausted.add("batch " + bs.batchId());
@@ -510,13 +890,14 @@ public record Job(
         // any permanent failure => failed
         if (cohortState.status().isTerminalFailure()) return JobStatus.FAILED;
         if (coreState.status().isTerminalFailure()) return JobStatus.FAILED;
-        if (batches.values().stream().anyMatch(bs -> bs.status().isTerminalFailure())) return JobStatus.FAILED;
+        if (batchStates().count(WorkUnitStatus.FAILED) > 0) return JobStatus.FAILED;
+        if (coreShards.values().stream().anyMatch(s -> s.status().isTerminalFailure())) return JobStatus.FAILED;
 
         // cohort not done => PENDING
         if (!cohortState.status().isDone()) return JobStatus.PENDING;
 
         // batches not all done => process batches
-        boolean batchesRemain = batches.values().stream().anyMatch(bs -> !bs.status().isDone());
+        boolean batchesRemain = batchStates().countDone() < batches.size();
         if (batchesRemain) return JobStatus.RUNNING_PROCESS_BATCH;
 
         // core not done => process core
@@ -530,9 +911,12 @@ public record Job(
 
 
     private boolean allBatchesDone(Map<UUID, BatchState> b) {
-        return b.values().stream().allMatch(bs ->
-                bs.status() == WorkUnitStatus.FINISHED || bs.status() == WorkUnitStatus.SKIPPED
-        );
+        BatchStates states = BatchStates.copyOf(b);
+        return states.count(WorkUnitStatus.FINISHED) + states.count(WorkUnitStatus.SKIPPED) == states.size();
+    }
+
+    private BatchStates batchStates() {
+        return (BatchStates) batches;
     }
 
     public Job initBatches(Map<UUID, BatchState> initialBatches, int cohortSize) {
@@ -549,25 +933,69 @@ public record Job(
                 parameters,
                 priority,
                 coreState,
-                version
+                version,
+                coreShards,
+                maxConcurrentBatches,
+                cohortCache
         );
     }
 
-    public Job withBatchState(BatchState batch) {
-        Map<UUID, BatchState> newBatches = new HashMap<>(batches);
-        newBatches.put(batch.batchId(), batch);
+    /**
+     * @param batchId the batch
+     * @return whether the batch may be {@linkplain #splitBatch split}, because the job is still
+     * {@linkplain #processesBatches() processing batches} and the batch is {@link WorkUnitStatus#IN_PROGRESS}
+     */
+    public boolean canSplitBatch(UUID batchId) {
+        BatchState bs = batches.get(batchId);
+        return processesBatches() && bs != null && bs.status() == WorkUnitStatus.IN_PROGRESS;
+    }
+
+    /**
+     * Replaces a claimed batch with the given sub-batches.
+     * <p>
+     * Applies only if the batch {@linkplain #canSplitBatch can be split}, so a stale or duplicate split leaves the
+     * job unchanged.
+     *
+     * @param batchId    the batch that was split
+     * @param subBatches the initial states of the sub-batches replacing it
+     * @return updated job state if applied, or the current job unchanged if stale
+     */
+    public Job splitBatch(UUID batchId, List<BatchState> subBatches) {
+        if (!canSplitBatch(batchId)) {
+            return this;
+        }
+        BatchStates newBatches = batchStates().without(batchId);
+        for (BatchState sub : subBatches) {
+            newBatches = newBatches.with(sub);
+        }
         return new Job(id, status, cohortState, cohortSize, newBatches, startedAt, Instant.now(), finishedAt, issues, parameters, priority, coreState,
-                version);
+                version, coreShards, maxConcurrentBatches, cohortCache);
+    }
+
+    public Job withBatchState(BatchState batch) {
+        return new Job(id, status, cohortState, cohortSize, batchStates().with(batch), startedAt, Instant.now(), finishedAt, issues, parameters, priority, coreState,
+                version, coreShards, maxConcurrentBatches, cohortCache);
     }
 
     public Job withCoreState(WorkUnitState newState) {
         return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(),
-                finishedAt, issues, parameters, priority, newState, version);
+                finishedAt, issues, parameters, priority, newState, version, coreShards, maxConcurrentBatches, cohortCache);
+    }
+
+    public Job withCoreShards(Map<Integer, WorkUnitState> newShards) {
+        return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(),
+                finishedAt, issues, parameters, priority, coreState, version, newShards, maxConcurrentBatches, cohortCache);
+    }
+
+    public Job withCoreShardState(int shard, WorkUnitState newState) {
+        Map<Integer, WorkUnitState> newShards = new HashMap<>(coreShards);
+        newShards.put(shard, newState);
+        return withCoreShards(newShards);
     }
 
     public Job withCohortState(WorkUnitState newState) {
         return new Job(id, status, newState, cohortSize, batches, startedAt, Instant.now(),
-                finishedAt, issues, parameters, priority, coreState, version);
+                finishedAt, issues, parameters, priority, coreState, version, coreShards, maxConcurrentBatches, cohortCache);
     }
 
     public Job withIssuesAdded(List<Issue> newIssues) {
@@ -575,7 +1003,7 @@ public record Job(
         List<Issue> merged = new ArrayList<>(issues);
         merged.addAll(newIssues);
         return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(),
-                finishedAt, merged, parameters, priority, coreState, version);
+                finishedAt, merged, parameters, priority, coreState, version, coreShards, maxConcurrentBatches, cohortCache);
     }
 
     public Job withStatus(JobStatus newStatus) {
@@ -584,27 +1012,47 @@ public record Job(
             newFinishedAt = Optional.of(Instant.now());
         }
         return new Job(id, newStatus, cohortState, cohortSize, batches, startedAt, Instant.now(),
-                newFinishedAt, issues, parameters, priority, coreState, version);
+                newFinishedAt, issues, parameters, priority, coreState, version, coreShards, maxConcurrentBatches, cohortCache);
     }
 
     public double calculateBatchProgress() {
         if (!batches.isEmpty()) {
-            long completedBatches = batches.values().stream()
-                    .filter(bs -> bs.status().isDone())
-                    .count();
+            long completedBatches = batchStates().countDone();
             return ((double) completedBatches / batches.size()) * 100;
         }
         return 0;
     }
 
+    public Job withParameters(JobParameters newParameters) {
+        return new Job(id, status, cohortState, cohortSize, batches, startedAt, updatedAt, finishedAt, issues,
+                newParameters, priority, coreState, version, coreShards, maxConcurrentBatches, cohortCache);
+    }
+
+    private Job withCohortCache(Optional<CohortCacheStatus> newCohortCache) {
+        return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(), finishedAt, issues,
+                parameters, priority, coreState, version, coreShards, maxConcurrentBatches, newCohortCache);
+    }
+
     public Job withPriority(JobPriority jobPriority) {
-        return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(), finishedAt, issues, parameters, jobPriority, coreState, version);
+        return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(), finishedAt, issues, parameters, jobPriority, coreState, version, coreShards, maxConcurrentBatches, cohortCache);
+    }
+
+    /**
+     * @param limit the maximum number of batches of this job processed at the same time, {@code 0} for no limit
+     * @return the job with the new limit
+     */
+    public Job withMaxConcurrentBatches(int limit) {
+        return new Job(id, status, cohortState, cohortSize, batches, startedAt, Instant.now(), finishedAt, issues,
+                parameters, priority, coreState, version, coreShards, limit, cohortCache);
     }
 
     public Job incrementVersion() {
         return new Job(
                 id, status, cohortState, cohortSize, batches, startedAt, Instant.now(),
-                finishedAt, issues, parameters, priority, coreState, version + 1
+                finishedAt, issues, parameters, priority, coreState, version + 1,
+                coreShards,
+                maxConcurrentBatches,
+                cohortCache
         );
     }
 
@@ -0,0 +1,130 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A single state change of a {@link Job} as recorded in the job journal.
+ *
+ * <p>Holds the small scalar fields of the job in full, but only the batches that changed or were removed and only
+ * the issues that were appended. The job parameters, which hold the CRTDL and the patient list, are never part of a
+ * delta, so a delta stays small regardless of the size of the job.</p>
+ *
+ * @param version              the version of the job after the change
+ * @param status               the status after the change
+ * @param cohortState          the cohort state after the change
+ * @param cohortSize           the cohort size after the change
+ * @param updatedAt            the update time after the change
+ * @param finishedAt           the finish time after the change
+ * @param priority             the priority after the change
+ * @param coreState            the core state after the change
+ * @param coreShards           the core shard states after the change
+ * @param maxConcurrentBatches the maximum number of concurrent batches after the change
+ * @param cohortCache          the cohort cache status after the change
+ * @param batches              the batches added or changed
+ * @param removedBatches       the ids of removed batches
+ * @param addedIssues          the issues appended to the existing ones
+ * @param issues               all issues, if they were not only appended to, otherwise {@code null}
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public record JobDelta(
+        @JsonProperty long version,
+        @JsonProperty JobStatus status,
+        @JsonProperty WorkUnitState cohortState,
+        @JsonProperty int cohortSize,
+        @JsonProperty Instant updatedAt,
+        @JsonProperty Optional<Instant> finishedAt,
+        @JsonProperty JobPriority priority,
+        @JsonProperty WorkUnitState coreState,
+        @JsonProperty Map<Integer, WorkUnitState> coreShards,
+        @JsonProperty int maxConcurrentBatches,
+        @JsonProperty Optional<CohortCacheStatus> cohortCache,
+        @JsonProperty Map<UUID, BatchState> batches,
+        @JsonProperty Set<UUID> removedBatches,
+        @JsonProperty List<Issue> addedIssues,
+        @JsonProperty @JsonInclude(JsonInclude.Include.NON_NULL) @Nullable List<Issue> issues) {
+
+    public JobDelta {
+        requireNonNull(status);
+        requireNonNull(cohortState);
+        requireNonNull(updatedAt);
+        finishedAt = finishedAt == null ? Optional.empty() : finishedAt;
+        requireNonNull(priority);
+        requireNonNull(coreState);
+        coreShards = coreShards == null ? Map.of() : Map.copyOf(coreShards);
+        cohortCache = cohortCache == null ? Optional.empty() : cohortCache;
+        batches = batches == null ? Map.of() : Map.copyOf(batches);
+        removedBatches = removedBatches == null ? Set.of() : Set.copyOf(removedBatches);
+        addedIssues = addedIssues == null ? List.of() : List.copyOf(addedIssues);
+        issues = issues == null ? null : List.copyOf(issues);
+    }
+
+    /**
+     * Computes the delta from one state of a job to the next.
+     *
+     * @param previous the state before the change
+     * @param next     the state after the change
+     * @return the delta, or empty if the change touches fields a delta can't express, like the job parameters
+     */
+    public static Optional<JobDelta> between(Job previous, Job next) {
+        if (!previous.id().equals(next.id()) || !previous.startedAt().equals(next.startedAt())
+                || (previous.parameters() != next.parameters() && !previous.parameters().equals(next.parameters()))) {
+            return Optional.empty();
+        }
+
+        Map<UUID, BatchState> changed = new HashMap<>();
+        Set<UUID> removed = new HashSet<>();
+        BatchStates.copyOf(previous.batches()).diff(BatchStates.copyOf(next.batches()), changed::put, removed::add);
+
+        List<Issue> before = previous.issues();
+        List<Issue> after = next.issues();
+        boolean appended = after.size() >= before.size() && after.subList(0, before.size()).equals(before);
+
+        return Optional.of(new JobDelta(next.version(), next.status(), next.cohortState(), next.cohortSize(),
+                next.updatedAt(), next.finishedAt(), next.priority(), next.coreState(), next.coreShards(),
+                next.maxConcurrentBatches(), next.cohortCache(), changed,
+                removed,
+                appended ? after.subList(before.size(), after.size()) : List.of(), appended ? null : after));
+    }
+
+    /**
+     * Applies this delta to the state of the job it was computed from.
+     *
+     * @param job the state before the change
+     * @return the state after the change
+     */
+    public Job applyTo(Job job) {
+        BatchStates mergedBatches = BatchStates.copyOf(job.batches());
+        for (UUID id : removedBatches) {
+            mergedBatches = mergedBatches.without(id);
+        }
+        for (BatchState state : batches.values()) {
+            mergedBatches = mergedBatches.with(state);
+        }
+
+        List<Issue> mergedIssues = issues;
+        if (mergedIssues == null) {
+            mergedIssues = addedIssues.isEmpty() ? job.issues() : Issue.merge(job.issues(), addedIssues);
+        }
+
+        return new Job(job.id(), status, cohortState, cohortSize, mergedBatches, job.startedAt(), updatedAt,
+                finishedAt, mergedIssues, job.parameters(), priority, coreState, version, coreShards,
+                maxConcurrentBatches, cohortCache);
+    }
+}
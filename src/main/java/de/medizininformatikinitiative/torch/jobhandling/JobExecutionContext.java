@@ -4,13 +4,37 @@ import de.medizininformatikinitiative.torch.service.CohortQueryService;
 import de.medizininformatikinitiative.torch.service.ExtractDataService;
 import de.medizininformatikinitiative.torch.service.JobPersistenceService;
 
+/**
+ * @param coreShards the number of shards the core phase of a job is split into, {@code 1} processes it as a whole
+ */
 public record JobExecutionContext(
         JobPersistenceService persistence,
         ExtractDataService extract,
         CohortQueryService cohortQueryService,
         int batchsize,
         int maxBatchRetries,
-        int maxJobRetries
+        int maxJobRetries,
+        AdaptiveBatchSizer batchSizer,
+        int coreShards
 ) {
-}
 
+    public JobExecutionContext(JobPersistenceService persistence,
+                               ExtractDataService extract,
+                               CohortQueryService cohortQueryService,
+                               int batchsize,
+                               int maxBatchRetries,
+                               int maxJobRetries) {
+        this(persistence, extract, cohortQueryService, batchsize, maxBatchRetries, maxJobRetries,
+                AdaptiveBatchSizer.disabled(batchsize));
+    }
+
+    public JobExecutionContext(JobPersistenceService persistence,
+                               ExtractDataService extract,
+                               CohortQueryService cohortQueryService,
+                               int batchsize,
+                               int maxBatchRetries,
+                               int maxJobRetries,
+                               AdaptiveBatchSizer batchSizer) {
+        this(persistence, extract, cohortQueryService, batchsize, maxBatchRetries, maxJobRetries, batchSizer, 1);
+    }
+}
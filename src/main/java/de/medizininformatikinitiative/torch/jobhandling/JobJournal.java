@@ -0,0 +1,226 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Append-only journal of job state changes with group commit.
+ *
+ * <p>Instead of rewriting the full job snapshot on every state change, a small {@link JobDelta} is appended to the
+ * journal file in the job directory. {@link #append(Job, Job)} only enqueues the change, so it can be called while
+ * holding the registry lock. A single writer thread drains all queued changes at once, writes them with one append
+ * per job and completes the returned futures afterwards, so concurrent workers share a write.</p>
+ *
+ * <p>After {@code compactAfter} records, and whenever a job reaches a final status, the writer compacts the journal
+ * by writing a full snapshot and deleting the journal. On startup {@link #replay(Job, Path, FileIo, ObjectMapper)} applies the records
+ * newer than the snapshot.</p>
+ */
+public class JobJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobJournal.class);
+
+    public static final String JOURNAL_FILE_NAME = "job.journal.ndjson";
+
+    private final FileIo io;
+    private final ObjectMapper mapper;
+    private final Function<UUID, Path> jobDir;
+    private final SnapshotWriter snapshotWriter;
+    private final int compactAfter;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Map<UUID, Integer> recordsSinceSnapshot = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Writes the full snapshot of a job.
+     */
+    @FunctionalInterface
+    public interface SnapshotWriter {
+        void write(Job job) throws IOException;
+    }
+
+    private record Pending(Job previous, Job job, CompletableFuture<Void> committed) {
+    }
+
+    private static final Pending STOP = new Pending(null, null, null);
+
+    /**
+     * @param io             file access
+     * @param mapper         mapper for the journal records
+     * @param jobDir         resolves the directory of a job
+     * @param snapshotWriter writes the full snapshot of a job
+     * @param compactAfter   the number of records after which the journal of a job is compacted into a snapshot
+     */
+    public JobJournal(FileIo io, ObjectMapper mapper, Function<UUID, Path> jobDir, SnapshotWriter snapshotWriter,
+                      int compactAfter) {
+        this.io = requireNonNull(io);
+        this.mapper = requireNonNull(mapper);
+        this.jobDir = requireNonNull(jobDir);
+        this.snapshotWriter = requireNonNull(snapshotWriter);
+        this.compactAfter = compactAfter;
+        this.writer = Thread.ofPlatform().daemon().name("job-journal-writer").start(this::writeLoop);
+    }
+
+    /**
+     * Enqueues the change of a job from one state to the next.
+     *
+     * <p>Changes of the same job must be enqueued in the order they were applied. Performs no I/O, the delta is
+     * computed by the writer thread.</p>
+     *
+     * @param previous the state before the change
+     * @param next     the state after the change
+     * @return a future completed once the change is on disk, or completed exceptionally if writing failed
+     */
+    public synchronized CompletableFuture<Void> append(Job previous, Job next) {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        if (closed) {
+            committed.completeExceptionally(new IOException("Job journal is closed"));
+            return committed;
+        }
+        queue.add(new Pending(previous, next, committed));
+        return committed;
+    }
+
+    /**
+     * Writes the full snapshot of a job and deletes its journal.
+     *
+     * <p>Must not be called concurrently with {@link #append} for the same job, e.g. only before the job is
+     * registered.</p>
+     *
+     * @param job the job
+     * @throws IOException if writing fails
+     */
+    public void writeSnapshot(Job job) throws IOException {
+        snapshotWriter.write(job);
+        io.deleteIfExists(journalFile(job.id()));
+        recordsSinceSnapshot.remove(job.id());
+    }
+
+    /**
+     * Applies the journal records of a job that are newer than the given snapshot.
+     *
+     * <p>Reading stops at the first record that can't be parsed, which is a record torn by a crash during the
+     * write.</p>
+     *
+     * @param snapshot the job state read from the snapshot
+     * @param dir      the job directory
+     * @param io       file access
+     * @param mapper   mapper for the journal records
+     * @return the job state including all journaled changes
+     */
+    public static Job replay(Job snapshot, Path dir, FileIo io, ObjectMapper mapper) {
+        Path file = dir.resolve(JOURNAL_FILE_NAME);
+        if (!io.exists(file)) {
+            return snapshot;
+        }
+        Job job = snapshot;
+        try (Stream<String> lines = io.lines(file)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JobDelta delta;
+                try {
+                    delta = mapper.readValue(line, JobDelta.class);
+                } catch (IOException e) {
+                    logger.warn("Ignoring torn journal record of job {}: {}", snapshot.id(), e.getMessage());
+                    break;
+                }
+                if (delta.version() > job.version()) {
+                    job = delta.applyTo(job);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read journal of job {}, using its state as of version {}: {}",
+                    snapshot.id(), job.version(), e.getMessage(), e);
+        }
+        return job;
+    }
+
+    /**
+     * Writes all enqueued changes and stops the writer thread.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        writer.join();
+    }
+
+    private Path journalFile(UUID jobId) {
+        return jobDir.apply(jobId).resolve(JOURNAL_FILE_NAME);
+    }
+
+    private void writeLoop() {
+        List<Pending> group = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(group);
+            stop = group.remove(STOP);
+
+            Map<UUID, List<Pending>> byJob = new LinkedHashMap<>();
+            for (Pending pending : group) {
+                byJob.computeIfAbsent(pending.job().id(), id -> new ArrayList<>()).add(pending);
+            }
+            byJob.forEach(this::commit);
+            group.clear();
+        }
+    }
+
+    private void commit(UUID jobId, List<Pending> changes) {
+        try {
+            Job last = changes.getLast().job();
+            int records = recordsSinceSnapshot.getOrDefault(jobId, 0) + changes.size();
+            List<JobDelta> deltas = new ArrayList<>();
+            for (Pending pending : changes) {
+                JobDelta.between(pending.previous(), pending.job()).ifPresent(deltas::add);
+            }
+            if (last.status().isFinal() || records >= compactAfter || deltas.size() < changes.size()) {
+                writeSnapshot(last);
+            } else {
+                try (BufferedWriter out = io.newAppendingWriter(journalFile(jobId))) {
+                    for (JobDelta delta : deltas) {
+                        out.write(mapper.writeValueAsString(delta));
+                        out.newLine();
+                    }
+                }
+                recordsSinceSnapshot.put(jobId, records);
+            }
+            changes.forEach(pending -> pending.committed().complete(null));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to write journal of job {}: {}", jobId, e.getMessage(), e);
+            // later records would build on the lost ones, so the next commit of the job writes a full snapshot
+            recordsSinceSnapshot.put(jobId, compactAfter);
+            changes.forEach(pending -> pending.committed().completeExceptionally(e));
+        }
+    }
+}
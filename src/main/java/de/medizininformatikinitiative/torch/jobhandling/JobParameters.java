@@ -1,21 +1,256 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Objects;
 
 import static java.util.Objects.requireNonNull;
 
+/**
+ * The immutable parameters of a job: the annotated CRTDL, the explicitly given patient ids and the kick-off URL.
+ *
+ * <p>The CRTDL and the patient ids can be large, so a job persisted by the
+ * {@link de.medizininformatikinitiative.torch.service.JobPersistenceService} only references them by the hash of
+ * their {@link Content}, which is written once to its own file. Such <em>stored</em> parameters serialize to the hash
+ * and the kick-off URL only and load the content on demand through their {@link Loader}, keeping it only softly
+ * reachable. Parameters created with {@link #JobParameters(AnnotatedCrtdl, List, String)} hold their content and
+ * serialize it in full, which is also the format of job files written before parameters were stored separately.</p>
+ *
+ * <p>The hash of parameters holding their content is calculated on creation, so that parameters are compared by
+ * hash and kick-off URL only and never load stored content to do so.</p>
+ */
 @JsonIgnoreProperties(ignoreUnknown = true)
-public record JobParameters(
-        @JsonProperty AnnotatedCrtdl crtdl,
-        @JsonProperty List<String> paramBatch,
-        @JsonProperty String kickOffUrl
-) {
-    public JobParameters {
-        requireNonNull(crtdl);
-        paramBatch = List.copyOf(paramBatch);
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class JobParameters {
+
+    /**
+     * The large, write-once part of the parameters.
+     *
+     * @param crtdl      the annotated CRTDL
+     * @param paramBatch the explicitly given patient ids, empty if the cohort is queried
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record Content(
+            @JsonProperty AnnotatedCrtdl crtdl,
+            @JsonProperty List<String> paramBatch) {
+
+        public Content {
+            requireNonNull(crtdl);
+            paramBatch = List.copyOf(paramBatch);
+        }
+    }
+
+    /**
+     * Loads stored content by its hash.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        Content load(String hash) throws IOException;
+    }
+
+    private static final ObjectMapper CONTENT_MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new Jdk8Module())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    private final String hash;
+    @Nullable
+    private final String kickOffUrl;
+    @Nullable
+    private final Content content;
+    @Nullable
+    private final Loader loader;
+    private volatile SoftReference<Content> loaded = new SoftReference<>(null);
+
+    private JobParameters(String hash, @Nullable String kickOffUrl, @Nullable Content content,
+                          @Nullable Loader loader) {
+        this.hash = hash;
+        this.kickOffUrl = kickOffUrl;
+        this.content = content;
+        this.loader = loader;
+    }
+
+    public JobParameters(AnnotatedCrtdl crtdl, List<String> paramBatch, @Nullable String kickOffUrl) {
+        this(new Content(crtdl, paramBatch), kickOffUrl);
+    }
+
+    private JobParameters(Content content, @Nullable String kickOffUrl) {
+        this(hash(serialize(content)), kickOffUrl, content, null);
+    }
+
+    /**
+     * Serializes content to the JSON its hash is calculated from.
+     *
+     * @param content the content
+     * @return the content as UTF-8 JSON
+     */
+    public static byte[] serialize(Content content) {
+        try {
+            return CONTENT_MAPPER.writeValueAsBytes(content);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Failed to serialize job parameters", e);
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Creates parameters referencing stored content.
+     *
+     * @param hash       the hash of the stored content
+     * @param kickOffUrl the kick-off URL
+     * @param loader     loads the content on demand
+     * @return the stored parameters
+     */
+    public static JobParameters stored(String hash, @Nullable String kickOffUrl, Loader loader) {
+        return new JobParameters(requireNonNull(hash), kickOffUrl, null, requireNonNull(loader));
+    }
+
+    @JsonCreator
+    static JobParameters fromJson(@JsonProperty("hash") @Nullable String hash,
+                                  @JsonProperty("crtdl") @Nullable AnnotatedCrtdl crtdl,
+                                  @JsonProperty("paramBatch") @Nullable List<String> paramBatch,
+                                  @JsonProperty("kickOffUrl") @Nullable String kickOffUrl) {
+        if (hash != null) {
+            return new JobParameters(hash, kickOffUrl, null, null);
+        }
+        return new JobParameters(requireNonNull(crtdl, "crtdl"), paramBatch == null ? List.of() : paramBatch,
+                kickOffUrl);
+    }
+
+    /**
+     * Returns these parameters loading their content with the given loader.
+     *
+     * <p>Used to bind stored parameters read from a job file.</p>
+     *
+     * @param loader loads the content on demand
+     * @return stored parameters using the loader, or these parameters if they hold their content
+     */
+    public JobParameters withLoader(Loader loader) {
+        return isStored() ? stored(hash, kickOffUrl, loader) : this;
+    }
+
+    /**
+     * @return the hash of the content
+     */
+    public String hash() {
+        return hash;
+    }
+
+    /**
+     * @return whether these parameters reference stored content instead of holding it
+     */
+    public boolean isStored() {
+        return content == null;
+    }
+
+    @JsonProperty("kickOffUrl")
+    @Nullable
+    public String kickOffUrl() {
+        return kickOffUrl;
+    }
+
+    /**
+     * @return the annotated CRTDL, loaded on demand for stored parameters
+     * @throws UncheckedIOException if loading stored content fails
+     */
+    public AnnotatedCrtdl crtdl() {
+        return content().crtdl();
+    }
+
+    /**
+     * @return the explicitly given patient ids, loaded on demand for stored parameters
+     * @throws UncheckedIOException if loading stored content fails
+     */
+    public List<String> paramBatch() {
+        return content().paramBatch();
+    }
+
+    /**
+     * @return the content, loaded on demand for stored parameters
+     * @throws UncheckedIOException if loading stored content fails
+     */
+    public Content content() {
+        if (content != null) {
+            return content;
+        }
+        Content cached = loaded.get();
+        if (cached != null) {
+            return cached;
+        }
+        if (loader == null) {
+            throw new IllegalStateException("Parameters " + hash + " are not bound to a loader");
+        }
+        try {
+            cached = loader.load(hash);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load job parameters " + hash, e);
+        }
+        loaded = new SoftReference<>(cached);
+        return cached;
+    }
+
+    @JsonProperty("hash")
+    @Nullable
+    private String jsonHash() {
+        return isStored() ? hash : null;
+    }
+
+    @JsonProperty("crtdl")
+    @Nullable
+    private AnnotatedCrtdl jsonCrtdl() {
+        return content == null ? null : content.crtdl();
+    }
+
+    @JsonProperty("paramBatch")
+    @Nullable
+    private List<String> jsonParamBatch() {
+        return content == null ? null : content.paramBatch();
+    }
+
+    /**
+     * Parameters are equal if their hashes and kick-off URLs are, whether they hold their content or not.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof JobParameters that)) return false;
+        return hash.equals(that.hash) && Objects.equals(kickOffUrl, that.kickOffUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hash, kickOffUrl);
+    }
+
+    @Override
+    public String toString() {
+        return isStored()
+                ? "JobParameters[hash=" + hash + ", kickOffUrl=" + kickOffUrl + "]"
+                : "JobParameters[hash=" + hash + ", crtdl=" + content.crtdl() + ", paramBatch="
+                + content.paramBatch().size() + " ids, kickOffUrl=" + kickOffUrl + "]";
     }
 }
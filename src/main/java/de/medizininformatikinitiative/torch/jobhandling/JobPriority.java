@@ -1,13 +1,21 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
+/**
+ * The priority of a job.
+ *
+ * <p>Without fair-share scheduling, jobs of higher priority are always dispatched first. With fair-share scheduling,
+ * the {@link #weight()} is the number of work units a job gets dispatched per round over all ready jobs.</p>
+ */
 public enum JobPriority {
-    NORMAL(0),
-    HIGH(1);
+    NORMAL(0, 1),
+    HIGH(1, 4);
 
     private final int value;
+    private final int weight;
 
-    JobPriority(int value) {
+    JobPriority(int value, int weight) {
         this.value = value;
+        this.weight = weight;
     }
 
     public static JobPriority fromValue(int val) {
@@ -20,4 +28,11 @@ public enum JobPriority {
     public int value() {
         return value;
     }
+
+    /**
+     * @return the share of work units a job of this priority gets under fair-share scheduling
+     */
+    public int weight() {
+        return weight;
+    }
 }
@@ -1,16 +1,20 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
 
+import de.medizininformatikinitiative.torch.config.SchedulerProperties;
 import de.medizininformatikinitiative.torch.config.TorchProperties;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
-import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessBatchWorkUnit;
-import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCohortWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.util.TimeUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
@@ -18,34 +22,59 @@ import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Schedules and executes {@link WorkUnit}s using a fixed-size worker pool.
+ * Schedules and executes {@link WorkUnit}s.
  * <p>
- * Workers continuously poll persistence for the next executable work unit
- * and execute it synchronously, respecting the configured maximum concurrency.
+ * By default a fixed-size pool of workers takes the next executable work unit from the {@link ReadyQueue}
+ * maintained by persistence and executes it synchronously, respecting the configured maximum concurrency.
+ * Idle workers block until a job becomes ready.
+ * <p>
+ * With {@link SchedulerProperties#virtualThreads()} enabled, a single dispatcher instead starts every work unit on
+ * its own virtual thread. Concurrency is limited per {@link WorkPhase}, and the dispatcher only selects work units
+ * of phases below their limit, so a saturated phase never holds back work units of other phases.
+ * <p>
+ * With the {@link BatchPipeline} enabled, batch work units are only started while the pipeline admits a further
+ * batch, and on virtual threads the batch phase is limited by the pipeline's maximum number of batches in flight.
+ * <p>
+ * Metrics: {@code torch.scheduler.in.flight} is the number of executing work units, tagged by {@code phase}.
  */
 @Service
-public class JobScheduler {
+public class JobScheduler implements MeterBinder {
     private static final Logger logger = LoggerFactory.getLogger(JobScheduler.class);
 
     private final int maxConcurrency;
+    private final boolean virtualThreads;
+    private final Map<WorkPhase, Integer> phaseLimits = new EnumMap<>(WorkPhase.class);
+    private final Map<WorkPhase, Semaphore> phasePermits = new EnumMap<>(WorkPhase.class);
+    private final Map<WorkPhase, AtomicInteger> inFlight = new EnumMap<>(WorkPhase.class);
     private final ExecutorService executor;
     private final JobExecutionContext ctx;
+    private final BatchPipeline pipeline;
     private volatile boolean running = false;
     private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger retryableFailures = new AtomicInteger();
+    private volatile long backOffUntil = System.nanoTime();
 
 
     static long RETRY_SLEEP_MS = 1000;
 
     static int MAX_RETRYABLE_FAILURES = 30;
 
+    static Duration IDLE_WAIT = Duration.ofSeconds(1);
+
     /**
      * Creates a new scheduler with a fixed worker pool.
      *
@@ -53,19 +82,71 @@ public class JobScheduler {
      * @param ctx        execution context passed to work units
      */
     public JobScheduler(TorchProperties properties, JobExecutionContext ctx) {
+        this(properties, new SchedulerProperties(false, 1, 1, 1, false), ctx);
+    }
+
+    /**
+     * Creates a new scheduler, executing work units on virtual threads if enabled.
+     *
+     * @param properties          configuration providing maximum concurrency of the fixed worker pool
+     * @param schedulerProperties configuration of virtual thread execution and the per-phase limits
+     * @param ctx                 execution context passed to work units
+     */
+    public JobScheduler(TorchProperties properties, SchedulerProperties schedulerProperties, JobExecutionContext ctx) {
+        this(properties, schedulerProperties, ctx, BatchPipeline.disabled());
+    }
+
+    /**
+     * Creates a new scheduler, executing work units on virtual threads if enabled.
+     *
+     * @param properties          configuration providing maximum concurrency of the fixed worker pool
+     * @param schedulerProperties configuration of virtual thread execution and the per-phase limits
+     * @param ctx                 execution context passed to work units
+     * @param pipeline            the batch pipeline deciding whether a further batch may be started
+     */
+    @Autowired
+    public JobScheduler(TorchProperties properties, SchedulerProperties schedulerProperties, JobExecutionContext ctx,
+                        BatchPipeline pipeline) {
         this.maxConcurrency = properties.maxConcurrency();
-        this.executor = Executors.newFixedThreadPool(maxConcurrency);
+        this.virtualThreads = schedulerProperties.virtualThreads();
+        for (WorkPhase phase : WorkPhase.values()) {
+            int limit = virtualThreads ? switch (phase) {
+                case COHORT -> schedulerProperties.maxCohort();
+                case BATCH -> pipeline.enabled() ? pipeline.maxInFlight() : schedulerProperties.maxBatch();
+                case CORE -> schedulerProperties.maxCore();
+            } : maxConcurrency;
+            phaseLimits.put(phase, limit);
+            phasePermits.put(phase, new Semaphore(limit));
+            inFlight.put(phase, new AtomicInteger());
+        }
+        this.executor = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("torch-work-unit-", 0).factory())
+                : Executors.newFixedThreadPool(maxConcurrency);
         this.ctx = ctx;
+        this.pipeline = pipeline;
         logger.info("JobScheduler constructed");
     }
 
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        inFlight.forEach((phase, count) -> Gauge.builder("torch.scheduler.in.flight", count, AtomicInteger::get)
+                .description("Number of executing work units")
+                .tag("phase", phase.tag())
+                .register(registry));
+    }
+
     /**
      * Starts worker threads after application start
      */
     @EventListener(ApplicationReadyEvent.class)
     void init() {
-        logger.warn("JobScheduler starting with maxConcurrency={}", maxConcurrency);
         running = true;
+        if (virtualThreads) {
+            logger.warn("JobScheduler starting on virtual threads with phase limits {}", phaseLimits);
+            executor.submit(this::dispatchLoop);
+            return;
+        }
+        logger.warn("JobScheduler starting with maxConcurrency={}", maxConcurrency);
         for (int i = 0; i < maxConcurrency; i++) {
             logger.info("Started worker {} ", i);
             executor.submit(this::workerLoop);
@@ -80,6 +161,9 @@ public class JobScheduler {
     @PreDestroy
     void shutdown() throws InterruptedException {
         running = false;
+        if (virtualThreads) {
+            ctx.persistence().wakeUpWorkers();
+        }
         executor.shutdown();
         if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
             logger.warn("Forcing shutdown after timeout");
@@ -88,9 +172,9 @@ public class JobScheduler {
     }
 
     /**
-     * Main worker loop that continuously polls for and executes available work units.
+     * Main worker loop that continuously takes and executes available work units.
      * <p>
-     * If no work unit is available, the worker idles briefly before retrying.
+     * If no work unit is available, the worker blocks until a job becomes ready.
      * The loop terminates on interruption or when the scheduler is shut down.
      * Interrupt signals are respected and propagated to allow graceful shutdown.
      */
@@ -99,11 +183,20 @@ public class JobScheduler {
         int retryableFailures = 0;
         try {
             while (running && !Thread.currentThread().isInterrupted()) {
-                Optional<WorkUnit> maybe = ctx.persistence().selectNextWorkUnit();
-
-                if (maybe.isEmpty()) {
-                    Thread.sleep(200);
-                    continue;
+                Optional<WorkUnit> maybe;
+                if (pipeline.admitsBatch()) {
+                    maybe = ctx.persistence().selectNextWorkUnit();
+                    if (maybe.isEmpty()) {
+                        ctx.persistence().awaitReadyWork(IDLE_WAIT);
+                        continue;
+                    }
+                } else {
+                    Set<WorkPhase> phases = EnumSet.complementOf(EnumSet.of(WorkPhase.BATCH));
+                    maybe = ctx.persistence().selectNextWorkUnit(phases);
+                    if (maybe.isEmpty()) {
+                        ctx.persistence().awaitReadyWork(IDLE_WAIT, phases);
+                        continue;
+                    }
                 }
 
                 WorkUnit wu = maybe.get();
@@ -145,6 +238,101 @@ public class JobScheduler {
         }
     }
 
+    /**
+     * Dispatch loop used with virtual threads.
+     * <p>
+     * Selects work units of phases below their limit and starts each on its own virtual thread. If no such work
+     * unit is available, the dispatcher blocks until a job becomes ready or a running work unit finishes. After a
+     * retryable failure of a work unit, the dispatcher waits for the backoff before starting the next one.
+     */
+    private void dispatchLoop() {
+        logger.info("Dispatch loop started");
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                long backOff = backOffUntil - System.nanoTime();
+                if (backOff > 0) {
+                    TimeUnit.NANOSECONDS.sleep(backOff);
+                    continue;
+                }
+                Set<WorkPhase> phases = availablePhases();
+                Optional<WorkUnit> maybe = phases.isEmpty() ? Optional.empty()
+                        : ctx.persistence().selectNextWorkUnit(phases);
+
+                if (maybe.isEmpty()) {
+                    ctx.persistence().awaitReadyWork(IDLE_WAIT, phases);
+                    continue;
+                }
+
+                WorkUnit wu = maybe.get();
+                WorkPhase phase = WorkPhase.of(wu);
+                // only the dispatcher acquires permits, so a phase selected as available still has one
+                phasePermits.get(phase).acquire();
+                executor.submit(() -> executeDispatched(wu, phase));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            logger.info("Dispatch loop interrupted, shutting down");
+        } catch (Exception fatal) {
+            logger.error("FATAL DISPATCH LOOP FAILURE - escalating", fatal);
+            terminate();
+        }
+    }
+
+    private Set<WorkPhase> availablePhases() {
+        Set<WorkPhase> phases = EnumSet.noneOf(WorkPhase.class);
+        phasePermits.forEach((phase, permits) -> {
+            if (permits.availablePermits() > 0 && (phase != WorkPhase.BATCH || pipeline.admitsBatch())) {
+                phases.add(phase);
+            }
+        });
+        return phases;
+    }
+
+    /**
+     * Executes a work unit started by the dispatch loop and releases its phase permit afterwards.
+     * <p>
+     * Failures are handled like in the worker loop: too many consecutive retryable failures or a non retryable one
+     * terminate the application. The permit is released right away also on a retryable failure, and instead of
+     * sleeping with it, the dispatcher backs off before starting the next work unit, which acquires a permit again.
+     */
+    void executeDispatched(WorkUnit wu, WorkPhase phase) {
+        Exception failure = null;
+        try {
+            executeBlocking(wu);
+            retryableFailures.set(0);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            phasePermits.get(phase).release();
+            ctx.persistence().wakeUpWorkers();
+        }
+        if (failure != null) {
+            onDispatchedFailure(wu, failure);
+        }
+    }
+
+    private void onDispatchedFailure(WorkUnit wu, Exception e) {
+        if (!RetryabilityUtil.isRetryable(e)) {
+            logger.error("WorkUnit execution failed for job {}", wu.job().id(), e);
+            terminate();
+            return;
+        }
+        int failures = retryableFailures.incrementAndGet();
+        logger.warn(
+                "Retryable failure ({} / {}), backing off {}ms: {}",
+                failures,
+                MAX_RETRYABLE_FAILURES,
+                RETRY_SLEEP_MS,
+                RetryabilityUtil.rootCauseMessage(e)
+        );
+        if (failures >= MAX_RETRYABLE_FAILURES) {
+            logger.error("Too many retryable failures, escalating", e);
+            terminate();
+            return;
+        }
+        backOffUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_SLEEP_MS);
+    }
+
     /**
      * Visible for testing - allows us to spy and prevent JVM exit during JUnit runs.
      */
@@ -154,10 +342,16 @@ public class JobScheduler {
 
     void executeBlocking(WorkUnit wu) throws IOException {
         var start = System.nanoTime();
-        var phase = phaseOf(wu);
+        var phase = WorkPhase.of(wu);
         var jobId = wu.job().id();
         int busy = activeWorkers.incrementAndGet();
-        logger.info("Starting {} for job {} ({}/{} workers busy)", phase, jobId, busy, maxConcurrency);
+        int phaseBusy = inFlight.get(phase).incrementAndGet();
+        if (virtualThreads) {
+            logger.info("Starting {} for job {} ({}/{} {} units busy)", phase, jobId, phaseBusy,
+                    phaseLimits.get(phase), phase.tag());
+        } else {
+            logger.info("Starting {} for job {} ({}/{} workers busy)", phase, jobId, busy, maxConcurrency);
+        }
         try {
             wu.execute(ctx)
                     .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
@@ -177,17 +371,12 @@ public class JobScheduler {
                     })
                     .block();
         } finally {
+            ctx.persistence().onWorkUnitDispatchEnded(jobId);
+            inFlight.get(phase).decrementAndGet();
             activeWorkers.decrementAndGet();
             logger.info("Finished {} for job {} in {} seconds", phase, jobId,
                     "%.1f".formatted(TimeUtils.durationSecondsSince(start)));
         }
     }
 
-    private static String phaseOf(WorkUnit wu) {
-        if (wu instanceof ProcessCohortWorkUnit) {
-            return "cohort query";
-        }
-        return wu instanceof ProcessBatchWorkUnit ? "batch processing" : "core processing";
-    }
-
 }
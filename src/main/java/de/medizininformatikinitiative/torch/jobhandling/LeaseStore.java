@@ -0,0 +1,371 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Leases on files in job directories shared by several instances.
+ * <p>
+ * A lease is a file holding its owner and expiry. It is acquired by creating the file, which only one instance
+ * succeeds in, and kept by renewing its expiry well before it is reached. The lease of a crashed instance expires and
+ * may be taken over by another instance: it renames the expired lease file to a name of its own, checks that it moved
+ * the expired lease it observed and creates a new one. If it moved a lease renewed in the meantime, it puts that lease
+ * back. A renewal writes the new lease to a file of its own and renames it over the lease file once it checked again
+ * that it still owns the unexpired lease, so the lease file never goes missing and can't be created by another
+ * instance meanwhile. A lease that already expired is given up instead of renewed.
+ * <p>
+ * The clocks of all instances are assumed to be in sync up to a small fraction of the lease duration.
+ */
+public class LeaseStore implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseStore.class);
+    private static final LeaseStore DISABLED = new LeaseStore();
+
+    @Nullable
+    private final FileIo io;
+    @Nullable
+    private final ObjectMapper mapper;
+    private final String instanceId;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Set<Path> held = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private volatile ScheduledExecutorService heartbeat;
+
+    /**
+     * Creates a lease store whose leases are only renewed by {@link #renewAll()} until the
+     * {@linkplain #startHeartbeat() heartbeat} is started.
+     *
+     * @param io         file access
+     * @param mapper     mapper writing the lease files
+     * @param instanceId the id of this instance, recorded as owner of its leases
+     * @param ttl        the time a lease stays valid after it was acquired or renewed
+     * @param clock      the clock leases expire by
+     */
+    public LeaseStore(FileIo io, ObjectMapper mapper, String instanceId, Duration ttl, Clock clock) {
+        this.io = requireNonNull(io);
+        this.mapper = requireNonNull(mapper);
+        this.instanceId = requireNonNull(instanceId);
+        this.ttl = requireNonNull(ttl);
+        this.clock = requireNonNull(clock);
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Lease ttl must be positive");
+        }
+    }
+
+    private LeaseStore() {
+        this.io = null;
+        this.mapper = null;
+        this.instanceId = "";
+        this.ttl = Duration.ZERO;
+        this.clock = Clock.systemUTC();
+    }
+
+    /**
+     * @return a lease store for a single instance, that grants every lease
+     */
+    public static LeaseStore disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return whether leases are taken on disk, so that several instances may share the job directory
+     */
+    public boolean enabled() {
+        return io != null;
+    }
+
+    /**
+     * @return the id of this instance
+     */
+    public String instanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Renews all held leases every third of the lease duration.
+     */
+    public synchronized void startHeartbeat() {
+        if (!enabled() || heartbeat != null) {
+            return;
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("torch-lease-heartbeat").factory());
+        long period = Math.max(1, ttl.toMillis() / 3);
+        executor.scheduleWithFixedDelay(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+        heartbeat = executor;
+    }
+
+    /**
+     * Acquires the lease on a file, taking it over if its owner let it expire.
+     *
+     * @param file the lease file
+     * @return {@code true} if this instance holds the lease now
+     * @throws IOException if the lease file can't be read or written
+     */
+    public boolean tryAcquire(Path file) throws IOException {
+        if (!enabled()) {
+            return true;
+        }
+        io.createDirectories(file.getParent());
+        if (create(file)) {
+            return true;
+        }
+        Optional<Lease> current = read(file);
+        if (current.isEmpty()) {
+            return create(file);
+        }
+        Lease lease = current.get();
+        if (lease.owner().equals(instanceId)) {
+            held.add(file);
+            return true;
+        }
+        if (!lease.expiredAt(clock.instant())) {
+            return false;
+        }
+        return takeOver(file, lease);
+    }
+
+    /**
+     * Releases the lease on a file, if this instance holds it.
+     * <p>
+     * Failures are only logged, as the lease expires anyway.
+     *
+     * @param file the lease file
+     */
+    public void release(Path file) {
+        if (!enabled()) {
+            return;
+        }
+        synchronized (held) {
+            held.remove(file);
+            try {
+                if (read(file).map(lease -> lease.owner().equals(instanceId)).orElse(false)) {
+                    io.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to release lease {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param file the lease file
+     * @return whether any instance holds an unexpired lease on the file; an unreadable lease counts as held
+     */
+    public boolean isLive(Path file) {
+        if (!enabled()) {
+            return false;
+        }
+        try {
+            return read(file).map(lease -> !lease.expiredAt(clock.instant())).orElse(false);
+        } catch (IOException e) {
+            logger.warn("Failed to read lease {}: {}", file, e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * @param file the lease file
+     * @return whether this instance holds the lease on the file
+     */
+    public boolean holds(Path file) {
+        return held.contains(file);
+    }
+
+    /**
+     * Reads the lease on a file.
+     *
+     * @param file the lease file
+     * @return the lease, or empty if there is none
+     * @throws IOException if the lease file can't be read
+     */
+    public Optional<Lease> read(Path file) throws IOException {
+        try {
+            return Optional.of(mapper.readValue(readString(file), Lease.class));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Extends all held leases by the lease duration.
+     * <p>
+     * A lease that is gone or owned by another instance was lost, because this instance didn't renew it in time, and
+     * is not held anymore.
+     */
+    public void renewAll() {
+        for (Path file : List.copyOf(held)) {
+            synchronized (held) {
+                if (held.contains(file)) {
+                    renew(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the heartbeat and releases all held leases, so that other instances can take over immediately.
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService executor = heartbeat;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        List.copyOf(held).forEach(this::release);
+    }
+
+    private void renew(Path file) {
+        try {
+            Optional<Lease> lease = read(file);
+            if (lease.isEmpty() || !lease.get().owner().equals(instanceId)) {
+                held.remove(file);
+                logger.warn("Lost lease {} to {}", file, lease.map(Lease::owner).orElse("nobody"));
+                return;
+            }
+            if (lease.get().expiredAt(clock.instant())) {
+                held.remove(file);
+                logger.warn("Lost lease {}, which expired at {}", file, lease.get().expiresAt());
+                return;
+            }
+            if (!extend(file)) {
+                held.remove(file);
+                logger.warn("Lost lease {} while renewing it", file);
+            }
+        } catch (NoSuchFileException e) {
+            held.remove(file);
+            logger.warn("Lost lease {} while renewing it", file);
+        } catch (IOException e) {
+            logger.warn("Failed to renew lease {}: {}", file, e.getMessage());
+        }
+    }
+
+    private boolean create(Path file) throws IOException {
+        if (io.createNew(file, newLease())) {
+            held.add(file);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean takeOver(Path file, Lease expired) throws IOException {
+        try {
+            if (replace(file, expired)) {
+                logger.info("Took over expired lease {} of instance {}", file, expired.owner());
+                return true;
+            }
+            return false;
+        } catch (NoSuchFileException e) {
+            return create(file);
+        }
+    }
+
+    /**
+     * Replaces an expired lease by a new lease of this instance, unless it changed since it was read.
+     * <p>
+     * The lease file is renamed to a name of its own first, which only one instance succeeds in. If the renamed lease
+     * is not the expected one, another instance replaced it in the meantime and it is put back.
+     *
+     * @param file     the lease file
+     * @param expected the lease read before
+     * @return whether this instance holds the new lease
+     * @throws NoSuchFileException if the lease file is gone
+     * @throws IOException         if the lease file can't be read or written
+     */
+    private boolean replace(Path file, Lease expected) throws IOException {
+        Path stale = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".stale");
+        io.atomicMove(file, stale);
+        try {
+            String moved = readString(stale);
+            if (mapper.readValue(moved, Lease.class).equals(expected)) {
+                return create(file);
+            }
+            io.createNew(file, moved);
+            return false;
+        } finally {
+            io.deleteIfExists(stale);
+        }
+    }
+
+    /**
+     * Extends the lease of this instance in place.
+     * <p>
+     * The new lease is written to a file of its own and renamed over the lease file, after checking again that this
+     * instance still holds the unexpired lease, which can't be taken over by another instance.
+     *
+     * @param file the lease file
+     * @return whether the lease was extended
+     * @throws NoSuchFileException if the lease file is gone
+     * @throws IOException         if the lease file can't be read or written
+     */
+    private boolean extend(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (Writer out = io.newBufferedWriter(tmp)) {
+                out.write(newLease());
+            }
+            Optional<Lease> current = read(file);
+            if (current.isEmpty() || !current.get().owner().equals(instanceId)
+                    || current.get().expiredAt(clock.instant())) {
+                return false;
+            }
+            io.atomicMove(tmp, file);
+            return true;
+        } finally {
+            io.deleteIfExists(tmp);
+        }
+    }
+
+    private String newLease() throws IOException {
+        return mapper.writeValueAsString(new Lease(instanceId, clock.instant().plus(ttl)));
+    }
+
+    private String readString(Path file) throws IOException {
+        try (Reader reader = io.newBufferedReader(file)) {
+            StringWriter content = new StringWriter();
+            reader.transferTo(content);
+            return content.toString();
+        }
+    }
+
+    /**
+     * A lease on a file.
+     *
+     * @param owner     the id of the instance holding the lease
+     * @param expiresAt the time the lease expires unless renewed
+     */
+    public record Lease(String owner, Instant expiresAt) {
+
+        public Lease {
+            requireNonNull(owner);
+            requireNonNull(expiresAt);
+        }
+
+        boolean expiredAt(Instant now) {
+            return !now.isBefore(expiresAt);
+        }
+    }
+}
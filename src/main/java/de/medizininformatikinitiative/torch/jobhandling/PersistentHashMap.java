@@ -0,0 +1,359 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Immutable hash array mapped trie.
+ *
+ * <p>{@link #put} and {@link #remove} return a new map that shares all unchanged nodes with this one, so an update
+ * copies only the path from the root to the changed entry, which is O(log n) with a branching factor of 32.</p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(new Bitmap(0, new Object[0]), 0);
+
+    private final Bitmap root;
+    private final int size;
+
+    private PersistentHashMap(Bitmap root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    private record Leaf(int hash, Object key, Object value) {
+    }
+
+    private record Collision(int hash, Leaf[] leaves) {
+    }
+
+    private record Bitmap(int bitmap, Object[] children) {
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object child(int bit) {
+            return (bitmap & bit) == 0 ? null : children[index(bit)];
+        }
+
+        Bitmap withChild(int bit, Object child) {
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                if (child == null) {
+                    Object[] next = new Object[children.length - 1];
+                    System.arraycopy(children, 0, next, 0, idx);
+                    System.arraycopy(children, idx + 1, next, idx, children.length - idx - 1);
+                    return new Bitmap(bitmap & ~bit, next);
+                }
+                Object[] next = children.clone();
+                next[idx] = child;
+                return new Bitmap(bitmap, next);
+            }
+            Object[] next = new Object[children.length + 1];
+            System.arraycopy(children, 0, next, 0, idx);
+            next[idx] = child;
+            System.arraycopy(children, idx, next, idx + 1, children.length - idx);
+            return new Bitmap(bitmap | bit, next);
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (node instanceof Bitmap bitmap) {
+                node = bitmap.child(bit(hash, shift));
+            } else if (node instanceof Leaf leaf) {
+                return leaf.hash() == hash && leaf.key().equals(key) ? (V) leaf.value() : null;
+            } else if (node instanceof Collision collision) {
+                if (collision.hash() != hash) {
+                    return null;
+                }
+                for (Leaf leaf : collision.leaves()) {
+                    if (leaf.key().equals(key)) {
+                        return (V) leaf.value();
+                    }
+                }
+                return null;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return a map with the key mapped to the value, or this map if the key is already mapped to the same value
+     */
+    PersistentHashMap<K, V> put(K key, V value) {
+        requireNonNull(key);
+        requireNonNull(value);
+        int[] sizeChange = new int[1];
+        Object newRoot = put(root, 0, new Leaf(hash(key), key, value), sizeChange);
+        return newRoot == root ? this : new PersistentHashMap<>((Bitmap) newRoot, size + sizeChange[0]);
+    }
+
+    private static Object put(Object node, int shift, Leaf leaf, int[] sizeChange) {
+        if (node == null) {
+            sizeChange[0] = 1;
+            return leaf;
+        }
+        if (node instanceof Bitmap bitmap) {
+            int bit = bit(leaf.hash(), shift);
+            Object child = bitmap.child(bit);
+            Object newChild = put(child, shift + BITS, leaf, sizeChange);
+            return newChild == child ? bitmap : bitmap.withChild(bit, newChild);
+        }
+        if (node instanceof Leaf existing) {
+            if (existing.hash() == leaf.hash()) {
+                if (existing.key().equals(leaf.key())) {
+                    return Objects.equals(existing.value(), leaf.value()) ? existing : leaf;
+                }
+                sizeChange[0] = 1;
+                return new Collision(leaf.hash(), new Leaf[]{existing, leaf});
+            }
+            Bitmap split = new Bitmap(bit(existing.hash(), shift), new Object[]{existing});
+            return put(split, shift, leaf, sizeChange);
+        }
+        Collision collision = (Collision) node;
+        if (collision.hash() != leaf.hash()) {
+            Bitmap split = new Bitmap(bit(collision.hash(), shift), new Object[]{collision});
+            return put(split, shift, leaf, sizeChange);
+        }
+        Leaf[] leaves = collision.leaves();
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key().equals(leaf.key())) {
+                if (Objects.equals(leaves[i].value(), leaf.value())) {
+                    return collision;
+                }
+                Leaf[] next = leaves.clone();
+                next[i] = leaf;
+                return new Collision(collision.hash(), next);
+            }
+        }
+        sizeChange[0] = 1;
+        Leaf[] next = Arrays.copyOf(leaves, leaves.length + 1);
+        next[leaves.length] = leaf;
+        return new Collision(collision.hash(), next);
+    }
+
+    /**
+     * @return a map without the key, or this map if the key is not mapped
+     */
+    PersistentHashMap<K, V> remove(Object key) {
+        if (key == null) {
+            return this;
+        }
+        Object newRoot = remove(root, 0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot == null ? (Bitmap) empty().root : (Bitmap) newRoot, size - 1);
+    }
+
+    private static Object remove(Object node, int shift, int hash, Object key) {
+        if (node instanceof Bitmap bitmap) {
+            int bit = bit(hash, shift);
+            Object child = bitmap.child(bit);
+            if (child == null) {
+                return bitmap;
+            }
+            Object newChild = remove(child, shift + BITS, hash, key);
+            if (newChild == child) {
+                return bitmap;
+            }
+            Bitmap next = bitmap.withChild(bit, newChild);
+            // the root stays a bitmap node, other nodes left with a single leaf are replaced by it
+            if (shift > 0 && next.children().length == 1 && !(next.children()[0] instanceof Bitmap)) {
+                return next.children()[0];
+            }
+            return shift > 0 && next.children().length == 0 ? null : next;
+        }
+        if (node instanceof Leaf leaf) {
+            return leaf.hash() == hash && leaf.key().equals(key) ? null : leaf;
+        }
+        Collision collision = (Collision) node;
+        if (collision.hash() != hash) {
+            return collision;
+        }
+        Leaf[] leaves = collision.leaves();
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key().equals(key)) {
+                if (leaves.length == 2) {
+                    return leaves[1 - i];
+                }
+                Leaf[] next = new Leaf[leaves.length - 1];
+                System.arraycopy(leaves, 0, next, 0, i);
+                System.arraycopy(leaves, i + 1, next, i, leaves.length - i - 1);
+                return new Collision(hash, next);
+            }
+        }
+        return collision;
+    }
+
+    /**
+     * Returns some entry of the map in O(log n), always the same one for the same map.
+     *
+     * @return an entry, or {@code null} if the map is empty
+     */
+    @SuppressWarnings("unchecked")
+    Map.Entry<K, V> any() {
+        Object node = root;
+        while (node instanceof Bitmap bitmap) {
+            if (bitmap.children().length == 0) {
+                return null;
+            }
+            node = bitmap.children()[0];
+        }
+        Leaf leaf = node instanceof Collision collision ? collision.leaves()[0] : (Leaf) node;
+        return Map.entry((K) leaf.key(), (V) leaf.value());
+    }
+
+    /**
+     * Reports the differences from this map to the other map, skipping all nodes both maps share.
+     *
+     * @param other   the other map
+     * @param changed called with the entries of the other map that are added or map to a different value
+     * @param removed called with the keys of this map the other map doesn't contain
+     */
+    void diff(PersistentHashMap<K, V> other, BiConsumer<K, V> changed, Consumer<K> removed) {
+        diff(root, other.root, changed, removed);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void diff(Object a, Object b, BiConsumer<K, V> changed, Consumer<K> removed) {
+        if (a == b) {
+            return;
+        }
+        if (a instanceof Bitmap left && b instanceof Bitmap right) {
+            int bits = left.bitmap() | right.bitmap();
+            while (bits != 0) {
+                int bit = Integer.lowestOneBit(bits);
+                bits &= ~bit;
+                diff(left.child(bit), right.child(bit), changed, removed);
+            }
+            return;
+        }
+        Map<Object, Object> before = new HashMap<>();
+        forEachLeaf(a, leaf -> before.put(leaf.key(), leaf.value()));
+        forEachLeaf(b, leaf -> {
+            Object previous = before.remove(leaf.key());
+            if (previous != leaf.value() && !leaf.value().equals(previous)) {
+                changed.accept((K) leaf.key(), (V) leaf.value());
+            }
+        });
+        before.keySet().forEach(key -> removed.accept((K) key));
+    }
+
+    private static void forEachLeaf(Object node, Consumer<Leaf> action) {
+        if (node instanceof Bitmap bitmap) {
+            for (Object child : bitmap.children()) {
+                forEachLeaf(child, action);
+            }
+        } else if (node instanceof Leaf leaf) {
+            action.accept(leaf);
+        } else if (node instanceof Collision collision) {
+            for (Leaf leaf : collision.leaves()) {
+                action.accept(leaf);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<>() {
+            private final Deque<Object> stack = new ArrayDeque<>();
+            private Leaf[] collision;
+            private int collisionIndex;
+
+            {
+                stack.push(root);
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (collision != null) {
+                    return true;
+                }
+                while (!stack.isEmpty()) {
+                    Object node = stack.peek();
+                    if (node instanceof Leaf) {
+                        return true;
+                    }
+                    stack.pop();
+                    if (node instanceof Bitmap bitmap) {
+                        Object[] children = bitmap.children();
+                        for (int i = children.length - 1; i >= 0; i--) {
+                            stack.push(children[i]);
+                        }
+                    } else {
+                        collision = ((Collision) node).leaves();
+                        collisionIndex = 0;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Leaf leaf;
+                if (collision != null) {
+                    leaf = collision[collisionIndex++];
+                    if (collisionIndex == collision.length) {
+                        collision = null;
+                    }
+                } else {
+                    leaf = (Leaf) stack.pop();
+                }
+                return Map.entry((K) leaf.key(), (V) leaf.value());
+            }
+        };
+    }
+}
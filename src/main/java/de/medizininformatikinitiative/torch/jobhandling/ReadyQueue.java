@@ -0,0 +1,365 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Jobs that currently have a work unit to hand out, ordered by priority and then by start time, newest first.
+ *
+ * <p>The queue is maintained incrementally from job state changes via {@link #update(Job)}, so selecting the next
+ * job never scans or sorts all jobs, and idle workers block in {@link #awaitReady(Duration)} until a job becomes
+ * ready instead of polling.</p>
+ *
+ * <p>A job taken by {@link #poll()} stays out of the queue until its state changes, which for batches is the claim
+ * of the handed out batch, or until {@link #release(Job)} is called. This keeps other workers from picking the same
+ * unclaimed batch again in the meantime.</p>
+ *
+ * <p>Each job is queued with the {@link WorkPhase}s it has work units of, so workers can skip jobs of phases that
+ * are at their concurrency limit without blocking jobs of other phases. A job running batches can also have work
+ * units of the core phase staging core resources.</p>
+ *
+ * <p>With fair share enabled, jobs are instead taken by deficit round-robin: each job in turn may take as many work
+ * units as the {@linkplain JobPriority#weight() weight} of its priority before the next ready job gets its turn. A
+ * large job thus no longer holds all workers until it is finished, and a job arriving later gets its share right
+ * away. Jobs that are not ready keep their place in the round.</p>
+ *
+ * <p>Metrics: {@code torch.scheduler.ready.jobs} is the number of ready jobs,
+ * {@code torch.scheduler.dispatch.latency} the time from a job becoming ready until a worker takes it and
+ * {@code torch.scheduler.job.batches.in.progress} the number of batches in progress of each unfinished job, tagged
+ * by {@code job}.</p>
+ */
+public class ReadyQueue implements MeterBinder {
+
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparing(Entry::priority).reversed()
+            .thenComparing(Entry::startedAt, Comparator.reverseOrder())
+            .thenComparing(Entry::jobId);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final TreeSet<Entry> queue = new TreeSet<>(ORDER);
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    private final Map<UUID, Long> dispatchedVersions = new HashMap<>();
+    private final Map<UUID, Share> shares = new HashMap<>();
+    private final ArrayDeque<UUID> round = new ArrayDeque<>();
+    private final boolean fairShare;
+    private final LongSupplier nanoTime;
+    private volatile Timer dispatchLatency;
+    private MeterRegistry registry;
+    private long wakeUps;
+
+    public ReadyQueue() {
+        this(false);
+    }
+
+    /**
+     * @param fairShare whether to take jobs by deficit round-robin instead of strictly by priority
+     */
+    public ReadyQueue(boolean fairShare) {
+        this(fairShare, System::nanoTime);
+    }
+
+    ReadyQueue(LongSupplier nanoTime) {
+        this(false, nanoTime);
+    }
+
+    ReadyQueue(boolean fairShare, LongSupplier nanoTime) {
+        this.fairShare = fairShare;
+        this.nanoTime = nanoTime;
+    }
+
+    private record Entry(UUID jobId, JobPriority priority, Instant startedAt, long version, Set<WorkPhase> phases,
+                         long readySinceNanos) {
+    }
+
+    /**
+     * The place of an unfinished job in the round of fair-share scheduling and its batch slot usage.
+     */
+    private static final class Share {
+        private int deficit;
+        private volatile int batchesInProgress;
+        private Meter gauge;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("torch.scheduler.ready.jobs", this, ReadyQueue::size)
+                .description("Number of jobs with a work unit ready to be dispatched")
+                .register(registry);
+        dispatchLatency = Timer.builder("torch.scheduler.dispatch.latency")
+                .description("Time from a job becoming ready until a worker takes it")
+                .register(registry);
+        lock.lock();
+        try {
+            this.registry = registry;
+            shares.forEach(this::registerGauge);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void registerGauge(UUID jobId, Share share) {
+        share.gauge = Gauge.builder("torch.scheduler.job.batches.in.progress", share, s -> s.batchesInProgress)
+                .description("Number of batches of the job in progress")
+                .tag("job", jobId.toString())
+                .register(registry);
+    }
+
+    /**
+     * Adds, reorders or removes the job according to its current state.
+     *
+     * <p>Must be called for every state change of a job, in the order of the changes.</p>
+     *
+     * @param job the current state of the job
+     */
+    public void update(Job job) {
+        lock.lock();
+        try {
+            track(job);
+            Long dispatchedVersion = dispatchedVersions.get(job.id());
+            if (dispatchedVersion != null) {
+                if (dispatchedVersion == job.version()) {
+                    return;
+                }
+                dispatchedVersions.remove(job.id());
+            }
+            Entry current = entries.get(job.id());
+            remove(current);
+            Set<WorkPhase> phases = job.runnablePhases();
+            if (phases.isEmpty()) {
+                return;
+            }
+            long readySince = current == null ? nanoTime.getAsLong() : current.readySinceNanos();
+            Entry entry = new Entry(job.id(), job.priority(), job.startedAt(), job.version(), phases, readySince);
+            entries.put(job.id(), entry);
+            queue.add(entry);
+            if (current == null || !current.phases().equals(entry.phases())) {
+                ready.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a job that no longer exists.
+     *
+     * @param jobId the job id
+     */
+    public void remove(UUID jobId) {
+        lock.lock();
+        try {
+            remove(entries.get(jobId));
+            dispatchedVersions.remove(jobId);
+            untrack(jobId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the share of an unfinished job, so it holds its place in the round while it is not ready.
+     */
+    private void track(Job job) {
+        if (job.status().isFinal()) {
+            untrack(job.id());
+            return;
+        }
+        Share share = shares.get(job.id());
+        if (share == null) {
+            share = new Share();
+            shares.put(job.id(), share);
+            round.addLast(job.id());
+            if (registry != null) {
+                registerGauge(job.id(), share);
+            }
+        }
+        share.batchesInProgress = job.batchesInProgress();
+    }
+
+    private void untrack(UUID jobId) {
+        Share share = shares.remove(jobId);
+        if (share != null) {
+            round.remove(jobId);
+            if (share.gauge != null) {
+                registry.remove(share.gauge);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry != null) {
+            queue.remove(entry);
+            entries.remove(entry.jobId());
+        }
+    }
+
+    /**
+     * Takes the job with the highest priority, or with fair share the next job of the round, out of the queue.
+     *
+     * <p>The job stays out of the queue until its version changes or it is {@linkplain #release(Job) released}.</p>
+     *
+     * @return the job id, or empty if no job is ready
+     */
+    public Optional<UUID> poll() {
+        return poll(EnumSet.allOf(WorkPhase.class));
+    }
+
+    /**
+     * Takes the job with the highest priority, or with fair share the next job of the round, that has a work unit of
+     * one of the given phases out of the queue.
+     *
+     * <p>The job stays out of the queue until its version changes or it is {@linkplain #release(Job) released}.</p>
+     *
+     * @param phases the phases that may be dispatched
+     * @return the job id, or empty if no job of these phases is ready
+     */
+    public Optional<UUID> poll(Set<WorkPhase> phases) {
+        lock.lock();
+        try {
+            Entry entry = fairShare ? nextInRound(phases) : first(phases);
+            if (entry == null) {
+                return Optional.empty();
+            }
+            queue.remove(entry);
+            entries.remove(entry.jobId());
+            dispatchedVersions.put(entry.jobId(), entry.version());
+            Timer timer = dispatchLatency;
+            if (timer != null) {
+                timer.record(nanoTime.getAsLong() - entry.readySinceNanos(), TimeUnit.NANOSECONDS);
+            }
+            return Optional.of(entry.jobId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the dispatch of a job taken by {@link #poll}, so it is queued again if it still has work to hand out.
+     *
+     * @param job the current state of the job
+     */
+    public void release(Job job) {
+        lock.lock();
+        try {
+            dispatchedVersions.remove(job.id());
+        } finally {
+            lock.unlock();
+        }
+        update(job);
+    }
+
+    /**
+     * Blocks until a job is ready or the timeout elapsed.
+     *
+     * @param timeout the maximum time to wait
+     * @return true if a job is ready
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(Duration timeout) throws InterruptedException {
+        return awaitReady(timeout, EnumSet.allOf(WorkPhase.class));
+    }
+
+    /**
+     * Blocks until a job of one of the given phases is ready, {@link #wakeUp()} is called or the timeout elapsed.
+     *
+     * @param timeout the maximum time to wait
+     * @param phases  the phases to wait for
+     * @return true if a job of the phases is ready or the wait was woken up, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(Duration timeout, Set<WorkPhase> phases) throws InterruptedException {
+        lock.lock();
+        try {
+            long wakeUpsBefore = wakeUps;
+            long remaining = timeout.toNanos();
+            while (first(phases) == null && wakeUps == wakeUpsBefore && remaining > 0) {
+                remaining = ready.awaitNanos(remaining);
+            }
+            return first(phases) != null || wakeUps != wakeUpsBefore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up all workers waiting in {@link #awaitReady(Duration, Set)}, e.g. because the set of phases they may
+     * dispatch changed.
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            wakeUps++;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the first ready job of the round. A job keeps its turn until it took as many work units as its weight and
+     * only then moves to the back of the round. Jobs that are not ready are passed over and keep their place, so they
+     * get their turn as soon as they are ready again.
+     */
+    private Entry nextInRound(Set<WorkPhase> phases) {
+        for (Iterator<UUID> it = round.iterator(); it.hasNext(); ) {
+            UUID jobId = it.next();
+            Entry entry = entries.get(jobId);
+            if (entry != null && !Collections.disjoint(phases, entry.phases())) {
+                Share share = shares.get(jobId);
+                if (share.deficit == 0) {
+                    share.deficit = entry.priority().weight();
+                }
+                if (--share.deficit == 0) {
+                    it.remove();
+                    round.addLast(jobId);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry first(Set<WorkPhase> phases) {
+        for (Entry entry : queue) {
+            if (!Collections.disjoint(phases, entry.phases())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of ready jobs
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
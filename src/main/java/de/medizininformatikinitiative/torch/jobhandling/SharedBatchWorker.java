@@ -0,0 +1,74 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.config.ClusterProperties;
+import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+import de.medizininformatikinitiative.torch.jobhandling.result.BatchSelection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes batches of jobs owned by other instances sharing the results directory.
+ * <p>
+ * The owner of a job processes its batches like any instance without a cluster. The other instances help out by
+ * claiming INIT batches through their batch leases, processing them and handing the outcome back to the owner, which
+ * applies it to the job on its next sync. At most {@link ClusterProperties#sharedBatches()} batches are processed
+ * concurrently. Batches still processing on shutdown are left to the owner once their leases are released.
+ */
+@Service
+public class SharedBatchWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedBatchWorker.class);
+
+    private final JobExecutionContext ctx;
+    private final boolean enabled;
+    private final Semaphore permits;
+
+    public SharedBatchWorker(JobExecutionContext ctx, ClusterProperties properties) {
+        this.ctx = ctx;
+        this.enabled = properties.enabled() && properties.sharedBatches() > 0;
+        this.permits = new Semaphore(Math.max(0, properties.sharedBatches()));
+    }
+
+    /**
+     * Claims batches of other instances while below the maximum number of shared batches.
+     */
+    @Scheduled(fixedDelayString = "${torch.cluster.sync-interval:PT5S}")
+    public void claimSharedBatches() {
+        if (!enabled) {
+            return;
+        }
+        while (permits.tryAcquire()) {
+            Optional<BatchSelection> claimed = ctx.persistence().claimSharedBatch();
+            if (claimed.isEmpty()) {
+                permits.release();
+                return;
+            }
+            process(claimed.get())
+                    .doFinally(signal -> permits.release())
+                    .subscribe();
+        }
+    }
+
+    private Mono<Void> process(BatchSelection selection) {
+        UUID jobId = selection.job().id();
+        UUID batchId = selection.batch().batchId();
+        return ctx.extract().processBatch(selection)
+                .flatMap(result -> Mono.fromRunnable(() -> ctx.persistence().onSharedBatchSuccess(result))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .onErrorResume(t -> {
+                    logger.warn("Batch {} of job {} owned by another instance failed: {}", batchId, jobId,
+                            RetryabilityUtil.rootCauseMessage(t));
+                    return Mono.fromRunnable(() -> ctx.persistence().onSharedBatchError(jobId, batchId, t))
+                            .subscribeOn(Schedulers.boundedElastic());
+                })
+                .then();
+    }
+}
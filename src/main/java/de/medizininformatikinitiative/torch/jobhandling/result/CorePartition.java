@@ -0,0 +1,31 @@
+package de.medizininformatikinitiative.torch.jobhandling.result;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Result of preparing the core (non-batch) part of a job for sharded processing.
+ *
+ * <p>Holds the prepared core resources split into shards, in shard order, together with the
+ * {@link BatchDiagnostics} of loading, resolving and cascading delete of the core resources.</p>
+ */
+public record CorePartition(UUID jobId, List<ExtractionResourceBundle> shards,
+                            Optional<BatchDiagnostics> diagnostics, List<Issue> issues) {
+
+    public CorePartition {
+        requireNonNull(jobId);
+        shards = List.copyOf(shards);
+        requireNonNull(diagnostics);
+        issues = List.copyOf(issues);
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A core partition needs at least one shard");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.medizininformatikinitiative.torch.jobhandling.result;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The ids a processed core shard needs for reconciling references between shards.
+ *
+ * @param shard      the shard
+ * @param assigned   the resources assigned to the shard
+ * @param written    the resources written to the shard's output file
+ * @param referenced the resources referenced by the written ones
+ */
+public record CoreShardOutcome(
+        @JsonProperty int shard,
+        @JsonProperty Set<ExtractionId> assigned,
+        @JsonProperty Set<ExtractionId> written,
+        @JsonProperty Set<ExtractionId> referenced) {
+
+    public CoreShardOutcome {
+        assigned = assigned == null ? Set.of() : Set.copyOf(assigned);
+        written = written == null ? Set.of() : Set.copyOf(written);
+        referenced = referenced == null ? Set.of() : Set.copyOf(referenced);
+    }
+
+    /**
+     * Finds the references of written resources to core resources that were assigned to a shard but not written by
+     * any shard, for example because they no longer exist or failed to transform.
+     * <p>
+     * References to resources outside the core, like patient resources, are not checked.
+     *
+     * @param outcomes the outcomes of all shards
+     * @return the dangling referenced ids, sorted
+     */
+    public static Set<ExtractionId> danglingReferences(List<CoreShardOutcome> outcomes) {
+        Set<ExtractionId> assigned = new HashSet<>();
+        Set<ExtractionId> written = new HashSet<>();
+        for (CoreShardOutcome outcome : outcomes) {
+            assigned.addAll(outcome.assigned());
+            written.addAll(outcome.written());
+        }
+        Set<ExtractionId> dangling = new TreeSet<>();
+        for (CoreShardOutcome outcome : outcomes) {
+            for (ExtractionId ref : outcome.referenced()) {
+                if (assigned.contains(ref) && !written.contains(ref)) {
+                    dangling.add(ref);
+                }
+            }
+        }
+        return dangling;
+    }
+}
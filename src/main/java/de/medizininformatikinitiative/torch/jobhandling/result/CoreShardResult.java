@@ -0,0 +1,29 @@
+package de.medizininformatikinitiative.torch.jobhandling.result;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Result of processing a single shard of the core (non-batch) part of a job.
+ *
+ * <p>Captures the final {@link WorkUnitStatus} of the shard, the {@link CoreShardOutcome} used to reconcile
+ * references between shards, optional {@link BatchDiagnostics} and any {@link Issue}s.</p>
+ */
+public record CoreShardResult(UUID jobId, int shard, WorkUnitStatus status, CoreShardOutcome outcome,
+                              Optional<BatchDiagnostics> diagnostics, List<Issue> issues) {
+
+    public CoreShardResult {
+        requireNonNull(jobId);
+        requireNonNull(status);
+        requireNonNull(outcome);
+        requireNonNull(diagnostics);
+        issues = List.copyOf(issues);
+    }
+}
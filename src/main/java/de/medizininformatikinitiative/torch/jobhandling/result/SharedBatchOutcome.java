@@ -0,0 +1,74 @@
+package de.medizininformatikinitiative.torch.jobhandling.result;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
+import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The outcome of a batch processed by an instance other than the one owning its job, handed to the owner through
+ * the shared job directory.
+ * <p>
+ * The core-batch part and the diagnostics of the batch are written to the job directory directly, so the outcome
+ * only carries the state transition the owner applies to the job.
+ *
+ * @param batchId    the processed batch
+ * @param batchState the state of the batch after successful processing, {@code null} if processing failed
+ * @param issues     the issues of the batch
+ * @param error      the failure message if processing failed
+ * @param retryable  whether the failure is retryable
+ */
+public record SharedBatchOutcome(
+        @JsonProperty UUID batchId,
+        @JsonProperty @Nullable BatchState batchState,
+        @JsonProperty List<Issue> issues,
+        @JsonProperty @Nullable String error,
+        @JsonProperty boolean retryable) {
+
+    public SharedBatchOutcome {
+        requireNonNull(batchId);
+        issues = issues == null ? List.of() : List.copyOf(issues);
+    }
+
+    public static SharedBatchOutcome success(BatchResult result) {
+        return new SharedBatchOutcome(result.batchId(), result.batchState(), result.issues(), null, false);
+    }
+
+    public static SharedBatchOutcome failure(UUID batchId, Throwable e) {
+        return new SharedBatchOutcome(batchId, null, List.of(), RetryabilityUtil.rootCauseMessage(e),
+                RetryabilityUtil.isRetryable(e));
+    }
+
+    /**
+     * @return whether the batch was processed successfully
+     */
+    public boolean succeeded() {
+        return error == null;
+    }
+
+    /**
+     * Recreates the failure of the batch, so that the owner classifies it as retryable like the processing instance.
+     *
+     * @return the failure
+     */
+    public Throwable cause() {
+        return retryable ? new IOException(error) : new IllegalStateException(error);
+    }
+
+    /**
+     * @param jobId the job of the batch
+     * @return the result of the successfully processed batch, without core-batch part and diagnostics
+     */
+    public BatchResult toResult(UUID jobId) {
+        return new BatchResult(jobId, batchId, requireNonNull(batchState), Optional.empty(),
+                Optional.empty(), issues);
+    }
+}
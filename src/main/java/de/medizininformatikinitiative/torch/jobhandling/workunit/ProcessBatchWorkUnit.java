@@ -6,11 +6,13 @@ import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
 import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchSelection;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
@@ -36,6 +38,7 @@ public record ProcessBatchWorkUnit(Job job, UUID batchId) implements WorkUnit {
 
     private Mono<Void> runClaimed(JobExecutionContext ctx) {
         return loadSelection(ctx)
+                .filterWhen(selection -> splitIfAboveTarget(ctx, selection).map(split -> !split))
                 .flatMap(selection ->
                         ctx.extract().processBatch(selection)
                                 .onErrorResume(t -> {
@@ -47,6 +50,8 @@ public record ProcessBatchWorkUnit(Job job, UUID batchId) implements WorkUnit {
                                     return onBatchError(ctx, t).then(Mono.empty());
                                 })
                 )
+                .doOnNext(result -> result.batchDiagnostics()
+                        .ifPresent(diagnostics -> ctx.batchSizer().onBatchFinished(diagnostics.batchDetails())))
                 .flatMap(result -> persistBatchSuccess(ctx, result))
                 .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
                 .onErrorResume(NoSuchElementException.class, e -> Mono.empty())
@@ -66,12 +71,44 @@ public record ProcessBatchWorkUnit(Job job, UUID batchId) implements WorkUnit {
         );
     }
 
-    private Mono<Void> persistBatchSuccess(JobExecutionContext ctx, BatchResult result) {
-        return Mono.fromCallable(() -> {
-                    ctx.persistence().onBatchProcessingSuccess(result);
-                    return true;
+    /**
+     * Splits the claimed batch into sub-batches of the adaptive target size, if it is larger.
+     * <p>
+     * The sub-batches replace the batch in the job and are scheduled like any other batch.
+     *
+     * @return true if the batch was split, or failed to be split, and must not be processed any further
+     */
+    private Mono<Boolean> splitIfAboveTarget(JobExecutionContext ctx, BatchSelection selection) {
+        if (!ctx.batchSizer().enabled()) {
+            return Mono.just(false);
+        }
+        int target = ctx.batchSizer().targetSizeForClaim();
+        if (selection.batch().ids().size() <= target) {
+            return Mono.just(false);
+        }
+        List<PatientBatch> subBatches = selection.batch().split(target);
+        return Mono.fromCallable(() -> ctx.persistence().splitBatch(job.id(), batchId, subBatches))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnNext(split -> {
+                    if (split) {
+                        logger.debug("Split batch {} of job {} with {} patients into {} sub-batches",
+                                batchId, job.id(), selection.batch().ids().size(), subBatches.size());
+                    }
                 })
+                .onErrorResume(IOException.class, e -> {
+                    logger.warn("Failed to split batch {} of job {}: {}", batchId, job.id(), e.getMessage());
+                    return onBatchError(ctx, e).thenReturn(true);
+                });
+    }
+
+    /**
+     * Stores the batch result and removes the checkpoints of the batch once it is stored.
+     */
+    private Mono<Void> persistBatchSuccess(JobExecutionContext ctx, BatchResult result) {
+        return Mono.fromCallable(() -> ctx.persistence().onBatchProcessingSuccess(result))
                 .subscribeOn(Schedulers.boundedElastic())
+                .filter(Boolean::booleanValue)
+                .flatMap(stored -> ctx.extract().deleteCheckpoint(result.jobId(), result.batchId()))
                 .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
                 .then();
     }
@@ -3,15 +3,20 @@ package de.medizininformatikinitiative.torch.jobhandling.workunit;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.JobParameters;
 import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+import de.medizininformatikinitiative.torch.service.CohortQueryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.time.Instant;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public record ProcessCohortWorkUnit(Job job) implements WorkUnit {
     private static final Logger logger = LoggerFactory.getLogger(ProcessCohortWorkUnit.class);
@@ -21,27 +26,29 @@ public record ProcessCohortWorkUnit(Job job) implements WorkUnit {
      * <p>
      * Executed if no patient were given parameters, the CCDL embedded in the CRTDL is executed.
      * Otherwise, persists given parameters as batches directly.
+     * <p>
+     * The patient ids are streamed into batches: each batch is persisted and added to the job as soon as its ids
+     * arrived, so workers start on the first batches while the cohort is still being received. A retried cohort
+     * skips the patient ids already batched by former attempts, which are read back from their batch files, since
+     * neither cohort backend guarantees the same order or result on every evaluation. The work unit stops once the job doesn't accept its
+     * batches anymore, for example because it was paused. Whether the cohort was served from the cohort cache is
+     * recorded with the job.
      *
      * @param ctx for the execution
      */
     @Override
     public Mono<Void> execute(JobExecutionContext ctx) {
         logger.debug("Starting Job creation");
+        Instant attempt = job.cohortState().startedAt();
+        long start = System.nanoTime();
 
-        Mono<Map.Entry<List<String>, Optional<Long>>> patientIdsMono =
-                job.parameters().paramBatch().isEmpty()
-                        ? measureCohortQuery(ctx)
-                        : Mono.just(Map.entry(job.parameters().paramBatch(), Optional.empty()));
-
-        return patientIdsMono
-                .flatMap(entry ->
-                        Mono.fromCallable(() -> {
-                                    ctx.persistence().onCohortSuccess(job.id(), entry.getKey(), entry.getValue());
-                                    return 0;
-                                })
-                                .subscribeOn(Schedulers.boundedElastic())
-                                .then()
-                )
+        // stored parameters are loaded from disk on demand
+        return Mono.fromCallable(() -> job.parameters().content())
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(parameters -> batchedIds(ctx)
+                        .flatMap(batched -> cohort(ctx, parameters)
+                                .flatMap(cohort -> stream(ctx, parameters, batched, cohort, attempt, start))))
+                .then()
                 .onErrorResume(JobNotFoundException.class, e -> {
                     logger.debug("Ignoring cohort result for deleted job {}", job.id());
                     return Mono.empty();
@@ -66,9 +73,50 @@ public record ProcessCohortWorkUnit(Job job) implements WorkUnit {
                 });
     }
 
-    private Mono<Map.Entry<List<String>, Optional<Long>>> measureCohortQuery(JobExecutionContext ctx) {
-        long start = System.nanoTime();
-        return ctx.cohortQueryService().runCohortQuery(job.parameters().crtdl())
-                .map(ids -> Map.entry(ids, Optional.of(System.nanoTime() - start)));
+    /**
+     * Streams the patient ids of the cohort into batches and completes the cohort once all ids are batched.
+     *
+     * @param batched the patient ids batched by former attempts
+     * @return a {@link Mono} completing once the cohort is complete, or empty if the job no longer accepts it
+     */
+    private Mono<Integer> stream(JobExecutionContext ctx, JobParameters.Content parameters, Set<String> batched,
+                                 CohortQueryService.Cohort cohort, Instant attempt, long start) {
+        return cohort.ids()
+                .filter(id -> !batched.contains(id))
+                .buffer(ctx.batchsize())
+                .concatMap(ids -> Mono.fromCallable(() -> ctx.persistence().onCohortBatch(job.id(), attempt, ids))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .all(Boolean::booleanValue)
+                .flatMap(accepted -> {
+                    if (!accepted) {
+                        logger.debug("Stop streaming the cohort of job {}, which no longer accepts it", job.id());
+                        return Mono.empty();
+                    }
+                    Optional<Long> duration = parameters.paramBatch().isEmpty()
+                            ? Optional.of(System.nanoTime() - start)
+                            : Optional.empty();
+                    return Mono.fromCallable(() -> {
+                                ctx.persistence().onCohortComplete(job.id(), attempt, duration, cohort.cache());
+                                return 0;
+                            })
+                            .subscribeOn(Schedulers.boundedElastic());
+                });
+    }
+
+    /**
+     * @return the patient ids batched by former attempts, read only if there are any
+     */
+    private Mono<Set<String>> batchedIds(JobExecutionContext ctx) {
+        if (job.batches().isEmpty()) {
+            return Mono.just(Set.of());
+        }
+        return ctx.persistence().batchedIds(job.id(), List.copyOf(job.batches().keySet()))
+                .collect(Collectors.toSet());
+    }
+
+    private Mono<CohortQueryService.Cohort> cohort(JobExecutionContext ctx, JobParameters.Content parameters) {
+        return parameters.paramBatch().isEmpty()
+                ? ctx.cohortQueryService().queryCohort(parameters.crtdl())
+                : Mono.just(new CohortQueryService.Cohort(Flux.fromIterable(parameters.paramBatch()), Optional.empty()));
     }
 }
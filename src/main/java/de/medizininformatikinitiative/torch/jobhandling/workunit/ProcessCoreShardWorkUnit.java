@@ -0,0 +1,62 @@
+package de.medizininformatikinitiative.torch.jobhandling.workunit;
+
+import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
+import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+/**
+ * Processes a single shard of a partitioned core phase.
+ * <p>
+ * The shard is claimed when the work unit is selected, so shards of the same job run concurrently on different
+ * workers, limited like any other core work unit.
+ *
+ * @param job   the job with the shard already claimed
+ * @param shard the shard to process
+ */
+public record ProcessCoreShardWorkUnit(Job job, int shard) implements WorkUnit {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessCoreShardWorkUnit.class);
+
+    /**
+     * Loads the resources assigned to the shard, fetches, transforms and writes them, and records the outcome.
+     * Errors are recorded as shard errors; no exception is propagated downstream.
+     *
+     * @param ctx execution context providing persistence and extraction services
+     * @return a {@code Mono} that completes when the shard is processed
+     */
+    @Override
+    public Mono<Void> execute(JobExecutionContext ctx) {
+        return Mono.fromCallable(() -> ctx.persistence().loadCoreShard(job.id(), shard))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(shardBundle -> ctx.extract().processCoreShard(job, shard, shardBundle))
+                .flatMap(result ->
+                        Mono.fromCallable(() -> {
+                                    ctx.persistence().onCoreShardSuccess(result);
+                                    return 0;
+                                })
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .then()
+                )
+                .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
+                .onErrorResume(t -> {
+                    if (RetryabilityUtil.isRetryable(t)) {
+                        logger.warn("Core shard {} for job {} failed (retryable): {}", shard, job.id(), RetryabilityUtil.rootCauseMessage(t));
+                    } else {
+                        logger.error("Core shard {} failed for job {}", shard, job.id(), t);
+                    }
+                    return Mono.fromCallable(() -> {
+                                ctx.persistence().onCoreShardError(job.id(), shard, List.of(), t);
+                                return 0;
+                            })
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
+                            .then();
+                });
+    }
+}
@@ -4,6 +4,7 @@ import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
 import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
@@ -20,23 +21,25 @@ public record ProcessCoreWorkUnit(Job job) implements WorkUnit {
      * Loads persisted core information,
      * processes the core, and updates job state accordingly. Errors are recorded
      * as job errors; no exception is propagated downstream.
+     * <p>
+     * If the core phase is sharded, the first execution only prepares the core resources and partitions them into
+     * shards, which are processed by {@link ProcessCoreShardWorkUnit}s. Once all shards are done, the second
+     * execution reconciles the references between the shards and completes the job.
      *
      * @param ctx execution context providing persistence and extraction services
      * @return a {@code Mono} that completes when core processing finishes or is skipped
      */
     @Override
     public Mono<Void> execute(JobExecutionContext ctx) {
-        return Mono.fromCallable(() -> ctx.persistence().loadCoreInfo(job.id()))
-                .subscribeOn(Schedulers.boundedElastic())
-                .flatMap(coreBundle -> ctx.extract().processCore(job, coreBundle))
-                .flatMap(result ->
-                        Mono.fromCallable(() -> {
-                                    ctx.persistence().onCoreSuccess(result);
-                                    return 0;
-                                })
-                                .subscribeOn(Schedulers.boundedElastic())
-                                .then()
-                )
+        Mono<Void> step;
+        if (!job.coreShards().isEmpty()) {
+            step = reconcileShards(ctx);
+        } else if (ctx.coreShards() > 1) {
+            step = partition(ctx);
+        } else {
+            step = processWhole(ctx);
+        }
+        return step
                 .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
                 .onErrorResume(t -> {
                     if (RetryabilityUtil.isRetryable(t)) {
@@ -53,4 +56,39 @@ public record ProcessCoreWorkUnit(Job job) implements WorkUnit {
                             .then();
                 });
     }
+
+    private Mono<Void> processWhole(JobExecutionContext ctx) {
+        return Mono.defer(() -> ctx.extract().processCore(job, ctx.persistence().coreBatchParts(job.id())))
+                .flatMap(result -> persistSuccess(ctx, result));
+    }
+
+    private Mono<Void> partition(JobExecutionContext ctx) {
+        return Mono.fromCallable(() -> ctx.persistence().loadCoreInfo(job.id()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(coreBundle -> ctx.extract().partitionCore(job, coreBundle, ctx.coreShards()))
+                .flatMap(partition ->
+                        Mono.fromCallable(() -> {
+                                    ctx.persistence().onCorePartitioned(partition);
+                                    return 0;
+                                })
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .then()
+                );
+    }
+
+    private Mono<Void> reconcileShards(JobExecutionContext ctx) {
+        return Mono.fromCallable(() -> ctx.persistence().loadCoreShardOutcomes(job.id()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(outcomes -> ctx.extract().reconcileCoreShards(job.id(), outcomes))
+                .flatMap(result -> persistSuccess(ctx, result));
+    }
+
+    private Mono<Void> persistSuccess(JobExecutionContext ctx, CoreResult result) {
+        return Mono.fromCallable(() -> {
+                    ctx.persistence().onCoreSuccess(result);
+                    return 0;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
 }
@@ -0,0 +1,60 @@
+package de.medizininformatikinitiative.torch.jobhandling.workunit;
+
+import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
+import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.failure.RetryabilityUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.UUID;
+
+/**
+ * Stages the core resources referenced by a finished batch, while further batches are still running.
+ * <p>
+ * The staging is claimed when the work unit is selected and belongs to the core phase, so it is limited like any
+ * other core work unit and doesn't take slots of the batch phase.
+ *
+ * @param job     the job with the staging already claimed
+ * @param batchId the batch whose core resources are staged
+ */
+public record StageCoreWorkUnit(Job job, UUID batchId) implements WorkUnit {
+    private static final Logger logger = LoggerFactory.getLogger(StageCoreWorkUnit.class);
+
+    /**
+     * Loads the core part persisted by the batch, fetches its resources not staged yet and records the outcome.
+     * Errors skip the staging, so the core phase fetches the resources itself; no exception is propagated
+     * downstream.
+     *
+     * @param ctx execution context providing persistence and extraction services
+     * @return a {@code Mono} that completes when the core resources are staged
+     */
+    @Override
+    public Mono<Void> execute(JobExecutionContext ctx) {
+        return Mono.fromCallable(() -> ctx.persistence().loadCoreBatchPart(job.id(), batchId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(part -> ctx.extract().stageCore(job.id(), batchId, part))
+                .flatMap(status ->
+                        Mono.fromCallable(() -> {
+                                    ctx.persistence().onCoreStaged(job.id(), batchId, status);
+                                    return 0;
+                                })
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .then()
+                )
+                .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
+                .onErrorResume(t -> {
+                    logger.warn("Staging core resources of batch {} for job {} failed, leaving them to the core phase: {}",
+                            batchId, job.id(), RetryabilityUtil.rootCauseMessage(t));
+                    return Mono.fromCallable(() -> {
+                                ctx.persistence().onCoreStageError(job.id(), batchId);
+                                return 0;
+                            })
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .onErrorResume(JobNotFoundException.class, e -> Mono.empty())
+                            .then();
+                });
+    }
+}
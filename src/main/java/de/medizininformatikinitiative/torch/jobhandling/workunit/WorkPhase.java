@@ -0,0 +1,37 @@
+package de.medizininformatikinitiative.torch.jobhandling.workunit;
+
+/**
+ * The processing phase a {@link WorkUnit} belongs to.
+ * <p>
+ * The scheduler limits the number of concurrently executing work units per phase.
+ */
+public enum WorkPhase {
+    COHORT("cohort query"),
+    BATCH("batch processing"),
+    CORE("core processing");
+
+    private final String displayName;
+
+    WorkPhase(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public static WorkPhase of(WorkUnit wu) {
+        if (wu instanceof ProcessCohortWorkUnit) {
+            return COHORT;
+        }
+        return wu instanceof ProcessBatchWorkUnit ? BATCH : CORE;
+    }
+
+    /**
+     * @return the lower case name used as metric tag
+     */
+    public String tag() {
+        return name().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -9,10 +9,12 @@ import java.io.IOException;
  * A single executable unit of work belonging to a {@link Job}.
  * <p>
  * Implementations represent one processing step (e.g. cohort retrieval,
- * batch processing, or core processing) and are executed asynchronously.
+ * batch processing, staging of core resources, core processing or a core shard) and are executed
+ * asynchronously.
  */
 public sealed interface WorkUnit
-        permits ProcessCohortWorkUnit, ProcessBatchWorkUnit, ProcessCoreWorkUnit {
+        permits ProcessCohortWorkUnit, ProcessBatchWorkUnit, ProcessCoreWorkUnit, ProcessCoreShardWorkUnit,
+        StageCoreWorkUnit {
     Job job();
 
     reactor.core.publisher.Mono<Void> execute(JobExecutionContext ctx) throws IOException;
@@ -0,0 +1,86 @@
+package de.medizininformatikinitiative.torch.model.consent;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The consented days of a patient as sorted and merged intervals of epoch days.
+ * <p>
+ * Periods that overlap or are adjacent are merged, like in {@link NonContinuousPeriod#merge(NonContinuousPeriod)},
+ * so that a resource period is within the consent if a single interval contains it. Containment is answered by a
+ * binary search over the interval starts.
+ */
+public final class ConsentIndex {
+
+    private static final ConsentIndex EMPTY = new ConsentIndex(new long[0], new long[0]);
+
+    private final long[] starts;
+    private final long[] ends;
+
+    private ConsentIndex(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Builds the index of the given periods.
+     *
+     * @param periods the consented periods in any order
+     * @return the index of the periods
+     */
+    public static ConsentIndex of(List<Period> periods) {
+        if (periods.isEmpty()) {
+            return EMPTY;
+        }
+        Period[] sorted = periods.toArray(Period[]::new);
+        Arrays.sort(sorted, Comparator.comparing(Period::start));
+
+        long[] starts = new long[sorted.length];
+        long[] ends = new long[sorted.length];
+        int size = 0;
+        for (Period period : sorted) {
+            long start = period.start().toEpochDay();
+            long end = period.end().toEpochDay();
+            if (size > 0 && start <= ends[size - 1] + 1) {
+                ends[size - 1] = Math.max(ends[size - 1], end);
+            } else {
+                starts[size] = start;
+                ends[size] = end;
+                size++;
+            }
+        }
+        return new ConsentIndex(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+    }
+
+    /**
+     * Returns {@code true} if a single consented interval contains all days from {@code startDay} to {@code endDay}.
+     *
+     * @param startDay the first day as epoch day
+     * @param endDay   the last day as epoch day
+     * @return whether the days are consented
+     */
+    public boolean within(long startDay, long endDay) {
+        int i = Arrays.binarySearch(starts, startDay);
+        // the interval starting at or last before startDay is the only one that can contain it
+        int candidate = i >= 0 ? i : -i - 2;
+        return candidate >= 0 && endDay <= ends[candidate];
+    }
+
+    public boolean within(Period period) {
+        return within(period.start().toEpochDay(), period.end().toEpochDay());
+    }
+
+    public boolean containsDate(LocalDate date) {
+        long day = date.toEpochDay();
+        return within(day, day);
+    }
+
+    /**
+     * @return the number of merged intervals
+     */
+    public int size() {
+        return starts.length;
+    }
+}
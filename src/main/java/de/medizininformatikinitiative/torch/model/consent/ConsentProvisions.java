@@ -5,10 +5,10 @@ import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Encounter;
 
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 
@@ -24,11 +24,11 @@ public record ConsentProvisions(String patientId, DateTimeType dateTime, List<Pr
      * @param adjustableCodes codes whose provision start may be shifted (typically non-gate codes)
      */
     public ConsentProvisions updateByEncounters(Collection<Encounter> encounters, Set<TermCode> adjustableCodes) {
-        List<Period> encounterPeriods = encounters.stream()
+        EncounterStarts encounterStarts = EncounterStarts.of(encounters.stream()
                 .map(e -> Period.fromHapi(e.getPeriod()))
                 .filter(Optional::isPresent)
                 .map(Optional::get)
-                .toList();
+                .toList());
 
         return new ConsentProvisions(
                 patientId,
@@ -38,11 +38,8 @@ public record ConsentProvisions(String patientId, DateTimeType dateTime, List<Pr
                         return provisionsPeriod;
                     }
                     // earliest encounter.start where provision.start lies within encounter period
-                    Optional<LocalDate> earliestStart = encounterPeriods.stream()
-                            .filter(encounterPeriod -> provisionsPeriod.period().isStartBetween(encounterPeriod))
-                            .map(Period::start)
-                            .filter(Objects::nonNull)
-                            .min(Comparator.naturalOrder());
+                    Optional<LocalDate> earliestStart =
+                            encounterStarts.earliestStartCovering(provisionsPeriod.period().start());
 
                     return earliestStart
                             .map(start -> new Provision(provisionsPeriod.code(), new Period(start, provisionsPeriod.period().end()), provisionsPeriod.permit()))
@@ -50,4 +47,54 @@ public record ConsentProvisions(String patientId, DateTimeType dateTime, List<Pr
                 }).toList()
         );
     }
+
+    /**
+     * Encounter periods sorted by start as epoch days, together with the running maximum of their ends.
+     * <p>
+     * The first encounter whose running maximum end reaches a day is the one with the earliest start among those
+     * not ended before that day, so it is found by binary search.
+     */
+    private static final class EncounterStarts {
+
+        private final long[] starts;
+        private final long[] maxEnds;
+
+        private EncounterStarts(long[] starts, long[] maxEnds) {
+            this.starts = starts;
+            this.maxEnds = maxEnds;
+        }
+
+        static EncounterStarts of(List<Period> periods) {
+            Period[] sorted = periods.toArray(Period[]::new);
+            Arrays.sort(sorted, Comparator.comparing(Period::start));
+            long[] starts = new long[sorted.length];
+            long[] maxEnds = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                starts[i] = sorted[i].start().toEpochDay();
+                maxEnds[i] = Math.max(i == 0 ? Long.MIN_VALUE : maxEnds[i - 1], sorted[i].end().toEpochDay());
+            }
+            return new EncounterStarts(starts, maxEnds);
+        }
+
+        /**
+         * Returns the earliest start of an encounter that started before {@code day} and didn't end before it.
+         */
+        Optional<LocalDate> earliestStartCovering(LocalDate day) {
+            long epochDay = day.toEpochDay();
+            int low = 0;
+            int high = maxEnds.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (maxEnds[mid] >= epochDay) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            if (low == starts.length || starts[low] >= epochDay) {
+                return Optional.empty();
+            }
+            return Optional.of(LocalDate.ofEpochDay(starts[low]));
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package de.medizininformatikinitiative.torch.model.consent;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A time window enclosing the consented periods of a group of patients.
+ * <p>
+ * The direct load restricts its searches for the patients of a window to resources dated within the window, since
+ * the consent of the patients can't allow any other resource.
+ *
+ * @param period     the window
+ * @param patientIds the patients whose consented periods all lie within the window
+ */
+public record ConsentWindow(Period period, List<String> patientIds) {
+
+    public ConsentWindow {
+        requireNonNull(period);
+        patientIds = List.copyOf(patientIds);
+    }
+
+    /**
+     * Groups patients into at most {@code maxWindows} windows enclosing their consented periods.
+     * <p>
+     * The envelope of each patient's consent, from the start of its first to the end of its last period, is widened
+     * to whole calendar years, so that patients with similar consent share a window. While there are more windows
+     * than allowed, the two neighbouring windows whose merge widens the windows the least are merged. Patients
+     * without any consented period are left out, as none of their resources can be consented.
+     *
+     * @param consents   the consented periods by patient id
+     * @param maxWindows the maximum number of windows
+     * @return the windows, ordered by start
+     */
+    public static List<ConsentWindow> of(Map<String, NonContinuousPeriod> consents, int maxWindows) {
+        if (maxWindows < 1) {
+            throw new IllegalArgumentException("At least one window is required");
+        }
+        Map<Period, List<String>> byEnvelope = new TreeMap<>(Comparator.comparing(Period::start)
+                .thenComparing(Period::end));
+        consents.forEach((patientId, consent) -> {
+            if (!consent.isEmpty()) {
+                byEnvelope.computeIfAbsent(yearEnvelope(consent), p -> new ArrayList<>()).add(patientId);
+            }
+        });
+
+        List<ConsentWindow> windows = new ArrayList<>();
+        byEnvelope.forEach((period, patientIds) -> windows.add(new ConsentWindow(period, patientIds)));
+        while (windows.size() > maxWindows) {
+            int cheapest = 0;
+            long cheapestWidening = Long.MAX_VALUE;
+            for (int i = 0; i + 1 < windows.size(); i++) {
+                long widening = widening(windows.get(i), windows.get(i + 1));
+                if (widening < cheapestWidening) {
+                    cheapest = i;
+                    cheapestWidening = widening;
+                }
+            }
+            windows.set(cheapest, windows.get(cheapest).merge(windows.remove(cheapest + 1)));
+        }
+        return List.copyOf(windows);
+    }
+
+    private static Period yearEnvelope(NonContinuousPeriod consent) {
+        LocalDate start = consent.periods().stream().map(Period::start).min(Comparator.naturalOrder()).orElseThrow();
+        LocalDate end = consent.periods().stream().map(Period::end).max(Comparator.naturalOrder()).orElseThrow();
+        return Period.of(start.withDayOfYear(1), end.withDayOfYear(end.lengthOfYear()));
+    }
+
+    /**
+     * Returns the number of days the patients of both windows would additionally be searched for if merged.
+     */
+    private static long widening(ConsentWindow a, ConsentWindow b) {
+        ConsentWindow merged = a.merge(b);
+        return merged.days() * merged.patientIds.size() - a.days() * a.patientIds.size()
+                - b.days() * b.patientIds.size();
+    }
+
+    private long days() {
+        return period.end().toEpochDay() - period.start().toEpochDay() + 1;
+    }
+
+    private ConsentWindow merge(ConsentWindow other) {
+        List<String> patients = new ArrayList<>(patientIds);
+        patients.addAll(other.patientIds);
+        LocalDate start = period.start().isBefore(other.period.start()) ? period.start() : other.period.start();
+        LocalDate end = period.end().isAfter(other.period.end()) ? period.end() : other.period.end();
+        return new ConsentWindow(Period.of(start, end), patients);
+    }
+}
@@ -8,10 +8,18 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 
-public record NonContinuousPeriod(List<Period> periods) {
-
-    public NonContinuousPeriod {
-        periods = List.copyOf(periods);
+/**
+ * A set of periods, like the consented periods of a patient.
+ * <p>
+ * Containment checks use a {@link ConsentIndex} of the periods, which is built on first use.
+ */
+public final class NonContinuousPeriod {
+
+    private final List<Period> periods;
+    private volatile ConsentIndex index;
+
+    public NonContinuousPeriod(List<Period> periods) {
+        this.periods = List.copyOf(periods);
     }
 
     public static NonContinuousPeriod of(Period period) {
@@ -45,20 +53,68 @@ public record NonContinuousPeriod(List<Period> periods) {
         return new NonContinuousPeriod(merged);
     }
 
-    public boolean within(Period resourcePeriod) {
-        return periods.stream().anyMatch(period ->
-                !resourcePeriod.start().isBefore(period.start()) && !resourcePeriod.end().isAfter(period.end()));
+    public List<Period> periods() {
+        return periods;
     }
 
+    /**
+     * @return the index of the periods, built on first use
+     */
+    public ConsentIndex index() {
+        ConsentIndex index = this.index;
+        if (index == null) {
+            index = ConsentIndex.of(periods);
+            this.index = index;
+        }
+        return index;
+    }
 
+    public boolean within(Period resourcePeriod) {
+        return index().within(resourcePeriod);
+    }
+
+    /**
+     * Intersects the periods with the periods of {@code other}.
+     * <p>
+     * If both are sorted and disjoint, as the result of {@link #merge(NonContinuousPeriod)} is, their periods are
+     * walked once in parallel instead of intersecting every pair.
+     */
     public NonContinuousPeriod intersect(NonContinuousPeriod other) {
-        return new NonContinuousPeriod(
-                periods.stream()
-                        .flatMap(p1 -> other.periods.stream()
-                                .map(p1::intersect)
-                                .filter(Objects::nonNull))
-                        .toList()
-        );
+        if (!isSortedAndDisjoint() || !other.isSortedAndDisjoint()) {
+            return new NonContinuousPeriod(
+                    periods.stream()
+                            .flatMap(p1 -> other.periods.stream()
+                                    .map(p1::intersect)
+                                    .filter(Objects::nonNull))
+                            .toList()
+            );
+        }
+        List<Period> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < periods.size() && j < other.periods.size()) {
+            Period a = periods.get(i);
+            Period b = other.periods.get(j);
+            Period intersection = a.intersect(b);
+            if (intersection != null) {
+                result.add(intersection);
+            }
+            if (a.end().isBefore(b.end())) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return new NonContinuousPeriod(result);
+    }
+
+    private boolean isSortedAndDisjoint() {
+        for (int i = 1; i < periods.size(); i++) {
+            if (!periods.get(i - 1).end().isBefore(periods.get(i).start())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -90,7 +146,7 @@ public record NonContinuousPeriod(List<Period> periods) {
     }
 
     public boolean containsDate(LocalDate date) {
-        return periods.stream().anyMatch(p -> p.contains(date));
+        return index().containsDate(date);
     }
 
     public boolean isEmpty() {
@@ -104,4 +160,19 @@ public record NonContinuousPeriod(List<Period> periods) {
     public Period get(int index) {
         return periods.get(index);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof NonContinuousPeriod other && periods.equals(other.periods);
+    }
+
+    @Override
+    public int hashCode() {
+        return periods.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "NonContinuousPeriod[periods=" + periods + "]";
+    }
 }
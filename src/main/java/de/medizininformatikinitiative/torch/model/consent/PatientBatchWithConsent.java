@@ -87,7 +87,14 @@ public record PatientBatchWithConsent(Map<String, PatientResourceBundle> bundles
         return bundles.values().stream()
                 .mapToLong(prb -> prb.bundle().cache().values().stream()
                         .filter(java.util.Optional::isPresent)
-                        .count())
+                        .count() + prb.bundle().encodedCache().size())
+                .sum();
+    }
+
+    /** Total number of bytes held by encoded resources across all patient bundles. */
+    public long encodedSizeBytes() {
+        return bundles.values().stream()
+                .mapToLong(prb -> prb.bundle().encodedSizeBytes())
                 .sum();
     }
 
@@ -70,7 +70,7 @@ public record ExtractionResourceBundle(ConcurrentHashMap<ExtractionId, ResourceE
     }
 
     public static ExtractionResourceBundle of(ResourceBundle resourceBundle) {
-        return new ExtractionResourceBundle(new ConcurrentHashMap<>(ResourceExtractionInfo.toExtractionInfoMap(resourceBundle)), new ConcurrentHashMap<>(resourceBundle.cache()));
+        return new ExtractionResourceBundle(new ConcurrentHashMap<>(ResourceExtractionInfo.toExtractionInfoMap(resourceBundle)), new ConcurrentHashMap<>(resourceBundle.decodeAll()));
     }
 
 
@@ -205,6 +205,21 @@ public record ExtractionResourceBundle(ConcurrentHashMap<ExtractionId, ResourceE
      * groupId → set of resourceIds
      */
     public List<Provenance> buildProvenance(String extractionId) {
+        return buildProvenance(extractionId, extractionInfoMap,
+                id -> cache.getOrDefault(id, Optional.empty()).isPresent());
+    }
+
+    /**
+     * Creates one Provenance resource per groupId for all resources accepted by {@code present}.
+     *
+     * @param extractionId      the extraction id recorded in every Provenance
+     * @param extractionInfoMap metadata per resourceId
+     * @param present           predicate deciding which resources actually made it into the output
+     * @return one Provenance per groupId, sorted by groupId
+     */
+    public static List<Provenance> buildProvenance(String extractionId,
+                                                   Map<ExtractionId, ResourceExtractionInfo> extractionInfoMap,
+                                                   Predicate<ExtractionId> present) {
 
         // invert extractionInfoMap:
         // resourceId → ResourceExtractionInfo(groups = Set<String>)
@@ -212,7 +227,7 @@ public record ExtractionResourceBundle(ConcurrentHashMap<ExtractionId, ResourceE
         // groupId → Set<resourceId>
         Map<String, Set<ExtractionId>> groupIdToResourceIds =
                 extractionInfoMap.entrySet().stream()
-                        .filter(e -> cache.getOrDefault(e.getKey(), Optional.empty()).isPresent())
+                        .filter(e -> present.test(e.getKey()))
                         .flatMap(e -> e.getValue().groups().stream()
                                 .map(groupId -> Map.entry(groupId, e.getKey())))
                         .collect(Collectors.groupingBy(
@@ -231,7 +246,7 @@ public record ExtractionResourceBundle(ConcurrentHashMap<ExtractionId, ResourceE
                 .toList();
     }
 
-    private Provenance createProvenance(
+    private static Provenance createProvenance(
             String extractionId,
             String groupId,
             Set<ExtractionId> resourceIds
@@ -0,0 +1,197 @@
+package de.medizininformatikinitiative.torch.model.extraction;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
+import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
+import de.medizininformatikinitiative.torch.util.DiskResourceStore;
+import de.medizininformatikinitiative.torch.util.ResourceUtils;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Disk-backed counterpart of {@link ExtractionResourceBundle} used for large core extractions.
+ *
+ * <p>The extraction metadata stays on heap, while the resources themselves live encoded in a
+ * {@link DiskResourceStore}. Copy/redact and writing stream through the store one resource at a time,
+ * so heap usage does not grow with the size of the resources.</p>
+ *
+ * <p>The written output is the same single transaction Bundle per line as produced by
+ * {@link ExtractionResourceBundle#writeToFhirBundle(FhirContext, Writer, String)}.</p>
+ *
+ * @param extractionInfoMap metadata per resourceId
+ * @param store             encoded resources per resourceId
+ */
+public record SpilledExtractionBundle(ConcurrentHashMap<ExtractionId, ResourceExtractionInfo> extractionInfoMap,
+                                      DiskResourceStore store) {
+
+    private static final JsonStringEncoder JSON_STRING_ENCODER = JsonStringEncoder.getInstance();
+
+    public SpilledExtractionBundle {
+        requireNonNull(extractionInfoMap);
+        requireNonNull(store);
+    }
+
+    /**
+     * Moves all resolved resources of {@code bundle} into {@code store} and keeps only the extraction metadata of
+     * its valid resource groups.
+     * <p>
+     * The caches of {@code bundle} are cleared afterwards, so the parsed resources can be collected.
+     *
+     * @param bundle the resolved bundle to spill
+     * @param store  the store receiving the resources
+     * @return the spilled bundle
+     * @throws IOException if writing to the store fails
+     */
+    public static SpilledExtractionBundle spill(ResourceBundle bundle, DiskResourceStore store) throws IOException {
+        ConcurrentHashMap<ExtractionId, ResourceExtractionInfo> extractionInfoMap =
+                new ConcurrentHashMap<>(ResourceExtractionInfo.toExtractionInfoMap(bundle));
+        for (Optional<Resource> resource : bundle.cache().values()) {
+            if (resource.isPresent()) {
+                store.put(resource.get());
+            }
+        }
+        for (EncodedResource encoded : bundle.encodedCache().values()) {
+            store.put(encoded.decode());
+        }
+        bundle.cache().clear();
+        bundle.encodedCache().clear();
+        return new SpilledExtractionBundle(extractionInfoMap, store);
+    }
+
+    /**
+     * Merges the extraction metadata of {@code part} into this bundle and moves its resolved resources into the
+     * store. The metadata of {@code part} takes precedence, like in {@link ExtractionResourceBundle#merge}.
+     *
+     * @param part the bundle to merge, e.g. the core part persisted by a batch
+     * @return this bundle
+     * @throws IOException if writing to the store fails
+     */
+    public SpilledExtractionBundle merge(ExtractionResourceBundle part) throws IOException {
+        extractionInfoMap.putAll(part.extractionInfoMap());
+        for (Optional<Resource> resource : part.cache().values()) {
+            if (resource.isPresent()) {
+                store.put(resource.get());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return all resource IDs that exist in the extraction metadata but are not stored
+     */
+    public Set<ExtractionId> missingEntries() {
+        return extractionInfoMap.keySet().stream()
+                .filter(id -> !store.contains(id))
+                .collect(Collectors.toSet());
+    }
+
+    public boolean isEmpty() {
+        return extractionInfoMap.isEmpty() || store.isEmpty();
+    }
+
+    /**
+     * Counts the written resources grouped by AttributeGroup-ID.
+     *
+     * @param written ids returned by {@link #writeToFhirBundle(FhirContext, Writer, String, ResourceTransformer)}
+     * @return groupId to count of successfully extracted resources
+     */
+    public Map<String, Integer> resourceInclusionCounts(Set<ExtractionId> written) {
+        Map<String, Integer> counts = new HashMap<>();
+        extractionInfoMap.forEach((id, info) -> {
+            if (written.contains(id)) {
+                info.groups().forEach(groupId -> counts.merge(groupId, 1, Integer::sum));
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Streams the bundle as a single FHIR transaction Bundle line.
+     * <p>
+     * Resources are read from the store in deterministic id order, passed through {@code transformer} and
+     * written immediately. Resources the transformer drops are neither written nor referenced by the
+     * Provenance resources appended at the end.
+     *
+     * @param fhirContext  FHIR context used for encoding
+     * @param out          the target writer
+     * @param extractionId the extraction id recorded in the Provenance resources
+     * @param transformer  copy/redact step applied to each resource before writing
+     * @return ids of the resources that were written
+     * @throws IOException if reading from the store or writing fails
+     */
+    public Set<ExtractionId> writeToFhirBundle(FhirContext fhirContext, Writer out, String extractionId,
+                                               ResourceTransformer transformer) throws IOException {
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        Set<ExtractionId> written = new HashSet<>();
+
+        out.write("{\"resourceType\":\"Bundle\",\"id\":\"" + UUID.randomUUID() + "\",\"type\":\"transaction\",\"entry\":[");
+
+        List<ExtractionId> ids = extractionInfoMap.keySet().stream()
+                .filter(store::contains)
+                .sorted()
+                .toList();
+        for (ExtractionId id : ids) {
+            Optional<Resource> stored = store.get(id);
+            if (stored.isEmpty()) {
+                continue;
+            }
+            Optional<Resource> transformed = transformer.transform(id, stored.get(), extractionInfoMap.get(id));
+            if (transformed.isEmpty()) {
+                continue;
+            }
+            writeEntry(parser, out, transformed.get(), !written.isEmpty());
+            written.add(id);
+        }
+
+        boolean separate = !written.isEmpty();
+        for (Provenance provenance : ExtractionResourceBundle.buildProvenance(extractionId, extractionInfoMap, written::contains)) {
+            writeEntry(parser, out, provenance, separate);
+            separate = true;
+        }
+
+        out.write("]}\n");
+        return written;
+    }
+
+    private static void writeEntry(IParser parser, Writer out, Resource resource, boolean separate) throws IOException {
+        if (separate) {
+            out.write(',');
+        }
+        out.write("{\"resource\":");
+        out.write(parser.encodeResourceToString(resource));
+        out.write(",\"request\":{\"method\":\"PUT\",\"url\":\"");
+        out.write(JSON_STRING_ENCODER.quoteAsString(ResourceUtils.getRelativeURL(resource).toRelativeUrl()));
+        out.write("\"}}");
+    }
+
+    /**
+     * Copy/redact step applied to a single resource while streaming.
+     */
+    @FunctionalInterface
+    public interface ResourceTransformer {
+
+        /**
+         * @param id       the resource id
+         * @param resource the decoded resource
+         * @param info     the extraction metadata of the resource
+         * @return the transformed resource, or empty if the resource has to be dropped
+         */
+        Optional<Resource> transform(ExtractionId id, Resource resource, ResourceExtractionInfo info);
+    }
+}
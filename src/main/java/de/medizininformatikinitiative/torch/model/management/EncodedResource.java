@@ -0,0 +1,92 @@
+package de.medizininformatikinitiative.torch.model.management;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import de.medizininformatikinitiative.torch.util.ResourceUtils;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A cached resource kept as compact JSON instead of a parsed HAPI object.
+ * <p>
+ * The fields needed by cheap checks are extracted once at encoding time, so profile scope checks and patient
+ * assignment do not need to decode the resource. The first structured access decodes it via {@link #decode()}, and
+ * the {@link ResourceBundle} holding it keeps the decoded resource instead.
+ *
+ * @param id           relative URL of the resource
+ * @param resourceType the FHIR resource type
+ * @param patientId    id of the patient the resource belongs to, or {@code null} if it does not reference one
+ * @param profiles     {@code meta.profile} values without version
+ * @param json         the resource encoded as UTF-8 JSON without pretty printing
+ * @param fhirContext  FHIR context used for decoding
+ */
+public record EncodedResource(ExtractionId id,
+                              String resourceType,
+                              @Nullable String patientId,
+                              List<String> profiles,
+                              byte[] json,
+                              FhirContext fhirContext) {
+
+    public EncodedResource {
+        requireNonNull(id);
+        requireNonNull(resourceType);
+        profiles = List.copyOf(profiles);
+        requireNonNull(json);
+        requireNonNull(fhirContext);
+    }
+
+    /**
+     * Encodes a resource and extracts its cheap-check fields.
+     *
+     * @param resource    the resource to encode
+     * @param fhirContext FHIR context used for encoding and later decoding
+     * @return the encoded resource
+     * @throws IllegalArgumentException if the resource has no usable id
+     */
+    public static EncodedResource encode(Resource resource, FhirContext fhirContext) {
+        ExtractionId id = ResourceUtils.getRelativeURL(resource);
+        byte[] json = fhirContext.newJsonParser().setPrettyPrint(false)
+                .encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        List<String> profiles = resource.getMeta().getProfile().stream()
+                .map(CanonicalType::getValue)
+                .map(ResourceUtils::stripVersion)
+                .toList();
+        return new EncodedResource(id, resource.getResourceType().toString(), patientIdOrNull(resource), profiles,
+                json, fhirContext);
+    }
+
+    private static String patientIdOrNull(Resource resource) {
+        if (!(resource instanceof DomainResource domainResource)) {
+            return null;
+        }
+        try {
+            return ResourceUtils.patientId(domainResource);
+        } catch (PatientIdNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a fresh copy of the resource.
+     *
+     * @return the decoded resource
+     */
+    public Resource decode() {
+        return (Resource) fhirContext.newJsonParser().parseResource(new String(json, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return number of bytes held by the encoded form
+     */
+    public int sizeBytes() {
+        return json.length;
+    }
+}
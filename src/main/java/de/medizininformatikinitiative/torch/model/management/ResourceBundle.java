@@ -23,6 +23,9 @@ import java.util.stream.Collectors;
  * @param parentResourceGroupToResourceAttributesMap
  * @param childResourceGroupToResourceAttributesMap
  * @param cache
+ * @param encodedCache                               resources kept as {@link EncodedResource} instead of a parsed
+ *                                                   object, moved to {@code cache} once decoded on first access. An
+ *                                                   id is either in {@code cache} or in {@code encodedCache}.
  */
 public record ResourceBundle(
         ConcurrentHashMap<ResourceAttribute, Set<ResourceGroup>> resourceAttributeToParentResourceGroup,
@@ -31,21 +34,76 @@ public record ResourceBundle(
         ConcurrentHashMap<ResourceAttribute, Boolean> resourceAttributeValidity,
         ConcurrentHashMap<ResourceGroup, Set<ResourceAttribute>> parentResourceGroupToResourceAttributesMap,
         ConcurrentHashMap<ResourceGroup, Set<ResourceAttribute>> childResourceGroupToResourceAttributesMap,
-        ConcurrentHashMap<ExtractionId, Optional<Resource>> cache) {
+        ConcurrentHashMap<ExtractionId, Optional<Resource>> cache,
+        ConcurrentHashMap<ExtractionId, EncodedResource> encodedCache) {
 
     public ResourceBundle() {
         this(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
     }
 
+    public ResourceBundle(
+            ConcurrentHashMap<ResourceAttribute, Set<ResourceGroup>> resourceAttributeToParentResourceGroup,
+            ConcurrentHashMap<ResourceAttribute, Set<ResourceGroup>> resourceAttributeToChildResourceGroup,
+            ConcurrentHashMap<ResourceGroup, Boolean> resourceGroupValidity,
+            ConcurrentHashMap<ResourceAttribute, Boolean> resourceAttributeValidity,
+            ConcurrentHashMap<ResourceGroup, Set<ResourceAttribute>> parentResourceGroupToResourceAttributesMap,
+            ConcurrentHashMap<ResourceGroup, Set<ResourceAttribute>> childResourceGroupToResourceAttributesMap,
+            ConcurrentHashMap<ExtractionId, Optional<Resource>> cache) {
+        this(resourceAttributeToParentResourceGroup, resourceAttributeToChildResourceGroup, resourceGroupValidity,
+                resourceAttributeValidity, parentResourceGroupToResourceAttributesMap,
+                childResourceGroupToResourceAttributesMap, cache, new ConcurrentHashMap<>());
+    }
+
     /**
      * Gets the resource from cache.
+     * <p>
+     * An encoded resource is decoded on its first access and replaces the encoded entry, so that later calls return
+     * the same instance and changes to it are kept.
      *
      * @param reference reference of the cached fhir resource
      * @return resource when in cache, optional.empty() when fetch was attempted but not successful
      * or null when reference is not known to cache.
      */
     public Optional<Resource> get(ExtractionId reference) {
-        return cache.get(reference);
+        Optional<Resource> resource = cache.get(reference);
+        if (resource != null) {
+            return resource;
+        }
+        EncodedResource encoded = encodedCache.get(reference);
+        if (encoded == null) {
+            // decoded concurrently in the meantime
+            return cache.get(reference);
+        }
+        Optional<Resource> decoded = cache.computeIfAbsent(reference, id -> Optional.of(encoded.decode()));
+        encodedCache.remove(reference, encoded);
+        return decoded;
+    }
+
+    /**
+     * Gets the encoded form of a resource without decoding it.
+     *
+     * @param reference reference of the cached fhir resource
+     * @return the encoded resource, or empty if the resource is not known or held decoded
+     */
+    public Optional<EncodedResource> getEncoded(ExtractionId reference) {
+        return Optional.ofNullable(encodedCache.get(reference));
+    }
+
+    /**
+     * Decodes all encoded resources in place, e.g. to hand the bundle off to copy and redact.
+     *
+     * @return the cache holding all entries
+     */
+    public ConcurrentHashMap<ExtractionId, Optional<Resource>> decodeAll() {
+        encodedCache.keySet().forEach(this::get);
+        return cache;
+    }
+
+    /**
+     * @return the number of bytes held by encoded resources
+     */
+    public long encodedSizeBytes() {
+        return encodedCache.values().stream().mapToLong(EncodedResource::sizeBytes).sum();
     }
 
     public void addAttributeToChild(ResourceAttribute attribute, ResourceGroup child) {
@@ -177,16 +235,35 @@ public record ResourceBundle(
         ExtractionId resourceUrl;
         try {
             resourceUrl = ResourceUtils.getRelativeURL(resource);
-            boolean isNew = !cache.containsKey(resourceUrl);
+            boolean isNew = !contains(resourceUrl);
             ResourceGroup group = new ResourceGroup(resourceUrl, groupId);
             addResourceGroupValidity(group, valid);
-            cache.putIfAbsent(resourceUrl, Optional.of(resource));
+            if (isNew) {
+                cache.putIfAbsent(resourceUrl, Optional.of(resource));
+            }
             return isNew;
         } catch (IllegalArgumentException e) {
             return false;
         }
     }
 
+    /**
+     * Adds an encoded resource for a group, keeping an already cached form of the same resource.
+     *
+     * @param resource the encoded resource
+     * @param groupId  the attribute group the resource was loaded for
+     * @param valid    whether the resource is valid for the group
+     * @return {@code true} if the resource was not cached before
+     */
+    public boolean put(EncodedResource resource, String groupId, boolean valid) {
+        boolean isNew = !contains(resource.id());
+        addResourceGroupValidity(new ResourceGroup(resource.id(), groupId), valid);
+        if (isNew) {
+            encodedCache.putIfAbsent(resource.id(), resource);
+        }
+        return isNew;
+    }
+
     /**
      * Adds the wrapper into the underlying concurrent hashmap.
      * Generates from IDPart and ResourceType of the resource the relative url as key for the cache
@@ -205,6 +282,7 @@ public record ResourceBundle(
             ExtractionId resourceUrl = ResourceUtils.getRelativeURL(resource);
             wrapper.groupSet().forEach(group -> addResourceGroupValidity(new ResourceGroup(resourceUrl, group), true));
             cache.put(resourceUrl, Optional.of(resource));
+            encodedCache.remove(resourceUrl);
 
             return true;
         } catch (IllegalArgumentException e) {
@@ -234,10 +312,26 @@ public record ResourceBundle(
 
     public void remove(ExtractionId id) {
         cache.remove(id);
+        encodedCache.remove(id);
+    }
+
+    /**
+     * Drops all resources and reference bookkeeping held by this bundle, so they can be collected once the
+     * bundle's content has been persisted.
+     */
+    public void release() {
+        resourceAttributeToParentResourceGroup.clear();
+        resourceAttributeToChildResourceGroup.clear();
+        resourceGroupValidity.clear();
+        resourceAttributeValidity.clear();
+        parentResourceGroupToResourceAttributesMap.clear();
+        childResourceGroupToResourceAttributesMap.clear();
+        cache.clear();
+        encodedCache.clear();
     }
 
     public Boolean isEmpty() {
-        return cache.isEmpty();
+        return cache.isEmpty() && encodedCache.isEmpty();
     }
 
     public boolean contains(ResourceGroup ref) {
@@ -245,7 +339,7 @@ public record ResourceBundle(
     }
 
     public boolean contains(ExtractionId ref) {
-        return cache.containsKey(ref);
+        return cache.containsKey(ref) || encodedCache.containsKey(ref);
     }
 
     public boolean put(Resource resource) {
@@ -256,6 +350,7 @@ public record ResourceBundle(
         try {
             id = ResourceUtils.getRelativeURL(resource);
             cache.put(id, Optional.of(resource));
+            encodedCache.remove(id);
             return true;
         } catch (IllegalArgumentException e) {
             return false;
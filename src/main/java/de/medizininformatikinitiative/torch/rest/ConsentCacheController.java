@@ -0,0 +1,146 @@
+package de.medizininformatikinitiative.torch.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.consent.ConsentCache;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
+import de.medizininformatikinitiative.torch.management.OperationOutcomeCreator;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springdoc.core.annotations.RouterOperation;
+import org.springdoc.core.annotations.RouterOperations;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.requireNonNull;
+import static org.springframework.web.reactive.function.server.RequestPredicates.DELETE;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Invalidates the {@link ConsentCache}, for example after the consent code configuration changed or resources were
+ * deleted on the FHIR server.
+ */
+@Component
+public class ConsentCacheController {
+
+    private static final MediaType MEDIA_TYPE_FHIR_JSON = MediaType.valueOf("application/fhir+json");
+    private static final Pattern FHIR_ID_PATTERN = Pattern.compile("^[A-Za-z0-9\\-.]{1,64}$");
+
+    private final FhirContext fhirContext;
+    private final ConsentCache consentCache;
+
+    /**
+     * @param fhirContext  FHIR context used for serialising resources
+     * @param consentCache the consent cache to invalidate
+     */
+    public ConsentCacheController(FhirContext fhirContext, ConsentCache consentCache) {
+        this.fhirContext = requireNonNull(fhirContext);
+        this.consentCache = requireNonNull(consentCache);
+    }
+
+    @Bean
+    @RouterOperations({
+            @RouterOperation(
+                    path = "/fhir/__consent-cache",
+                    method = RequestMethod.DELETE,
+                    beanClass = ConsentCacheController.class,
+                    beanMethod = "invalidateAll"
+            ),
+            @RouterOperation(
+                    path = "/fhir/__consent-cache/{patientId}",
+                    method = RequestMethod.DELETE,
+                    beanClass = ConsentCacheController.class,
+                    beanMethod = "invalidatePatient"
+            )
+    })
+    /**
+     * Registers the {@code /fhir/__consent-cache} routes.
+     *
+     * @return the composed router function
+     */
+    public RouterFunction<ServerResponse> consentCacheRouter() {
+        return route(DELETE("/fhir/__consent-cache"), this::invalidateAll)
+                .andRoute(DELETE("/fhir/__consent-cache/{patientId}"), this::invalidatePatient);
+    }
+
+    @Operation(
+            summary = "DELETE /fhir/__consent-cache — Invalidate the consent cache",
+            description = "Removes the cached consent periods of all patients.",
+            responses = {
+                    @ApiResponse(responseCode = "204", description = "No Content — the consent cache is empty"),
+                    @ApiResponse(responseCode = "500", description = "Internal Server Error — could not delete the cache")
+            }
+    )
+    /**
+     * Handles {@code DELETE /fhir/__consent-cache}.
+     *
+     * @param request the incoming server request
+     * @return a {@link Mono} emitting {@code 204 No Content} on success
+     */
+    public Mono<ServerResponse> invalidateAll(ServerRequest request) {
+        return invalidate(consentCache::invalidateAll, "Failed to invalidate the consent cache");
+    }
+
+    @Operation(
+            summary = "DELETE /fhir/__consent-cache/{patientId} — Invalidate the consent cache of a patient",
+            description = "Removes the cached consent periods of a patient for all consent codes.",
+            parameters = @Parameter(name = "patientId", in = ParameterIn.PATH, required = true,
+                    description = "Logical id of the patient"),
+            responses = {
+                    @ApiResponse(responseCode = "204", description = "No Content — the patient is not cached anymore"),
+                    @ApiResponse(responseCode = "400", description = "Bad Request — the patient id is malformed"),
+                    @ApiResponse(responseCode = "500", description = "Internal Server Error — could not delete the cache")
+            }
+    )
+    /**
+     * Handles {@code DELETE /fhir/__consent-cache/{patientId}}.
+     *
+     * @param request the incoming server request
+     * @return a {@link Mono} emitting {@code 204 No Content} on success
+     */
+    public Mono<ServerResponse> invalidatePatient(ServerRequest request) {
+        String patientId = request.pathVariable("patientId");
+        if (!FHIR_ID_PATTERN.matcher(patientId).matches()) {
+            return operationOutcome(HttpStatus.BAD_REQUEST, OperationOutcome.IssueType.INVALID,
+                    "Invalid patient id: " + patientId);
+        }
+        return invalidate(() -> consentCache.invalidate(patientId),
+                "Failed to invalidate the consent cache of patient " + patientId);
+    }
+
+    private Mono<ServerResponse> invalidate(Invalidation invalidation, String failureMessage) {
+        return Mono.fromCallable(() -> {
+                    invalidation.run();
+                    return true;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(ignored -> ServerResponse.noContent().build())
+                .onErrorResume(IOException.class, e -> operationOutcome(HttpStatus.INTERNAL_SERVER_ERROR,
+                        OperationOutcome.IssueType.EXCEPTION, failureMessage + ": " + e.getMessage()));
+    }
+
+    private Mono<ServerResponse> operationOutcome(HttpStatus status, OperationOutcome.IssueType type, String message) {
+        return ServerResponse.status(status)
+                .contentType(MEDIA_TYPE_FHIR_JSON)
+                .bodyValue(fhirContext.newJsonParser().encodeResourceToString(
+                        OperationOutcomeCreator.simple(Severity.ERROR, type, message)));
+    }
+
+    @FunctionalInterface
+    private interface Invalidation {
+        void run() throws IOException;
+    }
+}
@@ -19,6 +19,7 @@ import de.medizininformatikinitiative.torch.rest.schema.OperationOutcomeSchema;
 import de.medizininformatikinitiative.torch.service.CohortQueryService;
 import de.medizininformatikinitiative.torch.service.CrtdlValidatorService;
 import de.medizininformatikinitiative.torch.service.JobPersistenceService;
+import de.medizininformatikinitiative.torch.util.ResultFileManager;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.enums.ParameterIn;
@@ -43,9 +44,11 @@ import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
 import java.util.UUID;
 
 import static de.medizininformatikinitiative.torch.diagnostics.DiagnosticsStore.PATIENT_EXCLUSIONS_FILE;
@@ -449,7 +452,9 @@ public class FhirController {
                                     "No job with id " + jobId + " exists")));
         }
 
-        return cohortQueryService.translateToCql(job.parameters().crtdl().cohortDefinition())
+        return Mono.fromCallable(() -> job.parameters().crtdl().cohortDefinition())
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(cohortQueryService::translateToCql)
                 .flatMap(cql -> ServerResponse.ok().contentType(MediaType.TEXT_PLAIN).bodyValue(cql))
                 .onErrorResume(Exception.class, e -> {
                     logger.error("FHIR_CONTROLLER_03 Failed to translate CQL for job {}: {}", jobId, e.getMessage(), e);
@@ -515,7 +520,9 @@ public class FhirController {
      */
     private static String xProgress(Job job) {
         return switch (job.status()) {
-            case RUNNING_GET_COHORT -> "Getting cohort";
+            case RUNNING_GET_COHORT -> job.batches().isEmpty()
+                    ? "Getting cohort"
+                    : "Getting cohort (%d patients in %d batches so far)".formatted(job.cohortSize(), job.batches().size());
             case RUNNING_PROCESS_BATCH -> "Processing batches (%.0f%%)".formatted(job.calculateBatchProgress());
             case RUNNING_PROCESS_CORE -> "Processing core resources";
             default -> job.status().display();
@@ -542,7 +549,16 @@ public class FhirController {
             }
         });
 
-        if (job.coreState().status() == WorkUnitStatus.FINISHED) {
+        if (!job.coreShards().isEmpty()) {
+            job.coreShards().entrySet().stream()
+                    .filter(shard -> shard.getValue().status() == WorkUnitStatus.FINISHED)
+                    .map(Map.Entry::getKey)
+                    .sorted()
+                    .forEach(shard -> outputArr.add(mapper.createObjectNode()
+                            .put("url", fileServerName + "/" + job.id() + "/"
+                                    + ResultFileManager.coreShardFileName(shard) + ".ndjson")
+                            .put("type", "NDJSON Bundle")));
+        } else if (job.coreState().status() == WorkUnitStatus.FINISHED) {
             outputArr.add(mapper.createObjectNode()
                     .put("url", fileServerName + "/" + job.id() + "/core.ndjson")
                     .put("type", "NDJSON Bundle"));
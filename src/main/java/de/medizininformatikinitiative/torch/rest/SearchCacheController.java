@@ -0,0 +1,95 @@
+package de.medizininformatikinitiative.torch.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
+import de.medizininformatikinitiative.torch.management.OperationOutcomeCreator;
+import de.medizininformatikinitiative.torch.service.SearchResponseCache;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springdoc.core.annotations.RouterOperation;
+import org.springdoc.core.annotations.RouterOperations;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+import static org.springframework.web.reactive.function.server.RequestPredicates.DELETE;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Invalidates the {@link SearchResponseCache}, so that the next jobs fetch all resources from the FHIR server again,
+ * for example after data was loaded into the FHIR server.
+ */
+@Component
+public class SearchCacheController {
+
+    private static final MediaType MEDIA_TYPE_FHIR_JSON = MediaType.valueOf("application/fhir+json");
+
+    private final FhirContext fhirContext;
+    private final SearchResponseCache searchCache;
+
+    /**
+     * @param fhirContext FHIR context used for serialising resources
+     * @param searchCache the search response cache to invalidate
+     */
+    public SearchCacheController(FhirContext fhirContext, SearchResponseCache searchCache) {
+        this.fhirContext = requireNonNull(fhirContext);
+        this.searchCache = requireNonNull(searchCache);
+    }
+
+    @Bean
+    @RouterOperations({
+            @RouterOperation(
+                    path = "/fhir/__search-cache",
+                    method = RequestMethod.DELETE,
+                    beanClass = SearchCacheController.class,
+                    beanMethod = "invalidateAll"
+            )
+    })
+    /**
+     * Registers the {@code /fhir/__search-cache} route.
+     *
+     * @return the router function
+     */
+    public RouterFunction<ServerResponse> searchCacheRouter() {
+        return route(DELETE("/fhir/__search-cache"), this::invalidateAll);
+    }
+
+    @Operation(
+            summary = "DELETE /fhir/__search-cache — Invalidate the search response cache",
+            description = "Removes all cached search responses, so that every search is sent to the FHIR server again.",
+            responses = {
+                    @ApiResponse(responseCode = "204", description = "No Content — the search response cache is empty"),
+                    @ApiResponse(responseCode = "500", description = "Internal Server Error — could not delete the cache")
+            }
+    )
+    /**
+     * Handles {@code DELETE /fhir/__search-cache}.
+     *
+     * @param request the incoming server request
+     * @return a {@link Mono} emitting {@code 204 No Content} on success
+     */
+    public Mono<ServerResponse> invalidateAll(ServerRequest request) {
+        return Mono.fromCallable(() -> {
+                    searchCache.invalidateAll();
+                    return true;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(ignored -> ServerResponse.noContent().build())
+                .onErrorResume(IOException.class, e -> ServerResponse.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .contentType(MEDIA_TYPE_FHIR_JSON)
+                        .bodyValue(fhirContext.newJsonParser().encodeResourceToString(
+                                OperationOutcomeCreator.simple(Severity.ERROR, OperationOutcome.IssueType.EXCEPTION,
+                                        "Failed to invalidate the search response cache: " + e.getMessage()))));
+    }
+}
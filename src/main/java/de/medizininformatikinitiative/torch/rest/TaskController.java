@@ -21,6 +21,7 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.parameters.RequestBody;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Task;
 import org.springdoc.core.annotations.RouterOperation;
@@ -331,6 +332,9 @@ public class TaskController {
             summary = "PUT /fhir/Task/{id} — Update Task Priority",
             description = """
                     Updates the priority of an existing task. The request body must be a FHIR Task resource.
+                    An input of type `maxConcurrentBatches` with an unsigned integer value limits the number of
+                    batches of the task processed at the same time, `0` removes the limit. Without the input, the
+                    current limit is kept.
                     Optimistic locking is enforced via the `If-Match: W/"<version>"` header.
                     """,
             parameters = {
@@ -360,7 +364,8 @@ public class TaskController {
                                       "id": "550e8400-e29b-41d4-a716-446655440000",
                                       "status": "in-progress",
                                       "intent": "order",
-                                      "priority": "asap"
+                                      "priority": "asap",
+                                      "input": [{ "type": { "text": "maxConcurrentBatches" }, "valueUnsignedInt": 2 }]
                                     }
                                     """)
                     )
@@ -385,7 +390,9 @@ public class TaskController {
                                               "priority": "asap",
                                               "description": "TORCH Job 550e8400-e29b-41d4-a716-446655440000",
                                               "authoredOn": "2024-01-15T10:29:55.000+00:00",
-                                              "executionPeriod": { "start": "2024-01-15T10:29:55.000+00:00" }
+                                              "executionPeriod": { "start": "2024-01-15T10:29:55.000+00:00" },
+                                              "input": [{ "type": { "text": "maxConcurrentBatches" }, "valueUnsignedInt": 2 }],
+                                              "output": [{ "type": { "text": "batchesInProgress" }, "valueUnsignedInt": 2 }]
                                             }
                                             """)
                             )
@@ -441,7 +448,8 @@ public class TaskController {
             }
     )
     /**
-     * Handles {@code PUT /fhir/Task/{id}} — updates the priority of an existing task.
+     * Handles {@code PUT /fhir/Task/{id}} — updates the priority and the maximum number of concurrent batches of an
+     * existing task.
      *
      * <p>Requires an {@code If-Match: W/"<version>"} header for optimistic locking.
      *
@@ -463,8 +471,9 @@ public class TaskController {
                         );
                     }
                     return request.bodyToMono(String.class)
-                            .flatMap(this::extractPriority)
-                            .flatMap(priority -> Mono.fromCallable(() -> persistence.changePriority(jobId, priority, expectedVersion.get()))
+                            .flatMap(this::extractScheduling)
+                            .flatMap(scheduling -> Mono.fromCallable(() -> persistence.changeScheduling(jobId,
+                                            scheduling.priority(), scheduling.maxConcurrentBatches(), expectedVersion.get()))
                                     .subscribeOn(Schedulers.boundedElastic()))
                             .flatMap(updatedJob -> ServerResponse.ok()
                                     .contentType(MEDIA_TYPE_FHIR_JSON)
@@ -894,19 +903,43 @@ public class TaskController {
     }
 
     /**
-     * Parses the request body as a FHIR {@link Task} and extracts its priority.
+     * The scheduling settings of a job given by a task.
+     *
+     * @param priority             the priority
+     * @param maxConcurrentBatches the maximum number of concurrent batches, {@code 0} for no limit, or empty if the
+     *                             task doesn't change it
+     */
+    private record Scheduling(JobPriority priority, Optional<Integer> maxConcurrentBatches) {
+    }
+
+    /**
+     * Parses the request body as a FHIR {@link Task} and extracts its priority and maximum number of concurrent
+     * batches.
      *
      * @param body the raw JSON request body
-     * @return a {@link Mono} emitting the extracted {@link JobPriority}, or an error mono
-     *         carrying an {@link IllegalArgumentException} if the body cannot be parsed
+     * @return a {@link Mono} emitting the extracted {@link Scheduling}, or an error mono
+     *         carrying an {@link IllegalArgumentException} if the body cannot be parsed or the maximum number of
+     *         concurrent batches is invalid
      */
-    private Mono<JobPriority> extractPriority(String body) {
+    private Mono<Scheduling> extractScheduling(String body) {
+        Task task;
         try {
-            Task task = fhirContext.newJsonParser().parseResource(Task.class, body);
-            return Mono.just(parseFhirPriority(task.getPriority()));
+            task = fhirContext.newJsonParser().parseResource(Task.class, body);
         } catch (Exception e) {
             return Mono.error(new IllegalArgumentException("Could not parse Task resource: " + e.getMessage()));
         }
+        Optional<Integer> maxConcurrentBatches = Optional.empty();
+        for (Task.ParameterComponent input : task.getInput()) {
+            if (JobTaskMapper.MAX_CONCURRENT_BATCHES.equals(input.getType().getText())) {
+                if (!(input.getValue() instanceof IntegerType value) || value.getValue() == null
+                        || value.getValue() < 0) {
+                    return Mono.error(new IllegalArgumentException(
+                            "Input maxConcurrentBatches must be a non-negative integer"));
+                }
+                maxConcurrentBatches = Optional.of(value.getValue());
+            }
+        }
+        return Mono.just(new Scheduling(parseFhirPriority(task.getPriority()), maxConcurrentBatches));
     }
 
     /**
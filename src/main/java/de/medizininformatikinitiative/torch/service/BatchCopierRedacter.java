@@ -75,26 +75,35 @@ public class BatchCopierRedacter {
                 return;
             }
 
-            Resource resource = opt.get();
-            ResourceExtractionInfo info = infoMap.get(resourceId);
-
-            try {
-                ExtractionRedactionWrapper wrapper =
-                        createWrapper(resource, info, groupMap);
-
-                Resource transformed = transformResource(wrapper);
-
-                extractionBundle.put(transformed);
-
-            } catch (TargetClassCreationException | ReflectiveOperationException | RedactionException e) {
-                logger.warn("BatchCopierRedacter001: Error transforming resource {}: {}", resourceId, e.getMessage());
-                extractionBundle.put(resourceId);
-            }
+            transformResource(resourceId, opt.get(), infoMap.get(resourceId), groupMap)
+                    .ifPresentOrElse(extractionBundle::put, () -> extractionBundle.put(resourceId));
         });
 
         return extractionBundle;
     }
 
+    /**
+     * Transforms a single resource by copying and redacting it according to its extraction info.
+     * <p>
+     * Failures are isolated the same way as in {@link #transformBundle(ExtractionResourceBundle, Map)}:
+     * the resource is dropped and a warning is logged.
+     *
+     * @param resourceId id of the resource, used for logging
+     * @param resource   the resource to transform
+     * @param info       extraction info of the resource
+     * @param groupMap   Immutable AttributeGroup Map shared between all Batches
+     * @return the transformed resource, or empty if it has to be dropped
+     */
+    public Optional<Resource> transformResource(ExtractionId resourceId, Resource resource, ResourceExtractionInfo info,
+                                                Map<String, AnnotatedAttributeGroup> groupMap) {
+        try {
+            return Optional.of(transformResource(createWrapper(resource, info, groupMap)));
+        } catch (TargetClassCreationException | ReflectiveOperationException | RedactionException e) {
+            logger.warn("BatchCopierRedacter001: Error transforming resource {}: {}", resourceId, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
     ExtractionRedactionWrapper createWrapper(
             Resource resource,
             ResourceExtractionInfo info,
@@ -0,0 +1,175 @@
+package de.medizininformatikinitiative.torch.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps the patient ids of evaluated cohorts on disk, so that jobs with the same inclusion and exclusion criteria
+ * don't run the cohort query again.
+ * <p>
+ * Entries are keyed by a hash of the canonical cohort definition, with the fields of all objects sorted, together
+ * with the backend evaluating it and the version of the ontology used to translate it. So a cohort is evaluated again
+ * if the backend or the mappings change. An entry holds one patient id per line and is only stored once the cohort
+ * was received completely. Entries are kept by a {@link FileEntryStore}, which expires them, without a size limit.
+ * The cache is shared by all jobs of the instance.
+ */
+public class CohortCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CohortCache.class);
+    private static final CohortCache DISABLED = new CohortCache();
+
+    @Nullable
+    private final FileEntryStore<List<String>> store;
+    private final String backend;
+    private final String ontologyVersion;
+
+    /**
+     * Creates a cache and loads the entries already stored in its directory.
+     *
+     * @param dir             the directory holding the cached cohorts
+     * @param ttl             the time after which a cached cohort is evaluated again
+     * @param backend         the backend evaluating cohorts, like the URL of Flare or of the FHIR server
+     * @param ontologyVersion the version of the ontology cohort definitions are translated with
+     * @param io              file access
+     */
+    public CohortCache(String dir, Duration ttl, String backend, String ontologyVersion, FileIo io) {
+        this(dir, ttl, backend, ontologyVersion, io, Clock.systemUTC());
+    }
+
+    CohortCache(String dir, Duration ttl, String backend, String ontologyVersion, FileIo io, Clock clock) {
+        this.store = new FileEntryStore<>("cohort", Paths.get(dir).toAbsolutePath(), ".ids", Long.MAX_VALUE, ttl,
+                ids -> ids, io, clock);
+        this.backend = requireNonNull(backend);
+        this.ontologyVersion = requireNonNull(ontologyVersion);
+    }
+
+    private CohortCache() {
+        this.store = null;
+        this.backend = "";
+        this.ontologyVersion = "";
+    }
+
+    /**
+     * @return a cache that caches nothing
+     */
+    public static CohortCache disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return whether cohorts are cached
+     */
+    public boolean enabled() {
+        return store != null;
+    }
+
+    /**
+     * Calculates the version of an ontology from the files it consists of.
+     *
+     * @param files the files of the ontology
+     * @return the hex encoded hash of the contents of the files
+     * @throws IOException if a file can't be read
+     */
+    public static String ontologyVersion(List<Path> files) throws IOException {
+        MessageDigest digest = sha256();
+        for (Path file : files) {
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /**
+     * Calculates the key of a cohort definition.
+     *
+     * @param cohortDefinition the cohort definition
+     * @return the hex encoded hash of the canonical cohort definition, the backend and the ontology version
+     */
+    public String key(JsonNode cohortDefinition) {
+        String normalized = backend + "\n" + ontologyVersion + "\n" + canonical(cohortDefinition);
+        return HexFormat.of().formatHex(sha256().digest(normalized.getBytes(StandardCharsets.UTF_8)), 0, 16);
+    }
+
+    private static JsonNode canonical(JsonNode node) {
+        if (node instanceof ObjectNode object) {
+            Map<String, JsonNode> sorted = new TreeMap<>();
+            object.properties().forEach(field -> sorted.put(field.getKey(), canonical(field.getValue())));
+            ObjectNode result = JsonNodeFactory.instance.objectNode();
+            sorted.forEach(result::set);
+            return result;
+        }
+        if (node instanceof ArrayNode array) {
+            ArrayNode result = JsonNodeFactory.instance.arrayNode();
+            array.forEach(element -> result.add(canonical(element)));
+            return result;
+        }
+        return node;
+    }
+
+    /**
+     * Looks up the cached patient ids of a cohort.
+     * <p>
+     * Blocks while checking the entry, so it has to be called on a thread that may block.
+     *
+     * @param cohortDefinition the cohort definition
+     * @return the patient ids of the cached cohort, read on subscription, or empty if there is no unexpired entry
+     */
+    public Optional<Flux<String>> lookup(JsonNode cohortDefinition) {
+        if (!enabled()) {
+            return Optional.empty();
+        }
+        String key = key(cohortDefinition);
+        return store.lookup(key).map(hit -> {
+            logger.debug("Serve cohort from cache entry {} created at {}", key, hit.createdAt());
+            return hit.lines();
+        });
+    }
+
+    /**
+     * Opens a new entry for the patient ids of a cohort, which is stored once
+     * {@linkplain FileEntryStore.PendingEntry#commit() committed}.
+     *
+     * @param cohortDefinition the cohort definition
+     * @return the new entry
+     */
+    public Mono<FileEntryStore<List<String>>.PendingEntry> open(JsonNode cohortDefinition) {
+        return store.open(key(cohortDefinition));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package de.medizininformatikinitiative.torch.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import de.medizininformatikinitiative.torch.cql.CqlClient;
+import de.medizininformatikinitiative.torch.jobhandling.CohortCacheStatus;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl;
 import de.numcodex.sq2cql.Translator;
 import de.numcodex.sq2cql.model.structured_query.StructuredQuery;
@@ -12,39 +12,113 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
 
 
 /**
  * Runs the cohort query described by an {@link AnnotatedCrtdl} and returns the matching patient IDs.
  * <p>
+ * The patient IDs can be streamed as they arrive, so that large cohorts are never held in memory as a whole. With a
+ * {@link CohortCache}, the patient IDs of a cohort evaluated before are read from disk instead.
+ * <p>
  * Depending on {@code torch.useCql}, this either calls Flare or
  * translates the structured query to CQL and calls the CQL client.
  */
 public class CohortQueryService {
     private static final Logger logger = LoggerFactory.getLogger(CohortQueryService.class);
+    private static final int CACHE_WRITE_CHUNK = 1000;
     private final WebClient webClient;
     private final ObjectMapper objectMapper;
     private final CqlClient cqlClient;
     private final Translator cqlQueryTranslator;
     private final boolean useCql;
+    private final CohortCache cohortCache;
 
     public CohortQueryService(@Qualifier("flareClient") WebClient webClient,
                               Translator cqlQueryTranslator,
                               CqlClient cqlClient,
                               @Value("${torch.useCql}") boolean useCql
+    ) {
+        this(webClient, cqlQueryTranslator, cqlClient, useCql, CohortCache.disabled());
+    }
+
+    public CohortQueryService(WebClient webClient,
+                              Translator cqlQueryTranslator,
+                              CqlClient cqlClient,
+                              boolean useCql,
+                              CohortCache cohortCache
     ) {
         this.webClient = webClient;
         this.objectMapper = new ObjectMapper();
         this.cqlClient = cqlClient;
         this.useCql = useCql;
         this.cqlQueryTranslator = cqlQueryTranslator;
+        this.cohortCache = requireNonNull(cohortCache);
+    }
+
+    /**
+     * Patient IDs of a cohort.
+     *
+     * @param ids   the patient IDs, emitted as they arrive
+     * @param cache whether the patient IDs are served from the {@link CohortCache}, empty if the cache is disabled
+     */
+    public record Cohort(Flux<String> ids, Optional<CohortCacheStatus> cache) {
+
+        public Cohort {
+            requireNonNull(ids);
+            requireNonNull(cache);
+        }
+    }
+
+    /**
+     * Executes the cohort definition contained in the given {@link AnnotatedCrtdl}, serving the patient IDs from the
+     * {@link CohortCache} if the same cohort was evaluated before. Otherwise, the patient IDs are stored in the cache
+     * once the cohort query completed. A cached cohort removed between its lookup and reading it, because it
+     * expired, is evaluated again.
+     *
+     * @param crtdl annotated CRTDL containing a cohort definition (structured query)
+     * @return mono emitting the cohort, whose patient IDs are streamed on subscription
+     */
+    public Mono<Cohort> queryCohort(AnnotatedCrtdl crtdl) {
+        if (!cohortCache.enabled()) {
+            return Mono.just(new Cohort(streamCohortQuery(crtdl), Optional.empty()));
+        }
+        JsonNode definition = crtdl.cohortDefinition();
+        return Mono.fromCallable(() -> cohortCache.lookup(definition))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(cached -> cached
+                        // the file is opened on subscription, before any patient ID is emitted
+                        .map(ids -> new Cohort(ids.onErrorResume(NoSuchFileException.class, e -> {
+                            logger.debug("Cached cohort was removed, evaluate it again");
+                            return queryAndCache(crtdl);
+                        }), Optional.of(CohortCacheStatus.HIT)))
+                        .orElseGet(() -> new Cohort(queryAndCache(crtdl), Optional.of(CohortCacheStatus.MISS))));
+    }
+
+    private Flux<String> queryAndCache(AnnotatedCrtdl crtdl) {
+        return Flux.usingWhen(cohortCache.open(crtdl.cohortDefinition()),
+                entry -> streamCohortQuery(crtdl)
+                        .buffer(CACHE_WRITE_CHUNK)
+                        .concatMap(ids -> entry.append(ids).thenMany(Flux.fromIterable(ids))),
+                FileEntryStore.PendingEntry::commit,
+                (entry, e) -> entry.discard(),
+                FileEntryStore.PendingEntry::discard);
     }
 
     /**
@@ -54,38 +128,89 @@ public class CohortQueryService {
      * @return mono emitting the list of matching patient IDs
      */
     public Mono<List<String>> runCohortQuery(AnnotatedCrtdl crtdl) {
-        return useCql ? fetchPatientListUsingCql(crtdl) : fetchPatientListFromFlare(crtdl);
+        return streamCohortQuery(crtdl).collectList();
+    }
+
+    /**
+     * Executes the cohort definition contained in the given {@link AnnotatedCrtdl}, emitting the matching patient IDs
+     * as they arrive instead of collecting them first.
+     *
+     * @param crtdl annotated CRTDL containing a cohort definition (structured query)
+     * @return flux emitting the matching patient IDs
+     */
+    public Flux<String> streamCohortQuery(AnnotatedCrtdl crtdl) {
+        return useCql ? streamPatientIdsUsingCql(crtdl) : streamPatientIdsFromFlare(crtdl);
     }
 
     public Mono<List<String>> fetchPatientListFromFlare(AnnotatedCrtdl crtdl) {
-        return webClient.post()
-                .uri("/query/execute-cohort")
-                .contentType(MediaType.parseMediaType("application/sq+json"))
-                .bodyValue(crtdl.cohortDefinition().toString())
-                .retrieve()
-                .onStatus(status -> status.value() >= 400, ClientResponse::createException)
-                .bodyToMono(String.class)
-                .publishOn(Schedulers.boundedElastic())
-                .flatMap(response -> {
-                    try {
-                        List<String> list = objectMapper.readValue(response, new TypeReference<>() {
-                        });
-                        logger.debug("Got  {} patient IDs", list.size());
-                        return Mono.just(list);
-                    } catch (JsonProcessingException e) {
-                        logger.error("Error parsing response: {}", e.getMessage());
-                        return Mono.error(new RuntimeException("Error parsing response", e));
-                    }
+        return streamPatientIdsFromFlare(crtdl).collectList();
+    }
+
+    /**
+     * Executes the cohort definition with Flare, parsing the returned array of patient IDs while it is received.
+     *
+     * @param crtdl annotated CRTDL containing a cohort definition (structured query)
+     * @return flux emitting the matching patient IDs
+     */
+    public Flux<String> streamPatientIdsFromFlare(AnnotatedCrtdl crtdl) {
+        return Flux.defer(() -> {
+                    PatientIdArrayParser parser = newParser();
+                    AtomicInteger count = new AtomicInteger();
+                    return webClient.post()
+                            .uri("/query/execute-cohort")
+                            .contentType(MediaType.parseMediaType("application/sq+json"))
+                            .bodyValue(crtdl.cohortDefinition().toString())
+                            .retrieve()
+                            .onStatus(status -> status.value() >= 400, ClientResponse::createException)
+                            .bodyToFlux(DataBuffer.class)
+                            .concatMapIterable(buffer -> {
+                                try {
+                                    byte[] bytes = new byte[buffer.readableByteCount()];
+                                    buffer.read(bytes);
+                                    return parse(() -> parser.feed(bytes));
+                                } finally {
+                                    DataBufferUtils.release(buffer);
+                                }
+                            })
+                            .concatWith(Flux.defer(() -> Flux.fromIterable(parse(parser::complete))))
+                            .doOnNext(id -> count.incrementAndGet())
+                            .doOnComplete(() -> logger.debug("Got  {} patient IDs", count.get()));
                 })
                 .doOnSubscribe(subscription -> logger.debug("Fetching patient list from Flare"))
                 .doOnError(e -> logger.error("Error fetching patient list from Flare: {}", e.getMessage()));
     }
 
+    private PatientIdArrayParser newParser() {
+        try {
+            return new PatientIdArrayParser(objectMapper.getFactory());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<String> parse(IdChunk chunk) {
+        try {
+            return chunk.parse();
+        } catch (IOException e) {
+            logger.error("Error parsing response: {}", e.getMessage());
+            throw new RuntimeException("Error parsing response", e);
+        }
+    }
+
     public Mono<List<String>> fetchPatientListUsingCql(AnnotatedCrtdl crtdl) {
+        return streamPatientIdsUsingCql(crtdl).collectList();
+    }
+
+    /**
+     * Translates the cohort definition to CQL and evaluates it, emitting the matching patient IDs page by page.
+     *
+     * @param crtdl annotated CRTDL containing a cohort definition (structured query)
+     * @return flux emitting the matching patient IDs
+     */
+    public Flux<String> streamPatientIdsUsingCql(AnnotatedCrtdl crtdl) {
         return Mono.fromCallable(() -> objectMapper.treeToValue(crtdl.cohortDefinition(), StructuredQuery.class))
                 .map(ccdl -> cqlQueryTranslator.toCql(ccdl).print())
-                .flatMapMany(cqlClient::fetchPatientIds)
-                .collectList();
+                .flatMapMany(cqlClient::fetchPatientIds);
     }
 
     /**
@@ -104,4 +229,9 @@ public class CohortQueryService {
             }
         });
     }
+
+    @FunctionalInterface
+    private interface IdChunk {
+        List<String> parse() throws IOException;
+    }
 }
@@ -27,9 +27,11 @@ import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import reactor.util.retry.Retry;
 import reactor.util.retry.RetryBackoffSpec;
 
+import java.nio.file.NoSuchFileException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -83,16 +85,24 @@ public class DataStore {
     private final FhirContext fhirContext;
     private final int pageCount;
     private final Consumer<HttpHeaders> preferHeaderSetter;
+    private final SearchResponseCache cache;
+
+    public DataStore(WebClient client, FhirContext fhirContext, int pageCount, boolean disableAsync) {
+        this(client, fhirContext, pageCount, disableAsync, SearchResponseCache.disabled());
+    }
 
     @Autowired
     public DataStore(@Qualifier("fhirClient") WebClient client, FhirContext fhirContext,
                      @Value("${torch.fhir.page.count}") int pageCount,
-                     @Value("${torch.fhir.disable.async}") boolean disableAsync) {
+                     @Value("${torch.fhir.disable.async}") boolean disableAsync,
+                     SearchResponseCache cache) {
 
-        logger.info("Init DataStore with pageCount = {}, disableAsync = {}", pageCount, disableAsync);
+        logger.info("Init DataStore with pageCount = {}, disableAsync = {}, searchCache = {}", pageCount, disableAsync,
+                cache.enabled());
         this.client = requireNonNull(client);
         this.fhirContext = requireNonNull(fhirContext);
         this.pageCount = pageCount;
+        this.cache = requireNonNull(cache);
         preferHeaderSetter = disableAsync ? headers -> {
         } : headers -> headers.add("Prefer", "respond-async,return=representation");
     }
@@ -172,43 +182,59 @@ public class DataStore {
      * <p> All bundles that don't correspond to the given {@code resourceType} are ignored
      * and a warning about that event is logged.
      *
+     * <p> If the {@link SearchResponseCache} is enabled, the responses of a former execution of the same query are
+     * used instead of asking the server again. A cached response removed between its lookup and reading it, because
+     * it expired or was evicted, is fetched again. Use {@link #searchFresh(Query, Class)} for queries whose result has
+     * to reflect the current state of the server.
+     *
      * @param query        the fhir search query defined by the attribute group
      * @param resourceType the Type of the Bundle entries queried
      * @return the resources found
      */
     public <T extends Resource> Flux<T> search(Query query, Class<T> resourceType) {
+        if (!cache.enabled()) {
+            return searchFresh(query, resourceType);
+        }
+        Flux<Bundle> pages = Mono.fromCallable(() -> cache.lookup(query))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(cached -> cached
+                        .map(bodies -> bodies
+                                .map(body -> fhirContext.newJsonParser().parseResource(Bundle.class, body))
+                                // the file is opened on subscription, before any page is emitted
+                                .onErrorResume(NoSuchFileException.class, e -> {
+                                    logger.debug("Cached response of {} was removed, fetch it again", query);
+                                    return fetchAndCache(query);
+                                }))
+                        .orElseGet(() -> fetchAndCache(query)));
+        return resources(query, pages, resourceType);
+    }
+
+    private Flux<Bundle> fetchAndCache(Query query) {
+        return Flux.usingWhen(cache.open(query),
+                entry -> fetchPages(query).concatMap(page -> entry.append(page.body()).thenReturn(page.bundle())),
+                FileEntryStore.PendingEntry::commit,
+                (entry, e) -> entry.discard(),
+                FileEntryStore.PendingEntry::discard);
+    }
+
+    /**
+     * Executes {@code query} against the server, bypassing the {@link SearchResponseCache}, and returns all resources
+     * found.
+     *
+     * @param query        the fhir search query
+     * @param resourceType the Type of the Bundle entries queried
+     * @return the resources found
+     */
+    public <T extends Resource> Flux<T> searchFresh(Query query, Class<T> resourceType) {
+        return resources(query, fetchPages(query).map(Page::bundle), resourceType);
+    }
+
+    private <T extends Resource> Flux<T> resources(Query query, Flux<Bundle> pages, Class<T> resourceType) {
         var start = System.nanoTime();
         var queryId = UUID.randomUUID();
         var counter = new AtomicInteger();
 
-        return client.post()
-                .uri("/" + query.type() + "/_search")
-                .header("Prefer", "handling=strict")
-                .contentType(APPLICATION_FORM_URLENCODED)
-                .bodyValue(query.params()
-                        .appendParam("_count", stringValue(Integer.toString(pageCount)))
-                        .toString())
-                .retrieve()
-                .bodyToMono(String.class)
-                .retryWhen(RETRY_SPEC) // retry first page
-                .map(body -> fhirContext.newJsonParser().parseResource(body))
-                .flatMap(resource -> {
-                    if (resource instanceof Bundle bundle) {
-                        return Mono.just(bundle);
-                    }
-                    if (resource instanceof OperationOutcome outcome) {
-                        logger.error("DATASTORE_01 FHIR server returned OperationOutcome: {}", fhirContext.newJsonParser().encodeResourceToString(outcome));
-                        return Mono.error(new DataStoreException(
-                                "OperationOutcome returned: " + outcome.getIssue()));
-                    }
-                    return Mono.error(new DataStoreException(
-                            "Unexpected resource type: " + resource.getClass()));
-                })
-                .expand(bundle ->
-                        Optional.ofNullable(bundle.getLink("next"))
-                                .map(link -> fetchPage(link.getUrl()))
-                                .orElse(Mono.empty())
-                )
+        return pages
                 .flatMap(bundle ->
                         Flux.fromStream(
                                 bundle.getEntry()
@@ -233,7 +259,41 @@ public class DataStore {
                 ).doOnError(e -> logger.error("DATASTORE_02 Error while executing resource query `{}`: {}", query, e.getMessage()));
     }
 
-    private Mono<Bundle> fetchPage(String url) {
+    /**
+     * Fetches all pages of {@code query}, keeping the raw bodies for the {@link SearchResponseCache}.
+     */
+    private Flux<Page> fetchPages(Query query) {
+        return client.post()
+                .uri("/" + query.type() + "/_search")
+                .header("Prefer", "handling=strict")
+                .contentType(APPLICATION_FORM_URLENCODED)
+                .bodyValue(query.params()
+                        .appendParam("_count", stringValue(Integer.toString(pageCount)))
+                        .toString())
+                .retrieve()
+                .bodyToMono(String.class)
+                .retryWhen(RETRY_SPEC) // retry first page
+                .flatMap(body -> {
+                    var resource = fhirContext.newJsonParser().parseResource(body);
+                    if (resource instanceof Bundle bundle) {
+                        return Mono.just(new Page(body, bundle));
+                    }
+                    if (resource instanceof OperationOutcome outcome) {
+                        logger.error("DATASTORE_01 FHIR server returned OperationOutcome: {}", fhirContext.newJsonParser().encodeResourceToString(outcome));
+                        return Mono.error(new DataStoreException(
+                                "OperationOutcome returned: " + outcome.getIssue()));
+                    }
+                    return Mono.error(new DataStoreException(
+                            "Unexpected resource type: " + resource.getClass()));
+                })
+                .expand(page ->
+                        Optional.ofNullable(page.bundle().getLink("next"))
+                                .map(link -> fetchPage(link.getUrl()))
+                                .orElse(Mono.empty())
+                );
+    }
+
+    private Mono<Page> fetchPage(String url) {
         logger.trace("Fetch page {}", url);
 
         return client.get()
@@ -242,7 +302,7 @@ public class DataStore {
                 .bodyToMono(String.class)
                 .retryWhen(RETRY_SPEC) // retry this page only
                 .map(body ->
-                        fhirContext.newJsonParser().parseResource(Bundle.class, body)
+                        new Page(body, fhirContext.newJsonParser().parseResource(Bundle.class, body))
                 );
     }
 
@@ -448,6 +508,9 @@ public class DataStore {
         return chunks;
     }
 
+    private record Page(String body, Bundle bundle) {
+    }
+
     private static class AsyncException extends Exception {
 
         private final String statusUrl;
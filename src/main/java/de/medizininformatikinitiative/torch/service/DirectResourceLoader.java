@@ -1,18 +1,27 @@
 package de.medizininformatikinitiative.torch.service;
 
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.config.BatchProcessingProperties;
 import de.medizininformatikinitiative.torch.consent.ConsentValidator;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
 import de.medizininformatikinitiative.torch.diagnostics.MustHaveEvaluation;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.BatchExclusions;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionStage;
 import de.medizininformatikinitiative.torch.exceptions.MustHaveViolatedException;
 import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
+import de.medizininformatikinitiative.torch.model.consent.ConsentWindow;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
 import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
+import de.medizininformatikinitiative.torch.model.consent.Period;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
 import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
 import de.medizininformatikinitiative.torch.model.mapping.DseMappingTreeBase;
+import de.medizininformatikinitiative.torch.model.sq.Comparator;
+import de.medizininformatikinitiative.torch.util.BatchCheckpoint;
 import de.medizininformatikinitiative.torch.util.ProfileMustHaveChecker;
 import de.medizininformatikinitiative.torch.util.ResourceUtils;
 import org.hl7.fhir.r4.model.DomainResource;
@@ -23,14 +32,19 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.dateValue;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -45,16 +59,24 @@ public class DirectResourceLoader {
     private final ConsentValidator consentValidator;
     private final DseMappingTreeBase dseMappingTreeBase;
     private final ProfileMustHaveChecker profileMustHaveChecker;
+    private final FhirContext fhirContext;
+    private final boolean lazyDecode;
+    private final int consentWindows;
 
     @Autowired
     public DirectResourceLoader(DataStore dataStore,
                                 DseMappingTreeBase dseMappingTreeBase,
                                 ProfileMustHaveChecker profileMustHaveChecker,
-                                ConsentValidator validator) {
+                                ConsentValidator validator,
+                                FhirContext fhirContext,
+                                BatchProcessingProperties batchProperties) {
         this.dataStore = requireNonNull(dataStore);
         this.consentValidator = requireNonNull(validator);
         this.dseMappingTreeBase = requireNonNull(dseMappingTreeBase);
         this.profileMustHaveChecker = requireNonNull(profileMustHaveChecker);
+        this.fhirContext = requireNonNull(fhirContext);
+        this.lazyDecode = batchProperties.lazyDecode();
+        this.consentWindows = batchProperties.consentWindows();
     }
 
     /**
@@ -67,20 +89,70 @@ public class DirectResourceLoader {
     public Mono<PatientBatchWithConsent> directLoadPatientCompartment(
             List<AnnotatedAttributeGroup> attributeGroups,
             PatientBatchWithConsent batch) {
+        return directLoadPatientCompartment(attributeGroups, batch, BatchCheckpoint.disabled());
+    }
+
+    /**
+     * Extracts resources grouped by Patient ID for a given batch, restoring attribute groups loaded by an earlier
+     * attempt of the batch from its checkpoint and saving every further group loaded.
+     *
+     * @param attributeGroups CRTDL to be applied on batch
+     * @param batch           Batch of Patient IDs
+     * @param checkpoint      checkpoint of the batch
+     * @return Mono containing processed PatientBatchWithConsent
+     */
+    public Mono<PatientBatchWithConsent> directLoadPatientCompartment(
+            List<AnnotatedAttributeGroup> attributeGroups,
+            PatientBatchWithConsent batch,
+            BatchCheckpoint checkpoint) {
+        return directLoadPatientCompartment(attributeGroups, batch, checkpoint, SharedSearches.disabled());
+    }
+
+    /**
+     * Extracts resources grouped by Patient ID for a given batch, restoring attribute groups from the checkpoint of
+     * the batch and serving the searches of the groups from the results an earlier stage of the batch shared.
+     *
+     * @param attributeGroups CRTDL to be applied on batch
+     * @param batch           Batch of Patient IDs
+     * @param checkpoint      checkpoint of the batch
+     * @param searches        the shared searches of the batch
+     * @return Mono containing processed PatientBatchWithConsent
+     */
+    public Mono<PatientBatchWithConsent> directLoadPatientCompartment(
+            List<AnnotatedAttributeGroup> attributeGroups,
+            PatientBatchWithConsent batch,
+            BatchCheckpoint checkpoint,
+            SharedSearches searches) {
 
         logger.trace("Starting collectResourcesByPatientReference");
         logger.trace("Patients Received: {}", batch);
 
-        return processBatchWithConsent(attributeGroups, batch);
+        return processBatchWithConsent(attributeGroups, batch, checkpoint, searches);
+    }
+
+    /**
+     * Returns the searches a direct load of the attribute groups runs, without the compartment param of the batch.
+     * <p>
+     * Earlier stages of a batch share their searches with these, see {@link SharedSearches}.
+     *
+     * @param attributeGroups the patient compartment attribute groups
+     * @return the searches of the groups
+     */
+    public List<Query> patientCompartmentQueries(List<AnnotatedAttributeGroup> attributeGroups) {
+        return attributeGroups.stream()
+                .flatMap(group -> group.queries(dseMappingTreeBase, group.resourceType()).stream())
+                .toList();
     }
 
     private Mono<PatientBatchWithConsent> processBatchWithConsent(
             List<AnnotatedAttributeGroup> attributeGroups,
-            PatientBatchWithConsent patientBatchWithConsent) {
+            PatientBatchWithConsent patientBatchWithConsent,
+            BatchCheckpoint checkpoint,
+            SharedSearches searches) {
 
         Set<String> safeSet = new ConcurrentSkipListSet<>(patientBatchWithConsent.patientBatch().ids());
 
-        return processPatientAttributeGroups(attributeGroups, patientBatchWithConsent, safeSet)
+        return processPatientAttributeGroups(attributeGroups, patientBatchWithConsent, safeSet, checkpoint, searches)
                 .doOnNext(__ -> {
                     logger.debug("{} out of {} patients passed checks",
                             safeSet.size(),
@@ -95,14 +167,43 @@ public class DirectResourceLoader {
     }
 
     Flux<DomainResource> executeQueryWithBatch(PatientBatch batch, Query query) {
+        return executeQueryWithBatch(batch, query, SharedSearches.disabled());
+    }
+
+    private Flux<DomainResource> executeQueryWithBatch(PatientBatch batch, Query query, SharedSearches searches) {
         logger.debug("Execute query {} over {} patients", query, batch.ids().size());
-        return dataStore.search(
-                Query.of(
-                        query.type(),
-                        batch.compartmentSearchParam(query.type()).appendParams(query.params())
-                ),
-                DomainResource.class
-        );
+        return searches.searchShared(dataStore, batch, query);
+    }
+
+    /**
+     * Executes a query over the batch, restricted to the consent windows of its patients if enabled.
+     * <p>
+     * The patients are grouped into windows enclosing their consented periods and each window is searched for
+     * resources dated within it only, using the date search param of the consent date of the resource type. The
+     * consent of each resource is still checked afterward. Queries served from shared search results aren't
+     * restricted.
+     */
+    private Flux<DomainResource> executeQueryWithConsentWindows(PatientBatchWithConsent batch, Query query,
+                                                                SharedSearches searches) {
+        Optional<String> dateParam = consentWindows > 0 && batch.applyConsent() && !searches.hasShared(query)
+                ? consentValidator.dateSearchParam(query.type())
+                : Optional.empty();
+        if (dateParam.isEmpty()) {
+            return executeQueryWithBatch(batch.patientBatch(), query, searches);
+        }
+        Map<String, NonContinuousPeriod> consents = new HashMap<>();
+        batch.bundles().forEach((patientId, bundle) -> consents.put(patientId, bundle.consentPeriods()));
+        return Flux.fromIterable(ConsentWindow.of(consents, consentWindows))
+                .concatMap(window -> executeQueryWithBatch(
+                        new PatientBatch(window.patientIds(), batch.id(), batch.diagnostics()),
+                        withinWindow(query, dateParam.get(), window.period()),
+                        searches));
+    }
+
+    private static Query withinWindow(Query query, String dateParam, Period window) {
+        return Query.of(query.type(), query.params()
+                .appendParam(dateParam, dateValue(Comparator.GREATER_EQUAL, window.start()))
+                .appendParam(dateParam, dateValue(Comparator.LESS_EQUAL, window.end())));
     }
 
     private Mono<DomainResource> applyConsent(DomainResource resource,
@@ -129,15 +230,70 @@ public class DirectResourceLoader {
             List<AnnotatedAttributeGroup> groups,
             PatientBatchWithConsent batch,
             Set<String> safeSet) {
+        return processPatientAttributeGroups(groups, batch, safeSet, BatchCheckpoint.disabled(),
+                SharedSearches.disabled());
+    }
+
+    private Mono<PatientBatchWithConsent> processPatientAttributeGroups(
+            List<AnnotatedAttributeGroup> groups,
+            PatientBatchWithConsent batch,
+            Set<String> safeSet,
+            BatchCheckpoint checkpoint,
+            SharedSearches searches) {
 
         logger.debug("Process {} patient attribute groups over {} patients...",
                 groups.size(), batch.patientBatch().ids().size());
 
-        return Flux.fromIterable(groups)
-                .concatMap(group -> processPatientSingleAttributeGroup(group, batch, safeSet))
+        return Flux.range(0, groups.size())
+                .concatMap(index -> restorePatientAttributeGroup(index, groups.get(index), batch, safeSet, checkpoint)
+                        .switchIfEmpty(Mono.defer(() ->
+                                processPatientSingleAttributeGroup(groups.get(index), batch, safeSet, searches)
+                                        .flatMap(loaded -> savePatientAttributeGroup(index, groups.get(index),
+                                                loaded, safeSet, checkpoint)))))
                 .then().thenReturn(batch);
     }
 
+    /**
+     * Restores an attribute group loaded by an earlier attempt of the batch into the patient bundles.
+     *
+     * @return the batch, or empty if the group has no checkpoint
+     */
+    private Mono<PatientBatchWithConsent> restorePatientAttributeGroup(int index,
+                                                                       AnnotatedAttributeGroup group,
+                                                                       PatientBatchWithConsent batch,
+                                                                       Set<String> safeSet,
+                                                                       BatchCheckpoint checkpoint) {
+        if (!checkpoint.enabled()) {
+            return Mono.empty();
+        }
+        return Mono.fromCallable(() -> checkpoint.restoreGroup(index, group.id()).orElse(null))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(loaded -> {
+                    loaded.resources().forEach(resource -> {
+                        PatientResourceBundle bundle = batch.bundles().get(resource.patientId());
+                        if (bundle != null) {
+                            put(bundle.bundle(), resource.resource(), group.id(), resource.valid());
+                        }
+                    });
+                    safeSet.retainAll(loaded.safe());
+                    logger.debug("Restored patient attribute group {} from checkpoint", group.id());
+                    return batch;
+                });
+    }
+
+    private Mono<PatientBatchWithConsent> savePatientAttributeGroup(int index,
+                                                                    AnnotatedAttributeGroup group,
+                                                                    PatientBatchWithConsent batch,
+                                                                    Set<String> safeSet,
+                                                                    BatchCheckpoint checkpoint) {
+        if (!checkpoint.enabled()) {
+            return Mono.just(batch);
+        }
+        return Mono.fromRunnable(() -> checkpoint.saveGroup(index, group.id(), batch, safeSet))
+                .subscribeOn(Schedulers.boundedElastic())
+                .thenReturn(batch);
+    }
+
     public Mono<ResourceBundle> processCoreAttributeGroups(
             List<AnnotatedAttributeGroup> attributeGroups,
             ResourceBundle coreResourceBundle,
@@ -168,7 +324,7 @@ public class DirectResourceLoader {
                                 ResourceUtils.getRelativeURL(resource).toRelativeUrl(), v.firstViolated().attributeRef());
                     }
 
-                    resourceBundle.put(resource, group.id(), valid);
+                    put(resourceBundle, resource, group.id(), valid);
                     return Mono.empty();
                 })
                 .then(Mono.defer(() -> {
@@ -181,6 +337,21 @@ public class DirectResourceLoader {
                 }));
     }
 
+    /**
+     * Adds a loaded resource to the bundle, encoded if lazy decoding is enabled.
+     */
+    private void put(ResourceBundle bundle, DomainResource resource, String groupId, boolean valid) {
+        if (lazyDecode) {
+            try {
+                bundle.put(EncodedResource.encode(resource, fhirContext), groupId, valid);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring resource {} without usable id", resource.getId());
+            }
+        } else {
+            bundle.put(resource, groupId, valid);
+        }
+    }
+
     private static ResourceWithPatientId extractPatientId(DomainResource resource) {
         try {
             return new ResourceWithPatientId(resource, ResourceUtils.patientId(resource));
@@ -200,14 +371,16 @@ public class DirectResourceLoader {
     /**
      * Fetches all resources for a single attribute group in a batch and adds them to the patient bundles.
      *
-     * @param group   Annotated Attribute Group to be processed
-     * @param batch   patient batch containing the PatientResourceBundles to be filled
-     * @param safeSet patients that have survived must-have checks so far
+     * @param group    Annotated Attribute Group to be processed
+     * @param batch    patient batch containing the PatientResourceBundles to be filled
+     * @param safeSet  patients that have survived must-have checks so far
+     * @param searches the shared searches of the batch
      * @return Patient batch containing a bundle per Patient Resource
      */
     private Mono<PatientBatchWithConsent> processPatientSingleAttributeGroup(AnnotatedAttributeGroup group,
                                                                              PatientBatchWithConsent batch,
-                                                                             Set<String> safeSet) {
+                                                                             Set<String> safeSet,
+                                                                             SharedSearches searches) {
         logger.debug("Process patient attribute group {}...", group.id());
 
         Set<String> safeGroup = new HashSet<>();
@@ -221,10 +394,14 @@ public class DirectResourceLoader {
         }
 
         Map<String, PatientResourceBundle> mutableBundles = batch.bundles();
+        AtomicLong downloaded = new AtomicLong();
+        AtomicLong consented = new AtomicLong();
 
         var resourceFlux = groupQueries(group)
-                .concatMap(query -> executeQueryWithBatch(batch.patientBatch(), query))
-                .concatMap(resource -> applyConsent(resource, batch, group));
+                .concatMap(query -> executeQueryWithConsentWindows(batch, query, searches))
+                .doOnNext(resource -> downloaded.incrementAndGet())
+                .concatMap(resource -> applyConsent(resource, batch, group))
+                .doOnNext(resource -> consented.incrementAndGet());
 
         if (AnnotatedAttributeGroup.PATIENT.equals(group.resourceType())) {
             String targetProfile = group.groupReference();
@@ -248,15 +425,15 @@ public class DirectResourceLoader {
 
                     // Not applicable (profile mismatch etc.) -> not counted as must-have failure
                     if (eval instanceof MustHaveEvaluation.NotApplicable) {
-                        bundle.put(tuple.resource, group.id(), false);
+                        put(bundle.bundle(), tuple.resource, group.id(), false);
                         return;
                     }
 
                     if (eval instanceof MustHaveEvaluation.Fulfilled) {
                         safeGroup.add(tuple.patientId);
-                        bundle.put(tuple.resource, group.id(), true);
+                        put(bundle.bundle(), tuple.resource, group.id(), true);
                     } else if (eval instanceof MustHaveEvaluation.Violated v) {
-                        bundle.put(tuple.resource, group.id(), false);
+                        put(bundle.bundle(), tuple.resource, group.id(), false);
                         batch.batchExclusions().addMustHaveExclusion(group.id(),
                                 ResourceUtils.getRelativeURL(tuple.resource).toRelativeUrl(), v.firstViolated().attributeRef(),
                                 tuple.patientId);
@@ -272,6 +449,10 @@ public class DirectResourceLoader {
                         }
                     }
                     safeSet.retainAll(safeGroup);
+                    batch.diagnostics().batchDetails().record(BatchMeasurement.DIRECT_LOAD_DOWNLOADED_RESOURCES,
+                            downloaded.get());
+                    batch.diagnostics().batchDetails().record(BatchMeasurement.DIRECT_LOAD_CONSENTED_RESOURCES,
+                            consented.get());
                 })).thenReturn(new PatientBatchWithConsent(
                         mutableBundles,
                         batch.applyConsent(),
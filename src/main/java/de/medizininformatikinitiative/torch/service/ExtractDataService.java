@@ -1,47 +1,68 @@
 package de.medizininformatikinitiative.torch.service;
 
+import de.medizininformatikinitiative.torch.config.BatchProcessingProperties;
+import de.medizininformatikinitiative.torch.config.CoreProcessingProperties;
 import de.medizininformatikinitiative.torch.config.TorchProperties;
 import de.medizininformatikinitiative.torch.consent.ConsentHandler;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAudit;
 import de.medizininformatikinitiative.torch.diagnostics.PipelineStage;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.BatchExclusions;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionStage;
 import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.exceptions.MustHaveViolatedException;
+import de.medizininformatikinitiative.torch.jobhandling.BatchPipeline;
 import de.medizininformatikinitiative.torch.jobhandling.BatchState;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchSelection;
+import de.medizininformatikinitiative.torch.jobhandling.result.CorePartition;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardOutcome;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
 import de.medizininformatikinitiative.torch.management.CompartmentManager;
 import de.medizininformatikinitiative.torch.management.ProcessedGroupFactory;
 import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.model.extraction.SpilledExtractionBundle;
 import de.medizininformatikinitiative.torch.model.management.GroupsToProcess;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceGroup;
+import de.medizininformatikinitiative.torch.util.BatchCheckpoint;
+import de.medizininformatikinitiative.torch.util.BatchCheckpointStore;
+import de.medizininformatikinitiative.torch.util.DiskResourceStore;
+import de.medizininformatikinitiative.torch.util.ResourceUtils;
 import de.medizininformatikinitiative.torch.util.ResultFileManager;
+import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -51,7 +72,10 @@ import static java.util.Objects.requireNonNull;
  * Extraction pipeline for TORCH.
  *
  * <p>Provides batch processing via {@link #processBatch(BatchSelection)} and core processing
- * via {@link #processCore(Job, ExtractionResourceBundle)}.
+ * via {@link #processCore(Job, ExtractionResourceBundle)}, or sharded via
+ * {@link #partitionCore(Job, ExtractionResourceBundle, int)}, {@link #processCoreShard(Job, int, ExtractionResourceBundle)}
+ * and {@link #reconcileCoreShards(UUID, List)}. With incremental core processing, the core resources referenced by
+ * finished batches are staged by {@link #stageCore(UUID, UUID, ExtractionResourceBundle)} ahead of the core phase.
  *
  * <p>Diagnostics are collected through {@link BatchExclusions} and the resource-inclusion counts
  * in {@link de.medizininformatikinitiative.torch.diagnostics.BatchDetails} on the happy path.
@@ -80,6 +104,10 @@ public class ExtractDataService {
     private final PostCascadeMustHaveChecker postCascadeMustHaveChecker;
     private final TorchProperties torchProperties;
     private final CompartmentManager compartmentManager;
+    private final CoreProcessingProperties coreProperties;
+    private final BatchProcessingProperties batchProperties;
+    private final BatchPipeline pipeline;
+    private final BatchCheckpointStore checkpoints;
 
     public ExtractDataService(ResultFileManager resultFileManager,
                               ProcessedGroupFactory processedGroupFactory,
@@ -92,7 +120,32 @@ public class ExtractDataService {
                               DataStore dataStore,
                               PostCascadeMustHaveChecker postCascadeMustHaveChecker,
                               TorchProperties torchProperties,
-                              CompartmentManager compartmentManager) {
+                              CompartmentManager compartmentManager,
+                              CoreProcessingProperties coreProperties,
+                              BatchProcessingProperties batchProperties) {
+        this(resultFileManager, processedGroupFactory, directResourceLoader, referenceResolver, batchCopierRedacter,
+                cascadingDelete, writer, consentHandler, dataStore, postCascadeMustHaveChecker, torchProperties,
+                compartmentManager, coreProperties, batchProperties, BatchPipeline.disabled(),
+                BatchCheckpointStore.disabled());
+    }
+
+    @Autowired
+    public ExtractDataService(ResultFileManager resultFileManager,
+                              ProcessedGroupFactory processedGroupFactory,
+                              DirectResourceLoader directResourceLoader,
+                              ReferenceResolver referenceResolver,
+                              BatchCopierRedacter batchCopierRedacter,
+                              CascadingDelete cascadingDelete,
+                              PatientBatchToCoreBundleWriter writer,
+                              ConsentHandler consentHandler,
+                              DataStore dataStore,
+                              PostCascadeMustHaveChecker postCascadeMustHaveChecker,
+                              TorchProperties torchProperties,
+                              CompartmentManager compartmentManager,
+                              CoreProcessingProperties coreProperties,
+                              BatchProcessingProperties batchProperties,
+                              BatchPipeline pipeline,
+                              BatchCheckpointStore checkpoints) {
         this.resultFileManager = requireNonNull(resultFileManager);
         this.processedGroupFactory = requireNonNull(processedGroupFactory);
         this.directResourceLoader = requireNonNull(directResourceLoader);
@@ -105,6 +158,10 @@ public class ExtractDataService {
         this.postCascadeMustHaveChecker = requireNonNull(postCascadeMustHaveChecker);
         this.torchProperties = requireNonNull(torchProperties);
         this.compartmentManager = requireNonNull(compartmentManager);
+        this.coreProperties = requireNonNull(coreProperties);
+        this.batchProperties = requireNonNull(batchProperties);
+        this.pipeline = requireNonNull(pipeline);
+        this.checkpoints = requireNonNull(checkpoints);
     }
 
     private static void logMemory(UUID id) {
@@ -124,6 +181,15 @@ public class ExtractDataService {
                 available / (1024 * 1024));
     }
 
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void recordHeap(BatchDiagnostics diagnostics) {
+        diagnostics.batchDetails().record(BatchMeasurement.PEAK_HEAP_BYTES, usedHeap());
+    }
+
     /**
      * Processes a single batch of a job.
      *
@@ -133,6 +199,13 @@ public class ExtractDataService {
      * <p>If {@code torch.disableConsentCalculation} is set, consent resolution is skipped entirely
      * and every patient in the batch is treated as fully consented.
      *
+     * <p>Consent fetch, direct load and reference resolve run in the {@link BatchPipeline.Stage#FETCH} stage, the
+     * remaining steps in the {@link BatchPipeline.Stage#TRANSFORM} stage of the {@link BatchPipeline}.
+     *
+     * <p>With {@code torch.batch.checkpoint}, the consent, every directly loaded attribute group and the resolved
+     * batch are saved to the {@link BatchCheckpoint} of the batch. A retried or restarted batch resumes from its last
+     * completed stage, and the checkpoints are removed by {@link #deleteCheckpoint} once the batch result is stored.
+     *
      * @param selection identifies the job and batch to process
      * @return mono emitting the resulting {@link BatchResult}, or an error
      */
@@ -142,20 +215,49 @@ public class ExtractDataService {
         BatchState batchState = selection.batchState();
         PatientBatch batch = selection.batch();
         UUID jobId = selection.job().id();
+        BatchCheckpoint checkpoint = checkpoints.open(jobId.toString(), batch);
 
-        Mono<PatientBatchWithConsent> unconsented = Mono.just(PatientBatchWithConsent.fromBatch(batch));
-        Mono<PatientBatchWithConsent> batchWithConsent = torchProperties.disableConsentCalculation() ? unconsented :
-                executeAndMeasureAsync(PipelineStage.CONSENT_FETCH, batch.diagnostics(), () ->
-                        crtdl.consentCodes()
-                                .map(code -> consentHandler.fetchAndBuildConsentInfo(code, batch))
-                                .orElse(unconsented)
-                                .onErrorResume(ConsentViolatedException.class, ex -> {
-                                    logger.warn("Batch {} skipped: no consenting patients", batch.batchId());
-                                    return Mono.empty();
-                                }));
+        return restore(checkpoint, checkpoint::restoreResolved)
+                .flatMap(resolved -> {
+                    logger.debug("Batch {} resumes from its resolved checkpoint", batch.batchId());
+                    return pipeline.batch(pipeline.stage(BatchPipeline.Stage.TRANSFORM, batch.diagnostics(), () ->
+                            batchProperties.streamsPatients()
+                                    ? streamBatch(StreamSource.of(resolved, batch.diagnostics()), jobId, groupsToProcess,
+                                    batchState)
+                                    : transformAndWriteBatch(resolved, batch.diagnostics(), jobId, groupsToProcess,
+                                    batchState)));
+                })
+                .switchIfEmpty(Mono.defer(() ->
+                        processBatch(crtdl, groupsToProcess, batchState, batch, jobId, checkpoint)));
+    }
 
-        return batchWithConsent
-                .flatMap(bwc -> processBatchAfterConsent(bwc, jobId, groupsToProcess, batchState))
+    /**
+     * Removes the checkpoints of a batch once its result is stored, so that a batch whose result got lost resumes
+     * from its checkpoints.
+     *
+     * @param jobId   the job id
+     * @param batchId the batch id
+     * @return a {@link Mono} completing once the checkpoints are removed
+     */
+    public Mono<Void> deleteCheckpoint(UUID jobId, UUID batchId) {
+        return Mono.<Void>fromRunnable(() -> checkpoints.delete(jobId.toString(), batchId))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Mono<BatchResult> processBatch(AnnotatedCrtdl crtdl,
+                                           GroupsToProcess groupsToProcess,
+                                           BatchState batchState,
+                                           PatientBatch batch,
+                                           UUID jobId,
+                                           BatchCheckpoint checkpoint) {
+        SharedSearches searches = sharedSearches(groupsToProcess, batch);
+        Mono<PatientBatchWithConsent> fetched = pipeline.stage(BatchPipeline.Stage.FETCH, batch.diagnostics(), () ->
+                fetchConsent(crtdl, batch, checkpoint, searches)
+                        .flatMap(bwc -> loadAndResolve(bwc, groupsToProcess, checkpoint, searches)));
+
+        return pipeline.batch(fetched
+                .flatMap(loaded -> pipeline.stage(BatchPipeline.Stage.TRANSFORM, loaded.diagnostics(), () ->
+                        transformAndWrite(loaded, jobId, groupsToProcess, batchState, checkpoint)))
                 .switchIfEmpty(writeConsentAudit(jobId.toString(), batch.batchId(), batch.diagnostics().consentAudit())
                         .subscribeOn(Schedulers.boundedElastic())
                         .then(Mono.fromSupplier(() ->
@@ -167,9 +269,71 @@ public class ExtractDataService {
                                     Optional.of(batch.diagnostics()),
                                     List.of(Issue.simple(
                                             Severity.WARNING,
-                                            "Batch " + selection.batchState().batchId() + " skipped because of no consenting patients"
+                                            "Batch " + batchState.batchId() + " skipped because of no consenting patients"
                                     ))
-                            ))));
+                            )))));
+    }
+
+    /**
+     * Creates the shared searches of a batch, letting the consent fetch share its searches with the direct load if
+     * enabled.
+     */
+    private SharedSearches sharedSearches(GroupsToProcess groupsToProcess, PatientBatch batch) {
+        if (!batchProperties.shareSearches()) {
+            return SharedSearches.disabled();
+        }
+        return SharedSearches.of(
+                directResourceLoader.patientCompartmentQueries(groupsToProcess.directPatientCompartmentGroups()),
+                batch.diagnostics().batchDetails());
+    }
+
+    private Mono<PatientBatchWithConsent> fetchConsent(AnnotatedCrtdl crtdl, PatientBatch batch, BatchCheckpoint checkpoint,
+                                                       SharedSearches searches) {
+        Mono<PatientBatchWithConsent> unconsented = Mono.just(PatientBatchWithConsent.fromBatch(batch));
+        if (torchProperties.disableConsentCalculation()) {
+            return unconsented;
+        }
+        Mono<PatientBatchWithConsent> restored = crtdl.consentCodes().isPresent()
+                ? restore(checkpoint, () -> checkpoint.restoreConsent(batch))
+                : Mono.empty();
+        return restored.switchIfEmpty(Mono.defer(() ->
+                executeAndMeasureAsync(PipelineStage.CONSENT_FETCH, batch.diagnostics(), () ->
+                        crtdl.consentCodes()
+                                .map(code -> consentHandler.fetchAndBuildConsentInfo(code, batch, searches)
+                                        .flatMap(consented -> withCheckpoint(checkpoint, consented,
+                                                () -> checkpoint.saveConsent(consented))))
+                                .orElse(unconsented)
+                                .onErrorResume(ConsentViolatedException.class, ex -> {
+                                    logger.warn("Batch {} skipped: no consenting patients", batch.batchId());
+                                    return Mono.empty();
+                                }))));
+    }
+
+    /**
+     * Restores a stage from the checkpoint, reading it off the calling thread.
+     *
+     * @return the restored stage, or empty if it has no checkpoint or checkpoints are disabled
+     */
+    private static <T> Mono<T> restore(BatchCheckpoint checkpoint, Supplier<Optional<T>> restore) {
+        if (!checkpoint.enabled()) {
+            return Mono.empty();
+        }
+        return Mono.fromCallable(() -> restore.get().orElse(null))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Runs an action on the checkpoint off the calling thread, if checkpoints are enabled.
+     *
+     * @return the given value once the action is done
+     */
+    private static <T> Mono<T> withCheckpoint(BatchCheckpoint checkpoint, T value, Runnable action) {
+        if (!checkpoint.enabled()) {
+            return Mono.just(value);
+        }
+        return Mono.fromRunnable(action)
+                .subscribeOn(Schedulers.boundedElastic())
+                .thenReturn(value);
     }
 
     private <T> Mono<T> executeAndMeasureAsync(PipelineStage stage, BatchDiagnostics diagnostics, Supplier<Mono<T>> f) {
@@ -177,6 +341,7 @@ public class ExtractDataService {
         return f.get().doOnNext(batch -> {
             long elapsed = System.nanoTime() - start;
             diagnostics.batchDetails().nanosElapsed().put(stage, elapsed);
+            recordHeap(diagnostics);
         });
     }
 
@@ -186,6 +351,7 @@ public class ExtractDataService {
 
         long elapsed = System.nanoTime() - start;
         diagnostics.batchDetails().nanosElapsed().put(stage, elapsed);
+        recordHeap(diagnostics);
 
         return batch;
     }
@@ -195,6 +361,7 @@ public class ExtractDataService {
         f.run();
         long elapsed = System.nanoTime() - start;
         diagnostics.batchDetails().nanosElapsed().put(stage, elapsed);
+        recordHeap(diagnostics);
     }
 
     private static void recordResourceInclusions(BatchDiagnostics diagnostics, Map<String, Integer> counts) {
@@ -202,34 +369,63 @@ public class ExtractDataService {
     }
 
     /**
-     * Continues batch processing once consent has been resolved.
+     * Loads the patient compartment resources of a batch once consent has been resolved and resolves their
+     * references.
      *
      * @param batch           consent-filtered batch
-     * @param jobId           owning job id
      * @param groupsToProcess processed group set derived from the CRTDL
-     * @param batchState      state snapshot to update in the returned {@link BatchResult}
-     * @return mono emitting a finished {@link BatchResult}, or error on failure
+     * @param checkpoint      checkpoint of the batch restoring and saving the directly loaded attribute groups
+     * @param searches        the shared searches of the batch
+     * @return mono emitting the loaded batch, or error on failure
      */
-    private Mono<BatchResult> processBatchAfterConsent(PatientBatchWithConsent batch,
-                                                       UUID jobId,
-                                                       GroupsToProcess groupsToProcess,
-                                                       BatchState batchState) {
+    private Mono<PatientBatchWithConsent> loadAndResolve(PatientBatchWithConsent batch,
+                                                         GroupsToProcess groupsToProcess,
+                                                         BatchCheckpoint checkpoint,
+                                                         SharedSearches searches) {
         UUID batchId = batch.id();
         logMemory(batchId);
 
         return executeAndMeasureAsync(PipelineStage.DIRECT_LOAD, batch.diagnostics(), () -> directResourceLoader
                 .directLoadPatientCompartment(
                         groupsToProcess.directPatientCompartmentGroups(),
-                        batch
+                        batch,
+                        checkpoint,
+                        searches
                 ))
-                .doOnNext(loadedBatch ->
-                        logger.debug("Directly loaded patient compartment for batch {} with {} patients",
-                                batchId, loadedBatch.patientIds().size()))
+                .doOnNext(loadedBatch -> {
+                    logger.debug("Directly loaded patient compartment for batch {} with {} patients",
+                            batchId, loadedBatch.patientIds().size());
+                    if (batchProperties.lazyDecode()) {
+                        loadedBatch.diagnostics().batchDetails()
+                                .record(BatchMeasurement.ENCODED_CACHE_BYTES, loadedBatch.encodedSizeBytes());
+                    }
+                })
                 .flatMap(patientBatch ->
                         executeAndMeasureAsync(PipelineStage.REFERENCE_RESOLVE, patientBatch.diagnostics(), () ->
                                 referenceResolver.resolvePatientBatch(patientBatch, groupsToProcess.allGroups())))
                 .doOnNext(patientBatch ->
-                        logger.debug("Batch {} resolved references ({} patients)", batchId, patientBatch.patientIds().size()))
+                        logger.debug("Batch {} resolved references ({} patients)", batchId, patientBatch.patientIds().size()));
+    }
+
+    /**
+     * Applies the cascading delete and the must-have checks to a loaded batch, saves it to the checkpoint,
+     * transforms and writes it.
+     *
+     * @param batch           loaded batch with resolved references
+     * @param jobId           owning job id
+     * @param groupsToProcess processed group set derived from the CRTDL
+     * @param batchState      state snapshot to update in the returned {@link BatchResult}
+     * @param checkpoint      checkpoint of the batch
+     * @return mono emitting a finished {@link BatchResult}, or error on failure
+     */
+    private Mono<BatchResult> transformAndWrite(PatientBatchWithConsent batch,
+                                                UUID jobId,
+                                                GroupsToProcess groupsToProcess,
+                                                BatchState batchState,
+                                                BatchCheckpoint checkpoint) {
+        UUID batchId = batch.id();
+
+        return Mono.just(batch)
                 .map(patientBatch ->
                         executeAndMeasure(PipelineStage.CASCADING_DELETE, patientBatch.diagnostics(), () ->
                                 cascadingDelete.handlePatientBatch(patientBatch, groupsToProcess.allGroups())))
@@ -239,50 +435,348 @@ public class ExtractDataService {
                         filterPostCascadeMustHaveViolations(patientBatch, groupsToProcess.directPatientCompartmentGroups()))
                 .doOnNext(loadedBatch ->
                         logger.debug("Batch {} completed must-have filtering ({} patients)", batchId, loadedBatch.patientIds().size()))
-                .map(patientBatch -> {
-                    ExtractionPatientBatch transformed = executeAndMeasure(PipelineStage.COPY_REDACT, patientBatch.diagnostics(), () ->
-                            batchCopierRedacter.transformBatch(ExtractionPatientBatch.of(patientBatch), groupsToProcess.allGroups()));
+                .flatMap(patientBatch -> withCheckpoint(checkpoint, patientBatch, () -> checkpoint.saveResolved(patientBatch)))
+                .flatMap(patientBatch -> batchProperties.streamsPatients()
+                        ? streamBatch(StreamSource.of(patientBatch), jobId, groupsToProcess, batchState)
+                        : transformAndWriteBatch(ExtractionPatientBatch.of(patientBatch), patientBatch.diagnostics(),
+                        jobId, groupsToProcess, batchState));
+    }
+
+    /**
+     * Transforms the whole batch, writes it and hands the non-compartment resources off to the core bundle.
+     */
+    private Mono<BatchResult> transformAndWriteBatch(ExtractionPatientBatch batch,
+                                                     BatchDiagnostics diagnostics,
+                                                     UUID jobId,
+                                                     GroupsToProcess groupsToProcess,
+                                                     BatchState batchState) {
+        UUID batchId = batch.id();
+
+        return Mono.just(batch)
+                .map(extractionBatch -> {
+                    ExtractionPatientBatch transformed = executeAndMeasure(PipelineStage.COPY_REDACT, diagnostics, () ->
+                            batchCopierRedacter.transformBatch(extractionBatch, groupsToProcess.allGroups()));
                     // Non-compartment resources are handed off to processCore() via toCoreBundle() and counted there instead,
                     // to avoid counting them twice.
-                    recordResourceInclusions(patientBatch.diagnostics(),
+                    recordResourceInclusions(diagnostics,
                             transformed.resourceInclusionCounts(compartmentManager::isInCompartment));
                     return transformed;
                 })
                 .doOnNext(__ -> logger.debug("Batch finished extraction {}", batchId))
                 .flatMap(extractedBatch ->
                         writeBatch(jobId.toString(), extractedBatch)
-                                .then(writeConsentAudit(jobId.toString(), batchId, batch.diagnostics().consentAudit()))
+                                .then(writeConsentAudit(jobId.toString(), batchId, diagnostics.consentAudit()))
                                 .subscribeOn(Schedulers.boundedElastic())
                                 .thenReturn(extractedBatch)
                 )
                 .map(extractedBatch -> {
                     WorkUnitStatus status = extractedBatch.isEmpty() ? WorkUnitStatus.SKIPPED : WorkUnitStatus.FINISHED;
+                    ExtractionResourceBundle coreBundle = batchToCoreWriter.toCoreBundle(extractedBatch);
 
                     return new BatchResult(
                             jobId,
                             batchId,
-                            batchState.finishNow(status),
-                            Optional.of(batchToCoreWriter.toCoreBundle(extractedBatch)),
-                            Optional.of(batch.diagnostics().setFinalPatientCount(extractedBatch.getNumPatients())),
+                            finishBatch(batchState, status, coreBundle),
+                            Optional.of(coreBundle),
+                            Optional.of(diagnostics.setFinalPatientCount(extractedBatch.getNumPatients())),
                             List.of()
                     );
                 });
     }
 
+    /**
+     * Streaming variant of {@link #transformAndWriteBatch} for {@code torch.batch.streaming} and
+     * {@code torch.batch.lazy-decode}, used for fresh batches and for batches resumed from their resolved checkpoint.
+     * <p>
+     * Each patient bundle is copied/redacted and encoded on the parallel scheduler, with at most
+     * {@code torch.batch.max-in-flight} patients in flight, and written to the batch file in patient order.
+     * Once its line is written, the patient's non-compartment resources are handed off to the core bundle and
+     * its raw resources are released. Since copy/redact and writing are interleaved, both are measured as
+     * {@link PipelineStage#COPY_REDACT}.
+     */
+    private Mono<BatchResult> streamBatch(StreamSource batch,
+                                          UUID jobId,
+                                          GroupsToProcess groupsToProcess,
+                                          BatchState batchState) {
+        UUID batchId = batch.id();
+        BatchDiagnostics diagnostics = batch.diagnostics();
+        ExtractionResourceBundle coreBundle = new ExtractionResourceBundle();
+
+        return Mono.using(
+                () -> resultFileManager.openBatchWriter(jobId.toString(), batchId),
+                writer -> Mono.defer(() -> {
+                    long start = System.nanoTime();
+                    return Flux.fromIterable(batch.patientIds())
+                            .flatMapSequential(patientId -> Mono.fromCallable(() ->
+                                                    transformPatient(patientId, batch.patient().apply(patientId),
+                                                            jobId.toString(), groupsToProcess))
+                                            .subscribeOn(Schedulers.parallel()),
+                                    batchProperties.maxInFlight(), 1)
+                            .publishOn(Schedulers.boundedElastic(), 1)
+                            .concatMap(patient -> Mono.fromCallable(() -> {
+                                writePatient(writer, patient, coreBundle, diagnostics);
+                                batch.release().accept(patient.patientId());
+                                recordHeap(diagnostics);
+                                return patient;
+                            }))
+                            .then(Mono.fromCallable(writer::commit))
+                            .doOnNext(__ -> diagnostics.batchDetails().nanosElapsed()
+                                    .put(PipelineStage.COPY_REDACT, System.nanoTime() - start));
+                }),
+                writer -> {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        logger.warn("Failed to remove temporary file of batch {}: {}", batchId, e.getMessage(), e);
+                    }
+                })
+                .doOnNext(__ -> logger.debug("Batch finished extraction {}", batchId))
+                .flatMap(written -> writeConsentAudit(jobId.toString(), batchId, diagnostics.consentAudit())
+                        .thenReturn(written))
+                .map(written -> {
+                    batchToCoreWriter.addBatchCoreBundle(coreBundle, batch.core().get());
+                    WorkUnitStatus status = written ? WorkUnitStatus.FINISHED : WorkUnitStatus.SKIPPED;
+
+                    return new BatchResult(
+                            jobId,
+                            batchId,
+                            finishBatch(batchState, status, coreBundle),
+                            Optional.of(coreBundle),
+                            Optional.of(diagnostics.setFinalPatientCount(batch.patientIds().size())),
+                            List.of()
+                    );
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Finishes the batch state, marking the core resources of the batch for staging with incremental core
+     * processing.
+     */
+    private BatchState finishBatch(BatchState batchState, WorkUnitStatus status, ExtractionResourceBundle coreBundle) {
+        BatchState finished = batchState.finishNow(status);
+        if (coreProperties.incremental() && !coreBundle.extractionInfoMap().isEmpty()) {
+            return finished.withCoreStage(WorkUnitState.initNow());
+        }
+        return finished;
+    }
+
+    private StreamedPatient transformPatient(String patientId, ExtractionResourceBundle patientBundle, String jobId,
+                                            GroupsToProcess groupsToProcess) {
+        ExtractionResourceBundle transformed = batchCopierRedacter.transformBundle(patientBundle,
+                groupsToProcess.allGroups());
+        return new StreamedPatient(patientId, transformed, resultFileManager.encodePatientBundle(jobId, transformed));
+    }
+
+    private void writePatient(ResultFileManager.BatchWriter writer, StreamedPatient patient,
+                              ExtractionResourceBundle coreBundle, BatchDiagnostics diagnostics) throws IOException {
+        writer.writePatient(patient.encoded(), patient.bundle().isEmpty());
+        batchToCoreWriter.addPatientBundle(coreBundle, patient.bundle());
+        // Non-compartment resources are handed off to processCore() and counted there instead, to avoid counting them twice.
+        recordResourceInclusions(diagnostics, patient.bundle().resourceInclusionCounts(compartmentManager::isInCompartment));
+    }
+
+    /**
+     * A copied/redacted patient bundle together with its encoded NDJSON line.
+     */
+    private record StreamedPatient(String patientId, ExtractionResourceBundle bundle, String encoded) {
+    }
+
+    /**
+     * The patients of a batch to stream, each converted to an extraction bundle when it is transformed and released
+     * once its line is written.
+     */
+    private record StreamSource(UUID id,
+                                BatchDiagnostics diagnostics,
+                                List<String> patientIds,
+                                Function<String, ExtractionResourceBundle> patient,
+                                Consumer<String> release,
+                                Supplier<ExtractionResourceBundle> core) {
+
+        static StreamSource of(PatientBatchWithConsent batch) {
+            return new StreamSource(batch.id(), batch.diagnostics(), List.copyOf(batch.bundles().keySet()),
+                    patientId -> ExtractionResourceBundle.of(batch.bundles().get(patientId)),
+                    patientId -> batch.bundles().get(patientId).bundle().release(),
+                    () -> ExtractionResourceBundle.of(batch.coreBundle()));
+        }
+
+        /**
+         * Streams a batch restored from its resolved checkpoint, whose bundles are transformed in place.
+         */
+        static StreamSource of(ExtractionPatientBatch batch, BatchDiagnostics diagnostics) {
+            return new StreamSource(batch.id(), diagnostics, List.copyOf(batch.bundles().keySet()),
+                    batch.bundles()::get,
+                    patientId -> {
+                        ExtractionResourceBundle written = batch.bundles().get(patientId);
+                        written.extractionInfoMap().clear();
+                        written.cache().clear();
+                    },
+                    batch::coreBundle);
+        }
+    }
+
     /**
      * Processes the job's core (non-batch) resources and persists the resulting core bundle.
+     * <p>
+     * With {@code torch.core.spill-to-disk}, the core parts are moved into a {@link DiskResourceStore} one at a time
+     * as they are read, otherwise they are merged on heap.
      *
-     * @param job                   job to process
-     * @param preComputedCoreBundle already available core bundle content to merge in
+     * @param job       job to process
+     * @param coreParts already available core bundle content to merge in, like the core parts persisted by the
+     *                  batches
      * @return mono emitting the {@link CoreResult} (skipped if empty, finished otherwise),
      * or error on failure
      */
-    public Mono<CoreResult> processCore(Job job, ExtractionResourceBundle preComputedCoreBundle) {
+    public Mono<CoreResult> processCore(Job job, Flux<ExtractionResourceBundle> coreParts) {
         AnnotatedCrtdl crtdl = job.parameters().crtdl();
         GroupsToProcess groupsToProcess = processedGroupFactory.create(crtdl);
 
         BatchDiagnostics diagnostics = BatchDiagnostics.empty();
 
+        Mono<CoreResult> result = coreProperties.spillToDisk()
+                ? processSpilledCore(job, coreParts, groupsToProcess, diagnostics)
+                : coreParts.reduce(new ExtractionResourceBundle(), ExtractionResourceBundle::merge)
+                .flatMap(preComputed -> prepareCore(groupsToProcess, preComputed, diagnostics))
+                .flatMap(merged -> processInMemoryCore(job, merged, groupsToProcess, diagnostics));
+        return result
+                .doOnNext(r -> removeStagedCore(job.id()))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Prepares the job's core (non-batch) resources like {@link #processCore(Job, Flux)} and
+     * splits them into the given number of shards by the hash of their id, instead of processing them.
+     * <p>
+     * Loading, resolving and cascading delete of the core resources need the whole core graph and are done here.
+     * The already loaded resources of each shard are staged by the {@link ResultFileManager}, so that
+     * {@link #processCoreShard(Job, int, ExtractionResourceBundle)} only fetches the resources still missing.
+     *
+     * @param job                   job to prepare
+     * @param preComputedCoreBundle already available core bundle content to merge in
+     * @param shards                the number of shards
+     * @return mono emitting the {@link CorePartition}, or error on failure
+     */
+    public Mono<CorePartition> partitionCore(Job job, ExtractionResourceBundle preComputedCoreBundle, int shards) {
+        GroupsToProcess groupsToProcess = processedGroupFactory.create(job.parameters().crtdl());
+        BatchDiagnostics diagnostics = BatchDiagnostics.empty();
+
+        return prepareCore(groupsToProcess, preComputedCoreBundle, diagnostics)
+                .map(merged -> {
+                    List<ExtractionResourceBundle> parts = new ArrayList<>(shards);
+                    for (int i = 0; i < shards; i++) {
+                        parts.add(new ExtractionResourceBundle());
+                    }
+                    merged.extractionInfoMap().forEach((id, info) -> {
+                        ExtractionResourceBundle part = parts.get(shardOf(id, shards));
+                        part.extractionInfoMap().put(id, info);
+                        merged.getResource(id).ifPresent(part::put);
+                    });
+                    logger.debug("Partitioned {} core resources of job {} into {} shards",
+                            merged.extractionInfoMap().size(), job.id(), shards);
+                    return parts;
+                })
+                .flatMap(parts -> Mono.fromCallable(() -> {
+                    for (int shard = 0; shard < shards; shard++) {
+                        resultFileManager.saveCoreShardResources(job.id().toString(), shard,
+                                parts.get(shard).cache().values().stream().flatMap(Optional::stream).toList());
+                    }
+                    return new CorePartition(job.id(), parts, Optional.of(diagnostics), List.of());
+                }))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * @return the shard a core resource belongs to, stable across restarts
+     */
+    static int shardOf(ExtractionId id, int shards) {
+        return Math.floorMod(id.toRelativeUrl().hashCode(), shards);
+    }
+
+    /**
+     * Processes a single shard of the job's core resources: reads the staged resources, fetches the missing ones,
+     * copies and redacts them and writes them to the shard's own output file.
+     *
+     * @param job         job the shard belongs to
+     * @param shard       the shard
+     * @param shardBundle the extraction info of the resources assigned to the shard
+     * @return mono emitting the {@link CoreShardResult} (skipped if empty, finished otherwise), or error on failure
+     */
+    public Mono<CoreShardResult> processCoreShard(Job job, int shard, ExtractionResourceBundle shardBundle) {
+        GroupsToProcess groupsToProcess = processedGroupFactory.create(job.parameters().crtdl());
+        BatchDiagnostics diagnostics = BatchDiagnostics.empty();
+        Set<ExtractionId> assigned = Set.copyOf(shardBundle.extractionInfoMap().keySet());
+
+        return Mono.fromCallable(() -> resultFileManager.loadCoreShardResources(job.id().toString(), shard))
+                .doOnNext(staged -> staged.forEach(shardBundle::put))
+                .then(Mono.defer(() -> fetchAndTransformCore(job.id(), shardBundle, groupsToProcess, diagnostics)))
+                .flatMap(transformed -> {
+                    Set<ExtractionId> written = new HashSet<>();
+                    Set<ExtractionId> referenced = new HashSet<>();
+                    transformed.extractionInfoMap().forEach((id, info) -> {
+                        if (transformed.getResource(id).isPresent()) {
+                            written.add(id);
+                            info.attributeToReferences().values().forEach(referenced::addAll);
+                        }
+                    });
+                    CoreShardOutcome outcome = new CoreShardOutcome(shard, assigned, written, referenced);
+
+                    if (transformed.isEmpty()) {
+                        return Mono.just(new CoreShardResult(job.id(), shard, WorkUnitStatus.SKIPPED, outcome,
+                                Optional.of(diagnostics), List.of()));
+                    }
+                    return writeCoreShard(job.id().toString(), shard, transformed)
+                            .thenReturn(new CoreShardResult(job.id(), shard, WorkUnitStatus.FINISHED, outcome,
+                                    Optional.of(diagnostics), List.of()));
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Reconciles the references between the processed shards of a job's core phase.
+     * <p>
+     * The shards already wrote their output, so references to core resources that no shard wrote, for example because
+     * they failed to transform, can't be removed anymore as the redaction of unsharded processing does. The core phase
+     * fails in this case, instead of completing the job with references that can't be resolved within the result.
+     *
+     * @param jobId    the job
+     * @param outcomes the outcomes of all shards
+     * @return the {@link CoreResult} completing the core phase, finished if any shard wrote resources
+     * @throws IllegalStateException if written resources reference core resources that no shard wrote
+     */
+    public CoreResult reconcileCoreShards(UUID jobId, List<CoreShardOutcome> outcomes) {
+        Set<ExtractionId> dangling = CoreShardOutcome.danglingReferences(outcomes);
+        boolean written = outcomes.stream().anyMatch(outcome -> !outcome.written().isEmpty());
+        removeStagedCore(jobId);
+        try {
+            resultFileManager.deleteCoreShardResources(jobId.toString());
+        } catch (IOException e) {
+            logger.warn("Failed to remove staged core shard resources of job {}: {}", jobId, e.getMessage(), e);
+        }
+        if (!dangling.isEmpty()) {
+            throw new IllegalStateException("Core resources reference " + dangling.size()
+                    + " resources missing in the result: " + dangling.stream().limit(10).map(ExtractionId::toRelativeUrl)
+                    .collect(Collectors.joining(", ")) + (dangling.size() > 10 ? ", ..." : ""));
+        }
+        return new CoreResult(jobId, List.of(), written ? WorkUnitStatus.FINISHED : WorkUnitStatus.SKIPPED);
+    }
+
+    /**
+     * Loads the core resources of the core attribute groups like {@link #loadCore} and merges in the core resources
+     * collected by the batches.
+     */
+    private Mono<ExtractionResourceBundle> prepareCore(GroupsToProcess groupsToProcess,
+                                                       ExtractionResourceBundle preComputedCoreBundle,
+                                                       BatchDiagnostics diagnostics) {
+        return loadCore(groupsToProcess, diagnostics)
+                .map(ExtractionResourceBundle::of)
+                .map(cb -> cb.merge(preComputedCoreBundle));
+    }
+
+    /**
+     * Loads the core resources of the core attribute groups, resolves their references and runs the final cascading
+     * delete.
+     */
+    private Mono<ResourceBundle> loadCore(GroupsToProcess groupsToProcess, BatchDiagnostics diagnostics) {
         return executeAndMeasureAsync(PipelineStage.DIRECT_LOAD, diagnostics, () ->
                 directResourceLoader.processCoreAttributeGroups(
                         groupsToProcess.directNoPatientGroups(),
@@ -303,26 +797,13 @@ public class ExtractDataService {
                     } catch (MustHaveViolatedException e) {
                         return Mono.error(e);
                     }
-                })
-                .map(ExtractionResourceBundle::of)
-                .flatMap(cb -> {
-                    ExtractionResourceBundle merged = cb.merge(preComputedCoreBundle);
-
-                    List<Map<String, Set<String>>> missingChunks =
-                            dataStore.groupReferencesByTypeInChunks(merged.missingCacheEntries());
-
-                    return Flux.fromIterable(missingChunks)
-                            .map(DataStoreHelper::createBatchBundleForReferences)
-                            .concatMap(dataStore::executeBundle)
-                            .flatMapIterable(list -> list)
-                            .doOnNext(merged::put)
-                            .then(Mono.just(merged));
-                })
-                .flatMap(cb -> {
-                    ExtractionResourceBundle transformed = executeAndMeasure(PipelineStage.COPY_REDACT, diagnostics, () ->
-                                    batchCopierRedacter.transformBundle(cb, groupsToProcess.allGroups()));
-                    recordResourceInclusions(diagnostics, transformed.resourceInclusionCounts());
+                });
+    }
 
+    private Mono<CoreResult> processInMemoryCore(Job job, ExtractionResourceBundle merged,
+                                                 GroupsToProcess groupsToProcess, BatchDiagnostics diagnostics) {
+        return fetchAndTransformCore(job.id(), merged, groupsToProcess, diagnostics)
+                .flatMap(transformed -> {
                     if (transformed.isEmpty()) {
                         return Mono.just(new CoreResult(job.id(), List.of(), WorkUnitStatus.SKIPPED,
                                 Optional.of(diagnostics)));
@@ -331,10 +812,148 @@ public class ExtractDataService {
                     return writeBundle(job.id().toString(), transformed)
                             .thenReturn(new CoreResult(job.id(), List.of(), WorkUnitStatus.FINISHED,
                                     Optional.of(diagnostics)));
+                });
+    }
+
+    /**
+     * Fetches the missing core resources into the bundle and copies and redacts them.
+     */
+    private Mono<ExtractionResourceBundle> fetchAndTransformCore(UUID jobId,
+                                                                 ExtractionResourceBundle bundle,
+                                                                 GroupsToProcess groupsToProcess,
+                                                                 BatchDiagnostics diagnostics) {
+        return stagedOrFetchedCoreResources(jobId, bundle.missingCacheEntries())
+                .doOnNext(bundle::put)
+                .then(Mono.fromSupplier(() -> executeAndMeasure(PipelineStage.COPY_REDACT, diagnostics, () ->
+                        batchCopierRedacter.transformBundle(bundle, groupsToProcess.allGroups()))))
+                .doOnNext(transformed -> recordResourceInclusions(diagnostics, transformed.resourceInclusionCounts()));
+    }
+
+    /**
+     * Core processing variant for {@code torch.core.spill-to-disk}.
+     * <p>
+     * Moves the directly loaded core resources into a {@link DiskResourceStore} once their references are resolved,
+     * merges the core parts into it one at a time as they are read and adds all fetched missing entries. Copy/redact
+     * and writing are streamed from the store, so only the extraction metadata stays on heap.
+     * Since copy/redact and writing are interleaved, both are measured as {@link PipelineStage#COPY_REDACT}.
+     */
+    private Mono<CoreResult> processSpilledCore(Job job, Flux<ExtractionResourceBundle> coreParts,
+                                                GroupsToProcess groupsToProcess, BatchDiagnostics diagnostics) {
+        String jobId = job.id().toString();
+        return Mono.using(
+                () -> resultFileManager.openCoreStore(jobId),
+                store -> loadCore(groupsToProcess, diagnostics)
+                        .flatMap(cb -> Mono.fromCallable(() -> SpilledExtractionBundle.spill(cb, store)))
+                        .flatMap(spilled -> coreParts
+                                .concatMap(part -> Mono.fromCallable(() -> spilled.merge(part)))
+                                .then(Mono.just(spilled)))
+                        .flatMap(spilled -> stagedOrFetchedCoreResources(job.id(), spilled.missingEntries())
+                                .concatMap(resource -> Mono.fromCallable(() -> {
+                                    store.put(resource);
+                                    return resource;
+                                }))
+                                .then(Mono.just(spilled)))
+                        .map(spilled -> {
+                            logger.debug("Spilled {} core resources ({} bytes) of job {} to disk",
+                                    store.size(), store.sizeBytes(), jobId);
+                            if (spilled.isEmpty()) {
+                                return new CoreResult(job.id(), List.of(), WorkUnitStatus.SKIPPED, Optional.of(diagnostics));
+                            }
+                            Set<ExtractionId> written = executeAndMeasure(PipelineStage.COPY_REDACT, diagnostics, () ->
+                                    writeSpilledBundle(jobId, spilled, groupsToProcess));
+                            recordResourceInclusions(diagnostics, spilled.resourceInclusionCounts(written));
+                            return new CoreResult(job.id(), List.of(), WorkUnitStatus.FINISHED, Optional.of(diagnostics));
+                        }),
+                store -> {
+                    try {
+                        store.close();
+                    } catch (IOException e) {
+                        logger.warn("Failed to remove core store of job {}: {}", jobId, e.getMessage(), e);
+                    }
+                });
+    }
+
+    private Set<ExtractionId> writeSpilledBundle(String jobId, SpilledExtractionBundle spilled, GroupsToProcess groupsToProcess) {
+        try {
+            return resultFileManager.saveCoreBundleToNDJSON(jobId, spilled, (id, resource, info) ->
+                    batchCopierRedacter.transformResource(id, resource, info, groupsToProcess.allGroups()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fetches and stages the core resources referenced by a finished batch ahead of the core phase.
+     * <p>
+     * Copy/redact depends on the extraction info merged over all batches, so only the raw resources are staged.
+     * Resources already staged for an earlier batch are not fetched again.
+     *
+     * @param jobId   the job the batch belongs to
+     * @param batchId the batch
+     * @param part    the core part persisted by the batch
+     * @return mono emitting {@link WorkUnitStatus#FINISHED} if resources were staged, {@link WorkUnitStatus#SKIPPED}
+     * if there was nothing left to stage, or error on failure
+     */
+    public Mono<WorkUnitStatus> stageCore(UUID jobId, UUID batchId, ExtractionResourceBundle part) {
+        return Mono.fromCallable(() -> {
+                    Set<ExtractionId> missing = new HashSet<>(part.missingCacheEntries());
+                    missing.removeAll(resultFileManager.stagedCoreIds(jobId.toString()));
+                    return missing;
                 })
+                .flatMap(missing -> missing.isEmpty()
+                        ? Mono.just(WorkUnitStatus.SKIPPED)
+                        : fetchCoreResources(missing).collectList()
+                        .flatMap(resources -> Mono.fromCallable(() -> {
+                            resultFileManager.saveStagedCoreResources(jobId.toString(), batchId, resources);
+                            return resources.isEmpty() ? WorkUnitStatus.SKIPPED : WorkUnitStatus.FINISHED;
+                        })))
                 .subscribeOn(Schedulers.boundedElastic());
     }
 
+    /**
+     * Provides the missing core resources, reading those staged by incremental core processing and fetching the
+     * rest.
+     */
+    private Flux<Resource> stagedOrFetchedCoreResources(UUID jobId, Set<ExtractionId> missing) {
+        if (!coreProperties.incremental() || missing.isEmpty()) {
+            return fetchCoreResources(missing);
+        }
+        return Mono.fromCallable(() -> resultFileManager.loadStagedCoreResources(jobId.toString(), missing))
+                .flatMapMany(staged -> {
+                    Set<ExtractionId> remaining = new HashSet<>(missing);
+                    staged.forEach(resource -> remaining.remove(ResourceUtils.getRelativeURL(resource)));
+                    logger.debug("Using {} staged core resources of job {}, fetching {} more", staged.size(), jobId,
+                            remaining.size());
+                    return Flux.fromIterable(staged).concatWith(fetchCoreResources(remaining));
+                });
+    }
+
+    /**
+     * Removes the staged core resources once the core output is written. A failure leaves them to the job cleanup.
+     */
+    private void removeStagedCore(UUID jobId) {
+        if (!coreProperties.incremental()) {
+            return;
+        }
+        try {
+            resultFileManager.deleteStagedCoreResources(jobId.toString());
+        } catch (IOException e) {
+            logger.warn("Failed to remove staged core resources of job {}: {}", jobId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fetches resources referenced by the core bundle that are not resolved yet, chunked by resource type.
+     */
+    private Flux<Resource> fetchCoreResources(Set<ExtractionId> missing) {
+        List<Map<String, Set<String>>> missingChunks = dataStore.groupReferencesByTypeInChunks(missing);
+
+        return Flux.fromIterable(missingChunks)
+                .map(DataStoreHelper::createBatchBundleForReferences)
+                .concatMap(dataStore::executeBundle)
+                .flatMapIterable(list -> list);
+    }
+
     /**
      * Persists a single batch as NDJSON.
      *
@@ -393,6 +1012,25 @@ public class ExtractDataService {
         });
     }
 
+    /**
+     * Persists a core shard as NDJSON.
+     *
+     * @param jobID  owning job id (directory key)
+     * @param shard  the shard
+     * @param bundle extracted and transformed core resources of the shard
+     * @return completion signal; emits error if writing fails
+     */
+    Mono<Void> writeCoreShard(String jobID, int shard, ExtractionResourceBundle bundle) {
+        return Mono.defer(() -> {
+            try {
+                resultFileManager.saveCoreShardToNDJSON(jobID, shard, bundle);
+                return Mono.empty();
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+        });
+    }
+
     private PatientBatchWithConsent filterPostCascadeMustHaveViolations(
             PatientBatchWithConsent batch,
             List<AnnotatedAttributeGroup> directPatientGroups
@@ -0,0 +1,356 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stores the entries of an on-disk cache, one file of lines per key, for the {@link SearchResponseCache} and the
+ * {@link CohortCache}, which only derive the keys and the lines of their entries.
+ * <p>
+ * An entry is written to a temporary file and only stored once {@linkplain PendingEntry#commit() committed}, so an
+ * entry is either complete or missing. Entries expire after a time to live, and the least recently used entries are
+ * evicted while the store exceeds its maximum size. The entries survive restarts, taking the modification time of an
+ * entry as its creation and last use. Failures to write an entry are only logged, so that a broken cache never fails
+ * the request it caches.
+ *
+ * @param <T> the type of the values appended to an entry
+ */
+public final class FileEntryStore<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileEntryStore.class);
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final String name;
+    private final Path dir;
+    private final String entrySuffix;
+    private final long maxBytes;
+    private final Duration ttl;
+    private final Function<T, List<String>> lines;
+    private final FileIo io;
+    private final Clock clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a store and loads the entries already stored in its directory.
+     *
+     * @param name        the name of the cache, used in log messages
+     * @param dir         the directory holding the entries
+     * @param entrySuffix the file name suffix of the entries
+     * @param maxBytes    the maximum size of all entries
+     * @param ttl         the time after which an entry expires
+     * @param lines       the lines a value appended to an entry is written as, none containing a line break
+     * @param io          file access
+     * @param clock       the clock entries expire by
+     */
+    FileEntryStore(String name, Path dir, String entrySuffix, long maxBytes, Duration ttl,
+                   Function<T, List<String>> lines, FileIo io, Clock clock) {
+        this.name = requireNonNull(name);
+        this.dir = requireNonNull(dir);
+        this.entrySuffix = requireNonNull(entrySuffix);
+        this.maxBytes = maxBytes;
+        this.ttl = requireNonNull(ttl);
+        this.lines = requireNonNull(lines);
+        this.io = requireNonNull(io);
+        this.clock = requireNonNull(clock);
+        load();
+    }
+
+    /**
+     * An unexpired entry.
+     *
+     * @param createdAt the time the entry was stored
+     * @param bytes     the size of the entry
+     * @param lines     the lines of the entry, read on subscription
+     */
+    public record Hit(Instant createdAt, long bytes, Flux<String> lines) {
+    }
+
+    /**
+     * Looks up an entry, removing it if it is expired.
+     * <p>
+     * Blocks while checking the entry, so it has to be called on a thread that may block.
+     *
+     * @param key the key of the entry
+     * @return the entry, or empty if there is no unexpired entry
+     */
+    Optional<Hit> lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry)) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            return Optional.empty();
+        }
+        entry.lastUse = clock.instant();
+        Path file = entryFile(key);
+        return Optional.of(new Hit(entry.createdAt, entry.bytes,
+                Flux.using(() -> io.lines(file), Flux::fromStream, Stream::close)
+                        .subscribeOn(Schedulers.boundedElastic())));
+    }
+
+    /**
+     * Opens a new entry, which is stored once {@linkplain PendingEntry#commit() committed}.
+     *
+     * @param key the key of the entry
+     * @return the new entry
+     */
+    Mono<PendingEntry> open(String key) {
+        return Mono.fromCallable(() -> {
+            Path tmp = dir.resolve(key + "." + UUID.randomUUID() + TMP_SUFFIX);
+            try {
+                io.createDirectories(dir);
+                return new PendingEntry(key, tmp, io.newBufferedWriter(tmp));
+            } catch (IOException e) {
+                logger.warn("Failed to open {} cache entry {}: {}", name, key, e.getMessage());
+                return new PendingEntry(key, tmp, null);
+            }
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Removes all entries.
+     *
+     * @throws IOException if an entry could not be deleted
+     */
+    void removeAll() throws IOException {
+        for (String key : List.copyOf(entries.keySet())) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                totalBytes.addAndGet(-entry.bytes);
+                io.deleteIfExists(entryFile(key));
+            }
+        }
+    }
+
+    /**
+     * @return the size of all entries in bytes
+     */
+    long totalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * @return the bytes of all entries stored since the start
+     */
+    long storedBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return the number of entries evicted because the store exceeded its size
+     */
+    long evictions() {
+        return evictions.get();
+    }
+
+    private void load() {
+        if (!io.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> files = io.list(dir)) {
+            for (Path file : files.toList()) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TMP_SUFFIX)) {
+                    io.deleteIfExists(file);
+                } else if (fileName.endsWith(entrySuffix)) {
+                    Entry entry = new Entry(io.size(file), io.lastModified(file));
+                    if (isExpired(entry)) {
+                        io.deleteIfExists(file);
+                    } else {
+                        entries.put(fileName.substring(0, fileName.length() - entrySuffix.length()), entry);
+                        totalBytes.addAndGet(entry.bytes);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to load the {} cache from {}: {}", name, dir, e.getMessage());
+        }
+        logger.info("Loaded {} {} cache entries with {} bytes from {}", entries.size(), name, totalBytes.get(), dir);
+        evict();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return !clock.instant().isBefore(entry.createdAt.plus(ttl));
+    }
+
+    private void store(String key, Path tmp) throws IOException {
+        Entry entry = new Entry(io.size(tmp), clock.instant());
+        io.atomicMove(tmp, entryFile(key));
+        Entry replaced = entries.put(key, entry);
+        totalBytes.addAndGet(entry.bytes - (replaced == null ? 0 : replaced.bytes));
+        storedBytes.addAndGet(entry.bytes);
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used entries while the store exceeds its maximum size.
+     */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> byLastUse = entries.entrySet().stream()
+                .sorted(Comparator.comparing(e -> e.getValue().lastUse))
+                .toList();
+        for (Map.Entry<String, Entry> lru : byLastUse) {
+            if (totalBytes.get() <= maxBytes) {
+                return;
+            }
+            if (remove(lru.getKey(), lru.getValue())) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean remove(String key, Entry entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        totalBytes.addAndGet(-entry.bytes);
+        try {
+            io.deleteIfExists(entryFile(key));
+        } catch (IOException e) {
+            logger.warn("Failed to delete {} cache entry {}: {}", name, key, e.getMessage());
+        }
+        return true;
+    }
+
+    private Path entryFile(String key) {
+        return dir.resolve(key + entrySuffix);
+    }
+
+    private static final class Entry {
+
+        private final long bytes;
+        private final Instant createdAt;
+        private volatile Instant lastUse;
+
+        private Entry(long bytes, Instant createdAt) {
+            this.bytes = bytes;
+            this.createdAt = createdAt;
+            this.lastUse = createdAt;
+        }
+    }
+
+    /**
+     * An entry being written to the store.
+     */
+    public final class PendingEntry {
+
+        private final String key;
+        private final Path tmp;
+        @Nullable
+        private final BufferedWriter writer;
+        private volatile boolean failed;
+
+        private PendingEntry(String key, Path tmp, @Nullable BufferedWriter writer) {
+            this.key = key;
+            this.tmp = tmp;
+            this.writer = writer;
+            this.failed = writer == null;
+        }
+
+        /**
+         * Appends a value.
+         *
+         * @param value the value
+         * @return a {@link Mono} completing once the value is written
+         */
+        public Mono<Void> append(T value) {
+            if (failed) {
+                return Mono.empty();
+            }
+            return Mono.<Void>fromRunnable(() -> {
+                try {
+                    for (String line : lines.apply(value)) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Failed to write {} cache entry {}: {}", name, key, e.getMessage());
+                    failed = true;
+                }
+            }).subscribeOn(Schedulers.boundedElastic());
+        }
+
+        /**
+         * Stores the entry after all values were appended.
+         *
+         * @return a {@link Mono} completing once the entry is stored
+         */
+        public Mono<Void> commit() {
+            return Mono.<Void>fromRunnable(() -> {
+                close();
+                if (failed) {
+                    deleteTmp();
+                    return;
+                }
+                try {
+                    store(key, tmp);
+                } catch (IOException e) {
+                    logger.warn("Failed to store {} cache entry {}: {}", name, key, e.getMessage());
+                    deleteTmp();
+                }
+            }).subscribeOn(Schedulers.boundedElastic());
+        }
+
+        /**
+         * Drops the entry of a request that failed or was cancelled.
+         *
+         * @return a {@link Mono} completing once the entry is dropped
+         */
+        public Mono<Void> discard() {
+            return Mono.<Void>fromRunnable(() -> {
+                close();
+                deleteTmp();
+            }).subscribeOn(Schedulers.boundedElastic());
+        }
+
+        private void close() {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close {} cache entry {}: {}", name, key, e.getMessage());
+                failed = true;
+            }
+        }
+
+        private void deleteTmp() {
+            try {
+                io.deleteIfExists(tmp);
+            } catch (IOException e) {
+                logger.warn("Failed to delete pending {} cache entry {}: {}", name, tmp, e.getMessage());
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package de.medizininformatikinitiative.torch.service;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.opencsv.exceptions.CsvValidationException;
+import de.medizininformatikinitiative.torch.config.JobJournalProperties;
+import de.medizininformatikinitiative.torch.config.SchedulerProperties;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
 import de.medizininformatikinitiative.torch.diagnostics.DiagnosticsStore;
 import de.medizininformatikinitiative.torch.diagnostics.JobDiagnosticSummary;
@@ -10,15 +12,25 @@ import de.medizininformatikinitiative.torch.diagnostics.PipelineStage;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.exceptions.VersionConflictException;
 import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.CohortCacheStatus;
 import de.medizininformatikinitiative.torch.jobhandling.FileIo;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobJournal;
 import de.medizininformatikinitiative.torch.jobhandling.JobParameters;
 import de.medizininformatikinitiative.torch.jobhandling.JobPriority;
 import de.medizininformatikinitiative.torch.jobhandling.JobStatus;
+import de.medizininformatikinitiative.torch.jobhandling.LeaseStore;
+import de.medizininformatikinitiative.torch.jobhandling.ReadyQueue;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.BatchSelection;
+import de.medizininformatikinitiative.torch.jobhandling.result.CorePartition;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardOutcome;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.SharedBatchOutcome;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
@@ -28,26 +40,41 @@ import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceB
 import de.medizininformatikinitiative.torch.model.extraction.ResourceExtractionInfo;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Nullable;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
@@ -59,34 +86,90 @@ public class JobPersistenceService {
     private static final Logger logger = LoggerFactory.getLogger(JobPersistenceService.class);
 
     private static final String JOB_FILE_NAME = "job.json";
+    private static final String PARAMETERS_FILE_PREFIX = "parameters-";
     private static final String BATCH_DIR_NAME = "batches";
     private static final String CORE_DIR_NAME = "core_batches";
+    private static final String CORE_SHARD_DIR_NAME = "core_shards";
+    private static final String OUTCOME_SUFFIX = "-outcome.json";
+    private static final String LEASE_DIR_NAME = "leases";
+    private static final String JOB_LEASE_FILE_NAME = "job.lease";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String SHARED_OUTCOME_SUFFIX = ".outcome.json";
 
     private final FileIo io;
     private final ObjectMapper mapper;
     private final Path baseDir;
     private final Map<UUID, Job> jobRegistry = new ConcurrentHashMap<>();
+    private final ReadyQueue readyQueue;
     private final int batchSize;
 
     private final DiagnosticsStore diagnosticsStore;
+    @Nullable
+    private final JobJournal journal;
+    private final LeaseStore leases;
 
+    public JobPersistenceService(
+            FileIo io,
+            ObjectMapper mapper,
+            String dir,
+            int batchSize,
+            DiagnosticsStore diagnosticsStore
+    ) {
+        this(io, mapper, dir, batchSize, diagnosticsStore, new JobJournalProperties(false, 1));
+    }
+
+    public JobPersistenceService(
+            FileIo io,
+            ObjectMapper mapper,
+            String dir,
+            int batchSize,
+            DiagnosticsStore diagnosticsStore,
+            JobJournalProperties journalProperties
+    ) {
+        this(io, mapper, dir, batchSize, diagnosticsStore, journalProperties, new ReadyQueue(), LeaseStore.disabled());
+    }
+
+    @Autowired
     public JobPersistenceService(
             FileIo io,
             ObjectMapper mapper,
             @Value("${torch.results.dir}") String dir,
             @Value("${torch.batchsize}") int batchSize,
-            DiagnosticsStore diagnosticsStore
+            DiagnosticsStore diagnosticsStore,
+            JobJournalProperties journalProperties,
+            SchedulerProperties schedulerProperties,
+            LeaseStore leases
+    ) {
+        this(io, mapper, dir, batchSize, diagnosticsStore, journalProperties,
+                new ReadyQueue(schedulerProperties.fairShare()), leases);
+    }
+
+    private JobPersistenceService(
+            FileIo io,
+            ObjectMapper mapper,
+            String dir,
+            int batchSize,
+            DiagnosticsStore diagnosticsStore,
+            JobJournalProperties journalProperties,
+            ReadyQueue readyQueue,
+            LeaseStore leases
     ) {
+        this.readyQueue = readyQueue;
+        this.leases = requireNonNull(leases);
         this.io = requireNonNull(io);
         this.mapper = requireNonNull(mapper);
         this.diagnosticsStore = requireNonNull(diagnosticsStore);
         this.baseDir = Paths.get(dir).toAbsolutePath();
         this.batchSize = batchSize;
+        this.journal = journalProperties.enabled()
+                ? new JobJournal(io, mapper, this::jobDir, this::saveJob, journalProperties.compactAfter())
+                : null;
     }
 
     // TEST-ONLY. Package-private on purpose.
     void putJobForTest(Job job) {
         jobRegistry.put(job.id(), job);
+        readyQueue.update(job);
     }
 
 
@@ -96,6 +179,9 @@ public class JobPersistenceService {
      * <p>Ensures {@code baseDir} exists, loads jobs from disk
      * persists reconciled state, and registers jobs in memory.</p>
      *
+     * <p>With leases enabled, unfinished jobs are only loaded if this instance acquires their job lease. Jobs owned
+     * by another instance are left to it.</p>
+     *
      * @throws IOException if base directory creation or listing fails
      */
     @PostConstruct
@@ -108,21 +194,54 @@ public class JobPersistenceService {
             if (loaded.status() == JobStatus.DELETED) {
                 continue;
             }
+            if (!loaded.status().isFinal() && !tryAcquireLease(jobLease(loaded.id()))) {
+                logger.debug("Skip loading job {} owned by another instance", loaded.id());
+                continue;
+            }
+            register(loaded);
+        }
 
-            Job reconciled = loaded.status().isFinal()
-                    ? loaded
-                    : loaded.rollback();
+        logger.info("Loaded {} jobs from {}", jobRegistry.size(), baseDir);
+    }
 
-            try {
+    /**
+     * Reconciles the state of a job loaded from disk, persists it and registers the job in memory.
+     *
+     * @param loaded the job as loaded from disk
+     * @return whether the job was registered
+     */
+    private boolean register(Job loaded) {
+        Job reconciled = loaded.status().isFinal()
+                ? loaded
+                : loaded.rollback();
+
+        try {
+            reconciled = withStoredParameters(reconciled);
+            if (journal != null) {
+                journal.writeSnapshot(reconciled);
+            } else {
                 saveJob(reconciled);
-                jobRegistry.put(reconciled.id(), reconciled);
-            } catch (IOException e) {
-                logger.warn("Skip loading job {} because persisting reconciled state failed: {}",
-                        reconciled.id(), e.getMessage(), e);
             }
+            jobRegistry.put(reconciled.id(), reconciled);
+            readyQueue.update(reconciled);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Skip loading job {} because persisting reconciled state failed: {}",
+                    reconciled.id(), e.getMessage(), e);
+            return false;
         }
+    }
 
-        logger.info("Loaded {} jobs from {}", jobRegistry.size(), baseDir);
+    /**
+     * Writes all journaled job state changes still queued on shutdown.
+     *
+     * @throws InterruptedException if interrupted while waiting for the journal writer
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (journal != null) {
+            journal.close();
+        }
     }
 
 
@@ -148,11 +267,17 @@ public class JobPersistenceService {
     /**
      * Returns the in-memory job state (if present).
      *
+     * <p>With leases enabled, a job owned by another instance is read from disk instead.</p>
+     *
      * @param jobId job id
      * @return optional job
      */
     public Optional<Job> getJob(UUID jobId) {
-        return Optional.ofNullable(jobRegistry.get(jobId));
+        Job job = jobRegistry.get(jobId);
+        if (job != null || !leases.enabled() || !io.isDirectory(jobDir(jobId))) {
+            return Optional.ofNullable(job);
+        }
+        return loadJobFromDirectory(jobDir(jobId)).filter(loaded -> loaded.status() != JobStatus.DELETED);
     }
 
 
@@ -198,6 +323,7 @@ public class JobPersistenceService {
                     io.deleteDir(jobDir(job.id()));
                     logger.info("GC: removed job directory from file system {}", job.id());
                     jobRegistry.remove(job.id());
+                    readyQueue.remove(job.id());
                 } catch (IOException e) {
                     logger.warn("GC: failed to delete job directory {}: {}", job.id(), e.getMessage(), e);
                 }
@@ -284,6 +410,35 @@ public class JobPersistenceService {
         return result;
     }
 
+    /**
+     * Changes the priority and the maximum number of concurrent batches of a job.
+     *
+     * <p>The {@code expectedVersion} is used for optimistic concurrency: if the job's
+     * current version differs, a {@link VersionConflictException} is thrown.</p>
+     *
+     * @param jobId                job id
+     * @param priority             the new priority
+     * @param maxConcurrentBatches the new maximum number of concurrent batches, {@code 0} for no limit, or empty to
+     *                             keep the current maximum
+     * @param expectedVersion      version the caller last observed
+     * @return the updated job
+     * @throws JobNotFoundException     if the job is unknown to the registry
+     * @throws VersionConflictException if the current version does not match {@code expectedVersion}
+     */
+    public Job changeScheduling(UUID jobId, JobPriority priority, Optional<Integer> maxConcurrentBatches,
+                                long expectedVersion) throws JobNotFoundException {
+        Job result = updateJobAndReturn(jobId, job -> {
+            if (job.version() != expectedVersion) {
+                throw new VersionConflictException(jobId, expectedVersion, job.version());
+            }
+            Job updated = job.withPriority(priority)
+                    .withMaxConcurrentBatches(maxConcurrentBatches.orElse(job.maxConcurrentBatches()));
+            return new JobAndResult<>(updated, updated);
+        });
+        if (result == null) throw new JobNotFoundException(jobId);
+        return result;
+    }
+
     /**
      * Returns all jobs matching the given filters.
      *
@@ -306,36 +461,196 @@ public class JobPersistenceService {
     /**
      * Selects the next schedulable work unit across all non-final jobs.
      *
+     * <p>Jobs are taken from the {@link ReadyQueue} in priority order. A job whose state changed in the meantime
+     * so that it has no work unit anymore is skipped.</p>
+     *
      * @return optional work unit
      */
     public Optional<WorkUnit> selectNextWorkUnit() {
-        return jobRegistry.values().stream()
-                .filter(job -> !job.status().isFinal())
-                .sorted(Comparator
-                        .comparing(Job::priority).reversed()
-                        .thenComparing(Job::startedAt, Comparator.reverseOrder()))
-                .flatMap(job -> selectNextInternal(job.id()).stream())
-                .findFirst();
+        return selectNextWorkUnit(EnumSet.allOf(WorkPhase.class));
+    }
+
+    /**
+     * Selects the next schedulable work unit of one of the given phases across all non-final jobs.
+     *
+     * <p>Jobs whose next work unit belongs to another phase stay queued.</p>
+     *
+     * @param phases the phases that may be dispatched
+     * @return optional work unit
+     */
+    public Optional<WorkUnit> selectNextWorkUnit(Set<WorkPhase> phases) {
+        Optional<UUID> next;
+        while ((next = readyQueue.poll(phases)).isPresent()) {
+            Optional<WorkUnit> wu = selectNextInternal(next.get(), phases);
+            if (wu.isPresent()) {
+                return wu;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Blocks until a job has a work unit ready or the timeout elapsed.
+     *
+     * <p>If nothing became ready within the timeout, the ready queue is checked against all jobs once, as a
+     * safeguard against a missed state change.</p>
+     *
+     * @param timeout the maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitReadyWork(Duration timeout) throws InterruptedException {
+        awaitReadyWork(timeout, EnumSet.allOf(WorkPhase.class));
+    }
+
+    /**
+     * Blocks until a job has a work unit of one of the given phases ready, the ready queue is
+     * {@linkplain ReadyQueue#wakeUp() woken up} or the timeout elapsed.
+     *
+     * @param timeout the maximum time to wait
+     * @param phases  the phases to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitReadyWork(Duration timeout, Set<WorkPhase> phases) throws InterruptedException {
+        if (!readyQueue.awaitReady(timeout, phases)) {
+            jobRegistry.values().stream()
+                    .filter(job -> !job.status().isFinal())
+                    .forEach(job -> jobRegistry.computeIfPresent(job.id(), (id, current) -> {
+                        readyQueue.update(current);
+                        return current;
+                    }));
+        }
+    }
+
+    /**
+     * Ends the dispatch of a work unit of the job, so the job is handed out again if it has further work units.
+     *
+     * @param jobId job id
+     */
+    public void onWorkUnitDispatchEnded(UUID jobId) {
+        jobRegistry.computeIfPresent(jobId, (id, current) -> {
+            readyQueue.release(current);
+            return current;
+        });
+    }
+
+    /**
+     * Wakes up all workers waiting for ready work, so they re-evaluate which phases they may dispatch.
+     */
+    public void wakeUpWorkers() {
+        readyQueue.wakeUp();
+    }
+
+    /**
+     * @return the queue of jobs with a work unit ready to be dispatched
+     */
+    public ReadyQueue readyQueue() {
+        return readyQueue;
     }
 
     /**
      * Attempts to claim a batch by transitioning INIT -> IN_PROGRESS.
      *
+     * <p>A batch is not claimed while the job has reached its maximum number of concurrent batches.</p>
+     *
+     * <p>With leases enabled, the batch lease is acquired as well, before the state transition and outside the registry
+     * lock. It is released again if the transition fails. A batch processed by another instance, or whose lease can't
+     * be acquired for another reason, is marked IN_PROGRESS without being claimed, until {@link #syncSharedJobs()}
+     * applies its outcome or finds its lease gone.</p>
+     *
      * @param jobId   job id
      * @param batchId batch id
      * @return true if claimed; false otherwise
      */
     public boolean tryStartBatch(UUID jobId, UUID batchId) {
-        return Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
-            BatchState bs = job.batches().get(batchId);
-            if (bs == null) {
-                throw new IllegalStateException("Missing batch " + batchId);
+        boolean leased = true;
+        boolean acquired = false;
+        Path lease = batchLease(jobId, batchId);
+        if (leases.enabled()) {
+            if (!getJob(jobId).map(job -> mayStartBatch(job, batchId)).orElse(false)) {
+                return false;
             }
-            if (bs.status() != WorkUnitStatus.INIT) {
-                return new JobAndResult<>(job, false);
+            acquired = tryAcquireLease(lease);
+            leased = acquired && !io.exists(sharedOutcomeFile(jobId, batchId));
+        }
+        boolean started = false;
+        try {
+            started = Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
+                BatchState bs = job.batches().get(batchId);
+                if (bs == null) {
+                    throw new IllegalStateException("Missing batch " + batchId);
+                }
+                if (bs.status() != WorkUnitStatus.INIT || !job.batchSlotAvailable()) {
+                    return new JobAndResult<>(job, false);
+                }
+                return new JobAndResult<>(job.withBatchState(bs.startNow()), true);
+            }));
+        } finally {
+            if (acquired && !(started && leased)) {
+                leases.release(lease);
+            }
+        }
+        return started && leased;
+    }
+
+    /**
+     * @return whether the batch may be claimed, a missing batch is left to the state transition to report
+     */
+    private static boolean mayStartBatch(Job job, UUID batchId) {
+        BatchState bs = job.batches().get(batchId);
+        return bs == null || (bs.status() == WorkUnitStatus.INIT && job.batchSlotAvailable());
+    }
+
+    /**
+     * Replaces a claimed batch with sub-batches, as decided by adaptive batch sizing.
+     * <p>
+     * The sub-batch files are written before the job's batch map is updated, so a restart either sees the original
+     * batch or all of its sub-batches. They are written outside the registry lock, once the job was checked to accept
+     * the split. If it refuses the split in the meantime, the sub-batch files are removed again. The file of the
+     * original batch is removed once the split is applied.
+     *
+     * @param jobId      job id
+     * @param batchId    id of the claimed batch
+     * @param subBatches the sub-batches replacing it
+     * @return true if the split was applied; false if the batch is no longer claimed
+     * @throws IOException if the sub-batch files can't be written
+     */
+    public boolean splitBatch(UUID jobId, UUID batchId, List<PatientBatch> subBatches) throws IOException {
+        if (!getJob(jobId).map(job -> job.canSplitBatch(batchId)).orElse(false)) {
+            return false;
+        }
+        List<BatchState> states = new ArrayList<>();
+        try {
+            for (PatientBatch sub : subBatches) {
+                saveBatch(sub, jobId);
+                states.add(new BatchState(sub.batchId(), WorkUnitState.initNow()));
             }
-            return new JobAndResult<>(job.withBatchState(bs.startNow()), true);
+        } catch (IOException e) {
+            deleteBatchFiles(jobId, subBatches.stream().map(PatientBatch::batchId).toList());
+            throw e;
+        }
+
+        boolean split = Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
+            Job updated = job.splitBatch(batchId, states);
+            return new JobAndResult<>(updated, updated != job);
         }));
+
+        if (split) {
+            leases.release(batchLease(jobId, batchId));
+            deleteBatchFiles(jobId, List.of(batchId));
+        } else {
+            deleteBatchFiles(jobId, subBatches.stream().map(PatientBatch::batchId).toList());
+        }
+        return split;
+    }
+
+    private void deleteBatchFiles(UUID jobId, List<UUID> batchIds) {
+        for (UUID batchId : batchIds) {
+            try {
+                io.deleteIfExists(batchDir(jobId).resolve(batchId + ".ndjson"));
+            } catch (IOException e) {
+                logger.warn("Failed to remove file of batch {}: {}", batchId, e.getMessage(), e);
+            }
+        }
     }
 
     /**
@@ -356,6 +671,21 @@ public class JobPersistenceService {
         }
     }
 
+    /**
+     * Streams the patient ids of batches of a job from their files, so that a retried cohort can skip the patients
+     * already batched by a former attempt.
+     *
+     * @param jobId    job id
+     * @param batchIds the batches to read
+     * @return flux emitting the patient ids of the batches, or error if a batch file is missing or unreadable
+     */
+    public Flux<String> batchedIds(UUID jobId, Collection<UUID> batchIds) {
+        return Flux.fromIterable(batchIds)
+                .concatMap(batchId -> Flux.using(() -> io.lines(batchDir(jobId).resolve(batchId + ".ndjson")),
+                        Flux::fromStream, Stream::close))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
     /**
      * Persists a patient batch as NDJSON (one patient id per line).
      *
@@ -388,22 +718,93 @@ public class JobPersistenceService {
      */
     public void onCohortSuccess(UUID jobId, List<String> ids, Optional<Long> queryDurationNanos) {
         List<PatientBatch> batches = PatientBatch.of(ids).split(batchSize);
+        if (!getJob(jobId).map(job -> job.status() == JobStatus.RUNNING_GET_COHORT).orElse(false)) {
+            return;
+        }
 
-        updateJobAndReturn(jobId, job -> {
-            Map<UUID, BatchState> stateMap = new HashMap<>();
+        Map<UUID, BatchState> stateMap = new HashMap<>();
+        try {
             for (PatientBatch b : batches) {
                 saveBatch(b, jobId);
                 stateMap.put(b.batchId(), new BatchState(b.batchId(), WorkUnitState.initNow()));
             }
+            writeCohortDiagnostics(jobId, queryDurationNanos);
+        } catch (IOException e) {
+            deleteBatchFiles(jobId, List.copyOf(stateMap.keySet()));
+            onPersistenceError(jobId, e);
+            return;
+        }
 
-            if (queryDurationNanos.isPresent()) {
-                BatchDiagnostics diagnostics = BatchDiagnostics.empty();
-                diagnostics.batchDetails().nanosElapsed().put(PipelineStage.COHORT_QUERY, queryDurationNanos.get());
-                diagnosticsStore.writeDiagnostics(diagnostics, jobDir(jobId), "cohort");
-            }
+        boolean applied = Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
+            Job updated = job.onCohortSuccess(stateMap, ids.size());
+            return new JobAndResult<>(updated, updated != job);
+        }));
+        if (!applied) {
+            deleteBatchFiles(jobId, List.copyOf(stateMap.keySet()));
+        }
+    }
 
-            return new JobAndResult<>(job.onCohortSuccess(stateMap, ids.size()), null);
-        });
+    private void writeCohortDiagnostics(UUID jobId, Optional<Long> queryDurationNanos) throws IOException {
+        if (queryDurationNanos.isPresent()) {
+            BatchDiagnostics diagnostics = BatchDiagnostics.empty();
+            diagnostics.batchDetails().nanosElapsed().put(PipelineStage.COHORT_QUERY, queryDurationNanos.get());
+            diagnosticsStore.writeDiagnostics(diagnostics, jobDir(jobId), "cohort");
+        }
+    }
+
+    /**
+     * Persists a batch of a cohort still running and adds it to the job, so that it can be processed right away.
+     *
+     * @param jobId   job id
+     * @param attempt the start of the cohort attempt that produced the batch
+     * @param ids     the patient ids of the batch
+     * @return true if the batch was added; false if the cohort attempt is stale, in which case nothing is kept
+     */
+    public boolean onCohortBatch(UUID jobId, Instant attempt, List<String> ids) {
+        PatientBatch batch = PatientBatch.of(ids);
+        BatchState state = new BatchState(batch.batchId(), WorkUnitState.initNow());
+        if (!getJob(jobId).map(job -> job.onCohortBatch(attempt, state, ids.size()) != job).orElse(false)) {
+            return false;
+        }
+        try {
+            saveBatch(batch, jobId);
+        } catch (IOException e) {
+            deleteBatchFiles(jobId, List.of(batch.batchId()));
+            onPersistenceError(jobId, e);
+            return false;
+        }
+
+        boolean added = Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
+            Job updated = job.onCohortBatch(attempt, state, ids.size());
+            return new JobAndResult<>(updated, updated != job);
+        }));
+        if (!added) {
+            deleteBatchFiles(jobId, List.of(batch.batchId()));
+        }
+        return added;
+    }
+
+    /**
+     * Completes a cohort whose batches were added by {@link #onCohortBatch(UUID, Instant, List)}, persisting the
+     * job-wide cohort query timing.
+     *
+     * @param jobId              job id
+     * @param attempt            the start of the cohort attempt
+     * @param queryDurationNanos elapsed time of the cohort query, empty if patient IDs were given directly
+     * @param cohortCache        whether the cohort was served from the cohort cache, empty if it wasn't consulted
+     */
+    public void onCohortComplete(UUID jobId, Instant attempt, Optional<Long> queryDurationNanos,
+                                 Optional<CohortCacheStatus> cohortCache) {
+        if (!getJob(jobId).map(job -> job.onCohortComplete(attempt, cohortCache) != job).orElse(false)) {
+            return;
+        }
+        try {
+            writeCohortDiagnostics(jobId, queryDurationNanos);
+        } catch (IOException e) {
+            onPersistenceError(jobId, e);
+            return;
+        }
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCohortComplete(attempt, cohortCache), null));
     }
 
     /**
@@ -420,17 +821,34 @@ public class JobPersistenceService {
 
     /**
      * Applies batch success transition and persists the core-batch part and diagnostics.
+     * <p>
+     * The core-batch part and diagnostics are written before the transition, outside the registry lock, so that a
+     * finished batch always has its core-batch part on disk.
+     * <p>
+     * With leases enabled, a result whose batch lease was lost in the meantime is discarded, as another instance may
+     * process the batch now. The batch is rolled back once its lease is gone.
      *
      * @param result batch result
+     * @return whether the core-batch part and the finished batch state are on disk
      */
-    public void onBatchProcessingSuccess(BatchResult result) {
+    public boolean onBatchProcessingSuccess(BatchResult result) {
         UUID jobId = result.jobId();
+        AtomicBoolean persisted = new AtomicBoolean();
+        if (!holdsBatchLease(jobId, result.batchId())) {
+            logger.warn("Discard result of batch {} of job {}, since its lease was lost", result.batchId(), jobId);
+            return false;
+        }
 
-        updateJobAndReturn(jobId, job -> {
-            if (result.resultCoreBundle().isPresent()) {
-                saveCoreBatch(jobId, result.batchState().batchId(), result.resultCoreBundle().get());
+        if (getJob(jobId).map(job -> job.onBatchProcessingSuccess(result) != job).orElse(false)) {
+            try {
+                if (result.resultCoreBundle().isPresent()) {
+                    saveCoreBatch(jobId, result.batchState().batchId(), result.resultCoreBundle().get());
+                }
+            } catch (IOException e) {
+                onPersistenceError(jobId, e);
+                leases.release(batchLease(jobId, result.batchId()));
+                return false;
             }
-
             result.batchDiagnostics().ifPresent(diag -> {
                 try {
                     diagnosticsStore.writeDiagnostics(diag, jobDir(jobId), result.batchId().toString());
@@ -439,12 +857,11 @@ public class JobPersistenceService {
                             result.batchId(), e.getMessage(), e);
                 }
             });
+        }
 
-            return new JobAndResult<>(
-                    job.onBatchProcessingSuccess(result),
-                    null
-            );
-        });
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onBatchProcessingSuccess(result), null), persisted);
+        leases.release(batchLease(jobId, result.batchId()));
+        return persisted.get();
     }
 
     /**
@@ -457,6 +874,269 @@ public class JobPersistenceService {
      */
     public void onBatchError(UUID jobId, UUID batchId, List<Issue> issues, Throwable e) {
         updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onBatchError(batchId, e, issues), null));
+        leases.release(batchLease(jobId, batchId));
+    }
+
+    // -------------------------------------------------------------------------
+    // Shared job directory
+    // -------------------------------------------------------------------------
+
+    /**
+     * Synchronizes this instance with the other instances sharing the job directory, if leases are enabled.
+     *
+     * <ul>
+     *   <li>Jobs whose job lease this instance lost are dropped from the registry, as another instance owns them
+     *   now. The job leases of finished jobs are released.</li>
+     *   <li>The outcomes of batches processed by other instances are applied to the owned jobs.</li>
+     *   <li>Batches marked IN_PROGRESS without a live batch lease and outcome, whose processing instance is gone,
+     *   are rolled back to INIT.</li>
+     *   <li>Unfinished jobs without a live job lease, whose owner is gone, are taken over. Finished jobs are
+     *   registered read-only.</li>
+     * </ul>
+     */
+    @Scheduled(fixedDelayString = "${torch.cluster.sync-interval:PT5S}")
+    public void syncSharedJobs() {
+        if (!leases.enabled()) {
+            return;
+        }
+        for (Job job : List.copyOf(jobRegistry.values())) {
+            Path jobLease = jobLease(job.id());
+            if (job.status().isFinal()) {
+                if (leases.holds(jobLease)) {
+                    leases.release(jobLease);
+                }
+            } else if (!leases.holds(jobLease)) {
+                logger.warn("Drop job {} after losing its lease to another instance", job.id());
+                jobRegistry.remove(job.id());
+                readyQueue.remove(job.id());
+            } else if (job.processesBatches()) {
+                applySharedOutcomes(job.id());
+                rollbackOrphanedBatches(job.id());
+            }
+        }
+        takeOverOrphanedJobs();
+    }
+
+    /**
+     * Claims a batch of a job owned by another instance, to process it on behalf of the owner.
+     *
+     * <p>Only INIT batches of jobs processing batches are claimed, by acquiring their batch lease. The processed
+     * batch is handed back to the owner by {@link #onSharedBatchSuccess(BatchResult)} or
+     * {@link #onSharedBatchError(UUID, UUID, Throwable)}.</p>
+     *
+     * @return the claimed batch with its job as stored on disk, or empty if there is none
+     */
+    public Optional<BatchSelection> claimSharedBatch() {
+        if (!leases.enabled()) {
+            return Optional.empty();
+        }
+        for (UUID jobId : listJobIds()) {
+            if (jobRegistry.containsKey(jobId) || !leases.isLive(jobLease(jobId))) {
+                continue;
+            }
+            Optional<Job> job = loadJobFromDirectory(jobDir(jobId));
+            if (job.isEmpty() || !job.get().processesBatches()) {
+                continue;
+            }
+            for (BatchState bs : job.get().batches().values()) {
+                if (bs.status() == WorkUnitStatus.INIT && !leases.isLive(batchLease(jobId, bs.batchId()))
+                        && !io.exists(sharedOutcomeFile(jobId, bs.batchId()))) {
+                    Optional<BatchSelection> claimed = tryClaimSharedBatch(jobId, bs.batchId());
+                    if (claimed.isPresent()) {
+                        return claimed;
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Hands a batch processed on behalf of another instance back to the owner of its job.
+     *
+     * <p>The core-batch part and diagnostics are written to the job directory, followed by the outcome the owner
+     * applies to the job. If writing fails, or the batch lease was lost in the meantime, the batch is left to be
+     * processed again.</p>
+     *
+     * @param result batch result
+     */
+    public void onSharedBatchSuccess(BatchResult result) {
+        UUID jobId = result.jobId();
+        if (!holdsBatchLease(jobId, result.batchId())) {
+            logger.warn("Discard result of batch {} of job {} processed on behalf of its owner, since its lease was"
+                    + " lost", result.batchId(), jobId);
+            return;
+        }
+        try {
+            if (result.resultCoreBundle().isPresent()) {
+                saveCoreBatch(jobId, result.batchId(), result.resultCoreBundle().get());
+            }
+            if (result.batchDiagnostics().isPresent()) {
+                diagnosticsStore.writeDiagnostics(result.batchDiagnostics().get(), jobDir(jobId),
+                        result.batchId().toString());
+            }
+            writeJsonAtomically(sharedOutcomeFile(jobId, result.batchId()), SharedBatchOutcome.success(result));
+        } catch (IOException e) {
+            logger.warn("Failed to hand batch {} of job {} back to its owner: {}", result.batchId(), jobId,
+                    e.getMessage(), e);
+        } finally {
+            leases.release(batchLease(jobId, result.batchId()));
+        }
+    }
+
+    /**
+     * Hands the failure of a batch processed on behalf of another instance back to the owner of its job.
+     *
+     * @param jobId   job id
+     * @param batchId batch id
+     * @param e       cause
+     */
+    public void onSharedBatchError(UUID jobId, UUID batchId, Throwable e) {
+        try {
+            writeJsonAtomically(sharedOutcomeFile(jobId, batchId), SharedBatchOutcome.failure(batchId, e));
+        } catch (IOException ioe) {
+            logger.warn("Failed to hand failure of batch {} of job {} back to its owner: {}", batchId, jobId,
+                    ioe.getMessage(), ioe);
+        } finally {
+            leases.release(batchLease(jobId, batchId));
+        }
+    }
+
+    /**
+     * Acquires the lease of an unprocessed batch of a foreign job and loads the batch.
+     *
+     * <p>The job is loaded again after acquiring the lease, as the owner may have processed the batch since.</p>
+     */
+    private Optional<BatchSelection> tryClaimSharedBatch(UUID jobId, UUID batchId) {
+        Path lease = batchLease(jobId, batchId);
+        if (!tryAcquireLease(lease)) {
+            return Optional.empty();
+        }
+        try {
+            Optional<Job> job = loadJobFromDirectory(jobDir(jobId))
+                    .filter(Job::processesBatches)
+                    .filter(j -> j.batches().containsKey(batchId)
+                            && j.batches().get(batchId).status() == WorkUnitStatus.INIT);
+            if (job.isPresent() && !io.exists(sharedOutcomeFile(jobId, batchId))) {
+                logger.debug("Claimed batch {} of job {} owned by another instance", batchId, jobId);
+                return Optional.of(new BatchSelection(job.get(), loadBatch(jobId, batchId)));
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to load batch {} of job {}: {}", batchId, jobId, e.getMessage(), e);
+        }
+        leases.release(lease);
+        return Optional.empty();
+    }
+
+    private void applySharedOutcomes(UUID jobId) {
+        Path dir = leaseDir(jobId);
+        if (!io.exists(dir)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> list = io.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SHARED_OUTCOME_SUFFIX)).toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list batch outcomes of job {}: {}", jobId, e.getMessage(), e);
+            return;
+        }
+        for (Path file : files) {
+            try {
+                SharedBatchOutcome outcome;
+                try (Reader reader = io.newBufferedReader(file)) {
+                    outcome = mapper.readValue(reader, SharedBatchOutcome.class);
+                }
+                updateJobAndReturn(jobId, job -> new JobAndResult<>(outcome.succeeded()
+                        ? job.onBatchProcessingSuccess(outcome.toResult(jobId))
+                        : job.onBatchError(outcome.batchId(), outcome.cause(), outcome.issues()), null));
+                io.deleteIfExists(file);
+                logger.debug("Applied outcome of batch {} of job {} processed by another instance",
+                        outcome.batchId(), jobId);
+            } catch (IOException e) {
+                logger.warn("Failed to apply batch outcome {}: {}", file, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void rollbackOrphanedBatches(UUID jobId) {
+        Optional<Job> job = getJob(jobId);
+        if (job.isEmpty()) {
+            return;
+        }
+        List<BatchState> orphaned = new ArrayList<>();
+        for (BatchState bs : job.get().batches().values()) {
+            Path lease = batchLease(jobId, bs.batchId());
+            if (bs.status() == WorkUnitStatus.IN_PROGRESS && !leases.holds(lease) && !leases.isLive(lease)
+                    && !io.exists(sharedOutcomeFile(jobId, bs.batchId()))) {
+                orphaned.add(bs);
+            }
+        }
+        if (orphaned.isEmpty()) {
+            return;
+        }
+        updateJobAndReturn(jobId, current -> {
+            Job updated = current;
+            for (BatchState bs : orphaned) {
+                if (bs.equals(current.batches().get(bs.batchId()))
+                        && !leases.holds(batchLease(jobId, bs.batchId()))) {
+                    logger.debug("Roll back batch {} of job {} left by another instance", bs.batchId(), jobId);
+                    updated = updated.withBatchState(bs.rerollToInit());
+                }
+            }
+            return new JobAndResult<>(updated, null);
+        });
+    }
+
+    private void takeOverOrphanedJobs() {
+        for (UUID jobId : listJobIds()) {
+            if (jobRegistry.containsKey(jobId) || leases.isLive(jobLease(jobId))) {
+                continue;
+            }
+            Optional<Job> loaded = loadJobFromDirectory(jobDir(jobId))
+                    .filter(job -> job.status() != JobStatus.DELETED);
+            if (loaded.isEmpty()) {
+                continue;
+            }
+            if (loaded.get().status().isFinal()) {
+                jobRegistry.putIfAbsent(jobId, loaded.get());
+            } else if (tryAcquireLease(jobLease(jobId)) && register(loaded.get())) {
+                logger.info("Took over job {} from an instance that is gone", jobId);
+            }
+        }
+    }
+
+    private List<UUID> listJobIds() {
+        try (Stream<Path> dirs = io.list(baseDir)) {
+            return dirs.filter(io::isDirectory)
+                    .map(dir -> dir.getFileName().toString())
+                    .flatMap(name -> {
+                        try {
+                            return Stream.of(UUID.fromString(name));
+                        } catch (IllegalArgumentException e) {
+                            return Stream.empty();
+                        }
+                    })
+                    .toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list job directories: {}", e.getMessage(), e);
+            return List.of();
+        }
+    }
+
+    /**
+     * @return whether this instance still holds the lease of a batch it processed, always true without leases
+     */
+    private boolean holdsBatchLease(UUID jobId, UUID batchId) {
+        return !leases.enabled() || leases.holds(batchLease(jobId, batchId));
+    }
+
+    private boolean tryAcquireLease(Path lease) {
+        try {
+            return leases.tryAcquire(lease);
+        } catch (IOException e) {
+            logger.warn("Failed to acquire lease {}: {}", lease, e.getMessage(), e);
+            return false;
+        }
     }
 
     /**
@@ -465,32 +1145,35 @@ public class JobPersistenceService {
      * @param result core result
      */
     public void onCoreSuccess(CoreResult result) {
-        updateJobAndReturn(result.jobId(), job -> {
+        UUID jobId = result.jobId();
+        if (getJob(jobId).map(job -> job.onCoreSuccess(result) != job).orElse(false)) {
             result.diagnostics().ifPresent(diag -> {
                 try {
-                    diagnosticsStore.writeDiagnostics(diag, jobDir(job.id()), "core");
+                    diagnosticsStore.writeDiagnostics(diag, jobDir(jobId), "core");
                 } catch (IOException e) {
-                    logger.warn("Failed to save core diagnostics for job {}: {}",
-                            result.jobId(), e.getMessage(), e);
+                    logger.warn("Failed to save core diagnostics for job {}: {}", jobId, e.getMessage(), e);
                 }
             });
+        }
 
+        boolean completed = Boolean.TRUE.equals(updateJobAndReturn(jobId, job -> {
             Job updated = job.onCoreSuccess(result);
-            if (updated.status() == JobStatus.COMPLETED) {
-                try {
-                    JobDiagnosticSummary summary = buildAndSaveDiagnosticsSummary(result.jobId());
-                    Optional<String> mismatch = summary.verifyPatientCounts();
-                    if (mismatch.isPresent()) {
-                        logger.warn("Job {} diagnostics inconsistency: {}", result.jobId(), mismatch.get());
-                        updated = updated.withIssuesAdded(List.of(Issue.simple(Severity.WARNING, mismatch.get())));
-                    }
-                } catch (IOException | CsvValidationException e) {
-                    logger.warn("Failed to build job diagnostics summary for job {}: {}",
-                            result.jobId(), e.getMessage(), e);
-                }
+            return new JobAndResult<>(updated, updated != job && updated.status() == JobStatus.COMPLETED);
+        }));
+        if (!completed) {
+            return;
+        }
+        try {
+            JobDiagnosticSummary summary = buildAndSaveDiagnosticsSummary(jobId);
+            Optional<String> mismatch = summary.verifyPatientCounts();
+            if (mismatch.isPresent()) {
+                logger.warn("Job {} diagnostics inconsistency: {}", jobId, mismatch.get());
+                updateJobAndReturn(jobId, job -> new JobAndResult<>(
+                        job.withIssuesAdded(List.of(Issue.simple(Severity.WARNING, mismatch.get()))), null));
             }
-            return new JobAndResult<>(updated, null);
-        });
+        } catch (IOException | CsvValidationException e) {
+            logger.warn("Failed to build job diagnostics summary for job {}: {}", jobId, e.getMessage(), e);
+        }
     }
 
     /**
@@ -504,6 +1187,141 @@ public class JobPersistenceService {
         updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCoreError(e, issues), null));
     }
 
+    /**
+     * Persists the shards of a prepared core phase and records the partition in the job.
+     * <p>
+     * Like a batch's core part, each shard is persisted as its extraction info only. Its already loaded resources
+     * are staged separately when the core is partitioned.
+     *
+     * @param partition the partitioned core resources
+     */
+    public void onCorePartitioned(CorePartition partition) {
+        UUID jobId = partition.jobId();
+        if (!getJob(jobId).map(job -> job.status() == JobStatus.RUNNING_PROCESS_CORE && job.coreShards().isEmpty())
+                .orElse(false)) {
+            return;
+        }
+        try {
+            io.createDirectories(coreShardDir(jobId));
+            for (int shard = 0; shard < partition.shards().size(); shard++) {
+                writeJsonAtomically(coreShardDir(jobId).resolve(shard + ".json"),
+                        partition.shards().get(shard).extractionInfoMap());
+            }
+        } catch (IOException e) {
+            onPersistenceError(jobId, e);
+            return;
+        }
+        partition.diagnostics().ifPresent(diag -> {
+            try {
+                diagnosticsStore.writeDiagnostics(diag, jobDir(jobId), "core");
+            } catch (IOException e) {
+                logger.warn("Failed to save core diagnostics for job {}: {}", jobId, e.getMessage(), e);
+            }
+        });
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(
+                job.onCorePartitioned(partition.shards().size(), partition.issues()), null));
+    }
+
+    /**
+     * Applies core shard success transition and persists the shard outcome and diagnostics.
+     *
+     * @param result core shard result
+     */
+    public void onCoreShardSuccess(CoreShardResult result) {
+        UUID jobId = result.jobId();
+        if (!getJob(jobId).map(job -> job.onCoreShardSuccess(result) != job).orElse(false)) {
+            return;
+        }
+        try {
+            writeJsonAtomically(coreShardDir(jobId).resolve(result.shard() + OUTCOME_SUFFIX), result.outcome());
+        } catch (IOException e) {
+            onPersistenceError(jobId, e);
+            return;
+        }
+        result.diagnostics().ifPresent(diag -> {
+            try {
+                diagnosticsStore.writeDiagnostics(diag, jobDir(jobId), "core-" + result.shard());
+            } catch (IOException e) {
+                logger.warn("Failed to save diagnostics of core shard {} for job {}: {}",
+                        result.shard(), jobId, e.getMessage(), e);
+            }
+        });
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCoreShardSuccess(result), null));
+    }
+
+    /**
+     * Records that the core resources of a batch were staged.
+     *
+     * @param jobId   job id
+     * @param batchId the batch whose core resources were staged
+     * @param status  {@link WorkUnitStatus#FINISHED} if resources were staged, {@link WorkUnitStatus#SKIPPED} if
+     *                there was nothing to stage
+     */
+    public void onCoreStaged(UUID jobId, UUID batchId, WorkUnitStatus status) {
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCoreStaged(batchId, status), null));
+    }
+
+    /**
+     * Records that staging the core resources of a batch failed, leaving them to the core phase.
+     *
+     * @param jobId   job id
+     * @param batchId the batch whose core resources failed to stage
+     */
+    public void onCoreStageError(UUID jobId, UUID batchId) {
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCoreStageError(batchId), null));
+    }
+
+    /**
+     * Applies core shard error transition.
+     *
+     * @param jobId  job id
+     * @param shard  the failed shard
+     * @param issues issues to attach
+     * @param e      cause
+     */
+    public void onCoreShardError(UUID jobId, int shard, List<Issue> issues, Throwable e) {
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onCoreShardError(shard, e, issues), null));
+    }
+
+    /**
+     * Loads the extraction info of the resources assigned to a core shard.
+     *
+     * @param jobId job id
+     * @param shard the shard
+     * @return the shard's bundle, without resources
+     * @throws IOException if loading fails
+     */
+    public ExtractionResourceBundle loadCoreShard(UUID jobId, int shard) throws IOException {
+        try (var reader = io.newBufferedReader(coreShardDir(jobId).resolve(shard + ".json"))) {
+            Map<ExtractionId, ResourceExtractionInfo> infoMap = mapper.readValue(reader, new TypeReference<>() {
+            });
+            return new ExtractionResourceBundle(new ConcurrentHashMap<>(infoMap), new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Loads the outcomes of all processed core shards of a job.
+     *
+     * @param jobId job id
+     * @return the outcomes, in shard order
+     * @throws IOException if loading fails
+     */
+    public List<CoreShardOutcome> loadCoreShardOutcomes(UUID jobId) throws IOException {
+        Path dir = coreShardDir(jobId);
+        if (!io.exists(dir)) return List.of();
+
+        try (Stream<Path> files = io.list(dir)) {
+            List<CoreShardOutcome> outcomes = new ArrayList<>();
+            for (Path path : files.filter(p -> p.toString().endsWith(OUTCOME_SUFFIX)).toList()) {
+                try (var reader = io.newBufferedReader(path)) {
+                    outcomes.add(mapper.readValue(reader, CoreShardOutcome.class));
+                }
+            }
+            outcomes.sort(Comparator.comparingInt(CoreShardOutcome::shard));
+            return outcomes;
+        }
+    }
+
     /**
      * Applies orchestration/persistence error transition.
      *
@@ -546,6 +1364,31 @@ public class JobPersistenceService {
         return merged;
     }
 
+    /**
+     * Reads the core-batch parts of a job one at a time, so that they can be merged without holding all of them.
+     *
+     * @param jobId job id
+     * @return flux emitting the core bundle of each batch, without resources, or error if loading fails
+     */
+    public Flux<ExtractionResourceBundle> coreBatchParts(UUID jobId) {
+        return Mono.fromCallable(() -> coreBatchPartFiles(jobId))
+                .flatMapIterable(files -> files)
+                .concatMap(path -> Mono.fromCallable(() -> readCoreBatchPart(path)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Loads the core-batch part persisted for a single batch.
+     *
+     * @param jobId   job id
+     * @param batchId batch id
+     * @return the batch's core bundle, without resources
+     * @throws IOException if loading fails
+     */
+    public ExtractionResourceBundle loadCoreBatchPart(UUID jobId, UUID batchId) throws IOException {
+        return readCoreBatchPart(coreBatchDir(jobId).resolve(batchId + ".json"));
+    }
+
     /**
      * Persists a core-batch extraction result for a batch.
      *
@@ -575,6 +1418,9 @@ public class JobPersistenceService {
      * Atomically updates a job in the registry and persists {@code job.json}
      * if the job changed by applying the function fn to the job.
      * <p>
+     * With the job journal enabled, the change is only enqueued to the journal while the registry entry is locked,
+     * and this method waits for the group commit of the journal after releasing the lock.
+     * <p>
      * Package private for testing
      *
      * @param jobId job id
@@ -583,46 +1429,114 @@ public class JobPersistenceService {
      * @return result or {@code null} if update/persist failed
      */
     <T> T updateJobAndReturn(UUID jobId, JobUpdate<T> fn) {
+        return updateJobAndReturn(jobId, fn, new AtomicBoolean());
+    }
+
+    /**
+     * Like {@link #updateJobAndReturn(UUID, JobUpdate)}, additionally reporting whether the update was applied and
+     * is on disk.
+     *
+     * @param persisted set to {@code true} if the function succeeded and the updated job was persisted
+     */
+    private <T> T updateJobAndReturn(UUID jobId, JobUpdate<T> fn, AtomicBoolean persisted) {
         requireNonNull(jobId);
         requireNonNull(fn);
 
         AtomicReference<T> resultRef = new AtomicReference<>();
+        AtomicReference<CompletableFuture<Void>> commitRef = new AtomicReference<>();
 
         jobRegistry.computeIfPresent(jobId, (id, current) -> {
             Job updatedJob;
+            boolean applied = true;
             try {
                 JobAndResult<T> jr = fn.apply(current);
                 updatedJob = jr.job();
                 resultRef.set(jr.result());
             } catch (IOException e) {
-                Issue issue = Issue.fromException(
-                        Severity.ERROR,
-                        "Job update/persistence failed: " + e.getMessage(),
-                        e
-                );
-                updatedJob = current.onJobError(e, List.of(issue));
+                updatedJob = current.onJobError(e, List.of(persistenceIssue(e)));
+                applied = false;
             }
             if (current.equals(updatedJob)) {
+                readyQueue.update(current);
+                persisted.set(applied);
                 return current;
             }
+            Job next;
             try {
-                Job saved = saveJob(updatedJob.incrementVersion());
+                if (journal != null) {
+                    next = updatedJob.incrementVersion();
+                    commitRef.set(journal.append(current, next));
+                } else {
+                    next = saveJob(updatedJob.incrementVersion());
+                }
+                persisted.set(applied);
                 // If the caller set result == job, replace it with the version-incremented saved job
                 if (resultRef.get() == updatedJob) {
                     @SuppressWarnings("unchecked")
-                    T savedAsT = (T) saved;
+                    T savedAsT = (T) next;
                     resultRef.set(savedAsT);
                 }
-                return saved;
             } catch (IOException e) {
                 logger.error("Failed to save job.json for {}: {}", id, e.getMessage(), e);
-                return current.onJobError(e, List.of());
+                next = current.onJobError(e, List.of());
             }
+            readyQueue.update(next);
+            return next;
         });
 
+        CompletableFuture<Void> commit = commitRef.get();
+        if (commit != null && !awaitCommit(jobId, commit)) {
+            persisted.set(false);
+        }
         return resultRef.get();
     }
 
+    private static Issue persistenceIssue(IOException e) {
+        return Issue.fromException(Severity.ERROR, "Job update/persistence failed: " + e.getMessage(), e);
+    }
+
+    /**
+     * Fails a job because files written ahead of a state transition, outside the registry lock, couldn't be written.
+     */
+    private void onPersistenceError(UUID jobId, IOException e) {
+        updateJobAndReturn(jobId, job -> new JobAndResult<>(job.onJobError(e, List.of(persistenceIssue(e))), null));
+    }
+
+    /**
+     * Waits for the journal to commit a state change. If the commit fails, the job is marked as failed and the failed
+     * state is journaled again, which writes a full snapshot of the job since the journal lost records.
+     *
+     * @return whether the state change was committed
+     */
+    private boolean awaitCommit(UUID jobId, CompletableFuture<Void> commit) {
+        try {
+            commit.join();
+            return true;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            logger.error("Failed to journal state change of job {}: {}", jobId, cause.getMessage(), cause);
+            AtomicReference<CompletableFuture<Void>> snapshotRef = new AtomicReference<>();
+            jobRegistry.computeIfPresent(jobId, (id, current) -> {
+                Job failed = current.onJobError(cause, List.of()).incrementVersion();
+                snapshotRef.set(journal.append(current, failed));
+                readyQueue.update(failed);
+                return failed;
+            });
+            CompletableFuture<Void> snapshot = snapshotRef.get();
+            if (snapshot == null) {
+                return false;
+            }
+            try {
+                snapshot.join();
+            } catch (CompletionException snapshotError) {
+                Throwable snapshotCause = snapshotError.getCause() == null ? snapshotError : snapshotError.getCause();
+                logger.error("Failed to persist the error state of job {}, it is only kept in memory: {}", jobId,
+                        snapshotCause.getMessage(), snapshotCause);
+            }
+            return false;
+        }
+    }
+
     private void initJob(Job initialJob) throws IOException {
         requireNonNull(initialJob);
 
@@ -633,8 +1547,12 @@ public class JobPersistenceService {
 
         try {
             ensureDirectoryStructure(jobId);
-            saveJob(initialJob);
-            jobRegistry.put(jobId, initialJob);
+            if (!leases.tryAcquire(jobLease(jobId))) {
+                throw new IOException("Job lease is held by another instance");
+            }
+            Job stored = saveJob(withStoredParameters(initialJob));
+            jobRegistry.put(jobId, stored);
+            readyQueue.update(stored);
             logger.debug("Initialized new job {}", jobId);
         } catch (IOException e) {
             throw new IOException("Failed to initialize job " + jobId, e);
@@ -661,6 +1579,44 @@ public class JobPersistenceService {
         }
     }
 
+    /**
+     * Writes the content of the job parameters to their write-once file unless it is already stored.
+     *
+     * @param job the job
+     * @return the job referencing its stored parameters
+     * @throws IOException if writing the parameters fails
+     */
+    private Job withStoredParameters(Job job) throws IOException {
+        JobParameters parameters = job.parameters();
+        if (parameters.isStored()) {
+            return job;
+        }
+        byte[] content = JobParameters.serialize(parameters.content());
+        String hash = parameters.hash();
+        Path file = parametersFile(job.id(), hash);
+        if (!io.exists(file)) {
+            io.createDirectories(file.getParent());
+            Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = io.newBufferedWriter(tmpFile)) {
+                out.write(new String(content, StandardCharsets.UTF_8));
+            }
+            io.atomicMove(tmpFile, file);
+        }
+        return job.withParameters(JobParameters.stored(hash, parameters.kickOffUrl(), parametersLoader(job.id())));
+    }
+
+    private JobParameters.Loader parametersLoader(UUID jobId) {
+        return hash -> {
+            try (Reader reader = io.newBufferedReader(parametersFile(jobId, hash))) {
+                return mapper.readValue(reader, JobParameters.Content.class);
+            }
+        };
+    }
+
+    private Path parametersFile(UUID jobId, String hash) {
+        return jobDir(jobId).resolve(PARAMETERS_FILE_PREFIX + hash + ".json");
+    }
+
     public JobDiagnosticSummary loadJobSummary(UUID jobId) throws IOException {
         return diagnosticsStore.readSummary(jobDir(jobId));
     }
@@ -682,8 +1638,12 @@ public class JobPersistenceService {
     // -------------------------------------------------------------------------
 
     Optional<WorkUnit> selectNextInternal(UUID jobId) {
+        return selectNextInternal(jobId, EnumSet.allOf(WorkPhase.class));
+    }
+
+    Optional<WorkUnit> selectNextInternal(UUID jobId, Set<WorkPhase> phases) {
         return Optional.ofNullable(updateJobAndReturn(jobId, job -> {
-            Optional<WorkUnit> maybeWU = job.selectNextWorkUnit();
+            Optional<WorkUnit> maybeWU = job.selectNextWorkUnit(phases);
             if (maybeWU.isEmpty()) {
                 return new JobAndResult<>(job, null);
             }
@@ -699,7 +1659,9 @@ public class JobPersistenceService {
     private Optional<Job> loadJobFromDirectory(Path dir) {
         Path jobFile = dir.resolve(JOB_FILE_NAME);
         try (var reader = io.newBufferedReader(jobFile)) {
-            return Optional.ofNullable(mapper.readValue(reader, Job.class));
+            return Optional.ofNullable(mapper.readValue(reader, Job.class))
+                    .map(job -> JobJournal.replay(job, dir, io, mapper))
+                    .map(job -> job.withParameters(job.parameters().withLoader(parametersLoader(job.id()))));
         } catch (IOException e) {
             logger.warn("Skipping job directory {}: failed to read {}", dir, jobFile, e);
             return Optional.empty();
@@ -723,6 +1685,34 @@ public class JobPersistenceService {
         return jobDir(jobId).resolve(BATCH_DIR_NAME);
     }
 
+    private Path coreShardDir(UUID jobId) {
+        return jobDir(jobId).resolve(CORE_SHARD_DIR_NAME);
+    }
+
+    private Path leaseDir(UUID jobId) {
+        return jobDir(jobId).resolve(LEASE_DIR_NAME);
+    }
+
+    private Path jobLease(UUID jobId) {
+        return leaseDir(jobId).resolve(JOB_LEASE_FILE_NAME);
+    }
+
+    private Path batchLease(UUID jobId, UUID batchId) {
+        return leaseDir(jobId).resolve(batchId + LEASE_SUFFIX);
+    }
+
+    private Path sharedOutcomeFile(UUID jobId, UUID batchId) {
+        return leaseDir(jobId).resolve(batchId + SHARED_OUTCOME_SUFFIX);
+    }
+
+    private void writeJsonAtomically(Path file, Object value) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = io.newBufferedWriter(tmp)) {
+            mapper.writeValue(writer, value);
+        }
+        io.atomicMove(tmp, file);
+    }
+
     private Path coreBatchDir(UUID jobId) {
         return jobDir(jobId).resolve(CORE_DIR_NAME);
     }
@@ -758,25 +1748,33 @@ public class JobPersistenceService {
     }
 
     private List<ExtractionResourceBundle> loadAllCoreBatchParts(UUID jobId) throws IOException {
+        List<ExtractionResourceBundle> results = new ArrayList<>();
+        for (Path path : coreBatchPartFiles(jobId)) {
+            results.add(readCoreBatchPart(path));
+        }
+        return results;
+    }
+
+    private List<Path> coreBatchPartFiles(UUID jobId) throws IOException {
         Path dir = coreBatchDir(jobId);
         if (!io.exists(dir)) return List.of();
 
         try (Stream<Path> files = io.list(dir)) {
-            List<ExtractionResourceBundle> results = new ArrayList<>();
-            for (Path path : files.filter(p -> p.toString().endsWith(".json")).toList()) {
-                try (var reader = io.newBufferedReader(path)) {
-                    Map<ExtractionId, ResourceExtractionInfo> infoMap =
-                            mapper.readValue(reader, new TypeReference<>() {
-                            });
-                    results.add(new ExtractionResourceBundle(
-                            new ConcurrentHashMap<>(infoMap),
-                            new ConcurrentHashMap<>()
-                    ));
-                } catch (Exception e) {
-                    throw new IOException("Failed to load core batch file: " + path, e);
-                }
-            }
-            return results;
+            return files.filter(p -> p.toString().endsWith(".json")).toList();
+        }
+    }
+
+    private ExtractionResourceBundle readCoreBatchPart(Path path) throws IOException {
+        try (var reader = io.newBufferedReader(path)) {
+            Map<ExtractionId, ResourceExtractionInfo> infoMap =
+                    mapper.readValue(reader, new TypeReference<>() {
+                    });
+            return new ExtractionResourceBundle(
+                    new ConcurrentHashMap<>(infoMap),
+                    new ConcurrentHashMap<>()
+            );
+        } catch (Exception e) {
+            throw new IOException("Failed to load core batch file: " + path, e);
         }
     }
 }
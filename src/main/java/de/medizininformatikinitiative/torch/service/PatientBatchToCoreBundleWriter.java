@@ -57,25 +57,45 @@ public class PatientBatchToCoreBundleWriter {
      * @param batch      patient batch containing multiple ExtractionBundles
      */
     private void handlePatientBundles(ExtractionResourceBundle coreBundle, ExtractionPatientBatch batch) {
+        batch.bundles().values().forEach(bundle -> addPatientBundle(coreBundle, bundle));
+    }
 
-        batch.bundles().values().forEach(bundle -> {
-            bundle.extractionInfoMap().forEach((key, info) -> {
-                if (!compartmentManager.isInCompartment(key)) {
-                    coreBundle.extractionInfoMap().merge(
-                            key,
-                            info,
-                            ResourceExtractionInfo::merge
-                    );
-                }
-            });
-            bundle.cache().forEach((key, value) -> {
-                if (!compartmentManager.isInCompartment(key)) {
-                    coreBundle.cache().put(key, value);
-                }
-            });
+    /**
+     * Merges the non-compartment extraction data of a single patient's ExtractionBundle into {@code coreBundle}.
+     * <p>
+     * Follows the same rules as {@link #updateCore(ExtractionResourceBundle, ExtractionPatientBatch)} for patient
+     * bundles, so a batch can be handed off to the core bundle one patient at a time.
+     *
+     * @param coreBundle    core bundle that is populated
+     * @param patientBundle the transformed bundle of a single patient
+     */
+    public void addPatientBundle(ExtractionResourceBundle coreBundle, ExtractionResourceBundle patientBundle) {
+        patientBundle.extractionInfoMap().forEach((key, info) -> {
+            if (!compartmentManager.isInCompartment(key)) {
+                coreBundle.extractionInfoMap().merge(
+                        key,
+                        info,
+                        ResourceExtractionInfo::merge
+                );
+            }
+        });
+        patientBundle.cache().forEach((key, value) -> {
+            if (!compartmentManager.isInCompartment(key)) {
+                coreBundle.cache().put(key, value);
+            }
         });
     }
 
+    /**
+     * Merges a batch's own core bundle into {@code coreBundle}.
+     *
+     * @param coreBundle       core bundle that is populated
+     * @param sourceCoreBundle the batch's compartment-filtered core bundle
+     */
+    public void addBatchCoreBundle(ExtractionResourceBundle coreBundle, ExtractionResourceBundle sourceCoreBundle) {
+        handleSourceCoreBundle(coreBundle, sourceCoreBundle);
+    }
+
 
     /**
      * Merges the batch’s own core bundle (which is already compartment-filtered)
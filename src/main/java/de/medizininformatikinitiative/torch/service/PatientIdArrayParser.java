@@ -0,0 +1,72 @@
+package de.medizininformatikinitiative.torch.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a JSON array of patient ids incrementally, as the chunks of a response body arrive, so that the ids can be
+ * passed on before the whole array was received.
+ */
+final class PatientIdArrayParser {
+
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private boolean started;
+    private boolean finished;
+
+    PatientIdArrayParser(JsonFactory factory) throws IOException {
+        this.parser = factory.createNonBlockingByteArrayParser();
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Feeds the next chunk of the array.
+     *
+     * @param bytes the chunk
+     * @return the ids completed by the chunk
+     * @throws IOException if the chunk isn't part of an array of strings
+     */
+    List<String> feed(byte[] bytes) throws IOException {
+        feeder.feedInput(bytes, 0, bytes.length);
+        return parse();
+    }
+
+    /**
+     * Ends the input.
+     *
+     * @return the ids completed by the end of the input
+     * @throws IOException if the array is incomplete
+     */
+    List<String> complete() throws IOException {
+        feeder.endOfInput();
+        List<String> ids = parse();
+        if (!finished) {
+            throw new JsonParseException(parser, "Incomplete array of patient ids");
+        }
+        return ids;
+    }
+
+    private List<String> parse() throws IOException {
+        List<String> ids = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if (token == JsonToken.START_ARRAY && !started) {
+                started = true;
+            } else if (token == JsonToken.VALUE_STRING && started && !finished) {
+                ids.add(parser.getText());
+            } else if (token == JsonToken.END_ARRAY && started && !finished) {
+                finished = true;
+            } else {
+                throw new JsonParseException(parser, "Expected an array of patient ids, got " + token);
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,196 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the raw responses of FHIR searches on disk, so that retried batches and re-run jobs, for example after a
+ * change of the CRTDL that only affects copy and redact, don't fetch the same resources again.
+ * <p>
+ * Entries are keyed by a hash of the normalized search: its type and params, with the params sorted and the ids of
+ * the id-list params {@code _id}, {@code patient} and {@code subject} sorted, so that the order of the patient ids of a
+ * batch doesn't matter. The values of other params keep their order, which may be significant like with
+ * {@code _sort}. An entry holds the body of every page of the search, one per line, and is only stored once all
+ * pages were fetched. Entries are kept by a {@link FileEntryStore}, which expires them and evicts the least recently
+ * used ones while the cache exceeds its maximum size. The cache is shared by all jobs of the instance.
+ * <p>
+ * Metrics: {@code torch.search.cache.hits} and {@code torch.search.cache.misses} count the searches served from the
+ * cache and fetched from the server, {@code torch.search.cache.hit.bytes} and {@code torch.search.cache.miss.bytes}
+ * the bytes of their responses, giving the byte hit rate. {@code torch.search.cache.evictions} counts the evicted
+ * entries and {@code torch.search.cache.size} is the size of all entries in bytes.
+ */
+public class SearchResponseCache implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchResponseCache.class);
+    private static final SearchResponseCache DISABLED = new SearchResponseCache();
+    private static final Set<String> ID_LIST_PARAMS = Set.of("_id", "patient", "subject");
+
+    @Nullable
+    private final FileEntryStore<String> store;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong hitBytes = new AtomicLong();
+
+    /**
+     * Creates a cache and loads the entries already stored in its directory.
+     *
+     * @param dir      the directory holding the cached responses
+     * @param maxBytes the maximum size of all cached responses
+     * @param ttl      the time after which a cached response is fetched again
+     * @param io       file access
+     */
+    public SearchResponseCache(String dir, long maxBytes, Duration ttl, FileIo io) {
+        this(dir, maxBytes, ttl, io, Clock.systemUTC());
+    }
+
+    SearchResponseCache(String dir, long maxBytes, Duration ttl, FileIo io, Clock clock) {
+        // JSON strings can't contain raw line breaks, so removing them keeps one page per line
+        this.store = new FileEntryStore<>("search response", Paths.get(dir).toAbsolutePath(), ".ndjson", maxBytes,
+                ttl, body -> List.of(body.replace('\n', ' ').replace('\r', ' ')), io, clock);
+    }
+
+    private SearchResponseCache() {
+        this.store = null;
+    }
+
+    /**
+     * @return a cache that caches nothing
+     */
+    public static SearchResponseCache disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return whether search responses are cached
+     */
+    public boolean enabled() {
+        return store != null;
+    }
+
+    /**
+     * Calculates the key of a search.
+     *
+     * @param query the search
+     * @return the hex encoded hash of the normalized search
+     */
+    public static String key(Query query) {
+        String normalized = query.params().params().stream()
+                .map(param -> param.name() + "=" + (ID_LIST_PARAMS.contains(param.name())
+                        ? sortedValues(param.value().toString())
+                        : param.value().toString()))
+                .sorted()
+                .collect(Collectors.joining("&", query.type() + "?", ""));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sortedValues(String value) {
+        return Arrays.stream(value.split("(?<!\\\\),")).sorted().collect(Collectors.joining(","));
+    }
+
+    /**
+     * Looks up the cached response of a search.
+     * <p>
+     * Blocks while checking the entry, so it has to be called on a thread that may block.
+     *
+     * @param query the search
+     * @return the page bodies of the cached response, read on subscription, or empty if there is no unexpired entry
+     */
+    public Optional<Flux<String>> lookup(Query query) {
+        if (!enabled()) {
+            return Optional.empty();
+        }
+        String key = key(query);
+        Optional<FileEntryStore.Hit> hit = store.lookup(key);
+        if (hit.isEmpty()) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        hitBytes.addAndGet(hit.get().bytes());
+        logger.trace("Serve search {} from response cache entry {}", query, key);
+        return Optional.of(hit.get().lines());
+    }
+
+    /**
+     * Opens a new entry for the page bodies of a search, which is stored once
+     * {@linkplain FileEntryStore.PendingEntry#commit() committed}.
+     *
+     * @param query the search
+     * @return the new entry
+     */
+    public Mono<FileEntryStore<String>.PendingEntry> open(Query query) {
+        return store.open(key(query));
+    }
+
+    /**
+     * Removes all cached responses, so that every search is fetched from the server again.
+     *
+     * @throws IOException if a cached response could not be deleted
+     */
+    public void invalidateAll() throws IOException {
+        if (!enabled()) {
+            return;
+        }
+        store.removeAll();
+        logger.info("Invalidated the search response cache");
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("torch.search.cache.hits", hits, AtomicLong::get)
+                .description("Number of searches served from the search response cache")
+                .register(registry);
+        FunctionCounter.builder("torch.search.cache.misses", misses, AtomicLong::get)
+                .description("Number of cacheable searches fetched from the FHIR server")
+                .register(registry);
+        FunctionCounter.builder("torch.search.cache.hit.bytes", hitBytes, AtomicLong::get)
+                .description("Bytes of the search responses served from the search response cache")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("torch.search.cache.miss.bytes", this, cache -> cache.storeMetric(FileEntryStore::storedBytes))
+                .description("Bytes of the search responses fetched from the FHIR server and cached")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("torch.search.cache.evictions", this, cache -> cache.storeMetric(FileEntryStore::evictions))
+                .description("Number of search responses evicted from the cache because it exceeded its size")
+                .register(registry);
+        Gauge.builder("torch.search.cache.size", this, cache -> cache.storeMetric(FileEntryStore::totalBytes))
+                .description("Size of all cached search responses")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private double storeMetric(ToLongFunction<FileEntryStore<String>> metric) {
+        return enabled() ? metric.applyAsLong(store) : 0;
+    }
+}
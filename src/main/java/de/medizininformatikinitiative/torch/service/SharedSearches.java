@@ -0,0 +1,201 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDetails;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.exceptions.PatientIdNotFoundException;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.util.ResourceUtils;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Shares the search results of a single patient batch between its stages.
+ * <p>
+ * The searches the direct load of a batch will run are known before the batch is fetched. A search of an earlier
+ * stage, like the consent fetch, that is covered by one of them runs that wider search instead and filters its results
+ * locally. A search covers another one of the same type if the other one only adds params that can be evaluated
+ * locally, which are {@code status} and {@code _elements}. The results of the wider search are kept until the direct
+ * load runs it, which is then served without requesting the server again.
+ * <p>
+ * All searches are given without the compartment param of the batch, which is added when requesting the server.
+ */
+public class SharedSearches {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedSearches.class);
+    private static final SharedSearches DISABLED = new SharedSearches(List.of(), null);
+    private static final Set<String> LOCAL_PARAMS = Set.of("status", "_elements");
+
+    private final List<Query> planned;
+    @Nullable
+    private final BatchDetails details;
+    private final Map<Query, Shared> shared = new ConcurrentHashMap<>();
+
+    private SharedSearches(List<Query> planned, @Nullable BatchDetails details) {
+        this.planned = List.copyOf(planned);
+        this.details = details;
+    }
+
+    /**
+     * @return shared searches that run every search on its own
+     */
+    public static SharedSearches disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Creates the shared searches of a batch.
+     *
+     * @param planned the searches the direct load of the batch will run
+     * @param details the details of the batch recording the widened and saved searches
+     * @return the shared searches of the batch
+     */
+    public static SharedSearches of(List<Query> planned, BatchDetails details) {
+        return new SharedSearches(planned, requireNonNull(details));
+    }
+
+    /**
+     * Searches for an earlier stage of the batch, running a planned search of the direct load instead if it covers
+     * the query.
+     *
+     * @param dataStore the data store to search
+     * @param batch     the batch whose compartment is searched
+     * @param query     the query without the compartment param
+     * @param type      the type of the resources returned
+     * @return the resources of the batch matching the query
+     */
+    public <T extends DomainResource> Flux<T> searchAndShare(DataStore dataStore, PatientBatch batch, Query query,
+                                                             Class<T> type) {
+        Optional<Query> wider = planned.stream().filter(p -> covers(p, query)).findFirst();
+        if (wider.isEmpty()) {
+            return search(dataStore, batch, query, type);
+        }
+        AtomicBoolean widened = new AtomicBoolean();
+        Shared entry = shared.computeIfAbsent(wider.get(), q -> {
+            widened.set(true);
+            logger.debug("Widen search {} to planned search {} of batch {}", query, q, batch.batchId());
+            return new Shared(Set.copyOf(batch.ids()),
+                    search(dataStore, batch, q, DomainResource.class).cache(),
+                    new AtomicInteger((int) planned.stream().filter(q::equals).count()));
+        });
+        record(widened.get() ? BatchMeasurement.SHARED_SEARCHES_WIDENED : BatchMeasurement.SHARED_SEARCHES_SAVED);
+        return entry.results(batch).filter(localFilter(wider.get(), query)).ofType(type);
+    }
+
+    /**
+     * Runs a planned search of the direct load, serving it from the results kept by an earlier stage if there are
+     * any for all patients of the batch.
+     *
+     * @param dataStore the data store to search
+     * @param batch     the batch whose compartment is searched
+     * @param query     the query without the compartment param
+     * @return the resources of the batch matching the query
+     */
+    public Flux<DomainResource> searchShared(DataStore dataStore, PatientBatch batch, Query query) {
+        Shared entry = shared.get(query);
+        if (entry == null || !entry.patientIds().containsAll(batch.ids())) {
+            return search(dataStore, batch, query, DomainResource.class);
+        }
+        if (entry.pendingUses().decrementAndGet() <= 0) {
+            shared.remove(query);
+        }
+        logger.debug("Serve search {} of batch {} from shared results", query, batch.batchId());
+        record(BatchMeasurement.SHARED_SEARCHES_SAVED);
+        return entry.results(batch);
+    }
+
+    /**
+     * @param query the query without the compartment param
+     * @return whether an earlier stage kept results for the planned search
+     */
+    public boolean hasShared(Query query) {
+        return shared.containsKey(query);
+    }
+
+    private static <T extends DomainResource> Flux<T> search(DataStore dataStore, PatientBatch batch, Query query,
+                                                             Class<T> type) {
+        return dataStore.search(
+                Query.of(query.type(), batch.compartmentSearchParam(query.type()).appendParams(query.params())),
+                type);
+    }
+
+    private void record(BatchMeasurement measurement) {
+        if (details != null) {
+            details.record(measurement, 1);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the results of {@code wider} contain all results of {@code query}, which only adds
+     * locally evaluable params to it.
+     */
+    static boolean covers(Query wider, Query query) {
+        if (!wider.type().equals(query.type()) || hasParam(wider, "_elements")) {
+            return false;
+        }
+        Set<QueryParams.Param> params = new HashSet<>(query.params().params());
+        return params.containsAll(wider.params().params()) && params.stream()
+                .filter(param -> !wider.params().params().contains(param))
+                .allMatch(param -> LOCAL_PARAMS.contains(param.name()));
+    }
+
+    private static boolean hasParam(Query query, String name) {
+        return query.params().params().stream().anyMatch(param -> param.name().equals(name));
+    }
+
+    /**
+     * Evaluates the params {@code query} adds to {@code wider} on a resource.
+     */
+    private static Predicate<DomainResource> localFilter(Query wider, Query query) {
+        return query.params().params().stream()
+                .filter(param -> !wider.params().params().contains(param))
+                .filter(param -> param.name().equals("status"))
+                .map(param -> (Predicate<DomainResource>) resource -> hasStatus(resource, param.value().toString()))
+                .reduce(resource -> true, Predicate::and);
+    }
+
+    private static boolean hasStatus(DomainResource resource, String statuses) {
+        Property status = resource.getNamedProperty("status");
+        if (status == null) {
+            return false;
+        }
+        Set<String> accepted = Set.of(statuses.split(","));
+        return status.getValues().stream().map(Base::primitiveValue).anyMatch(accepted::contains);
+    }
+
+    private record Shared(Set<String> patientIds, Flux<DomainResource> results, AtomicInteger pendingUses) {
+
+        /**
+         * Returns the shared results of the patients of the batch, which may be fewer than the results were
+         * fetched for.
+         */
+        Flux<DomainResource> results(PatientBatch batch) {
+            Set<String> ids = Set.copyOf(batch.ids());
+            return results.filter(resource -> {
+                try {
+                    return ids.contains(ResourceUtils.patientId(resource));
+                } catch (PatientIdNotFoundException e) {
+                    return false;
+                }
+            });
+        }
+    }
+}
@@ -8,7 +8,9 @@ import de.medizininformatikinitiative.torch.util.ResultFileManager;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.UnsignedIntType;
 import org.hl7.fhir.r4.model.UrlType;
 import org.springframework.stereotype.Component;
 
@@ -22,6 +24,21 @@ public class JobTaskMapper {
     private static final String TORCH_STATUS_SYSTEM =
             "https://medizininformatik-initiative.de/torch/job-status";
 
+    /**
+     * Type text of the task input holding the maximum number of batches of the job processed at the same time.
+     */
+    public static final String MAX_CONCURRENT_BATCHES = "maxConcurrentBatches";
+
+    /**
+     * Type text of the task output holding the number of batches of the job currently in progress.
+     */
+    public static final String BATCHES_IN_PROGRESS = "batchesInProgress";
+
+    /**
+     * Type text of the task output holding whether the cohort of the job was served from the cohort cache.
+     */
+    public static final String COHORT_CACHE = "cohortCache";
+
     private final ResultFileManager resultFileManager;
     private final String fileServerName;
 
@@ -66,6 +83,21 @@ public class JobTaskMapper {
 
         task.setDescription("TORCH Job " + job.id());
 
+        if (job.maxConcurrentBatches() > 0) {
+            task.addInput()
+                    .setType(new CodeableConcept().setText(MAX_CONCURRENT_BATCHES))
+                    .setValue(new UnsignedIntType(job.maxConcurrentBatches()));
+        }
+        if (job.processesBatches()) {
+            task.addOutput()
+                    .setType(new CodeableConcept().setText(BATCHES_IN_PROGRESS))
+                    .setValue(new UnsignedIntType(job.batchesInProgress()));
+        }
+
+        job.cohortCache().ifPresent(cache -> task.addOutput()
+                .setType(new CodeableConcept().setText(COHORT_CACHE))
+                .setValue(new StringType(cache.name())));
+
         if (job.status() == JobStatus.COMPLETED) {
             job.batches().keySet().forEach(batchId -> {
                 if (resultFileManager.consentAuditExists(job.id().toString(), batchId)) {
@@ -0,0 +1,461 @@
+package de.medizininformatikinitiative.torch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.diagnostics.ConsentAuditEntry;
+import de.medizininformatikinitiative.torch.diagnostics.exclusions.BatchExclusions;
+import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionEvent;
+import de.medizininformatikinitiative.torch.diagnostics.exclusions.ResourceExclusionEvent;
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
+import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
+import de.medizininformatikinitiative.torch.model.consent.Period;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.model.extraction.ResourceExtractionInfo;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
+import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
+import de.medizininformatikinitiative.torch.model.management.ResourceGroup;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The completed stages of a single patient batch, persisted to the job directory so that a retried or restarted
+ * batch resumes from its last completed stage instead of fetching everything again.
+ * <p>
+ * The checkpoints of a batch live in {@code checkpoints/{batchId}/} of the job directory:
+ * <ul>
+ *   <li>{@code consent.json} – the consent periods per patient and the consent audit trail</li>
+ *   <li>{@code group-{index}.ndjson} – the resources a directly loaded attribute group added to the patient bundles,
+ *       one per line, after a header with the patients still passing the must-have checks</li>
+ *   <li>{@code resolved.ndjson} – the batch after reference resolution, cascading delete and the must-have checks,
+ *       one patient bundle with its extraction info per line, ready for copy/redact</li>
+ * </ul>
+ * Resources are kept as compact JSON, encoded resources are written as they are. Each consent and group checkpoint
+ * also holds the exclusions recorded since the previous one, the resolved checkpoint holds all exclusions and the
+ * consent audit trail of the batch, so a resumed batch reports the same diagnostics. Every stage restored is
+ * counted as {@link BatchMeasurement#CHECKPOINT_RESTORED_STAGES}.
+ * <p>
+ * Consent and group checkpoints are only restored as a prefix: once a stage is processed again, the checkpoints of
+ * later stages are replaced as well. Checkpoints that cannot be written or read are skipped with a warning, so they
+ * never fail a batch. Files are written to a temporary file and moved in place, so a checkpoint is either complete
+ * or absent.
+ * <p>
+ * A checkpoint is used by a single processing attempt of a batch whose stages run one after another. The patients
+ * of a batch never change, so its checkpoints stay valid until they are removed once the batch is written.
+ */
+public final class BatchCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchCheckpoint.class);
+    private static final String CONSENT_FILE = "consent.json";
+    private static final String RESOLVED_FILE = "resolved.ndjson";
+    private static final BatchCheckpoint DISABLED = new BatchCheckpoint(null, null, null, null, null);
+
+    @Nullable
+    private final Path dir;
+    private final UUID batchId;
+    private final BatchDiagnostics diagnostics;
+    private final FhirContext fhirContext;
+    private final FileIo fileIo;
+    private final ObjectMapper mapper;
+    private boolean resuming = true;
+    private int patientExclusionMark;
+    private int resourceExclusionMark;
+
+    private BatchCheckpoint(@Nullable Path dir, PatientBatch batch, FhirContext fhirContext, FileIo fileIo,
+                            ObjectMapper mapper) {
+        this.dir = dir;
+        this.batchId = batch == null ? null : batch.batchId();
+        this.diagnostics = batch == null ? null : batch.diagnostics();
+        this.fhirContext = fhirContext;
+        this.fileIo = fileIo;
+        this.mapper = mapper;
+    }
+
+    static BatchCheckpoint open(Path dir, PatientBatch batch, FhirContext fhirContext, FileIo fileIo,
+                                ObjectMapper mapper) {
+        return new BatchCheckpoint(requireNonNull(dir), requireNonNull(batch), requireNonNull(fhirContext),
+                requireNonNull(fileIo), requireNonNull(mapper));
+    }
+
+    /**
+     * @return a checkpoint that restores nothing and saves nothing
+     */
+    public static BatchCheckpoint disabled() {
+        return DISABLED;
+    }
+
+    public boolean enabled() {
+        return dir != null;
+    }
+
+    /**
+     * Restores the consent of the batch.
+     *
+     * @param batch the batch
+     * @return the batch with the consent periods of its consenting patients, or empty if there is no checkpoint
+     */
+    public Optional<PatientBatchWithConsent> restoreConsent(PatientBatch batch) {
+        return restore(CONSENT_FILE, path -> {
+            ConsentCheckpoint checkpoint;
+            try (var reader = fileIo.newBufferedReader(path)) {
+                checkpoint = mapper.readValue(reader, ConsentCheckpoint.class);
+            }
+            Map<String, PatientResourceBundle> bundles = new HashMap<>();
+            checkpoint.periods().forEach((patientId, periods) -> bundles.put(patientId,
+                    new PatientResourceBundle(patientId, new NonContinuousPeriod(periods), new ResourceBundle())));
+            restoreExclusions(checkpoint.exclusions());
+            restoreAudit(checkpoint.audit());
+            return new PatientBatchWithConsent(bundles, checkpoint.applyConsent(), new ResourceBundle(), batch.batchId(),
+                    batch.diagnostics());
+        });
+    }
+
+    /**
+     * Saves the consent of the batch.
+     *
+     * @param batch the batch with the consent periods of its consenting patients
+     */
+    public void saveConsent(PatientBatchWithConsent batch) {
+        save(CONSENT_FILE, out -> {
+            Map<String, List<Period>> periods = new HashMap<>();
+            batch.bundles().forEach((patientId, bundle) -> periods.put(patientId, bundle.consentPeriods().periods()));
+            mapper.writeValue(out, new ConsentCheckpoint(batch.applyConsent(), periods, newExclusions(),
+                    audit(diagnostics.consentAudit().entries())));
+        });
+    }
+
+    /**
+     * Restores the resources a directly loaded attribute group added to the batch.
+     *
+     * @param index   the position of the group among the directly loaded groups
+     * @param groupId the id of the group
+     * @return the resources of the group and the patients passing the must-have checks after it, or empty if there
+     * is no checkpoint
+     */
+    public Optional<LoadedGroup> restoreGroup(int index, String groupId) {
+        return restore(groupFile(index), path -> {
+            try (Stream<String> lines = fileIo.lines(path)) {
+                Iterator<String> it = lines.filter(line -> !line.isBlank()).iterator();
+                GroupHeader header = mapper.readValue(it.next(), GroupHeader.class);
+                if (!header.groupId().equals(groupId)) {
+                    throw new IOException("Checkpoint of group " + header.groupId() + " found for group " + groupId);
+                }
+                List<LoadedResource> resources = new ArrayList<>();
+                while (it.hasNext()) {
+                    JsonNode line = mapper.readTree(it.next());
+                    resources.add(new LoadedResource(line.get("patientId").asText(), line.get("valid").asBoolean(),
+                            (DomainResource) parse(line.get("resource"))));
+                }
+                restoreExclusions(header.exclusions());
+                return new LoadedGroup(header.safe(), resources);
+            }
+        });
+    }
+
+    /**
+     * Saves the resources a directly loaded attribute group added to the batch.
+     *
+     * @param index   the position of the group among the directly loaded groups
+     * @param groupId the id of the group
+     * @param batch   the batch after loading the group
+     * @param safeSet the patients passing the must-have checks after the group
+     */
+    public void saveGroup(int index, String groupId, PatientBatchWithConsent batch, Set<String> safeSet) {
+        save(groupFile(index), out -> {
+            out.write(mapper.writeValueAsString(new GroupHeader(groupId, Set.copyOf(safeSet), newExclusions())));
+            out.newLine();
+            for (PatientResourceBundle patientBundle : batch.bundles().values()) {
+                ResourceBundle bundle = patientBundle.bundle();
+                for (Map.Entry<ResourceGroup, Boolean> validity : bundle.resourceGroupValidity().entrySet()) {
+                    if (!validity.getKey().groupId().equals(groupId)) {
+                        continue;
+                    }
+                    Optional<String> json = json(bundle, validity.getKey().resourceId());
+                    if (json.isEmpty()) {
+                        continue;
+                    }
+                    ObjectNode line = mapper.createObjectNode()
+                            .put("patientId", patientBundle.patientId())
+                            .put("valid", validity.getValue());
+                    line.putRawValue("resource", new RawValue(json.get()));
+                    out.write(mapper.writeValueAsString(line));
+                    out.newLine();
+                }
+            }
+        });
+    }
+
+    /**
+     * Restores the batch ready for copy/redact, together with all exclusions and the consent audit trail.
+     *
+     * @return the resolved batch, or empty if there is no checkpoint
+     */
+    public Optional<ExtractionPatientBatch> restoreResolved() {
+        if (!enabled()) {
+            return Optional.empty();
+        }
+        boolean wasResuming = resuming;
+        Optional<ExtractionPatientBatch> restored = restore(RESOLVED_FILE, path -> {
+            try (Stream<String> lines = fileIo.lines(path)) {
+                Iterator<String> it = lines.filter(line -> !line.isBlank()).iterator();
+                ResolvedHeader header = mapper.readValue(it.next(), ResolvedHeader.class);
+                Map<String, ExtractionResourceBundle> bundles = new HashMap<>();
+                ExtractionResourceBundle core = new ExtractionResourceBundle();
+                while (it.hasNext()) {
+                    ResolvedLine line = mapper.readValue(it.next(), ResolvedLine.class);
+                    ConcurrentHashMap<ExtractionId, Optional<Resource>> cache = new ConcurrentHashMap<>();
+                    for (JsonNode resource : line.resources()) {
+                        Resource parsed = parse(resource);
+                        cache.put(ResourceUtils.getRelativeURL(parsed), Optional.of(parsed));
+                    }
+                    line.missing().forEach(id -> cache.put(id, Optional.empty()));
+                    ExtractionResourceBundle bundle = new ExtractionResourceBundle(
+                            new ConcurrentHashMap<>(line.info()), cache);
+                    if (line.patientId() == null) {
+                        core = bundle;
+                    } else {
+                        bundles.put(line.patientId(), bundle);
+                    }
+                }
+                restoreExclusions(header.exclusions());
+                restoreAudit(header.audit());
+                return new ExtractionPatientBatch(bundles, core, batchId);
+            }
+        });
+        // the earlier stages are still worth restoring if the batch has not been resolved before
+        resuming = wasResuming;
+        return restored;
+    }
+
+    /**
+     * Saves the batch ready for copy/redact, together with all exclusions and the consent audit trail.
+     *
+     * @param batch the batch after reference resolution, cascading delete and the must-have checks
+     */
+    public void saveResolved(PatientBatchWithConsent batch) {
+        save(RESOLVED_FILE, out -> {
+            BatchExclusions exclusions = diagnostics.batchExclusions();
+            out.write(mapper.writeValueAsString(new ResolvedHeader(
+                    new Exclusions(exclusions.getPatientExclusions(), exclusions.getResourceExclusions()),
+                    audit(diagnostics.consentAudit().entries()))));
+            out.newLine();
+            for (PatientResourceBundle patientBundle : batch.bundles().values()) {
+                writeResolved(out, patientBundle.patientId(), patientBundle.bundle());
+            }
+            writeResolved(out, null, batch.coreBundle());
+        });
+    }
+
+    /**
+     * Removes all checkpoints of the batch.
+     */
+    public void delete() {
+        if (!enabled()) {
+            return;
+        }
+        delete(dir, batchId, fileIo);
+    }
+
+    static void delete(Path dir, UUID batchId, FileIo fileIo) {
+        try {
+            if (fileIo.exists(dir)) {
+                fileIo.deleteDir(dir);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to remove checkpoints of batch {}: {}", batchId, e.getMessage());
+        }
+    }
+
+    private void writeResolved(BufferedWriter out, @Nullable String patientId, ResourceBundle bundle) throws IOException {
+        ObjectNode line = mapper.createObjectNode().put("patientId", patientId);
+        line.set("info", mapper.valueToTree(ResourceExtractionInfo.toExtractionInfoMap(bundle)));
+        ArrayNode resources = line.putArray("resources");
+        ArrayNode missing = line.putArray("missing");
+        for (Map.Entry<ExtractionId, Optional<Resource>> entry : bundle.cache().entrySet()) {
+            if (entry.getValue().isPresent()) {
+                resources.addRawValue(new RawValue(encode(entry.getValue().get())));
+            } else {
+                missing.add(entry.getKey().toRelativeUrl());
+            }
+        }
+        for (EncodedResource encoded : bundle.encodedCache().values()) {
+            resources.addRawValue(new RawValue(new String(encoded.json(), StandardCharsets.UTF_8)));
+        }
+        out.write(mapper.writeValueAsString(line));
+        out.newLine();
+    }
+
+    private Optional<String> json(ResourceBundle bundle, ExtractionId id) {
+        Optional<EncodedResource> encoded = bundle.getEncoded(id);
+        if (encoded.isPresent()) {
+            return Optional.of(new String(encoded.get().json(), StandardCharsets.UTF_8));
+        }
+        Optional<Resource> resource = bundle.cache().get(id);
+        return resource == null ? Optional.empty() : resource.map(this::encode);
+    }
+
+    private String encode(Resource resource) {
+        return fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(resource);
+    }
+
+    private Resource parse(JsonNode resource) {
+        return (Resource) fhirContext.newJsonParser().parseResource(resource.toString());
+    }
+
+    private List<AuditEntry> audit(List<ConsentAuditEntry> entries) throws IOException {
+        List<AuditEntry> audit = new ArrayList<>(entries.size());
+        for (ConsentAuditEntry entry : entries) {
+            audit.add(new AuditEntry(entry.patientId(), mapper.readTree(encode(entry.resource()))));
+        }
+        return audit;
+    }
+
+    private void restoreAudit(List<AuditEntry> audit) {
+        audit.forEach(entry -> diagnostics.consentAudit().add(entry.patientId(), parse(entry.resource())));
+    }
+
+    /**
+     * @return the exclusions recorded since the previous checkpoint
+     */
+    private Exclusions newExclusions() {
+        List<PatientExclusionEvent> patients = diagnostics.batchExclusions().getPatientExclusions();
+        List<ResourceExclusionEvent> resources = diagnostics.batchExclusions().getResourceExclusions();
+        Exclusions exclusions = new Exclusions(
+                List.copyOf(patients.subList(Math.min(patientExclusionMark, patients.size()), patients.size())),
+                List.copyOf(resources.subList(Math.min(resourceExclusionMark, resources.size()), resources.size())));
+        patientExclusionMark = patients.size();
+        resourceExclusionMark = resources.size();
+        return exclusions;
+    }
+
+    private void restoreExclusions(Exclusions exclusions) {
+        BatchExclusions batchExclusions = diagnostics.batchExclusions();
+        exclusions.patients().forEach(batchExclusions::addPatientExclusion);
+        exclusions.resources().forEach(batchExclusions::addResourceExclusion);
+        patientExclusionMark = batchExclusions.getPatientExclusions().size();
+        resourceExclusionMark = batchExclusions.getResourceExclusions().size();
+    }
+
+    private <T> Optional<T> restore(String name, CheckpointReader<T> reader) {
+        if (!enabled() || !resuming) {
+            return Optional.empty();
+        }
+        Path path = dir.resolve(name);
+        if (!fileIo.exists(path)) {
+            resuming = false;
+            return Optional.empty();
+        }
+        try {
+            T restored = reader.read(path);
+            diagnostics.batchDetails().record(BatchMeasurement.CHECKPOINT_RESTORED_STAGES, 1);
+            logger.debug("Restored checkpoint {} of batch {}", name, batchId);
+            return Optional.of(restored);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable checkpoint {} of batch {}: {}", name, batchId, e.getMessage());
+            resuming = false;
+            return Optional.empty();
+        }
+    }
+
+    private void save(String name, CheckpointWriter writer) {
+        if (!enabled()) {
+            return;
+        }
+        // a stage processed again invalidates the checkpoints of later stages
+        resuming = false;
+        Path target = dir.resolve(name);
+        Path tmp = dir.resolve(name + ".tmp");
+        try {
+            fileIo.createDirectories(dir);
+            try (BufferedWriter out = fileIo.newBufferedWriter(tmp)) {
+                writer.write(out);
+            }
+            fileIo.atomicMove(tmp, target);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to save checkpoint {} of batch {}: {}", name, batchId, e.getMessage());
+        }
+    }
+
+    private static String groupFile(int index) {
+        return "group-" + index + ".ndjson";
+    }
+
+    @FunctionalInterface
+    private interface CheckpointReader<T> {
+        T read(Path path) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface CheckpointWriter {
+        void write(BufferedWriter out) throws IOException;
+    }
+
+    /**
+     * A resource restored from a group checkpoint.
+     *
+     * @param patientId the patient whose bundle holds the resource
+     * @param valid     whether the resource is valid for the group
+     * @param resource  the resource
+     */
+    public record LoadedResource(String patientId, boolean valid, DomainResource resource) {
+    }
+
+    /**
+     * The result of a directly loaded attribute group restored from its checkpoint.
+     *
+     * @param safe      the patients passing the must-have checks after the group
+     * @param resources the resources the group added to the patient bundles
+     */
+    public record LoadedGroup(Set<String> safe, List<LoadedResource> resources) {
+    }
+
+    private record Exclusions(List<PatientExclusionEvent> patients, List<ResourceExclusionEvent> resources) {
+    }
+
+    private record AuditEntry(String patientId, JsonNode resource) {
+    }
+
+    private record ConsentCheckpoint(boolean applyConsent, Map<String, List<Period>> periods, Exclusions exclusions,
+                                     List<AuditEntry> audit) {
+    }
+
+    private record GroupHeader(String groupId, Set<String> safe, Exclusions exclusions) {
+    }
+
+    private record ResolvedHeader(Exclusions exclusions, List<AuditEntry> audit) {
+    }
+
+    private record ResolvedLine(@Nullable String patientId, Map<ExtractionId, ResourceExtractionInfo> info,
+                                List<JsonNode> resources, List<ExtractionId> missing) {
+    }
+}
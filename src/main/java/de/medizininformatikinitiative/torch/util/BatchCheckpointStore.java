@@ -0,0 +1,87 @@
+package de.medizininformatikinitiative.torch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Opens the {@link BatchCheckpoint} of patient batches in their job's result directory.
+ */
+public class BatchCheckpointStore {
+
+    public static final String CHECKPOINT_DIR = "checkpoints";
+
+    @Nullable
+    private final Path resultsDirPath;
+    private final FhirContext fhirContext;
+    private final FileIo fileIo;
+    private final ObjectMapper mapper;
+
+    /**
+     * Creates a store of checkpoints.
+     *
+     * @param resultsDir  base directory for all job result output
+     * @param fhirContext FHIR context used to encode and decode resources
+     * @param fileIo      FileIO used for file interaction
+     * @param mapper      object mapper used for the checkpoint metadata
+     */
+    public BatchCheckpointStore(String resultsDir, FhirContext fhirContext, FileIo fileIo, ObjectMapper mapper) {
+        this.resultsDirPath = Paths.get(resultsDir).toAbsolutePath();
+        this.fhirContext = requireNonNull(fhirContext);
+        this.fileIo = requireNonNull(fileIo);
+        this.mapper = requireNonNull(mapper);
+    }
+
+    private BatchCheckpointStore() {
+        this.resultsDirPath = null;
+        this.fhirContext = null;
+        this.fileIo = null;
+        this.mapper = null;
+    }
+
+    /**
+     * @return a store whose checkpoints restore and save nothing
+     */
+    public static BatchCheckpointStore disabled() {
+        return new BatchCheckpointStore();
+    }
+
+    /**
+     * Opens the checkpoint of a batch for a processing attempt.
+     *
+     * @param jobId the job id
+     * @param batch the batch, whose diagnostics receive the restored diagnostics
+     * @return the checkpoint of the batch
+     */
+    public BatchCheckpoint open(String jobId, PatientBatch batch) {
+        if (resultsDirPath == null) {
+            return BatchCheckpoint.disabled();
+        }
+        return BatchCheckpoint.open(batchDir(jobId, batch.batchId()), batch, fhirContext, fileIo, mapper);
+    }
+
+    /**
+     * Removes the checkpoints of a batch once its result is stored.
+     *
+     * @param jobId   the job id
+     * @param batchId the batch id
+     */
+    public void delete(String jobId, UUID batchId) {
+        if (resultsDirPath == null) {
+            return;
+        }
+        BatchCheckpoint.delete(batchDir(jobId, batchId), batchId, fileIo);
+    }
+
+    private Path batchDir(String jobId, UUID batchId) {
+        return resultsDirPath.resolve(jobId).resolve(CHECKPOINT_DIR).resolve(batchId.toString());
+    }
+}
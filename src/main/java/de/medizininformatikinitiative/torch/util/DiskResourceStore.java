@@ -0,0 +1,152 @@
+package de.medizininformatikinitiative.torch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Append-only on-disk key-value store of encoded FHIR resources, indexed by {@link ExtractionId}.
+ * <p>
+ * Resources are encoded as compact JSON and appended to a single segment file. Only the
+ * {@code (offset, length)} slot per resource is kept on heap, so heap usage is bounded by the number
+ * of resources instead of their size. Reads decode the resource from its slot on demand.
+ * <p>
+ * Re-putting an id appends a new record and moves the slot; the old bytes stay in the segment
+ * until the store is closed. Closing the store deletes the segment file.
+ * <p>
+ * Writes are serialized, reads are positional and may run concurrently with writes.
+ */
+public final class DiskResourceStore implements Closeable {
+
+    private final Path file;
+    private final FhirContext fhirContext;
+    private final FileChannel channel;
+    private final ConcurrentHashMap<ExtractionId, Slot> index = new ConcurrentHashMap<>();
+    private long writePosition;
+
+    private DiskResourceStore(Path file, FhirContext fhirContext, FileChannel channel) {
+        this.file = file;
+        this.fhirContext = fhirContext;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a new, empty store backed by {@code file}. An existing file is truncated.
+     *
+     * @param file        the segment file
+     * @param fhirContext FHIR context used for encoding and decoding
+     * @return the opened store
+     * @throws IOException if the file cannot be created
+     */
+    public static DiskResourceStore create(Path file, FhirContext fhirContext) throws IOException {
+        requireNonNull(file);
+        requireNonNull(fhirContext);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new DiskResourceStore(file, fhirContext, channel);
+    }
+
+    /**
+     * Encodes and appends a resource to the store.
+     *
+     * @param resource the resource to store, keyed by its relative URL
+     * @throws IOException              if writing fails
+     * @throws IllegalArgumentException if the resource has no usable id
+     */
+    public synchronized void put(Resource resource) throws IOException {
+        ExtractionId id = ResourceUtils.getRelativeURL(resource);
+        byte[] bytes = fhirContext.newJsonParser().setPrettyPrint(false)
+                .encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long offset = writePosition;
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+        index.put(id, new Slot(offset, bytes.length));
+    }
+
+    /**
+     * Reads and decodes a resource from the store.
+     *
+     * @param id the resource id
+     * @return the decoded resource, or empty if the id is not stored
+     * @throws IOException if reading fails
+     */
+    public Optional<Resource> get(ExtractionId id) throws IOException {
+        Slot slot = index.get(id);
+        if (slot == null) {
+            return Optional.empty();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(slot.length());
+        long position = slot.offset();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment " + file + " while reading " + id);
+            }
+            position += read;
+        }
+        String json = new String(buffer.array(), StandardCharsets.UTF_8);
+        return Optional.of((Resource) fhirContext.newJsonParser().parseResource(json));
+    }
+
+    public boolean contains(ExtractionId id) {
+        return index.containsKey(id);
+    }
+
+    public Set<ExtractionId> ids() {
+        return Set.copyOf(index.keySet());
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return number of bytes appended to the segment file so far
+     */
+    public synchronized long sizeBytes() {
+        return writePosition;
+    }
+
+    /**
+     * Closes the segment file and deletes it.
+     *
+     * @throws IOException if closing or deleting fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            index.clear();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private record Slot(long offset, int length) {
+    }
+}
@@ -5,6 +5,7 @@ import ca.uhn.fhir.fhirpath.IFhirPath;
 import de.medizininformatikinitiative.torch.diagnostics.MustHaveEvaluation;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttribute;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.DomainResource;
@@ -35,11 +36,7 @@ public class ProfileMustHaveChecker {
                 .map(ResourceUtils::stripVersion)
                 .toList();
 
-        boolean inScope =
-                resource.getResourceType().toString().equals("Patient")
-                        || profiles.contains(group.groupReference());
-
-        if (!inScope) return new MustHaveEvaluation.NotApplicable();
+        if (!inScope(resource.getResourceType().toString(), profiles, group)) return new MustHaveEvaluation.NotApplicable();
         if (!group.hasMustHave()) return new MustHaveEvaluation.Fulfilled();
 
         for (AnnotatedAttribute attr : group.attributes()) {
@@ -54,6 +51,26 @@ public class ProfileMustHaveChecker {
     }
 
 
+    /**
+     * Checks an encoded resource against a group, using its pre-extracted profiles for the scope check.
+     * <p>
+     * The resource is only decoded if it is in scope and the group has must-have attributes.
+     *
+     * @param src   the encoded resource
+     * @param group the group to check against
+     * @return {@code true} if the resource is in scope of the group and fulfills all must-have attributes
+     */
+    public boolean fulfilled(EncodedResource src, AnnotatedAttributeGroup group) {
+        if (group == null || src == null) return false;
+        if (!inScope(src.resourceType(), src.profiles(), group)) return false;
+        if (!group.hasMustHave()) return true;
+        return fulfilled(src.decode(), group);
+    }
+
+    private static boolean inScope(String resourceType, List<String> profiles, AnnotatedAttributeGroup group) {
+        return resourceType.equals("Patient") || profiles.contains(group.groupReference());
+    }
+
     public Boolean fulfilled(DomainResource src, AnnotatedAttribute attribute) {
         List<Base> elements;
         elements = fhirPathEngine.get().evaluate(src, attribute.fhirPath(), Base.class);
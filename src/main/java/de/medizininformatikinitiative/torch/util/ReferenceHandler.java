@@ -3,12 +3,13 @@ package de.medizininformatikinitiative.torch.util;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.BatchExclusions;
 import de.medizininformatikinitiative.torch.exceptions.MustHaveViolatedException;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
 import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ReferenceWrapper;
 import de.medizininformatikinitiative.torch.model.management.ResourceAttribute;
 import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceGroup;
-import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -21,6 +22,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 @Component
 public class ReferenceHandler {
@@ -114,16 +117,23 @@ public class ReferenceHandler {
 
         List<ResourceGroup> allValidGroups = referenceWrapper.references()
                 .stream()
-                .map(reference -> {
-                    if (patientBundle != null && patientBundle.contains(reference)) {
-                        return patientBundle.get(reference);
-                    } else {
-                        return coreBundle.get(reference);
+                .flatMap(reference -> {
+                    ResourceBundle source = (patientBundle != null && patientBundle.contains(reference))
+                            ? patientBundle.bundle()
+                            : coreBundle;
+                    // encoded resources are checked on their pre-extracted fields and only decoded for must-haves
+                    Optional<EncodedResource> encoded = source.getEncoded(reference);
+                    if (encoded.isPresent()) {
+                        return collectValidGroups(referenceWrapper, encoded.get().id(),
+                                group -> profileMustHaveChecker.fulfilled(encoded.get(), group),
+                                groupMap, processingBundleForParent).stream();
                     }
+                    return Stream.ofNullable(source.get(reference))
+                            .flatMap(Optional::stream)
+                            .flatMap(resource -> collectValidGroups(referenceWrapper, ResourceUtils.getRelativeURL(resource),
+                                    group -> profileMustHaveChecker.fulfilled(resource, group),
+                                    groupMap, processingBundleForParent).stream());
                 })
-                .filter(Objects::nonNull)
-                .filter(Optional::isPresent)
-                .flatMap(resource -> collectValidGroups(referenceWrapper, groupMap, resource.get(), processingBundleForParent).stream())
                 .toList();
 
         // Now run your must-have validation and wrap in Flux
@@ -136,20 +146,23 @@ public class ReferenceHandler {
      * <p> For a given reference and resource checks if already a valid group in processingBundle.
      * If resourceGroups not assigned yet, executes filter, musthave (Without References) and profile checks.
      *
+     * @param resourceId                id of the resource to be checked
+     * @param fulfilled                 filter, musthave and profile check of the resource against a group
      * @param groupMap                  known attribute groups
-     * @param resource                  Resource to be checked
      * @param processingBundleForParent bundle that is currently processed
      * @return ResourceGroup if previously unknown and assignable to the group.
      */
-    private List<ResourceGroup> collectValidGroups(ReferenceWrapper referenceWrapper, Map<String, AnnotatedAttributeGroup> groupMap, Resource resource, ResourceBundle processingBundleForParent) {
+    private List<ResourceGroup> collectValidGroups(ReferenceWrapper referenceWrapper, ExtractionId resourceId,
+                                                   Predicate<AnnotatedAttributeGroup> fulfilled,
+                                                   Map<String, AnnotatedAttributeGroup> groupMap,
+                                                   ResourceBundle processingBundleForParent) {
         return referenceWrapper.refAttribute().linkedGroups().stream()
                 .map(linkedGroupID -> {
-                    ResourceGroup resourceGroup = new ResourceGroup(ResourceUtils.getRelativeURL(resource), linkedGroupID);
+                    ResourceGroup resourceGroup = new ResourceGroup(resourceId, linkedGroupID);
                     Boolean isValid = processingBundleForParent.isValidResourceGroup(resourceGroup);
                     if (isValid == null) {
                         AnnotatedAttributeGroup group = groupMap.get(linkedGroupID);
-                        boolean fulfilled = profileMustHaveChecker.fulfilled(resource, group);
-                        isValid = fulfilled;
+                        isValid = fulfilled.test(group);
                         processingBundleForParent.addResourceGroupValidity(resourceGroup, isValid);
                     }
                     return isValid ? resourceGroup : null;
@@ -5,22 +5,32 @@ import ca.uhn.fhir.context.FhirContext;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAudit;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAuditEntry;
 import de.medizininformatikinitiative.torch.jobhandling.FileIo;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.model.extraction.SpilledExtractionBundle;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 
@@ -36,10 +46,15 @@ public class ResultFileManager {
     private static final Logger logger = LoggerFactory.getLogger(ResultFileManager.class);
     private static final String NDJSON = ".ndjson";
     public static final String CONSENT_NDJSON = "_consent" + NDJSON;
+    private static final String CORE_STORE_FILE = "core-store.tmp";
+    private static final String CORE_STAGED_DIR = "core_staged";
+    private static final String CORE_SHARDS_STAGED_DIR = "core_shards_staged";
+    private static final String IDS = ".ids";
 
     private final Path resultsDirPath;
     private final FhirContext fhirContext;
     private final FileIo fileIo;
+    private final ConcurrentHashMap<String, Set<ExtractionId>> stagedCoreIds = new ConcurrentHashMap<>();
 
     /**
      * Creates a new result file manager.
@@ -64,6 +79,19 @@ public class ResultFileManager {
         return resultsDirPath.resolve(jobId);
     }
 
+    /**
+     * Opens a new, empty disk-backed resource store for the core phase of a job.
+     * <p>
+     * The segment file lives in the job's result directory and is deleted when the store is closed.
+     *
+     * @param jobId the job id.
+     * @return the opened store.
+     * @throws IOException if the segment file cannot be created.
+     */
+    public DiskResourceStore openCoreStore(String jobId) throws IOException {
+        return DiskResourceStore.create(getJobDirectory(jobId).resolve(CORE_STORE_FILE), fhirContext);
+    }
+
     /**
      * Checks whether a batch's consent audit trail was written for the given batch.
      *
@@ -107,6 +135,43 @@ public class ResultFileManager {
         fileIo.atomicMove(tmp, target);
     }
 
+    /**
+     * Opens a writer that streams a patient batch result to an NDJSON file one patient bundle at a time.
+     * <p>
+     * Produces the same file as {@link #saveBatchToNDJSON(String, ExtractionPatientBatch)}: lines go to a
+     * temporary file that is moved into place on {@link BatchWriter#commit()}, and nothing is kept if all
+     * written patient bundles were empty.
+     *
+     * @param jobId   the job id.
+     * @param batchId the batch id.
+     * @return the opened writer.
+     * @throws IOException if the output directory or the temporary file cannot be created.
+     */
+    public BatchWriter openBatchWriter(String jobId, UUID batchId) throws IOException {
+        requireNonNull(jobId);
+        requireNonNull(batchId);
+
+        Path resultDir = getJobDirectory(jobId);
+        fileIo.createDirectories(resultDir);
+
+        Path target = resultDir.resolve(batchId + NDJSON);
+        Path tmp = resultDir.resolve(batchId + "-" + NDJSON + ".tmp");
+        logger.debug("Streaming batch {} for job {} to {}", batchId, jobId, target);
+
+        return new BatchWriter(tmp, target, fileIo.newBufferedWriter(tmp));
+    }
+
+    /**
+     * Encodes the bundle of a single patient as one NDJSON line of a batch result file, without the line break.
+     *
+     * @param jobId  the job id, recorded as extraction id.
+     * @param bundle the transformed bundle of a single patient.
+     * @return the patient's FHIR transaction bundle as compact JSON.
+     */
+    public String encodePatientBundle(String jobId, ExtractionResourceBundle bundle) {
+        return fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(bundle.toFhirBundle(jobId));
+    }
+
     /**
      * Writes a batch's consent audit trail to an NDJSON file.
      * <p>
@@ -171,6 +236,33 @@ public class ResultFileManager {
      * @throws IOException if the output directory cannot be created or the file cannot be written.
      */
     public void saveCoreBundleToNDJSON(String jobId, ExtractionResourceBundle bundle) throws IOException {
+        saveCoreBundleToNDJSON(jobId, "core", bundle);
+    }
+
+    /**
+     * Writes a shard of the core extraction bundle as NDJSON to {@code core-{shard}.ndjson}.
+     * <p>
+     * The file has the same layout as the one written by
+     * {@link #saveCoreBundleToNDJSON(String, ExtractionResourceBundle)}. Empty bundles are skipped.
+     *
+     * @param jobId  the job id.
+     * @param shard  the shard.
+     * @param bundle the extraction bundle of the shard.
+     * @throws IOException if the output directory cannot be created or the file cannot be written.
+     */
+    public void saveCoreShardToNDJSON(String jobId, int shard, ExtractionResourceBundle bundle) throws IOException {
+        saveCoreBundleToNDJSON(jobId, coreShardFileName(shard), bundle);
+    }
+
+    /**
+     * @param shard the shard.
+     * @return the name of the shard's result file without the {@code .ndjson} extension.
+     */
+    public static String coreShardFileName(int shard) {
+        return "core-" + shard;
+    }
+
+    private void saveCoreBundleToNDJSON(String jobId, String name, ExtractionResourceBundle bundle) throws IOException {
         requireNonNull(jobId);
         requireNonNull(bundle);
 
@@ -178,15 +270,15 @@ public class ResultFileManager {
         fileIo.createDirectories(resultDir);
 
         if (bundle.isEmpty()) {
-            logger.debug("Skipping core bundle for job {}, since it is empty", jobId);
+            logger.debug("Skipping {} bundle for job {}, since it is empty", name, jobId);
             return;
         }
 
-        Path target = resultDir.resolve("core" + NDJSON);
+        Path target = resultDir.resolve(name + NDJSON);
 
-        Path tmp = resultDir.resolve("core-" + NDJSON + ".tmp");
+        Path tmp = resultDir.resolve(name + "-" + NDJSON + ".tmp");
 
-        logger.debug("Writing core bundle for job {} to {}", jobId, target);
+        logger.debug("Writing {} bundle for job {} to {}", name, jobId, target);
 
         try (Writer out = fileIo.newBufferedWriter(tmp)) {
             bundle.writeToFhirBundle(fhirContext, out, jobId);
@@ -194,4 +286,314 @@ public class ResultFileManager {
 
         fileIo.atomicMove(tmp, target);
     }
+
+    /**
+     * Streams a disk-backed core extraction bundle as NDJSON.
+     * <p>
+     * Writes the same single transaction Bundle line as {@link #saveCoreBundleToNDJSON(String, ExtractionResourceBundle)},
+     * but reads, transforms and writes one resource at a time. Empty bundles are skipped.
+     *
+     * @param jobId       the job id.
+     * @param bundle      the spilled extraction bundle.
+     * @param transformer copy/redact step applied to each resource before writing.
+     * @return ids of the resources that were written.
+     * @throws IOException if the output directory cannot be created or the file cannot be written.
+     */
+    public Set<ExtractionId> saveCoreBundleToNDJSON(String jobId, SpilledExtractionBundle bundle,
+                                                    SpilledExtractionBundle.ResourceTransformer transformer) throws IOException {
+        requireNonNull(jobId);
+        requireNonNull(bundle);
+        requireNonNull(transformer);
+
+        Path resultDir = getJobDirectory(jobId);
+        fileIo.createDirectories(resultDir);
+
+        if (bundle.isEmpty()) {
+            logger.debug("Skipping core bundle for job {}, since it is empty", jobId);
+            return Set.of();
+        }
+
+        Path target = resultDir.resolve("core" + NDJSON);
+        Path tmp = resultDir.resolve("core-" + NDJSON + ".tmp");
+
+        logger.debug("Streaming core bundle for job {} with {} stored resources to {}", jobId, bundle.store().size(), target);
+
+        Set<ExtractionId> written;
+        try (Writer out = fileIo.newBufferedWriter(tmp)) {
+            written = bundle.writeToFhirBundle(fhirContext, out, jobId, transformer);
+        }
+
+        fileIo.atomicMove(tmp, target);
+        return written;
+    }
+
+    /**
+     * Stages raw core resources fetched for a batch ahead of the core phase.
+     * <p>
+     * The resources are written unredacted to {@code core_staged/{batchId}.ndjson}, one resource per line, followed
+     * by their ids to {@code core_staged/{batchId}.ids}, which marks the staged file as complete. Staging the same
+     * batch again replaces its files.
+     *
+     * @param jobId     the job id.
+     * @param batchId   the batch the resources were fetched for.
+     * @param resources the fetched resources.
+     * @throws IOException if the files cannot be written.
+     */
+    public void saveStagedCoreResources(String jobId, UUID batchId, List<Resource> resources) throws IOException {
+        requireNonNull(jobId);
+        requireNonNull(batchId);
+        requireNonNull(resources);
+
+        Path dir = stagedCoreDir(jobId);
+        fileIo.createDirectories(dir);
+
+        Path target = dir.resolve(batchId + NDJSON);
+        Path tmp = dir.resolve(batchId + NDJSON + ".tmp");
+        List<ExtractionId> ids = new ArrayList<>(resources.size());
+        try (BufferedWriter out = fileIo.newBufferedWriter(tmp)) {
+            for (Resource resource : resources) {
+                ids.add(ResourceUtils.getRelativeURL(resource));
+                fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToWriter(resource, out);
+                out.append("\n");
+            }
+        }
+        fileIo.atomicMove(tmp, target);
+
+        Path idsTarget = dir.resolve(batchId + IDS);
+        Path idsTmp = dir.resolve(batchId + IDS + ".tmp");
+        try (BufferedWriter out = fileIo.newBufferedWriter(idsTmp)) {
+            for (ExtractionId id : ids) {
+                out.append(id.toRelativeUrl()).append("\n");
+            }
+        }
+        fileIo.atomicMove(idsTmp, idsTarget);
+
+        Set<ExtractionId> known = stagedCoreIds.get(jobId);
+        if (known != null) {
+            known.addAll(ids);
+        }
+        logger.debug("Staged {} core resources of batch {} for job {}", ids.size(), batchId, jobId);
+    }
+
+    /**
+     * Returns the ids of the core resources staged for a job.
+     * <p>
+     * The ids are read from the staged files once and then kept up to date in memory. Ids staged concurrently with
+     * that first read may be missing, which only causes them to be fetched again.
+     *
+     * @param jobId the job id.
+     * @return unmodifiable view of the staged ids.
+     * @throws IOException if the staged files cannot be read.
+     */
+    public Set<ExtractionId> stagedCoreIds(String jobId) throws IOException {
+        Set<ExtractionId> known = stagedCoreIds.get(jobId);
+        if (known == null) {
+            Set<ExtractionId> read = ConcurrentHashMap.newKeySet();
+            for (Path idsFile : stagedIdsFiles(jobId)) {
+                read.addAll(readStagedIds(idsFile));
+            }
+            known = stagedCoreIds.putIfAbsent(jobId, read);
+            if (known == null) {
+                known = read;
+            }
+        }
+        return Collections.unmodifiableSet(known);
+    }
+
+    /**
+     * Loads the staged core resources of a job with the given ids.
+     * <p>
+     * Only staged files listing at least one of the ids are parsed.
+     *
+     * @param jobId the job id.
+     * @param ids   the ids of the wanted resources.
+     * @return the staged resources among the wanted ones, each id at most once.
+     * @throws IOException if the staged files cannot be read.
+     */
+    public List<Resource> loadStagedCoreResources(String jobId, Set<ExtractionId> ids) throws IOException {
+        requireNonNull(ids);
+        Map<ExtractionId, Resource> found = new HashMap<>();
+        for (Path idsFile : stagedIdsFiles(jobId)) {
+            if (found.size() == ids.size()) {
+                break;
+            }
+            if (readStagedIds(idsFile).stream().noneMatch(id -> ids.contains(id) && !found.containsKey(id))) {
+                continue;
+            }
+            String name = idsFile.getFileName().toString();
+            Path staged = idsFile.resolveSibling(name.substring(0, name.length() - IDS.length()) + NDJSON);
+            try (Stream<String> lines = fileIo.lines(staged)) {
+                lines.filter(line -> !line.isBlank())
+                        .map(line -> (Resource) fhirContext.newJsonParser().parseResource(line))
+                        .forEach(resource -> {
+                            ExtractionId id = ResourceUtils.getRelativeURL(resource);
+                            if (ids.contains(id)) {
+                                found.putIfAbsent(id, resource);
+                            }
+                        });
+            }
+        }
+        return List.copyOf(found.values());
+    }
+
+    /**
+     * Removes all staged core resources of a job.
+     *
+     * @param jobId the job id.
+     * @throws IOException if the staged files cannot be deleted.
+     */
+    public void deleteStagedCoreResources(String jobId) throws IOException {
+        stagedCoreIds.remove(jobId);
+        Path dir = stagedCoreDir(jobId);
+        if (fileIo.exists(dir)) {
+            fileIo.deleteDir(dir);
+        }
+    }
+
+    /**
+     * Stages the raw core resources already loaded for a core shard, so that processing the shard doesn't fetch them
+     * again.
+     * <p>
+     * The resources are written unredacted to {@code core_shards_staged/{shard}.ndjson}, one resource per line.
+     * Staging the same shard again replaces its file.
+     *
+     * @param jobId     the job id.
+     * @param shard     the shard.
+     * @param resources the loaded resources of the shard.
+     * @throws IOException if the file cannot be written.
+     */
+    public void saveCoreShardResources(String jobId, int shard, Collection<Resource> resources) throws IOException {
+        requireNonNull(jobId);
+        requireNonNull(resources);
+
+        Path dir = getJobDirectory(jobId).resolve(CORE_SHARDS_STAGED_DIR);
+        fileIo.createDirectories(dir);
+
+        Path target = dir.resolve(shard + NDJSON);
+        Path tmp = dir.resolve(shard + NDJSON + ".tmp");
+        try (BufferedWriter out = fileIo.newBufferedWriter(tmp)) {
+            for (Resource resource : resources) {
+                fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToWriter(resource, out);
+                out.append("\n");
+            }
+        }
+        fileIo.atomicMove(tmp, target);
+    }
+
+    /**
+     * Loads the raw core resources staged for a core shard.
+     *
+     * @param jobId the job id.
+     * @param shard the shard.
+     * @return the staged resources, empty if none were staged.
+     * @throws IOException if the staged file cannot be read.
+     */
+    public List<Resource> loadCoreShardResources(String jobId, int shard) throws IOException {
+        Path staged = getJobDirectory(jobId).resolve(CORE_SHARDS_STAGED_DIR).resolve(shard + NDJSON);
+        if (!fileIo.exists(staged)) {
+            return List.of();
+        }
+        try (Stream<String> lines = fileIo.lines(staged)) {
+            return lines.filter(line -> !line.isBlank())
+                    .map(line -> (Resource) fhirContext.newJsonParser().parseResource(line))
+                    .toList();
+        }
+    }
+
+    /**
+     * Removes the raw core resources staged for all core shards of a job.
+     *
+     * @param jobId the job id.
+     * @throws IOException if the staged files cannot be deleted.
+     */
+    public void deleteCoreShardResources(String jobId) throws IOException {
+        Path dir = getJobDirectory(jobId).resolve(CORE_SHARDS_STAGED_DIR);
+        if (fileIo.exists(dir)) {
+            fileIo.deleteDir(dir);
+        }
+    }
+
+    private Path stagedCoreDir(String jobId) {
+        return getJobDirectory(jobId).resolve(CORE_STAGED_DIR);
+    }
+
+    private List<Path> stagedIdsFiles(String jobId) throws IOException {
+        Path dir = stagedCoreDir(jobId);
+        if (!fileIo.exists(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = fileIo.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(IDS)).sorted().toList();
+        }
+    }
+
+    private List<ExtractionId> readStagedIds(Path idsFile) throws IOException {
+        try (Stream<String> lines = fileIo.lines(idsFile)) {
+            return lines.filter(line -> !line.isBlank()).map(ExtractionId::fromRelativeUrl).toList();
+        }
+    }
+
+    /**
+     * Streaming NDJSON writer for a single patient batch, see {@link #openBatchWriter(String, UUID)}.
+     * <p>
+     * Closing a writer that was not committed discards the temporary file.
+     */
+    public final class BatchWriter implements Closeable {
+
+        private final Path tmp;
+        private final Path target;
+        private final BufferedWriter out;
+        private boolean hasContent;
+        private boolean closed;
+
+        private BatchWriter(Path tmp, Path target, BufferedWriter out) {
+            this.tmp = tmp;
+            this.target = target;
+            this.out = out;
+        }
+
+        /**
+         * Writes the encoded bundle of a single patient as one line.
+         *
+         * @param encodedBundle the patient's FHIR bundle encoded as compact JSON
+         * @param empty         whether the patient's bundle holds no resources
+         * @throws IOException if writing fails
+         */
+        public void writePatient(String encodedBundle, boolean empty) throws IOException {
+            out.write(encodedBundle);
+            out.append("\n");
+            hasContent |= !empty;
+        }
+
+        /**
+         * Moves the written file into place, or discards it if all written patient bundles were empty.
+         *
+         * @return {@code true} if the file was kept
+         * @throws IOException if closing or moving the file fails
+         */
+        public boolean commit() throws IOException {
+            closed = true;
+            out.close();
+            if (!hasContent) {
+                logger.trace("Discarding empty batch file {}", tmp);
+                fileIo.deleteIfExists(tmp);
+                return false;
+            }
+            fileIo.atomicMove(tmp, target);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } finally {
+                fileIo.deleteIfExists(tmp);
+            }
+        }
+    }
 }
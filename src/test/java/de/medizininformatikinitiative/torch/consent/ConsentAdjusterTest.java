@@ -4,6 +4,7 @@ import de.medizininformatikinitiative.torch.model.consent.ConsentProvisions;
 import de.medizininformatikinitiative.torch.model.consent.Period;
 import de.medizininformatikinitiative.torch.model.consent.Provision;
 import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
 import de.medizininformatikinitiative.torch.service.DataStore;
@@ -95,6 +96,16 @@ class ConsentAdjusterUnitTest {
                 .verifyComplete();
     }
 
+    @Test
+    void encounterQuery_requestsOnlySubjectAndPeriod() {
+        PatientBatch batch = new PatientBatch(List.of("patient1"));
+
+        Query query = ConsentAdjuster.getEncounterQuery(batch);
+
+        assertThat(query.params().params()).contains(
+                new QueryParams.Param("_elements", QueryParams.stringValue("subject,period")));
+    }
+
     @Test
     void testAdjustProvisions_singleOverlap_shiftsStart() {
         Provision p1 = new Provision(new TermCode("s1", "code1"), Period.of(LocalDate.of(2025, 9, 10), LocalDate.of(2025, 9, 30)), true);
@@ -6,6 +6,7 @@ import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Meta;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Reference;
@@ -24,6 +25,7 @@ class ConsentAuditMinimizerTest {
         Meta meta = new Meta();
         meta.addProfile("https://example.org/consent-profile");
         meta.setVersionId("42");
+        meta.setLastUpdatedElement(new InstantType("2024-01-15T10:30:00.000+00:00"));
         source.setMeta(meta);
         source.setPatient(new Reference("Patient/1"));
         source.getProvision().setId("root-provision");
@@ -37,6 +39,7 @@ class ConsentAuditMinimizerTest {
         assertThat(minimized.getMeta().getProfile()).extracting(CanonicalType::getValue)
                 .containsExactly("https://example.org/consent-profile");
         assertThat(minimized.getMeta().getVersionId()).isNullOrEmpty();
+        assertThat(minimized.getMeta().getLastUpdated()).isEqualTo(meta.getLastUpdated());
         assertThat(minimized.getPatient().getReference()).isEqualTo("Patient/1");
         assertThat(minimized.getProvision().getId()).isEqualTo("root-provision");
         assertThat(minimized.getDateTimeElement().getValueAsString()).isEqualTo(source.getDateTimeElement().getValueAsString());
@@ -0,0 +1,216 @@
+package de.medizininformatikinitiative.torch.consent;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.diagnostics.ConsentAuditEntry;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
+import de.medizininformatikinitiative.torch.model.consent.Period;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.management.TermCode;
+import de.medizininformatikinitiative.torch.service.DataStore;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ConsentCacheTest {
+
+    static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new Jdk8Module())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    static final Instant NOW = Instant.parse("2024-01-15T12:00:00Z");
+    static final String KEY = ConsentCache.key(Set.of(new TermCode("sys", "code1")), false);
+    static final NonContinuousPeriod CONSENTED = NonContinuousPeriod.of(Period.of("2020-01-01", "2024-12-31"));
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    DataStore dataStore;
+
+    ConsentCache cache(Instant now) {
+        return new ConsentCache(tempDir.toString(), Duration.ofDays(7), dataStore, FHIR_CONTEXT, new DefaultFileIO(),
+                MAPPER, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    static Consent consent(String patientId, String lastUpdated) {
+        Consent consent = new Consent();
+        consent.setId("consent-" + patientId);
+        consent.setPatient(new Reference("Patient/" + patientId));
+        if (lastUpdated != null) {
+            consent.getMeta().setLastUpdatedElement(new InstantType(lastUpdated));
+        }
+        return consent;
+    }
+
+    void store(ConsentCache cache, String patientId, String lastUpdated) {
+        cache.store(KEY, Map.of(patientId, CONSENTED),
+                List.of(new ConsentAuditEntry(patientId, consent(patientId, lastUpdated)))).block();
+    }
+
+    @Test
+    void unchangedConsent_isReused() {
+        ConsentCache cache = cache(NOW);
+        store(cache, "p1", "2024-01-10T10:00:00Z");
+        when(dataStore.searchFresh(any(), eq(DomainResource.class))).thenReturn(Flux.empty());
+        PatientBatch batch = PatientBatch.of("p1", "p2");
+
+        Map<String, NonContinuousPeriod> cached = cache.lookup(KEY, batch, false).block();
+
+        assertThat(cached).containsExactly(Map.entry("p1", CONSENTED));
+        assertThat(batch.diagnostics().consentAudit().entries()).singleElement()
+                .satisfies(entry -> assertThat(entry.resource().getIdPart()).isEqualTo("consent-p1"));
+        assertThat(batch.diagnostics().batchDetails().measurements())
+                .containsEntry(BatchMeasurement.CONSENT_CACHE_HITS, 1L)
+                .containsEntry(BatchMeasurement.CONSENT_CACHE_MISSES, 1L);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(dataStore).searchFresh(query.capture(), eq(DomainResource.class));
+        assertThat(query.getValue()).hasToString("Consent?patient=Patient/p1&_lastUpdated=ge2024-01-09&_elements=patient");
+    }
+
+    @Test
+    void encounterShift_checksEncountersToo() {
+        ConsentCache cache = cache(NOW);
+        store(cache, "p1", "2024-01-10T10:00:00Z");
+        when(dataStore.searchFresh(any(), eq(DomainResource.class))).thenReturn(Flux.empty());
+
+        cache.lookup(KEY, PatientBatch.of("p1"), true).block();
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        verify(dataStore, times(2)).searchFresh(queries.capture(), eq(DomainResource.class));
+        assertThat(queries.getAllValues()).extracting(Query::type).containsExactly("Consent", "Encounter");
+    }
+
+    @Test
+    void consentUpdatedOnServer_isCalculatedAgain() {
+        ConsentCache cache = cache(NOW);
+        store(cache, "p1", "2024-01-10T10:00:00Z");
+        store(cache, "p2", "2024-01-10T10:00:00Z");
+        when(dataStore.searchFresh(any(), eq(DomainResource.class)))
+                .thenReturn(Flux.just(consent("p1", "2024-01-12T08:00:00Z"), consent("p2", "2024-01-10T10:00:00Z")));
+
+        Map<String, NonContinuousPeriod> cached = cache.lookup(KEY, PatientBatch.of("p1", "p2"), false).block();
+
+        assertThat(cached).containsOnlyKeys("p2");
+        assertThat(tempDir.resolve(KEY).resolve("p1.json")).doesNotExist();
+    }
+
+    @Test
+    void failedChangeCheck_reusesNothing() {
+        ConsentCache cache = cache(NOW);
+        store(cache, "p1", "2024-01-10T10:00:00Z");
+        when(dataStore.searchFresh(any(), eq(DomainResource.class))).thenReturn(Flux.error(new RuntimeException("down")));
+
+        assertThat(cache.lookup(KEY, PatientBatch.of("p1"), false).block()).isEmpty();
+    }
+
+    @Test
+    void expiredEntry_isDropped() {
+        store(cache(NOW), "p1", "2024-01-10T10:00:00Z");
+
+        Map<String, NonContinuousPeriod> cached = cache(NOW.plus(Duration.ofDays(8)))
+                .lookup(KEY, PatientBatch.of("p1"), false).block();
+
+        assertThat(cached).isEmpty();
+        assertThat(tempDir.resolve(KEY).resolve("p1.json")).doesNotExist();
+        verifyNoInteractions(dataStore);
+    }
+
+    @Test
+    void consentWithoutLastUpdated_isNotStored() {
+        store(cache(NOW), "p1", null);
+
+        assertThat(tempDir.resolve(KEY).resolve("p1.json")).doesNotExist();
+    }
+
+    @Test
+    void otherConsentCodes_areCachedSeparately() {
+        store(cache(NOW), "p1", "2024-01-10T10:00:00Z");
+        String otherKey = ConsentCache.key(Set.of(new TermCode("sys", "code2")), false);
+
+        assertThat(cache(NOW).lookup(otherKey, PatientBatch.of("p1"), false).block()).isEmpty();
+        verifyNoInteractions(dataStore);
+    }
+
+    @Nested
+    class Key {
+
+        @Test
+        void ignoresOrderOfCodes() {
+            TermCode code1 = new TermCode("sys", "code1");
+            TermCode code2 = new TermCode("sys", "code2");
+
+            assertThat(ConsentCache.key(Set.of(code1, code2), true))
+                    .isEqualTo(ConsentCache.key(Set.of(code2, code1), true));
+        }
+
+        @Test
+        void dependsOnEncounterShift() {
+            Set<TermCode> codes = Set.of(new TermCode("sys", "code1"));
+
+            assertThat(ConsentCache.key(codes, true)).isNotEqualTo(ConsentCache.key(codes, false));
+        }
+    }
+
+    @Nested
+    class Invalidate {
+
+        @Test
+        void patient() throws IOException {
+            ConsentCache cache = cache(NOW);
+            store(cache, "p1", "2024-01-10T10:00:00Z");
+            store(cache, "p2", "2024-01-10T10:00:00Z");
+
+            cache.invalidate("p1");
+
+            assertThat(tempDir.resolve(KEY).resolve("p1.json")).doesNotExist();
+            assertThat(tempDir.resolve(KEY).resolve("p2.json")).exists();
+        }
+
+        @Test
+        void all() throws IOException {
+            ConsentCache cache = cache(NOW);
+            store(cache, "p1", "2024-01-10T10:00:00Z");
+
+            cache.invalidateAll();
+
+            assertThat(cache.lookup(KEY, PatientBatch.of("p1"), false).block()).isEmpty();
+            verifyNoInteractions(dataStore);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package de.medizininformatikinitiative.torch.consent;
 
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
 import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.model.consent.ConsentCodeConfig;
 import de.medizininformatikinitiative.torch.model.consent.ConsentProvisions;
@@ -7,6 +8,7 @@ import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
 import de.medizininformatikinitiative.torch.model.consent.Period;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
+import de.medizininformatikinitiative.torch.service.SharedSearches;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -16,12 +18,15 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -48,11 +53,15 @@ public class ConsentHandlerTest {
     @Mock
     ConsentCodeConfig consentCodeConfig;
 
+    @Mock
+    ConsentCache consentCache;
+
     ConsentHandler consentHandler;
 
     @BeforeEach
     void setUp() {
-        consentHandler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig, true);
+        consentHandler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig,
+                ConsentCache.disabled(), true);
     }
 
     @Test
@@ -60,8 +69,9 @@ public class ConsentHandlerTest {
         var codes = CODES;
         when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
         when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
-        when(consentFetcher.fetchConsentInfo(codes, BATCH))
+        when(consentFetcher.fetchConsentInfo(codes, BATCH, SharedSearches.disabled()))
                 .thenReturn(Mono.error(new ConsentViolatedException("No valid consentPeriods found for any patients in batch")));
+        when(consentAdjuster.fetchEncountersByPatient(BATCH, SharedSearches.disabled())).thenReturn(Mono.just(Map.of()));
 
         StepVerifier.create(consentHandler.fetchAndBuildConsentInfo(codes, BATCH))
                 .expectErrorSatisfies(error -> assertThat(error)
@@ -77,8 +87,9 @@ public class ConsentHandlerTest {
         when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
         when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
 
-        when(consentFetcher.fetchConsentInfo(codes, BATCH_UNKNOWN))
+        when(consentFetcher.fetchConsentInfo(codes, BATCH_UNKNOWN, SharedSearches.disabled()))
                 .thenReturn(Mono.error(new ConsentViolatedException("No valid consentPeriods found for any patients in batch")));
+        when(consentAdjuster.fetchEncountersByPatient(BATCH_UNKNOWN, SharedSearches.disabled())).thenReturn(Mono.just(Map.of()));
 
         StepVerifier.create(consentHandler.fetchAndBuildConsentInfo(codes, BATCH_UNKNOWN))
                 .expectErrorSatisfies(error -> assertThat(error)
@@ -104,27 +115,53 @@ public class ConsentHandlerTest {
         when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
         when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
         when(consentCodeConfig.nonGateCodes(codes)).thenReturn(codes);
-        when(consentFetcher.fetchConsentInfo(codes, BATCH)).thenReturn(Mono.just(fetchedProvisions));
-        when(consentAdjuster.fetchEncounterAndAdjustByEncounter(BATCH, fetchedProvisions, codes)).thenReturn(Mono.just(adjustedProvisions));
+        when(consentFetcher.fetchConsentInfo(codes, BATCH, SharedSearches.disabled())).thenReturn(Mono.just(fetchedProvisions));
+        when(consentAdjuster.fetchEncountersByPatient(BATCH, SharedSearches.disabled())).thenReturn(Mono.just(Map.of()));
+        when(consentAdjuster.adjustProvisionsByEncounters(fetchedProvisions, Map.of(), codes)).thenReturn(adjustedProvisions);
         when(consentCalculator.calculateConsent(codes, adjustedProvisions)).thenReturn(consentPeriodsByPatient());
 
         StepVerifier.create(consentHandler.fetchAndBuildConsentInfo(codes, BATCH))
                 .assertNext(result -> assertThat(result.patientIds()).containsExactly(PATIENT_ID))
                 .verifyComplete();
 
-        verify(consentAdjuster).fetchEncounterAndAdjustByEncounter(BATCH, fetchedProvisions, codes);
+        verify(consentAdjuster).adjustProvisionsByEncounters(fetchedProvisions, Map.of(), codes);
+    }
+
+    @Test
+    void encountersAreFetchedConcurrentlyWithConsents() {
+        var codes = CODES;
+        var batch = PatientBatch.of(PATIENT_ID);
+        var fetchedProvisions = provisionsByPatient();
+
+        when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
+        when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
+        when(consentCodeConfig.nonGateCodes(codes)).thenReturn(codes);
+        when(consentFetcher.fetchConsentInfo(codes, batch, SharedSearches.disabled()))
+                .thenReturn(Mono.delay(Duration.ofMillis(200)).thenReturn(fetchedProvisions));
+        when(consentAdjuster.fetchEncountersByPatient(batch, SharedSearches.disabled()))
+                .thenReturn(Mono.delay(Duration.ofMillis(200)).thenReturn(Map.of()));
+        when(consentAdjuster.adjustProvisionsByEncounters(fetchedProvisions, Map.of(), codes)).thenReturn(fetchedProvisions);
+        when(consentCalculator.calculateConsent(codes, fetchedProvisions)).thenReturn(consentPeriodsByPatient());
+
+        StepVerifier.create(consentHandler.fetchAndBuildConsentInfo(codes, batch))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        assertThat(batch.diagnostics().batchDetails().measurements().get(BatchMeasurement.CONSENT_FETCH_SAVED_NANOS))
+                .isGreaterThan(Duration.ofMillis(100).toNanos());
     }
 
     @Test
     void encounterShiftDisabledSkipsConsentAdjuster() {
         var codes = CODES;
         var fetchedProvisions = provisionsByPatient();
-        var handler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig, false);
+        var handler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig,
+                ConsentCache.disabled(), false);
 
         when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
         when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
         when(consentCodeConfig.nonGateCodes(codes)).thenReturn(codes);
-        when(consentFetcher.fetchConsentInfo(codes, BATCH)).thenReturn(Mono.just(fetchedProvisions));
+        when(consentFetcher.fetchConsentInfo(codes, BATCH, SharedSearches.disabled())).thenReturn(Mono.just(fetchedProvisions));
         when(consentCalculator.calculateConsent(codes, fetchedProvisions)).thenReturn(consentPeriodsByPatient());
 
         StepVerifier.create(handler.fetchAndBuildConsentInfo(codes, BATCH))
@@ -134,4 +171,54 @@ public class ConsentHandlerTest {
         verifyNoInteractions(consentAdjuster);
     }
 
+    @Test
+    void cachedPatientsAreNotFetched() {
+        var codes = CODES;
+        var fetchedProvisions = provisionsByPatient();
+        var cachedPeriod = NonContinuousPeriod.of(new Period(LocalDate.of(2021, 1, 1), LocalDate.of(2031, 1, 1)));
+        var batch = PatientBatch.of(PATIENT_ID, "cached");
+        var uncached = new PatientBatch(List.of(PATIENT_ID), batch.batchId(), batch.diagnostics());
+        var key = ConsentCache.key(codes, false);
+        var handler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig,
+                consentCache, false);
+
+        when(consentCache.enabled()).thenReturn(true);
+        when(consentCache.lookup(key, batch, false)).thenReturn(Mono.just(Map.of("cached", cachedPeriod)));
+        when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
+        when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
+        when(consentCodeConfig.nonGateCodes(codes)).thenReturn(codes);
+        when(consentFetcher.fetchConsentInfo(codes, uncached, SharedSearches.disabled())).thenReturn(Mono.just(fetchedProvisions));
+        when(consentCalculator.calculateConsent(codes, fetchedProvisions)).thenReturn(consentPeriodsByPatient());
+        when(consentCache.store(eq(key), eq(consentPeriodsByPatient()), any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(handler.fetchAndBuildConsentInfo(codes, batch, SharedSearches.disabled()))
+                .assertNext(result -> {
+                    assertThat(result.patientIds()).containsExactlyInAnyOrder(PATIENT_ID, "cached");
+                    assertThat(result.get("cached").consentPeriods()).isEqualTo(cachedPeriod);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void cachedPatientsSurviveUncachedWithoutConsent() {
+        var codes = CODES;
+        var cachedPeriod = NonContinuousPeriod.of(new Period(LocalDate.of(2021, 1, 1), LocalDate.of(2031, 1, 1)));
+        var batch = PatientBatch.of(PATIENT_ID, "cached");
+        var uncached = new PatientBatch(List.of(PATIENT_ID), batch.batchId(), batch.diagnostics());
+        var handler = new ConsentHandler(consentFetcher, consentAdjuster, consentCalculator, consentCodeConfig,
+                consentCache, false);
+
+        when(consentCache.enabled()).thenReturn(true);
+        when(consentCache.lookup(ConsentCache.key(codes, false), batch, false))
+                .thenReturn(Mono.just(Map.of("cached", cachedPeriod)));
+        when(consentCodeConfig.extractRequestedProspectiveCodes(codes)).thenReturn(codes);
+        when(consentCodeConfig.withRetroModifiers(codes, codes)).thenReturn(codes);
+        when(consentCodeConfig.nonGateCodes(codes)).thenReturn(codes);
+        when(consentFetcher.fetchConsentInfo(codes, uncached, SharedSearches.disabled()))
+                .thenReturn(Mono.error(new ConsentViolatedException("No valid consentPeriods found for any patients in batch")));
+
+        StepVerifier.create(handler.fetchAndBuildConsentInfo(codes, batch, SharedSearches.disabled()))
+                .assertNext(result -> assertThat(result.patientIds()).containsExactly("cached"))
+                .verifyComplete();
+    }
 }
@@ -0,0 +1,70 @@
+package de.medizininformatikinitiative.torch.consent;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
+import de.medizininformatikinitiative.torch.model.consent.Period;
+import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
+import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConsentValidatorTest {
+
+    static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    static final PatientResourceBundle BUNDLE = new PatientResourceBundle("p1",
+            new NonContinuousPeriod(List.of(Period.of("2020-01-01", "2020-12-31"), Period.of("2022-01-01", "2022-12-31"))),
+            new ResourceBundle());
+
+    static ObjectNode typeToConsent() {
+        return new ObjectMapper().createObjectNode()
+                .put("Observation", "Observation.effective")
+                .put("Medication", "");
+    }
+
+    static Observation observation(String effective) {
+        Observation observation = new Observation();
+        observation.setEffective(new DateTimeType(effective));
+        return observation;
+    }
+
+    @Test
+    void resourceDateWithinConsent() {
+        ConsentValidator validator = new ConsentValidator(FHIR_CONTEXT, typeToConsent());
+
+        assertThat(validator.checkConsent(observation("2022-06-01"), BUNDLE)).isTrue();
+        assertThat(validator.checkConsent(observation("2021-06-01"), BUNDLE)).isFalse();
+    }
+
+    @Test
+    void typeWithoutDate_isConsented() {
+        ConsentValidator validator = new ConsentValidator(FHIR_CONTEXT, typeToConsent());
+
+        assertThat(validator.checkConsent(new Medication(), BUNDLE)).isTrue();
+    }
+
+    @Test
+    void unknownType_isNotConsented() {
+        ConsentValidator validator = new ConsentValidator(FHIR_CONTEXT, typeToConsent());
+
+        assertThat(validator.checkConsent(new Condition(), BUNDLE)).isFalse();
+    }
+
+    @Test
+    void invalidExpression_failsOnCreation() {
+        ObjectNode typeToConsent = typeToConsent().put("Condition", "Condition.(");
+
+        assertThatThrownBy(() -> new ConsentValidator(FHIR_CONTEXT, typeToConsent))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Condition");
+    }
+}
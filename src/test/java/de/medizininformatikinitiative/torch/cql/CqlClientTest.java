@@ -18,7 +18,13 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -49,7 +55,7 @@ class CqlClientTest {
 
         var patient = new Patient();
         patient.setId("patient-id");
-        when(dataStore.search(any(Query.class), org.mockito.ArgumentMatchers.eq(Patient.class)))
+        when(dataStore.searchFresh(any(Query.class), org.mockito.ArgumentMatchers.eq(Patient.class)))
                 .thenReturn(Flux.just(patient));
 
         StepVerifier.create(cqlClient.fetchPatientIds("cql-query"))
@@ -57,6 +63,39 @@ class CqlClientTest {
                 .verifyComplete();
     }
 
+    @Test
+    void fetchPatientIds_requestsOnlyIdsOfSubjectList() {
+        var measureReport = new MeasureReport();
+        measureReport.addGroup().addPopulation().setSubjectResults(new Reference("List/list-id"));
+        when(dataStore.evaluateMeasure(any(Parameters.class))).thenReturn(Mono.just(measureReport));
+        when(dataStore.searchFresh(any(Query.class), eq(Patient.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(cqlClient.fetchPatientIds("cql-query"))
+                .verifyComplete();
+
+        verify(dataStore).searchFresh(argThat(query -> query.type().equals("Patient")
+                && query.params().toString().equals("_list=list-id&_elements=id")), eq(Patient.class));
+    }
+
+    @Test
+    void fetchPatientIds_doesNotCollectTheSearchedPatients() {
+        var measureReport = new MeasureReport();
+        measureReport.addGroup().addPopulation().setSubjectResults(new Reference("List/list-id"));
+        when(dataStore.evaluateMeasure(any(Parameters.class))).thenReturn(Mono.just(measureReport));
+        var received = new AtomicInteger();
+        when(dataStore.searchFresh(any(Query.class), eq(Patient.class)))
+                .thenReturn(Flux.range(0, 1_000)
+                        .map(i -> (Patient) new Patient().setId("patient-" + i))
+                        .doOnNext(patient -> received.incrementAndGet()));
+
+        StepVerifier.create(cqlClient.fetchPatientIds("cql-query"), 1)
+                .expectNext("patient-0")
+                .thenCancel()
+                .verify();
+
+        assertThat(received.get()).isLessThan(1_000);
+    }
+
     @Test
     void fetchPatientIds_withMeasureReportMissingGroup_errors() {
         when(dataStore.evaluateMeasure(any(Parameters.class))).thenReturn(Mono.just(new MeasureReport()));
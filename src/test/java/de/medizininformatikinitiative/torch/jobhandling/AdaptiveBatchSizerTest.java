@@ -0,0 +1,100 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDetails;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveBatchSizerTest {
+
+    private static final long MAX_HEAP = 1000;
+
+    private static BatchDetails details(int patients, int resources, long peakHeap) {
+        BatchDetails details = BatchDetails.empty().setFinalPatientCount(patients);
+        details.resourceInclusions().put("G1", resources);
+        details.record(BatchMeasurement.PEAK_HEAP_BYTES, peakHeap);
+        return details;
+    }
+
+    @Test
+    void disabled_keepsConfiguredSize() {
+        AdaptiveBatchSizer sizer = AdaptiveBatchSizer.disabled(500);
+
+        sizer.onBatchFinished(details(500, 100_000, Long.MAX_VALUE));
+
+        assertThat(sizer.enabled()).isFalse();
+        assertThat(sizer.targetSize()).isEqualTo(500);
+    }
+
+    @Test
+    void shrinksOnHeapAboveBudget_downToMinSize() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 100, 500, 0.7, 0, () -> 0L, MAX_HEAP);
+
+        sizer.onBatchFinished(details(500, 0, 800));
+        assertThat(sizer.targetSize()).isEqualTo(250);
+
+        sizer.onBatchFinished(details(250, 0, 800));
+        sizer.onBatchFinished(details(125, 0, 800));
+        assertThat(sizer.targetSize()).isEqualTo(100);
+    }
+
+    @Test
+    void shrinksOnResourcesPerPatientAboveBudget() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 10, 500, 0.7, 50, () -> 0L, MAX_HEAP);
+
+        sizer.onBatchFinished(details(100, 10_000, 500));
+
+        assertThat(sizer.targetSize()).isEqualTo(250);
+    }
+
+    @Test
+    void growsBackUpToConfiguredSize_whenHeadroom() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 10, 500, 0.7, 0, () -> 0L, MAX_HEAP);
+        sizer.onBatchFinished(details(500, 0, 900));
+        sizer.onBatchFinished(details(250, 0, 900));
+        assertThat(sizer.targetSize()).isEqualTo(125);
+
+        sizer.onBatchFinished(details(125, 0, 100));
+        assertThat(sizer.targetSize()).isEqualTo(187);
+
+        for (int i = 0; i < 5; i++) {
+            sizer.onBatchFinished(details(100, 0, 100));
+        }
+        assertThat(sizer.targetSize()).isEqualTo(500);
+    }
+
+    @Test
+    void keepsSize_betweenHalfBudgetAndBudget() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 10, 500, 0.7, 0, () -> 0L, MAX_HEAP);
+        sizer.onBatchFinished(details(500, 0, 900));
+
+        sizer.onBatchFinished(details(250, 0, 500));
+
+        assertThat(sizer.targetSize()).isEqualTo(250);
+    }
+
+    @Test
+    void targetSizeForClaim_shrinksWhenHeapAlreadyAboveBudget() {
+        AtomicLong used = new AtomicLong(100);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 10, 500, 0.7, 0, used::get, MAX_HEAP);
+
+        assertThat(sizer.targetSizeForClaim()).isEqualTo(500);
+
+        used.set(750);
+        assertThat(sizer.targetSizeForClaim()).isEqualTo(250);
+    }
+
+    @Test
+    void ignoresBatchesWithoutMeasurements() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 10, 500, 0.7, 0, () -> 0L, MAX_HEAP);
+        sizer.onBatchFinished(details(500, 0, 900));
+
+        sizer.onBatchFinished(new BatchDetails(Map.of(), 0, 0, Map.of()));
+
+        assertThat(sizer.targetSize()).isEqualTo(250);
+    }
+}
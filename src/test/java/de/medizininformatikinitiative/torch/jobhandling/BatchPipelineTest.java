@@ -0,0 +1,153 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.medizininformatikinitiative.torch.jobhandling.BatchPipeline.Stage.FETCH;
+import static de.medizininformatikinitiative.torch.jobhandling.BatchPipeline.Stage.TRANSFORM;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchPipelineTest {
+
+    final AtomicLong now = new AtomicLong();
+    final AtomicLong usedHeap = new AtomicLong();
+
+    BatchPipeline pipeline(int maxInFlight) {
+        return new BatchPipeline(true, 1, 1, maxInFlight, 0.5, usedHeap::get, 100L, now::get);
+    }
+
+    /**
+     * Runs a batch through both stages, each completing when its sink is emitted.
+     */
+    Mono<String> batch(BatchPipeline pipeline, List<String> events, String name, Sinks.Empty<Void> fetch,
+                       Sinks.Empty<Void> transform) {
+        BatchDiagnostics diagnostics = BatchDiagnostics.empty();
+        return pipeline.batch(pipeline.stage(FETCH, diagnostics, () -> {
+                    events.add(name + " fetch");
+                    return fetch.asMono().thenReturn(name);
+                })
+                .flatMap(fetched -> pipeline.stage(TRANSFORM, diagnostics, () -> {
+                    events.add(name + " transform");
+                    return transform.asMono().thenReturn(name);
+                })));
+    }
+
+    @Test
+    void nextBatchFetchesWhilePreviousOneTransforms() {
+        BatchPipeline pipeline = pipeline(3);
+        List<String> events = new ArrayList<>();
+        Sinks.Empty<Void> fetchA = Sinks.empty();
+        Sinks.Empty<Void> transformA = Sinks.empty();
+        Sinks.Empty<Void> fetchB = Sinks.empty();
+        Sinks.Empty<Void> transformB = Sinks.empty();
+
+        batch(pipeline, events, "A", fetchA, transformA).subscribe();
+        batch(pipeline, events, "B", fetchB, transformB).subscribe();
+
+        assertThat(events).containsExactly("A fetch");
+        assertThat(pipeline.waiting(FETCH)).isOne();
+
+        fetchA.tryEmitEmpty();
+        assertThat(events).containsExactlyInAnyOrder("A fetch", "A transform", "B fetch");
+
+        fetchB.tryEmitEmpty();
+        assertThat(events).containsExactlyInAnyOrder("A fetch", "A transform", "B fetch");
+        assertThat(pipeline.waiting(TRANSFORM)).isOne();
+
+        transformA.tryEmitEmpty();
+        assertThat(events).endsWith("B transform");
+        assertThat(pipeline.inFlight()).isOne();
+
+        transformB.tryEmitEmpty();
+        assertThat(pipeline.inFlight()).isZero();
+    }
+
+    @Test
+    void admitsBatchesUpToLimitAndHeapBudget() {
+        BatchPipeline pipeline = pipeline(1);
+        assertThat(pipeline.admitsBatch()).isTrue();
+
+        usedHeap.set(60);
+        assertThat(pipeline.admitsBatch()).isFalse();
+
+        usedHeap.set(10);
+        Disposable running = pipeline.batch(Mono.never()).subscribe();
+        assertThat(pipeline.admitsBatch()).isFalse();
+
+        running.dispose();
+        assertThat(pipeline.admitsBatch()).isTrue();
+    }
+
+    @Test
+    void recordsWaitTimeAndUtilization() {
+        BatchPipeline pipeline = pipeline(2);
+        Sinks.Empty<Void> first = Sinks.empty();
+        BatchDiagnostics waiting = BatchDiagnostics.empty();
+
+        pipeline.stage(FETCH, BatchDiagnostics.empty(), first::asMono).subscribe();
+        pipeline.stage(FETCH, waiting, Mono::empty).subscribe();
+        now.set(1_000);
+        assertThat(pipeline.utilization(FETCH)).isEqualTo(1.0);
+
+        first.tryEmitEmpty();
+        now.set(2_000);
+
+        assertThat(waiting.batchDetails().measurements()).containsEntry(BatchMeasurement.PIPELINE_WAIT_NANOS, 1_000L);
+        assertThat(pipeline.utilization(FETCH)).isZero();
+        assertThat(pipeline.utilization(TRANSFORM)).isZero();
+    }
+
+    @Test
+    void cancelledBatchLeavesStageAndQueue() {
+        BatchPipeline pipeline = pipeline(2);
+        Disposable first = pipeline.stage(FETCH, BatchDiagnostics.empty(), Mono::never).subscribe();
+        Disposable second = pipeline.stage(FETCH, BatchDiagnostics.empty(), Mono::never).subscribe();
+        assertThat(pipeline.waiting(FETCH)).isOne();
+
+        second.dispose();
+        assertThat(pipeline.waiting(FETCH)).isZero();
+
+        first.dispose();
+        List<String> entered = new ArrayList<>();
+        pipeline.stage(FETCH, BatchDiagnostics.empty(), () -> Mono.fromRunnable(() -> entered.add("third")))
+                .subscribe();
+        assertThat(entered).containsExactly("third");
+    }
+
+    @Test
+    void disabledPipelineRunsWithoutLimits() {
+        BatchPipeline pipeline = BatchPipeline.disabled();
+        List<String> entered = new ArrayList<>();
+
+        pipeline.stage(FETCH, BatchDiagnostics.empty(), Mono::never).subscribe();
+        pipeline.stage(FETCH, BatchDiagnostics.empty(), () -> Mono.fromRunnable(() -> entered.add("second")))
+                .subscribe();
+
+        assertThat(entered).containsExactly("second");
+        assertThat(pipeline.admitsBatch()).isTrue();
+    }
+
+    @Test
+    void bindsStageMetrics() {
+        BatchPipeline pipeline = pipeline(2);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        pipeline.bindTo(registry);
+
+        pipeline.stage(TRANSFORM, BatchDiagnostics.empty(), Mono::never).subscribe();
+        now.set(2_000_000_000L);
+
+        assertThat(registry.get("torch.batch.pipeline.active").tag("stage", "transform").gauge().value()).isOne();
+        assertThat(registry.get("torch.batch.pipeline.busy").tag("stage", "transform").functionCounter().count())
+                .isEqualTo(2.0);
+        assertThat(registry.get("torch.batch.pipeline.utilization").tag("stage", "fetch").gauge().value()).isZero();
+    }
+}
@@ -0,0 +1,212 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BatchStatesTest {
+
+    /**
+     * Key with few distinct hash codes, so that the trie has to handle full hash collisions.
+     */
+    private record CollidingKey(int id) {
+        @Override
+        public int hashCode() {
+            return id % 7;
+        }
+    }
+
+    @Nested
+    class Trie {
+
+        @Test
+        void behavesLikeHashMapUnderRandomUpdates() {
+            Random random = new Random(42);
+            Map<CollidingKey, Integer> expected = new HashMap<>();
+            PersistentHashMap<CollidingKey, Integer> actual = PersistentHashMap.empty();
+
+            for (int i = 0; i < 5_000; i++) {
+                CollidingKey key = new CollidingKey(random.nextInt(200));
+                if (random.nextInt(3) == 0) {
+                    expected.remove(key);
+                    actual = actual.remove(key);
+                } else {
+                    int value = random.nextInt(5);
+                    expected.put(key, value);
+                    actual = actual.put(key, value);
+                }
+                assertThat(actual.size()).isEqualTo(expected.size());
+            }
+
+            Map<CollidingKey, Integer> iterated = new HashMap<>();
+            actual.forEach(entry -> iterated.put(entry.getKey(), entry.getValue()));
+            assertThat(iterated).isEqualTo(expected);
+            for (int id = 0; id < 200; id++) {
+                assertThat(actual.get(new CollidingKey(id))).isEqualTo(expected.get(new CollidingKey(id)));
+            }
+        }
+
+        @Test
+        void updatesLeaveThePreviousMapUnchanged() {
+            PersistentHashMap<String, Integer> before = PersistentHashMap.<String, Integer>empty().put("a", 1);
+
+            PersistentHashMap<String, Integer> after = before.put("a", 2).put("b", 3).remove("a");
+
+            assertThat(before.get("a")).isEqualTo(1);
+            assertThat(before.size()).isEqualTo(1);
+            assertThat(after.get("a")).isNull();
+            assertThat(after.get("b")).isEqualTo(3);
+        }
+
+        @Test
+        void putOfSameValueReturnsSameMap() {
+            PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty().put("a", 1);
+
+            assertThat(map.put("a", 1)).isSameAs(map);
+            assertThat(map.remove("b")).isSameAs(map);
+        }
+
+        @Test
+        void diffReportsChangedAndRemovedKeys() {
+            Random random = new Random(7);
+            PersistentHashMap<CollidingKey, Integer> before = PersistentHashMap.empty();
+            for (int id = 0; id < 500; id++) {
+                before = before.put(new CollidingKey(id), 0);
+            }
+            PersistentHashMap<CollidingKey, Integer> after = before;
+            Map<CollidingKey, Integer> expectedChanged = new HashMap<>();
+            Set<CollidingKey> expectedRemoved = new HashSet<>();
+            for (int i = 0; i < 50; i++) {
+                CollidingKey key = new CollidingKey(random.nextInt(700));
+                if (random.nextBoolean()) {
+                    after = after.remove(key);
+                    expectedChanged.remove(key);
+                    if (before.get(key) != null) {
+                        expectedRemoved.add(key);
+                    }
+                } else {
+                    after = after.put(key, 1);
+                    expectedChanged.put(key, 1);
+                    expectedRemoved.remove(key);
+                }
+            }
+
+            Map<CollidingKey, Integer> changed = new HashMap<>();
+            Set<CollidingKey> removed = new HashSet<>();
+            before.diff(after, changed::put, removed::add);
+
+            assertThat(changed).isEqualTo(expectedChanged);
+            assertThat(removed).isEqualTo(expectedRemoved);
+        }
+    }
+
+    @Nested
+    class Index {
+
+        @Test
+        void tracksBatchesByStatus() {
+            List<BatchState> initial = new ArrayList<>();
+            BatchStates states = BatchStates.empty();
+            for (int i = 0; i < 100; i++) {
+                BatchState state = BatchState.init();
+                initial.add(state);
+                states = states.with(state);
+            }
+
+            for (int i = 0; i < 30; i++) {
+                states = states.with(initial.get(i).startNow());
+            }
+            for (int i = 0; i < 10; i++) {
+                states = states.with(initial.get(i).startNow().finishNow(WorkUnitStatus.FINISHED));
+            }
+            states = states.without(initial.get(99).batchId());
+
+            assertThat(states).hasSize(99);
+            assertThat(states.count(WorkUnitStatus.INIT)).isEqualTo(69);
+            assertThat(states.count(WorkUnitStatus.IN_PROGRESS)).isEqualTo(20);
+            assertThat(states.count(WorkUnitStatus.FINISHED)).isEqualTo(10);
+            assertThat(states.countDone()).isEqualTo(10);
+            assertThat(states.get(states.anyWithStatus(WorkUnitStatus.INIT).orElseThrow()).status())
+                    .isEqualTo(WorkUnitStatus.INIT);
+            assertThat(states.anyWithStatus(WorkUnitStatus.FAILED)).isEmpty();
+        }
+
+        @Test
+        void tracksCoreStagesByStatus() {
+            BatchState staged = BatchState.init().finishNow(WorkUnitStatus.FINISHED).withCoreStage(WorkUnitState.initNow());
+            BatchStates states = BatchStates.empty().with(BatchState.init()).with(staged);
+
+            assertThat(states.countCoreStage(WorkUnitStatus.INIT)).isOne();
+            assertThat(states.anyWithCoreStage(WorkUnitStatus.INIT)).contains(staged.batchId());
+
+            states = states.with(staged.withCoreStage(WorkUnitState.startNow()));
+            assertThat(states.anyWithCoreStage(WorkUnitStatus.INIT)).isEmpty();
+            assertThat(states.countCoreStage(WorkUnitStatus.IN_PROGRESS)).isOne();
+
+            states = states.without(staged.batchId());
+            assertThat(states.countCoreStage(WorkUnitStatus.IN_PROGRESS)).isZero();
+        }
+
+        @Test
+        void equalsPlainMapWithSameEntries() {
+            BatchState a = BatchState.init();
+            BatchState b = BatchState.init();
+            Map<UUID, BatchState> plain = Map.of(a.batchId(), a, b.batchId(), b);
+
+            BatchStates states = BatchStates.copyOf(plain);
+
+            assertThat(states).isEqualTo(plain);
+            assertThat(states.hashCode()).isEqualTo(plain.hashCode());
+        }
+
+        @Test
+        void equalityAndHashCodeFollowUpdates() {
+            BatchState a = BatchState.init();
+            BatchState b = BatchState.init();
+            BatchStates states = BatchStates.empty().with(a).with(b);
+
+            BatchStates started = states.with(a.startNow());
+            BatchStates rebuilt = BatchStates.empty().with(b).with(a);
+
+            assertThat(started).isNotEqualTo(states);
+            assertThat(started.with(a)).isEqualTo(states).hasSameHashCodeAs(states);
+            assertThat(rebuilt).isEqualTo(states).hasSameHashCodeAs(states);
+            assertThat(started.without(a.batchId()).hashCode())
+                    .isEqualTo(Map.of(b.batchId(), b).hashCode());
+        }
+
+        @Test
+        void rejectsStateStoredUnderOtherId() {
+            BatchState state = BatchState.init();
+
+            assertThatThrownBy(() -> BatchStates.copyOf(Map.of(UUID.randomUUID(), state)))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+
+        @Test
+        void jobSerializesBatchesAsObject() throws Exception {
+            BatchState state = BatchState.init();
+            Job job = JobTest.job(UUID.randomUUID(), JobStatus.RUNNING_PROCESS_BATCH, WorkUnitState.initNow(),
+                    Map.of(state.batchId(), state), WorkUnitState.initNow());
+
+            String json = JobJournalTest.MAPPER.writeValueAsString(job);
+
+            assertThat(JobJournalTest.MAPPER.readTree(json).get("batches").get(state.batchId().toString()).get("batchId")
+                    .asText()).isEqualTo(state.batchId().toString());
+            assertThat(JobJournalTest.MAPPER.readValue(json, Job.class)).isEqualTo(job);
+        }
+    }
+}
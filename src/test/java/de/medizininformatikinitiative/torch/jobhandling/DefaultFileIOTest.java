@@ -12,6 +12,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.stream.Stream;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.eq;
@@ -147,4 +148,33 @@ class DefaultFileIOTest {
             }
         }
     }
+
+    @Nested
+    class CreateNewTests {
+
+        @Test
+        void createNew_writesContent_whenFileIsMissing(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("lease");
+
+            assertThat(io.createNew(file, "content")).isTrue();
+
+            assertThat(file).hasContent("content");
+            try (Stream<Path> files = Files.list(dir)) {
+                assertThat(files).containsExactly(file);
+            }
+        }
+
+        @Test
+        void createNew_keepsContent_whenFileExists(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("lease");
+            Files.writeString(file, "first");
+
+            assertThat(io.createNew(file, "second")).isFalse();
+
+            assertThat(file).hasContent("first");
+            try (Stream<Path> files = Files.list(dir)) {
+                assertThat(files).containsExactly(file);
+            }
+        }
+    }
 }
@@ -0,0 +1,252 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
+import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static de.medizininformatikinitiative.torch.jobhandling.JobJournal.JOURNAL_FILE_NAME;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JobJournalTest {
+
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new Jdk8Module())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    private static Job runningJob(int batches) {
+        Map<UUID, BatchState> states = new HashMap<>();
+        for (int i = 0; i < batches; i++) {
+            BatchState state = BatchState.init();
+            states.put(state.batchId(), state);
+        }
+        return JobTest.job(UUID.randomUUID(), JobStatus.RUNNING_PROCESS_BATCH, WorkUnitState.initNow(), states,
+                WorkUnitState.initNow());
+    }
+
+    private static JobDelta roundTrip(JobDelta delta) throws IOException {
+        return MAPPER.readValue(MAPPER.writeValueAsString(delta), JobDelta.class);
+    }
+
+    @Nested
+    class Delta {
+
+        @Test
+        void containsOnlyChangedBatchesAndAppendedIssues() throws IOException {
+            Job previous = runningJob(50).withIssuesAdded(List.of(Issue.simple(Severity.WARNING, "first")));
+            UUID claimed = previous.batches().keySet().iterator().next();
+            Job next = previous.withBatchState(previous.batches().get(claimed).startNow())
+                    .withIssuesAdded(List.of(Issue.simple(Severity.WARNING, "second")))
+                    .incrementVersion();
+
+            JobDelta delta = JobDelta.between(previous, next).orElseThrow();
+
+            assertThat(delta.batches()).containsOnlyKeys(claimed);
+            assertThat(delta.addedIssues()).containsExactly(Issue.simple(Severity.WARNING, "second"));
+            assertThat(delta.issues()).isNull();
+            assertThat(roundTrip(delta).applyTo(previous)).isEqualTo(next);
+        }
+
+        @Test
+        void recordsRemovedBatches() throws IOException {
+            Job previous = runningJob(3);
+            UUID split = previous.batches().keySet().iterator().next();
+            previous = previous.withBatchState(previous.batches().get(split).startNow());
+            Job next = previous.splitBatch(split, List.of(BatchState.init(), BatchState.init())).incrementVersion();
+
+            JobDelta delta = JobDelta.between(previous, next).orElseThrow();
+
+            assertThat(delta.removedBatches()).containsExactly(split);
+            assertThat(roundTrip(delta).applyTo(previous)).isEqualTo(next);
+        }
+
+        @Test
+        void recordsReplacedIssuesInFull() throws IOException {
+            Job previous = runningJob(1).withIssuesAdded(List.of(Issue.simple(Severity.WARNING, "first")));
+            Job next = new Job(previous.id(), previous.status(), previous.cohortState(), previous.cohortSize(),
+                    previous.batches(), previous.startedAt(), previous.updatedAt(), previous.finishedAt(), List.of(),
+                    previous.parameters(), previous.priority(), previous.coreState(), previous.version() + 1);
+
+            JobDelta delta = JobDelta.between(previous, next).orElseThrow();
+
+            assertThat(delta.issues()).isEmpty();
+            assertThat(roundTrip(delta).applyTo(previous)).isEqualTo(next);
+        }
+
+        @Test
+        void recordsMaxConcurrentBatches() throws IOException {
+            Job previous = runningJob(1);
+            Job next = previous.withMaxConcurrentBatches(2).incrementVersion();
+
+            JobDelta delta = JobDelta.between(previous, next).orElseThrow();
+
+            assertThat(roundTrip(delta).applyTo(previous)).isEqualTo(next);
+        }
+
+        @Test
+        void isEmptyWhenParametersChange() {
+            Job previous = runningJob(1);
+            Job next = new Job(previous.id(), previous.status(), previous.cohortState(), previous.cohortSize(),
+                    previous.batches(), previous.startedAt(), previous.updatedAt(), previous.finishedAt(),
+                    previous.issues(), new JobParameters(previous.parameters().crtdl(), List.of("p1"), null),
+                    previous.priority(), previous.coreState(), previous.version() + 1);
+
+            assertThat(JobDelta.between(previous, next)).isEmpty();
+        }
+    }
+
+    @Nested
+    class Journal {
+
+        @TempDir
+        Path baseDir;
+
+        final FileIo io = new DefaultFileIO();
+        final List<Job> snapshots = new ArrayList<>();
+        JobJournal journal;
+
+        JobJournal journal(int compactAfter) {
+            journal = new JobJournal(io, MAPPER, id -> baseDir.resolve(id.toString()), this::writeSnapshot,
+                    compactAfter);
+            return journal;
+        }
+
+        void writeSnapshot(Job job) throws IOException {
+            synchronized (snapshots) {
+                snapshots.add(job);
+            }
+            try (Writer out = io.newBufferedWriter(baseDir.resolve(job.id().toString()).resolve("job.json"))) {
+                MAPPER.writeValue(out, job);
+            }
+        }
+
+        Job reload(UUID jobId) throws IOException {
+            Path dir = baseDir.resolve(jobId.toString());
+            try (Reader in = io.newBufferedReader(dir.resolve("job.json"))) {
+                return JobJournal.replay(MAPPER.readValue(in, Job.class), dir, io, MAPPER);
+            }
+        }
+
+        List<Job> claimAll(Job job) {
+            List<Job> states = new ArrayList<>(List.of(job));
+            for (UUID batchId : job.batches().keySet()) {
+                Job previous = states.getLast();
+                states.add(previous.withBatchState(previous.batches().get(batchId).startNow()).incrementVersion());
+            }
+            return states;
+        }
+
+        @BeforeEach
+        void setUp() {
+            snapshots.clear();
+        }
+
+        @AfterEach
+        void tearDown() throws InterruptedException {
+            journal.close();
+        }
+
+        @Test
+        void replayRestoresJournaledChangesWithoutRewritingSnapshot() throws IOException {
+            JobJournal journal = journal(1_000);
+            Job initial = runningJob(20);
+            Files.createDirectories(baseDir.resolve(initial.id().toString()));
+            journal.writeSnapshot(initial);
+
+            List<Job> states = claimAll(initial);
+            List<CompletableFuture<Void>> commits = new ArrayList<>();
+            for (int i = 1; i < states.size(); i++) {
+                commits.add(journal.append(states.get(i - 1), states.get(i)));
+            }
+            CompletableFuture.allOf(commits.toArray(CompletableFuture[]::new)).join();
+
+            assertThat(snapshots).containsExactly(initial);
+            assertThat(reload(initial.id())).isEqualTo(states.getLast());
+        }
+
+        @Test
+        void compactsAfterLimit() throws IOException {
+            JobJournal journal = journal(5);
+            Job initial = runningJob(12);
+            Path dir = baseDir.resolve(initial.id().toString());
+            Files.createDirectories(dir);
+            journal.writeSnapshot(initial);
+
+            List<Job> states = claimAll(initial);
+            for (int i = 1; i < states.size(); i++) {
+                // one at a time, so every change is its own group
+                journal.append(states.get(i - 1), states.get(i)).join();
+            }
+
+            assertThat(snapshots).extracting(Job::version).containsExactly(0L, 5L, 10L);
+            assertThat(Files.readAllLines(dir.resolve(JOURNAL_FILE_NAME))).hasSize(2);
+            assertThat(reload(initial.id())).isEqualTo(states.getLast());
+        }
+
+        @Test
+        void compactsOnFinalStatus() throws IOException {
+            JobJournal journal = journal(1_000);
+            Job initial = runningJob(1);
+            Path dir = baseDir.resolve(initial.id().toString());
+            Files.createDirectories(dir);
+            journal.writeSnapshot(initial);
+            Job claimed = claimAll(initial).getLast();
+            Job cancelled = claimed.cancel().incrementVersion();
+
+            journal.append(initial, claimed).join();
+            journal.append(claimed, cancelled).join();
+
+            assertThat(snapshots).containsExactly(initial, cancelled);
+            assertThat(dir.resolve(JOURNAL_FILE_NAME)).doesNotExist();
+        }
+
+        @Test
+        void replayIgnoresTornRecord() throws IOException {
+            JobJournal journal = journal(1_000);
+            Job initial = runningJob(3);
+            Path dir = baseDir.resolve(initial.id().toString());
+            Files.createDirectories(dir);
+            journal.writeSnapshot(initial);
+            List<Job> states = claimAll(initial);
+            journal.append(states.get(0), states.get(1)).join();
+
+            Files.writeString(dir.resolve(JOURNAL_FILE_NAME), "{\"version\":2,\"sta", StandardOpenOption.APPEND);
+
+            assertThat(reload(initial.id())).isEqualTo(states.get(1));
+        }
+
+        @Test
+        void appendAfterCloseFails() throws InterruptedException {
+            JobJournal journal = journal(1_000);
+            Job initial = runningJob(1);
+            journal.close();
+
+            CompletableFuture<Void> commit = journal.append(initial, initial.incrementVersion());
+
+            assertThatThrownBy(commit::join).hasCauseInstanceOf(IOException.class);
+        }
+    }
+}
@@ -1,29 +1,38 @@
 package de.medizininformatikinitiative.torch.jobhandling;
 
+import de.medizininformatikinitiative.torch.config.SchedulerProperties;
 import de.medizininformatikinitiative.torch.config.TorchProperties;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessBatchWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.service.CohortQueryService;
 import de.medizininformatikinitiative.torch.service.ExtractDataService;
 import de.medizininformatikinitiative.torch.service.JobPersistenceService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anySet;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doNothing;
@@ -410,4 +419,131 @@ class JobSchedulerTest {
             JobScheduler.MAX_RETRYABLE_FAILURES = oldMax;
         }
     }
+
+    private JobScheduler newVirtualScheduler(JobExecutionContext ctx, SchedulerProperties schedulerProperties) {
+        when(properties.maxConcurrency()).thenReturn(1);
+        return new JobScheduler(properties, schedulerProperties, ctx);
+    }
+
+    @Test
+    void dispatchLoop_selectsOnlyPhasesBelowTheirLimit() throws Exception {
+        JobScheduler scheduler = newVirtualScheduler(newCtx(), new SchedulerProperties(true, 1, 1, 1, false));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        scheduler.bindTo(registry);
+        setRunning(scheduler, true);
+
+        ProcessBatchWorkUnit wu = mock(ProcessBatchWorkUnit.class);
+        Job job = mock(Job.class);
+        when(wu.job()).thenReturn(job);
+        when(job.id()).thenReturn(UUID.randomUUID());
+        Sinks.Empty<Void> done = Sinks.empty();
+        when(wu.execute(any())).thenReturn(done.asMono());
+
+        AtomicReference<Set<WorkPhase>> phasesWhileBatchRuns = new AtomicReference<>();
+        when(persistence.selectNextWorkUnit(anySet()))
+                .thenReturn(Optional.of(wu))
+                .thenAnswer(inv -> {
+                    phasesWhileBatchRuns.set(Set.copyOf(inv.getArgument(0)));
+                    setRunning(scheduler, false);
+                    return Optional.empty();
+                });
+
+        Method dispatchLoop = JobScheduler.class.getDeclaredMethod("dispatchLoop");
+        dispatchLoop.setAccessible(true);
+        dispatchLoop.invoke(scheduler);
+
+        assertThat(phasesWhileBatchRuns.get()).containsExactlyInAnyOrder(WorkPhase.COHORT, WorkPhase.CORE);
+        verify(wu, timeout(1000)).execute(any());
+        assertThat(registry.get("torch.scheduler.in.flight").tag("phase", "batch").gauge().value()).isEqualTo(1);
+
+        done.tryEmitEmpty();
+
+        verify(persistence, timeout(1000)).wakeUpWorkers();
+        assertThat(registry.get("torch.scheduler.in.flight").tag("phase", "batch").gauge().value()).isZero();
+    }
+
+    @Test
+    void dispatchLoop_skipsBatchesWhilePipelineDoesNotAdmitThem() throws Exception {
+        when(properties.maxConcurrency()).thenReturn(1);
+        BatchPipeline pipeline = new BatchPipeline(true, 1, 1, 2, 0.5, () -> 80L, 100L, System::nanoTime);
+        JobScheduler scheduler = new JobScheduler(properties, new SchedulerProperties(true, 1, 1, 1, false), newCtx(),
+                pipeline);
+        setRunning(scheduler, true);
+
+        AtomicReference<Set<WorkPhase>> phases = new AtomicReference<>();
+        when(persistence.selectNextWorkUnit(anySet())).thenAnswer(inv -> {
+            phases.set(Set.copyOf(inv.getArgument(0)));
+            setRunning(scheduler, false);
+            return Optional.empty();
+        });
+
+        Method dispatchLoop = JobScheduler.class.getDeclaredMethod("dispatchLoop");
+        dispatchLoop.setAccessible(true);
+        dispatchLoop.invoke(scheduler);
+
+        assertThat(phases.get()).containsExactlyInAnyOrder(WorkPhase.COHORT, WorkPhase.CORE);
+    }
+
+    @Test
+    void executeDispatched_terminatesOnNonRetryableFailure() throws Exception {
+        JobScheduler scheduler = spy(newVirtualScheduler(newCtx(), new SchedulerProperties(true, 1, 1, 1, false)));
+        doNothing().when(scheduler).terminate();
+
+        ProcessBatchWorkUnit wu = mock(ProcessBatchWorkUnit.class);
+        Job job = mock(Job.class);
+        UUID jobId = UUID.randomUUID();
+        when(wu.job()).thenReturn(job);
+        when(job.id()).thenReturn(jobId);
+        when(wu.execute(any())).thenReturn(Mono.error(new RuntimeException("Job failed")));
+        doThrow(new RuntimeException("DB Connection Lost")).when(persistence).onJobError(any(), any(), any());
+
+        scheduler.executeDispatched(wu, WorkPhase.BATCH);
+
+        verify(scheduler).terminate();
+        verify(persistence).wakeUpWorkers();
+    }
+
+    @Test
+    void executeDispatched_releasesPermitAndBacksOffDispatchOnRetryableFailure() throws Exception {
+        JobScheduler scheduler = spy(newVirtualScheduler(newCtx(), new SchedulerProperties(true, 1, 1, 1, false)));
+        setRunning(scheduler, true);
+
+        ProcessBatchWorkUnit wu = mock(ProcessBatchWorkUnit.class);
+        Job job = mock(Job.class);
+        UUID jobId = UUID.randomUUID();
+        when(wu.job()).thenReturn(job);
+        when(job.id()).thenReturn(jobId);
+        when(wu.execute(any())).thenReturn(Mono.error(new RuntimeException("boom")));
+        doThrow(new RuntimeException("wrapped", new IOException("connection reset")))
+                .when(persistence).onJobError(eq(jobId), eq(List.of()), any(Throwable.class));
+
+        AtomicReference<Set<WorkPhase>> phases = new AtomicReference<>();
+        when(persistence.selectNextWorkUnit(anySet())).thenAnswer(inv -> {
+            phases.set(Set.copyOf(inv.getArgument(0)));
+            setRunning(scheduler, false);
+            return Optional.empty();
+        });
+
+        Field permitsField = JobScheduler.class.getDeclaredField("phasePermits");
+        permitsField.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Semaphore batchPermits = ((Map<WorkPhase, Semaphore>) permitsField.get(scheduler)).get(WorkPhase.BATCH);
+        batchPermits.acquire();
+
+        long start = System.currentTimeMillis();
+        scheduler.executeDispatched(wu, WorkPhase.BATCH);
+
+        // the permit is released right away instead of being held during the backoff
+        assertThat(System.currentTimeMillis() - start).isLessThan(800);
+        assertThat(batchPermits.availablePermits()).isEqualTo(1);
+
+        Method dispatchLoop = JobScheduler.class.getDeclaredMethod("dispatchLoop");
+        dispatchLoop.setAccessible(true);
+        dispatchLoop.invoke(scheduler);
+
+        // the dispatcher waited for the backoff (RETRY_SLEEP_MS=1000) before selecting the next work unit
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(800);
+        assertThat(phases.get()).contains(WorkPhase.BATCH);
+        verify(scheduler, times(0)).terminate();
+    }
 }
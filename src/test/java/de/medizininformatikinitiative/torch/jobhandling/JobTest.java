@@ -10,9 +10,14 @@ import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardOutcome;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessBatchWorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCohortWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCoreShardWorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCoreWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.StageCoreWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
@@ -23,9 +28,11 @@ import org.junit.jupiter.params.provider.EnumSource;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -157,6 +164,21 @@ public class JobTest {
             assertThat(j.selectNextWorkUnit()).isEmpty();
         }
 
+        @Test
+        void runningProcessBatch_atMaxConcurrentBatches_returnsNoBatch() {
+            Job j = Job.init(UUID.randomUUID(), TestUtils.emptyJobParams())
+                    .withStatus(JobStatus.RUNNING_PROCESS_BATCH)
+                    .withBatchState(new BatchState(UUID.randomUUID(), WorkUnitState.initNow()))
+                    .withBatchState(new BatchState(UUID.randomUUID(), WorkUnitState.startNow()))
+                    .withMaxConcurrentBatches(1);
+
+            assertThat(j.batchesInProgress()).isEqualTo(1);
+            assertThat(j.selectNextWorkUnit()).isEmpty();
+            assertThat(j.runnablePhases()).isEmpty();
+            assertThat(j.withMaxConcurrentBatches(2).selectNextWorkUnit()).get()
+                    .isInstanceOf(ProcessBatchWorkUnit.class);
+        }
+
         @Test
         void runningProcessCore_withCoreInit_returnsProcessCore_andStagesCoreToInProgress() {
             Job j = Job.init(UUID.randomUUID(), TestUtils.emptyJobParams())
@@ -770,6 +792,189 @@ public class JobTest {
         }
     }
 
+    @Nested
+    class CoreShardTests {
+
+        Job preparing() {
+            return Job.init(UUID.randomUUID(), TestUtils.emptyJobParams())
+                    .withStatus(JobStatus.RUNNING_PROCESS_CORE)
+                    .withCohortState(WorkUnitState.initNow().finishNow(WorkUnitStatus.FINISHED))
+                    .withCoreState(WorkUnitState.startNow());
+        }
+
+        CoreShardResult finishedShard(Job job, int shard) {
+            return new CoreShardResult(job.id(), shard, WorkUnitStatus.FINISHED,
+                    new CoreShardOutcome(shard, Set.of(), Set.of(), Set.of()), Optional.empty(), List.of());
+        }
+
+        @Test
+        void partitionCreatesShardsAndResetsCoreState() {
+            Job partitioned = preparing().onCorePartitioned(3, List.of());
+
+            assertThat(partitioned.coreShards()).containsOnlyKeys(0, 1, 2);
+            assertThat(partitioned.coreShards().values()).allMatch(s -> s.status() == WorkUnitStatus.INIT);
+            assertThat(partitioned.coreState().status()).isEqualTo(WorkUnitStatus.INIT);
+            assertThat(partitioned.onCorePartitioned(2, List.of())).isSameAs(partitioned);
+        }
+
+        @Test
+        void shardsAreClaimedOneByOneBeforeReconciling() {
+            Job job = preparing().onCorePartitioned(2, List.of());
+
+            WorkUnit first = job.selectNextWorkUnit().orElseThrow();
+            assertThat(first).isInstanceOf(ProcessCoreShardWorkUnit.class);
+            assertThat(((ProcessCoreShardWorkUnit) first).shard()).isZero();
+
+            job = first.job();
+            WorkUnit second = job.selectNextWorkUnit().orElseThrow();
+            assertThat(((ProcessCoreShardWorkUnit) second).shard()).isOne();
+
+            job = second.job();
+            assertThat(job.selectNextWorkUnit()).isEmpty();
+            assertThat(job.hasRunnableWork()).isFalse();
+
+            job = job.onCoreShardSuccess(finishedShard(job, 0)).onCoreShardSuccess(finishedShard(job, 1));
+            assertThat(job.allCoreShardsDone()).isTrue();
+            assertThat(job.runnablePhase()).contains(WorkPhase.CORE);
+
+            WorkUnit reconcile = job.selectNextWorkUnit().orElseThrow();
+            assertThat(reconcile).isInstanceOf(ProcessCoreWorkUnit.class);
+            assertThat(reconcile.job().coreState().status()).isEqualTo(WorkUnitStatus.IN_PROGRESS);
+            assertThat(reconcile.job().onCoreSuccess(finishedCore(job)).status()).isEqualTo(JobStatus.COMPLETED);
+        }
+
+        @Test
+        void shardSuccessOfUnclaimedShardIsIgnored() {
+            Job job = preparing().onCorePartitioned(2, List.of());
+
+            assertThat(job.onCoreShardSuccess(finishedShard(job, 0))).isSameAs(job);
+        }
+
+        @Test
+        void rollbackRerollsClaimedShardsAndKeepsFinishedOnes() {
+            Job job = preparing().onCorePartitioned(2, List.of())
+                    .withCoreShardState(0, WorkUnitState.startNow().finishNow(WorkUnitStatus.FINISHED))
+                    .withCoreShardState(1, WorkUnitState.startNow());
+
+            Job rolledBack = job.rollback();
+
+            assertThat(rolledBack.coreShards().get(0).status()).isEqualTo(WorkUnitStatus.FINISHED);
+            assertThat(rolledBack.coreShards().get(1).status()).isEqualTo(WorkUnitStatus.INIT);
+            assertThat(rolledBack.selectNextWorkUnit()).get().isInstanceOf(ProcessCoreShardWorkUnit.class);
+        }
+
+        @Test
+        void retryableShardErrorTempFailsAndResumesIntoCore() {
+            Job job = preparing().onCorePartitioned(1, List.of()).withCoreShardState(0, WorkUnitState.startNow());
+
+            Job failed = job.onCoreShardError(0, new IOException("boom"), List.of());
+
+            assertThat(failed.status()).isEqualTo(JobStatus.TEMP_FAILED);
+            assertThat(failed.coreShards().get(0).status()).isEqualTo(WorkUnitStatus.TEMP_FAILED);
+
+            Job resumed = failed.rollback();
+            assertThat(resumed.status()).isEqualTo(JobStatus.RUNNING_PROCESS_CORE);
+            assertThat(resumed.coreShards().get(0).status()).isEqualTo(WorkUnitStatus.INIT);
+            assertThat(resumed.coreShards().get(0).retry()).isOne();
+        }
+
+        @Test
+        void nonRetryableShardErrorFailsJob() {
+            Job job = preparing().onCorePartitioned(1, List.of()).withCoreShardState(0, WorkUnitState.startNow());
+
+            Job failed = job.onCoreShardError(0, new IllegalStateException("bad"), List.of());
+
+            assertThat(failed.status()).isEqualTo(JobStatus.FAILED);
+        }
+
+        @Test
+        void shardsSurviveSerializationAndAreOmittedWhenEmpty() throws Exception {
+            ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule()).registerModule(new Jdk8Module());
+            Job unsharded = preparing();
+            Job sharded = unsharded.onCorePartitioned(2, List.of());
+
+            assertThat(mapper.readTree(mapper.writeValueAsString(unsharded)).has("coreShards")).isFalse();
+            assertThat(mapper.readValue(mapper.writeValueAsString(sharded), Job.class).coreShards())
+                    .isEqualTo(sharded.coreShards());
+        }
+    }
+
+    @Nested
+    class CoreStageTests {
+
+        Job runningBatches(BatchState... batches) {
+            Map<UUID, BatchState> states = new HashMap<>();
+            for (BatchState bs : batches) {
+                states.put(bs.batchId(), bs);
+            }
+            return job(UUID.randomUUID(), JobStatus.RUNNING_PROCESS_BATCH,
+                    WorkUnitState.initNow().finishNow(WorkUnitStatus.FINISHED), states, WorkUnitState.initNow());
+        }
+
+        BatchState finishedWithStaging() {
+            return BatchState.init().startNow().finishNow(WorkUnitStatus.FINISHED).withCoreStage(WorkUnitState.initNow());
+        }
+
+        @Test
+        void stagingIsSelectedAsCoreWorkWhileBatchesRun() {
+            BatchState staged = finishedWithStaging();
+            BatchState pending = BatchState.init();
+            Job job = runningBatches(staged, pending);
+
+            assertThat(job.runnablePhases()).containsExactlyInAnyOrder(WorkPhase.BATCH, WorkPhase.CORE);
+            assertThat(job.selectNextWorkUnit()).get().isInstanceOf(ProcessBatchWorkUnit.class);
+
+            WorkUnit stage = job.selectNextWorkUnit(Set.of(WorkPhase.CORE)).orElseThrow();
+            assertThat(stage).isInstanceOf(StageCoreWorkUnit.class);
+            assertThat(((StageCoreWorkUnit) stage).batchId()).isEqualTo(staged.batchId());
+            assertThat(stage.job().batches().get(staged.batchId()).coreStageStatus())
+                    .isEqualTo(WorkUnitStatus.IN_PROGRESS);
+            assertThat(stage.job().runnablePhases()).containsExactly(WorkPhase.BATCH);
+        }
+
+        @Test
+        void coreWaitsUntilStagingIsDone() {
+            BatchState staged = finishedWithStaging();
+            Job job = runningBatches(staged).withStatus(JobStatus.RUNNING_PROCESS_CORE);
+
+            WorkUnit stage = job.selectNextWorkUnit().orElseThrow();
+            assertThat(stage).isInstanceOf(StageCoreWorkUnit.class);
+
+            job = stage.job();
+            assertThat(job.coreStagingPending()).isTrue();
+            assertThat(job.selectNextWorkUnit()).isEmpty();
+
+            job = job.onCoreStaged(staged.batchId(), WorkUnitStatus.FINISHED);
+            assertThat(job.coreStagingPending()).isFalse();
+            assertThat(job.selectNextWorkUnit()).get().isInstanceOf(ProcessCoreWorkUnit.class);
+        }
+
+        @Test
+        void stagingErrorSkipsStagingWithoutFailingJob() {
+            BatchState staged = finishedWithStaging();
+            Job job = runningBatches(staged).withStatus(JobStatus.RUNNING_PROCESS_CORE)
+                    .selectNextWorkUnit().orElseThrow().job();
+
+            Job failed = job.onCoreStageError(staged.batchId());
+
+            assertThat(failed.status()).isEqualTo(JobStatus.RUNNING_PROCESS_CORE);
+            assertThat(failed.batches().get(staged.batchId()).coreStageStatus()).isEqualTo(WorkUnitStatus.SKIPPED);
+            assertThat(failed.onCoreStaged(staged.batchId(), WorkUnitStatus.FINISHED)).isSameAs(failed);
+        }
+
+        @Test
+        void rollbackResumesInterruptedStaging() {
+            BatchState staged = finishedWithStaging();
+            Job job = runningBatches(staged, BatchState.init()).selectNextWorkUnit(Set.of(WorkPhase.CORE))
+                    .orElseThrow().job();
+
+            Job rolledBack = job.rollback();
+
+            assertThat(rolledBack.batches().get(staged.batchId()).coreStageStatus()).isEqualTo(WorkUnitStatus.INIT);
+            assertThat(rolledBack.getNextCoreStage()).contains(staged.batchId());
+        }
+    }
+
     @Nested
     class OnCohortSuccessTests {
 
@@ -839,6 +1044,124 @@ public class JobTest {
         }
     }
 
+    @Nested
+    class CohortStreamingTests {
+
+        private static Job gettingCohort() {
+            return Job.init(UUID.randomUUID(), TestUtils.emptyJobParams())
+                    .withStatus(JobStatus.RUNNING_GET_COHORT)
+                    .withCohortState(WorkUnitState.startNow());
+        }
+
+        private static BatchState initBatch() {
+            return new BatchState(UUID.randomUUID(), WorkUnitState.initNow());
+        }
+
+        @Test
+        void batchIsAddedWhileCohortRuns() {
+            Job job = gettingCohort();
+            BatchState batch = initBatch();
+
+            Job updated = job.onCohortBatch(job.cohortState().startedAt(), batch, 3);
+
+            assertThat(updated.status()).isEqualTo(JobStatus.RUNNING_GET_COHORT);
+            assertThat(updated.cohortSize()).isEqualTo(3);
+            assertThat(updated.batches()).containsKey(batch.batchId());
+        }
+
+        @Test
+        void batchIsHandedOutWhileCohortRuns() {
+            Job job = gettingCohort();
+            BatchState batch = initBatch();
+            job = job.onCohortBatch(job.cohortState().startedAt(), batch, 3);
+
+            Optional<WorkUnit> wu = job.selectNextWorkUnit();
+
+            assertThat(wu).get().isInstanceOf(ProcessBatchWorkUnit.class);
+            assertThat(wu.get().job().status()).isEqualTo(JobStatus.RUNNING_GET_COHORT);
+            assertThat(wu.get().job().batches().get(batch.batchId()).status())
+                    .isEqualTo(WorkUnitStatus.IN_PROGRESS);
+        }
+
+        @Test
+        void batchOfOtherAttemptIsIgnored() {
+            Job job = gettingCohort();
+
+            Job updated = job.onCohortBatch(job.cohortState().startedAt().minusSeconds(1), initBatch(), 3);
+
+            assertThat(updated).isSameAs(job);
+        }
+
+        @Test
+        void finishedBatchDoesNotEndRunningCohort() {
+            Job job = gettingCohort();
+            BatchState batch = initBatch();
+            job = job.onCohortBatch(job.cohortState().startedAt(), batch, 3);
+
+            Job updated = job.onBatchProcessingSuccess(new BatchResult(job.id(), batch.batchId(),
+                    batch.state().finishNow(WorkUnitStatus.FINISHED), Optional.empty(), Optional.empty(),
+                    List.of()));
+
+            assertThat(updated.status()).isEqualTo(JobStatus.RUNNING_GET_COHORT);
+            assertThat(updated.batches().get(batch.batchId()).status()).isEqualTo(WorkUnitStatus.FINISHED);
+        }
+
+        @Test
+        void completeContinuesWithRemainingBatches() {
+            Job job = gettingCohort();
+            Instant attempt = job.cohortState().startedAt();
+            job = job.onCohortBatch(attempt, initBatch(), 3);
+
+            Job updated = job.onCohortComplete(attempt, Optional.empty());
+
+            assertThat(updated.status()).isEqualTo(JobStatus.RUNNING_PROCESS_BATCH);
+            assertThat(updated.cohortState().status()).isEqualTo(WorkUnitStatus.FINISHED);
+            assertThat(updated.cohortSize()).isEqualTo(3);
+        }
+
+        @Test
+        void completeAfterAllBatchesDoneContinuesWithCore() {
+            Job job = gettingCohort();
+            Instant attempt = job.cohortState().startedAt();
+            BatchState batch = initBatch();
+            job = job.onCohortBatch(attempt, batch, 3)
+                    .withBatchState(new BatchState(batch.batchId(), batch.state().finishNow(WorkUnitStatus.FINISHED)));
+
+            Job updated = job.onCohortComplete(attempt, Optional.empty());
+
+            assertThat(updated.status()).isEqualTo(JobStatus.RUNNING_PROCESS_CORE);
+            assertThat(updated.coreState().status()).isEqualTo(WorkUnitStatus.INIT);
+        }
+
+        @Test
+        void completeWithoutBatchesSkipsToCore() {
+            Job job = gettingCohort();
+
+            Job updated = job.onCohortComplete(job.cohortState().startedAt(), Optional.empty());
+
+            assertThat(updated.status()).isEqualTo(JobStatus.RUNNING_PROCESS_CORE);
+            assertThat(updated.issues()).anyMatch(i -> i.msg().contains("Empty cohort"));
+        }
+
+        @Test
+        void completeRecordsCohortCacheStatus() {
+            Job job = gettingCohort();
+
+            Job updated = job.onCohortComplete(job.cohortState().startedAt(), Optional.of(CohortCacheStatus.HIT));
+
+            assertThat(updated.cohortCache()).contains(CohortCacheStatus.HIT);
+        }
+
+        @Test
+        void completeOfPausedJobIsIgnored() {
+            Job job = gettingCohort();
+            Instant attempt = job.cohortState().startedAt();
+            job = job.withStatus(JobStatus.PAUSED);
+
+            assertThat(job.onCohortComplete(attempt, Optional.empty())).isSameAs(job);
+        }
+    }
+
     @Nested
     class Pause {
 
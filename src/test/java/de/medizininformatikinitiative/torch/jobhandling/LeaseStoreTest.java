@@ -0,0 +1,253 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LeaseStoreTest {
+
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new Jdk8Module())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    static final Duration TTL = Duration.ofMinutes(1);
+
+    @TempDir
+    Path dir;
+
+    final TestClock clock = new TestClock(Instant.parse("2024-01-15T12:00:00Z"));
+
+    LeaseStore store(String instanceId) {
+        return new LeaseStore(new DefaultFileIO(), MAPPER, instanceId, TTL, clock);
+    }
+
+    Path lease() {
+        return dir.resolve("leases").resolve("job.lease");
+    }
+
+    @Test
+    void acquire_createsLeaseOwnedByInstance() throws IOException {
+        LeaseStore a = store("a");
+
+        assertThat(a.tryAcquire(lease())).isTrue();
+
+        assertThat(a.holds(lease())).isTrue();
+        assertThat(a.isLive(lease())).isTrue();
+        assertThat(a.read(lease())).contains(new LeaseStore.Lease("a", clock.instant().plus(TTL)));
+    }
+
+    @Test
+    void liveLease_isNotGrantedToOtherInstance() throws IOException {
+        LeaseStore a = store("a");
+        LeaseStore b = store("b");
+        a.tryAcquire(lease());
+
+        clock.advance(TTL.minusSeconds(1));
+
+        assertThat(b.tryAcquire(lease())).isFalse();
+        assertThat(b.holds(lease())).isFalse();
+        assertThat(a.read(lease()).orElseThrow().owner()).isEqualTo("a");
+    }
+
+    @Test
+    void ownLease_isGrantedAgain() throws IOException {
+        store("a").tryAcquire(lease());
+
+        LeaseStore restarted = store("a");
+
+        assertThat(restarted.tryAcquire(lease())).isTrue();
+        assertThat(restarted.holds(lease())).isTrue();
+    }
+
+    @Test
+    void expiredLease_isTakenOver() throws IOException {
+        LeaseStore a = store("a");
+        LeaseStore b = store("b");
+        a.tryAcquire(lease());
+
+        clock.advance(TTL);
+
+        assertThat(a.isLive(lease())).isFalse();
+        assertThat(b.tryAcquire(lease())).isTrue();
+        assertThat(b.read(lease()).orElseThrow().owner()).isEqualTo("b");
+        try (Stream<Path> files = Files.list(lease().getParent())) {
+            assertThat(files).containsExactly(lease());
+        }
+    }
+
+    @Test
+    void renewedLease_isNotTakenOver() throws IOException {
+        LeaseStore a = store("a");
+        LeaseStore b = store("b");
+        a.tryAcquire(lease());
+
+        clock.advance(TTL.minusSeconds(10));
+        a.renewAll();
+        clock.advance(Duration.ofSeconds(10));
+
+        assertThat(b.tryAcquire(lease())).isFalse();
+    }
+
+    @Test
+    void takenOverLease_isLostOnRenewal() throws IOException {
+        LeaseStore a = store("a");
+        LeaseStore b = store("b");
+        a.tryAcquire(lease());
+        clock.advance(TTL);
+        b.tryAcquire(lease());
+
+        a.renewAll();
+
+        assertThat(a.holds(lease())).isFalse();
+        assertThat(b.read(lease()).orElseThrow().owner()).isEqualTo("b");
+    }
+
+    @Test
+    void expiredLease_isLostOnRenewal() throws IOException {
+        LeaseStore a = store("a");
+        a.tryAcquire(lease());
+        LeaseStore.Lease expired = a.read(lease()).orElseThrow();
+        clock.advance(TTL);
+
+        a.renewAll();
+
+        assertThat(a.holds(lease())).isFalse();
+        assertThat(a.read(lease())).contains(expired);
+    }
+
+    @Test
+    void leaseTakenOverWhileRenewing_isKept() throws IOException {
+        LeaseStore.Lease takenOver = new LeaseStore.Lease("b", clock.instant().plus(TTL));
+        LeaseStore a = new LeaseStore(new DefaultFileIO() {
+            @Override
+            public BufferedWriter newBufferedWriter(Path path) throws IOException {
+                Files.writeString(lease(), MAPPER.writeValueAsString(takenOver));
+                return super.newBufferedWriter(path);
+            }
+        }, MAPPER, "a", TTL, clock);
+        a.tryAcquire(lease());
+
+        a.renewAll();
+
+        assertThat(a.holds(lease())).isFalse();
+        assertThat(a.read(lease())).contains(takenOver);
+        try (Stream<Path> files = Files.list(lease().getParent())) {
+            assertThat(files).containsExactly(lease());
+        }
+    }
+
+    @Test
+    void renewal_neverLeavesLeaseToAcquire() throws Exception {
+        LeaseStore a = store("a");
+        LeaseStore b = store("b");
+        a.tryAcquire(lease());
+        AtomicBoolean renewing = new AtomicBoolean(true);
+        Thread renewer = Thread.ofPlatform().start(() -> {
+            while (renewing.get()) {
+                a.renewAll();
+            }
+        });
+
+        try {
+            for (int i = 0; i < 2_000; i++) {
+                assertThat(b.tryAcquire(lease())).isFalse();
+            }
+        } finally {
+            renewing.set(false);
+            renewer.join();
+        }
+
+        assertThat(a.holds(lease())).isTrue();
+        assertThat(a.read(lease()).orElseThrow().owner()).isEqualTo("a");
+    }
+
+    @Nested
+    class Release {
+
+        @Test
+        void deletesOwnLease() throws IOException {
+            LeaseStore a = store("a");
+            a.tryAcquire(lease());
+
+            a.release(lease());
+
+            assertThat(lease()).doesNotExist();
+            assertThat(a.holds(lease())).isFalse();
+            assertThat(store("b").tryAcquire(lease())).isTrue();
+        }
+
+        @Test
+        void keepsLeaseOfOtherInstance() throws IOException {
+            store("a").tryAcquire(lease());
+
+            store("b").release(lease());
+
+            assertThat(lease()).exists();
+        }
+
+        @Test
+        void onClose() throws IOException {
+            LeaseStore a = store("a");
+            a.tryAcquire(lease());
+
+            a.close();
+
+            assertThat(lease()).doesNotExist();
+        }
+    }
+
+    @Test
+    void disabled_grantsEveryLeaseWithoutFiles() throws IOException {
+        LeaseStore disabled = LeaseStore.disabled();
+
+        assertThat(disabled.tryAcquire(lease())).isTrue();
+        assertThat(disabled.isLive(lease())).isFalse();
+        assertThat(lease()).doesNotExist();
+    }
+
+    static final class TestClock extends Clock {
+
+        private Instant now;
+
+        TestClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
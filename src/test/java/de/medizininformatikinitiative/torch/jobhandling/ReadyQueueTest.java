@@ -0,0 +1,295 @@
+package de.medizininformatikinitiative.torch.jobhandling;
+
+import de.medizininformatikinitiative.torch.TestUtils;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkPhase;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReadyQueueTest {
+
+    private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+    private static Job job(JobStatus status, JobPriority priority, Instant startedAt, long version) {
+        BatchState batch = BatchState.init();
+        return new Job(UUID.randomUUID(), status, WorkUnitState.initNow(), 1, Map.of(batch.batchId(), batch),
+                startedAt, startedAt, Optional.empty(), List.of(), TestUtils.emptyJobParams(), priority,
+                WorkUnitState.initNow(), version);
+    }
+
+    private static Job pending(JobPriority priority, Instant startedAt) {
+        return job(JobStatus.PENDING, priority, startedAt, 0);
+    }
+
+    @Test
+    void pollsByPriorityThenNewestFirst() {
+        ReadyQueue queue = new ReadyQueue();
+        Job oldNormal = pending(JobPriority.NORMAL, T0);
+        Job newNormal = pending(JobPriority.NORMAL, T0.plusSeconds(1));
+        Job oldHigh = pending(JobPriority.HIGH, T0);
+        queue.update(oldNormal);
+        queue.update(newNormal);
+        queue.update(oldHigh);
+
+        assertThat(queue.poll()).contains(oldHigh.id());
+        assertThat(queue.poll()).contains(newNormal.id());
+        assertThat(queue.poll()).contains(oldNormal.id());
+        assertThat(queue.poll()).isEmpty();
+    }
+
+    @Test
+    void priorityChangeReordersJob() {
+        ReadyQueue queue = new ReadyQueue();
+        Job first = pending(JobPriority.NORMAL, T0.plusSeconds(1));
+        Job second = pending(JobPriority.NORMAL, T0);
+        queue.update(first);
+        queue.update(second);
+
+        queue.update(second.withPriority(JobPriority.HIGH).incrementVersion());
+
+        assertThat(queue.poll()).contains(second.id());
+    }
+
+    @Test
+    void removesJobsWithoutRunnableWork() {
+        ReadyQueue queue = new ReadyQueue();
+        Job job = pending(JobPriority.NORMAL, T0);
+        queue.update(job);
+
+        queue.update(job.pause().incrementVersion());
+
+        assertThat(queue.size()).isZero();
+        assertThat(queue.poll()).isEmpty();
+    }
+
+    @Test
+    void polledJobStaysOutUntilItsVersionChanges() {
+        ReadyQueue queue = new ReadyQueue();
+        Job job = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 3);
+        queue.update(job);
+        assertThat(queue.poll()).contains(job.id());
+
+        queue.update(job);
+        assertThat(queue.size()).isZero();
+
+        queue.update(job.incrementVersion());
+        assertThat(queue.poll()).contains(job.id());
+    }
+
+    @Test
+    void releaseRequeuesUnchangedJob() {
+        ReadyQueue queue = new ReadyQueue();
+        Job job = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 3);
+        queue.update(job);
+        queue.poll();
+
+        queue.release(job);
+
+        assertThat(queue.poll()).contains(job.id());
+    }
+
+    @Test
+    void awaitReady_wakesUpWhenJobBecomesReady() throws Exception {
+        ReadyQueue queue = new ReadyQueue();
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.awaitReady(Duration.ofSeconds(30));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        queue.update(pending(JobPriority.NORMAL, T0));
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void awaitReady_returnsFalseAfterTimeout() throws InterruptedException {
+        ReadyQueue queue = new ReadyQueue();
+
+        assertThat(queue.awaitReady(Duration.ofMillis(10))).isFalse();
+    }
+
+    @Test
+    void recordsQueueDepthAndDispatchLatency() {
+        AtomicLong nanos = new AtomicLong();
+        ReadyQueue queue = new ReadyQueue(nanos::get);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        queue.bindTo(registry);
+
+        queue.update(pending(JobPriority.NORMAL, T0));
+        queue.update(pending(JobPriority.NORMAL, T0));
+        assertThat(registry.get("torch.scheduler.ready.jobs").gauge().value()).isEqualTo(2);
+
+        nanos.set(TimeUnit.MILLISECONDS.toNanos(40));
+        queue.poll();
+
+        assertThat(registry.get("torch.scheduler.ready.jobs").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("torch.scheduler.dispatch.latency").timer().count()).isEqualTo(1);
+        assertThat(registry.get("torch.scheduler.dispatch.latency").timer().totalTime(TimeUnit.MILLISECONDS))
+                .isEqualTo(40);
+    }
+
+    @Test
+    void pollSkipsJobsOfOtherPhases() {
+        ReadyQueue queue = new ReadyQueue();
+        Job core = job(JobStatus.RUNNING_PROCESS_CORE, JobPriority.HIGH, T0, 1);
+        Job batch = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        queue.update(core);
+        queue.update(batch);
+
+        assertThat(queue.poll(EnumSet.of(WorkPhase.BATCH))).contains(batch.id());
+        assertThat(queue.poll(EnumSet.of(WorkPhase.BATCH))).isEmpty();
+        assertThat(queue.poll()).contains(core.id());
+    }
+
+    @Test
+    void jobRunningBatchesIsPolledForStagingOfCoreResources() {
+        ReadyQueue queue = new ReadyQueue();
+        BatchState batch = BatchState.init();
+        BatchState staged = BatchState.init().finishNow(WorkUnitStatus.FINISHED).withCoreStage(WorkUnitState.initNow());
+        Job job = new Job(UUID.randomUUID(), JobStatus.RUNNING_PROCESS_BATCH, WorkUnitState.initNow(), 2,
+                Map.of(batch.batchId(), batch, staged.batchId(), staged), T0, T0, Optional.empty(), List.of(),
+                TestUtils.emptyJobParams(), JobPriority.NORMAL, WorkUnitState.initNow(), 1);
+        queue.update(job);
+
+        assertThat(queue.poll(EnumSet.of(WorkPhase.CORE))).contains(job.id());
+    }
+
+    @Test
+    void awaitReady_ignoresJobsOfOtherPhases() throws InterruptedException {
+        ReadyQueue queue = new ReadyQueue();
+        queue.update(job(JobStatus.RUNNING_PROCESS_CORE, JobPriority.NORMAL, T0, 1));
+
+        assertThat(queue.awaitReady(Duration.ofMillis(10), EnumSet.of(WorkPhase.BATCH))).isFalse();
+        assertThat(queue.awaitReady(Duration.ofMillis(10), EnumSet.of(WorkPhase.CORE))).isTrue();
+    }
+
+    @Test
+    void awaitReady_returnsOnWakeUp() throws Exception {
+        ReadyQueue queue = new ReadyQueue();
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.awaitReady(Duration.ofSeconds(30), EnumSet.noneOf(WorkPhase.class));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        while (!waiting.isDone()) {
+            queue.wakeUp();
+            Thread.sleep(10);
+        }
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void fairShare_alternatesBetweenJobsOfEqualPriority() {
+        ReadyQueue queue = new ReadyQueue(true);
+        Job large = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        Job small = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0.plusSeconds(1), 1);
+        queue.update(large);
+        queue.update(small);
+
+        assertThat(queue.poll()).contains(large.id());
+        queue.update(large = large.incrementVersion());
+        assertThat(queue.poll()).contains(small.id());
+        queue.update(small.incrementVersion());
+        assertThat(queue.poll()).contains(large.id());
+    }
+
+    @Test
+    void fairShare_givesJobsTurnsByPriorityWeight() {
+        ReadyQueue queue = new ReadyQueue(true);
+        Map<UUID, Job> jobs = new HashMap<>();
+        Job high = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.HIGH, T0, 1);
+        Job normal = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        jobs.put(high.id(), high);
+        jobs.put(normal.id(), normal);
+        queue.update(normal);
+        queue.update(high);
+
+        List<UUID> dispatched = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UUID id = queue.poll().orElseThrow();
+            dispatched.add(id);
+            queue.update(jobs.compute(id, (key, job) -> job.incrementVersion()));
+        }
+
+        assertThat(dispatched).filteredOn(high.id()::equals).hasSize(8);
+        assertThat(dispatched).filteredOn(normal.id()::equals).hasSize(2);
+    }
+
+    @Test
+    void fairShare_skipsJobsThatAreNotReady() {
+        ReadyQueue queue = new ReadyQueue(true);
+        Job first = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        Job second = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        queue.update(first);
+        queue.update(second);
+
+        assertThat(queue.poll()).contains(first.id());
+        assertThat(queue.poll()).contains(second.id());
+        assertThat(queue.poll()).isEmpty();
+    }
+
+    @Test
+    void fairShare_jobThatWasNotReadyKeepsItsPlace() {
+        ReadyQueue queue = new ReadyQueue(true);
+        Job first = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        Job second = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        Job third = job(JobStatus.RUNNING_PROCESS_BATCH, JobPriority.NORMAL, T0, 1);
+        queue.update(first);
+        queue.update(second);
+        queue.update(third);
+
+        assertThat(queue.poll()).contains(first.id());
+        assertThat(queue.poll()).contains(second.id());
+        queue.update(second.incrementVersion());
+        assertThat(queue.poll()).contains(third.id());
+        queue.update(third.incrementVersion());
+        // first is not ready and is passed over, second takes its turn
+        assertThat(queue.poll()).contains(second.id());
+        queue.update(first.incrementVersion());
+
+        assertThat(queue.poll()).contains(first.id());
+    }
+
+    @Test
+    void recordsBatchesInProgressPerJob() {
+        ReadyQueue queue = new ReadyQueue();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        queue.bindTo(registry);
+        BatchState running = BatchState.init().startNow();
+        Job job = new Job(UUID.randomUUID(), JobStatus.RUNNING_PROCESS_BATCH, WorkUnitState.initNow(), 1,
+                Map.of(running.batchId(), running), T0, T0, Optional.empty(), List.of(),
+                TestUtils.emptyJobParams(), JobPriority.NORMAL, WorkUnitState.initNow(), 1);
+
+        queue.update(job);
+
+        assertThat(registry.get("torch.scheduler.job.batches.in.progress").tag("job", job.id().toString())
+                .gauge().value()).isEqualTo(1);
+
+        queue.update(job.withStatus(JobStatus.COMPLETED).incrementVersion());
+
+        assertThat(registry.find("torch.scheduler.job.batches.in.progress").gauges()).isEmpty();
+    }
+}
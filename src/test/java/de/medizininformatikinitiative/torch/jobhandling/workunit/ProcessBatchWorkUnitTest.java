@@ -1,7 +1,9 @@
 package de.medizininformatikinitiative.torch.jobhandling.workunit;
 
 import de.medizininformatikinitiative.torch.TestUtils;
+import de.medizininformatikinitiative.torch.config.AdaptiveBatchProperties;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
+import de.medizininformatikinitiative.torch.jobhandling.AdaptiveBatchSizer;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
@@ -13,6 +15,7 @@ import de.medizininformatikinitiative.torch.service.JobPersistenceService;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Mono;
@@ -29,6 +32,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -90,6 +94,116 @@ class ProcessBatchWorkUnitTest {
         verify(persistence, never()).onJobError(any(), anyList(), any());
     }
 
+    @Test
+    void execute_success_deletesCheckpointOnlyOnceResultIsStored() throws IOException, JobNotFoundException {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = Job.init(jobId, TestUtils.emptyJobParams());
+
+        when(persistence.tryStartBatch(jobId, batchId)).thenReturn(true);
+        when(persistence.loadBatch(jobId, batchId)).thenReturn(batch);
+        when(persistence.getJob(jobId)).thenReturn(Optional.of(job));
+        when(extract.processBatch(any(BatchSelection.class))).thenReturn(Mono.just(batchResult));
+        when(batchResult.jobId()).thenReturn(jobId);
+        when(batchResult.batchId()).thenReturn(batchId);
+        when(persistence.onBatchProcessingSuccess(batchResult)).thenReturn(true);
+        when(extract.deleteCheckpoint(jobId, batchId)).thenReturn(Mono.empty());
+
+        new ProcessBatchWorkUnit(job, batchId).execute(ctx()).block();
+
+        InOrder inOrder = inOrder(persistence, extract);
+        inOrder.verify(persistence).onBatchProcessingSuccess(batchResult);
+        inOrder.verify(extract).deleteCheckpoint(jobId, batchId);
+    }
+
+    @Test
+    void execute_whenResultNotStored_keepsCheckpoint() throws IOException, JobNotFoundException {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = Job.init(jobId, TestUtils.emptyJobParams());
+
+        when(persistence.tryStartBatch(jobId, batchId)).thenReturn(true);
+        when(persistence.loadBatch(jobId, batchId)).thenReturn(batch);
+        when(persistence.getJob(jobId)).thenReturn(Optional.of(job));
+        when(extract.processBatch(any(BatchSelection.class))).thenReturn(Mono.just(batchResult));
+        when(persistence.onBatchProcessingSuccess(batchResult)).thenReturn(false);
+
+        new ProcessBatchWorkUnit(job, batchId).execute(ctx()).block();
+
+        verify(extract, never()).deleteCheckpoint(any(), any());
+    }
+
+    @Test
+    void execute_whenAdaptiveTargetSmallerThanBatch_splitsInsteadOfProcessing() throws IOException, JobNotFoundException {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = Job.init(jobId, TestUtils.emptyJobParams());
+        JobExecutionContext adaptiveCtx = new JobExecutionContext(persistence, extract, cohortQueryService, 1, 3, 1,
+                AdaptiveBatchSizer.of(new AdaptiveBatchProperties(true, 1, 0.95, 0), 1));
+
+        ProcessBatchWorkUnit wu = new ProcessBatchWorkUnit(job, batchId);
+
+        when(persistence.tryStartBatch(jobId, batchId)).thenReturn(true);
+        when(persistence.loadBatch(jobId, batchId)).thenReturn(batch);
+        when(persistence.getJob(jobId)).thenReturn(Optional.of(job));
+        when(persistence.splitBatch(eq(jobId), eq(batchId), anyList())).thenReturn(true);
+
+        assertThatCode(() -> wu.execute(adaptiveCtx).block()).doesNotThrowAnyException();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<PatientBatch>> captor = ArgumentCaptor.forClass(List.class);
+        verify(persistence).splitBatch(eq(jobId), eq(batchId), captor.capture());
+        assertThat(captor.getValue()).extracting(PatientBatch::ids)
+                .containsExactly(List.of("1"), List.of("2"));
+        verify(extract, never()).processBatch(any());
+        verify(persistence, never()).onBatchProcessingSuccess(any());
+        verify(persistence, never()).onBatchError(any(), any(), anyList(), any());
+    }
+
+    @Test
+    void execute_whenSplitRefused_processesBatch() throws IOException, JobNotFoundException {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = Job.init(jobId, TestUtils.emptyJobParams());
+        JobExecutionContext adaptiveCtx = new JobExecutionContext(persistence, extract, cohortQueryService, 1, 3, 1,
+                AdaptiveBatchSizer.of(new AdaptiveBatchProperties(true, 1, 0.95, 0), 1));
+
+        ProcessBatchWorkUnit wu = new ProcessBatchWorkUnit(job, batchId);
+
+        when(persistence.tryStartBatch(jobId, batchId)).thenReturn(true);
+        when(persistence.loadBatch(jobId, batchId)).thenReturn(batch);
+        when(persistence.getJob(jobId)).thenReturn(Optional.of(job));
+        when(persistence.splitBatch(eq(jobId), eq(batchId), anyList())).thenReturn(false);
+        when(extract.processBatch(any(BatchSelection.class))).thenReturn(Mono.just(batchResult));
+
+        assertThatCode(() -> wu.execute(adaptiveCtx).block()).doesNotThrowAnyException();
+
+        verify(extract).processBatch(any());
+        verify(persistence).onBatchProcessingSuccess(batchResult);
+    }
+
+    @Test
+    void execute_whenSplitFails_recordsBatchError() throws IOException, JobNotFoundException {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = Job.init(jobId, TestUtils.emptyJobParams());
+        JobExecutionContext adaptiveCtx = new JobExecutionContext(persistence, extract, cohortQueryService, 1, 3, 1,
+                AdaptiveBatchSizer.of(new AdaptiveBatchProperties(true, 1, 0.95, 0), 1));
+        IOException failure = new IOException("disk full");
+
+        ProcessBatchWorkUnit wu = new ProcessBatchWorkUnit(job, batchId);
+
+        when(persistence.tryStartBatch(jobId, batchId)).thenReturn(true);
+        when(persistence.loadBatch(jobId, batchId)).thenReturn(batch);
+        when(persistence.getJob(jobId)).thenReturn(Optional.of(job));
+        when(persistence.splitBatch(eq(jobId), eq(batchId), anyList())).thenThrow(failure);
+
+        assertThatCode(() -> wu.execute(adaptiveCtx).block()).doesNotThrowAnyException();
+
+        verify(extract, never()).processBatch(any());
+        verify(persistence).onBatchError(jobId, batchId, List.of(), failure);
+    }
+
     @Test
     void execute_whenExtractFails_recordsBatchError_andCompletes() throws IOException, JobNotFoundException {
         UUID jobId = UUID.randomUUID();
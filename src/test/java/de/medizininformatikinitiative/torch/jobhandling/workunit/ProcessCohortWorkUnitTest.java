@@ -2,10 +2,12 @@ package de.medizininformatikinitiative.torch.jobhandling.workunit;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
-import java.io.IOException;
+import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.CohortCacheStatus;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
 import de.medizininformatikinitiative.torch.jobhandling.JobParameters;
+import de.medizininformatikinitiative.torch.jobhandling.JobStatus;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedDataExtraction;
 import de.medizininformatikinitiative.torch.service.CohortQueryService;
@@ -15,20 +17,24 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -57,12 +63,26 @@ class ProcessCohortWorkUnitTest {
         return Job.init(jobId, params);
     }
 
+    private static Job jobWithFormerBatch(UUID jobId) {
+        Job running = jobWithParams(jobId, List.of()).withStatus(JobStatus.RUNNING_GET_COHORT);
+        return running.onCohortBatch(running.cohortState().startedAt(),
+                new BatchState(UUID.randomUUID(), WorkUnitState.initNow()), 1);
+    }
+
     private JobExecutionContext ctx() {
         return new JobExecutionContext(persistence, extract, cohortQueryService, 100, 3, 1);
     }
 
+    private static Mono<CohortQueryService.Cohort> cohort(Flux<String> ids) {
+        return Mono.just(new CohortQueryService.Cohort(ids, Optional.empty()));
+    }
+
+    private static List<String> patients(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "Patient/" + i).toList();
+    }
+
     @Test
-    void execute_whenJobDeletedWhilePersistingSuccess_completes() throws JobNotFoundException {
+    void execute_whenJobDeletedWhilePersistingBatch_completes() throws IOException {
         UUID jobId = UUID.randomUUID();
         List<String> paramBatch = List.of("Patient/A", "Patient/B");
         Job job = jobWithParams(jobId, paramBatch);
@@ -70,25 +90,25 @@ class ProcessCohortWorkUnitTest {
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         doThrow(new JobNotFoundException(jobId))
-                .when(persistence).onCohortSuccess(eq(jobId), eq(paramBatch), eq(Optional.empty()));
+                .when(persistence).onCohortBatch(eq(jobId), any(), eq(paramBatch));
 
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
         verifyNoInteractions(cohortQueryService);
-        verify(persistence).onCohortSuccess(eq(jobId), eq(paramBatch), eq(Optional.empty()));
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
         verify(persistence, never()).onCohortError(any(), anyList(), any());
     }
 
     @Test
-    void execute_whenJobDeletedWhileRecordingError_completes() throws JobNotFoundException {
+    void execute_whenJobDeletedWhileRecordingError_completes() throws IOException {
         UUID jobId = UUID.randomUUID();
         Job job = jobWithParams(jobId, List.of());
 
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         RuntimeException boom = new RuntimeException("boom");
-        when(cohortQueryService.runCohortQuery(any())).thenReturn(Mono.error(boom));
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.error(boom)));
 
         doThrow(new JobNotFoundException(jobId))
                 .when(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
@@ -96,92 +116,205 @@ class ProcessCohortWorkUnitTest {
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
-        verify(persistence, never()).onCohortSuccess(any(), anyList(), any());
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
         verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
     }
 
     @Test
-    void execute_whenParamBatchProvided_skipsCohortQuery_andPersistsCohortSuccess() throws JobNotFoundException {
+    void execute_whenParamBatchProvided_skipsCohortQuery_andPersistsBatches() throws IOException {
         UUID jobId = UUID.randomUUID();
         List<String> paramBatch = List.of("Patient/A", "Patient/B");
         Job job = jobWithParams(jobId, paramBatch);
 
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
         verifyNoInteractions(cohortQueryService);
 
-        verify(persistence).onCohortSuccess(eq(jobId), eq(paramBatch), eq(Optional.empty()));
+        verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), paramBatch);
+        verify(persistence).onCohortComplete(jobId, job.cohortState().startedAt(), Optional.empty(), Optional.empty());
         verify(persistence, never()).onCohortError(any(), anyList(), any());
     }
 
     @Test
-    void execute_whenParamBatchEmpty_runsCohortQuery_andPersistsCohortSuccessWithDuration() throws JobNotFoundException {
+    void execute_whenParamBatchEmpty_streamsCohortQuery_andCompletesWithDuration() throws IOException {
         UUID jobId = UUID.randomUUID();
         Job job = jobWithParams(jobId, List.of());
 
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         List<String> ids = List.of("Patient/1", "Patient/2");
-        when(cohortQueryService.runCohortQuery(any())).thenReturn(Mono.just(ids));
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.fromIterable(ids)));
+
+        assertThatCode(() -> wu.execute(ctx()).block())
+                .doesNotThrowAnyException();
+
+        verify(cohortQueryService).queryCohort(job.parameters().crtdl());
+        verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), ids);
+        verify(persistence).onCohortComplete(eq(jobId), eq(job.cohortState().startedAt()), argThat(Optional::isPresent),
+                eq(Optional.empty()));
+        verify(persistence, never()).onCohortError(any(), anyList(), any());
+    }
+
+    @Test
+    void execute_recordsCohortCacheStatus() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithParams(jobId, List.of());
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+        when(cohortQueryService.queryCohort(any())).thenReturn(Mono.just(
+                new CohortQueryService.Cohort(Flux.just("Patient/1"), Optional.of(CohortCacheStatus.HIT))));
+
+        wu.execute(ctx()).block();
+
+        verify(persistence).onCohortComplete(eq(jobId), eq(job.cohortState().startedAt()), any(),
+                eq(Optional.of(CohortCacheStatus.HIT)));
+    }
+
+    @Test
+    void execute_splitsCohortIntoBatchesOfBatchSize() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithParams(jobId, List.of());
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        List<String> ids = patients(250);
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.fromIterable(ids)));
+
+        wu.execute(ctx()).block();
+
+        var order = inOrder(persistence);
+        order.verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), ids.subList(0, 100));
+        order.verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), ids.subList(100, 200));
+        order.verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), ids.subList(200, 250));
+        order.verify(persistence).onCohortComplete(eq(jobId), eq(job.cohortState().startedAt()), any(), any());
+    }
+
+    @Test
+    void execute_skipsPatientsBatchedByFormerAttempt() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithFormerBatch(jobId);
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        when(persistence.batchedIds(jobId, List.copyOf(job.batches().keySet()))).thenReturn(Flux.just("Patient/2"));
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+        when(cohortQueryService.queryCohort(any()))
+                .thenReturn(cohort(Flux.just("Patient/3", "Patient/2", "Patient/1")));
+
+        wu.execute(ctx()).block();
+
+        verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), List.of("Patient/3", "Patient/1"));
+        verify(persistence).onCohortComplete(eq(jobId), eq(job.cohortState().startedAt()), any(), any());
+    }
+
+    @Test
+    void execute_whenBatchedIdsUnreadable_recordsCohortError() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithFormerBatch(jobId);
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        when(persistence.batchedIds(eq(jobId), any())).thenReturn(Flux.error(new IOException("missing batch file")));
+
+        assertThatCode(() -> wu.execute(ctx()).block()).doesNotThrowAnyException();
+
+        verifyNoInteractions(cohortQueryService);
+        verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
+    }
+
+    @Test
+    void execute_whenJobRejectsBatch_stopsStreaming() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithParams(jobId, List.of());
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(false);
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.fromIterable(patients(250))));
 
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
-        verify(cohortQueryService).runCohortQuery(job.parameters().crtdl());
-        verify(persistence).onCohortSuccess(eq(jobId), eq(ids), argThat(Optional::isPresent));
+        verify(persistence, times(1)).onCohortBatch(eq(jobId), any(), anyList());
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
         verify(persistence, never()).onCohortError(any(), anyList(), any());
     }
 
     @Test
-    void execute_whenCohortQueryFails_recordsJobError_andCompletes() throws JobNotFoundException {
+    void execute_whenCohortQueryFails_recordsJobError_andCompletes() throws IOException {
         UUID jobId = UUID.randomUUID();
         Job job = jobWithParams(jobId, List.of());
 
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         RuntimeException boom = new RuntimeException("boom");
-        when(cohortQueryService.runCohortQuery(any())).thenReturn(Mono.error(boom));
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.error(boom)));
 
         // onErrorResume swallows -> completes
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
-        verify(persistence, never()).onCohortSuccess(any(), anyList(), any());
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
+        verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
+    }
+
+    @Test
+    void execute_whenCohortQueryFailsAfterFirstBatch_keepsBatch_andRecordsCohortError() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        Job job = jobWithParams(jobId, List.of());
+
+        ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
+
+        IOException retryable = new IOException("connection reset");
+        when(persistence.onCohortBatch(eq(jobId), any(), anyList())).thenReturn(true);
+        when(cohortQueryService.queryCohort(any()))
+                .thenReturn(cohort(Flux.fromIterable(patients(100)).concatWith(Flux.error(retryable))));
+
+        assertThatCode(() -> wu.execute(ctx()).block()).doesNotThrowAnyException();
+
+        verify(persistence).onCohortBatch(jobId, job.cohortState().startedAt(), patients(100));
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
         verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
     }
 
     @Test
-    void execute_whenCohortQueryFailsWithRetryableError_recordsCohortError_andCompletes() throws JobNotFoundException {
+    void execute_whenCohortQueryFailsWithRetryableError_recordsCohortError_andCompletes() throws IOException {
         UUID jobId = UUID.randomUUID();
         Job job = jobWithParams(jobId, List.of());
 
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         IOException retryable = new IOException("connection reset");
-        when(cohortQueryService.runCohortQuery(any())).thenReturn(Mono.error(retryable));
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.error(retryable)));
 
         assertThatCode(() -> wu.execute(ctx()).block()).doesNotThrowAnyException();
 
-        verify(persistence, never()).onCohortSuccess(any(), anyList(), any());
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
         verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
     }
 
     @Test
-    void cohortQueryFailsWithErrorandCompletes() throws JobNotFoundException {
+    void cohortQueryFailsWithErrorandCompletes() throws IOException {
         UUID jobId = UUID.randomUUID();
         Job job = jobWithParams(jobId, List.of());
         ProcessCohortWorkUnit wu = new ProcessCohortWorkUnit(job);
 
         AssertionError boom = new AssertionError("boom");
-        when(cohortQueryService.runCohortQuery(any())).thenReturn(Mono.error(boom));
+        when(cohortQueryService.queryCohort(any())).thenReturn(cohort(Flux.error(boom)));
 
         assertThatCode(() -> wu.execute(ctx()).block())
                 .doesNotThrowAnyException();
 
         verify(persistence).onCohortError(eq(jobId), eq(List.of()), any(Exception.class));
-        verify(persistence, never()).onCohortSuccess(any(), anyList(), any());
+        verify(persistence, never()).onCohortComplete(any(), any(), any(), any());
     }
 }
@@ -0,0 +1,80 @@
+package de.medizininformatikinitiative.torch.jobhandling.workunit;
+
+import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.service.ExtractDataService;
+import de.medizininformatikinitiative.torch.service.JobPersistenceService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ProcessCoreShardWorkUnitTest {
+
+    @Mock
+    JobExecutionContext ctx;
+    @Mock
+    JobPersistenceService persistence;
+    @Mock
+    ExtractDataService extract;
+
+    @Test
+    void execute_processesShardAndRecordsSuccess() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+
+        ExtractionResourceBundle shardBundle = new ExtractionResourceBundle();
+        CoreShardResult result = mock(CoreShardResult.class);
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreShard(jobId, 1)).thenReturn(shardBundle);
+        when(extract.processCoreShard(job, 1, shardBundle)).thenReturn(Mono.just(result));
+
+        StepVerifier.create(new ProcessCoreShardWorkUnit(job, 1).execute(ctx)).verifyComplete();
+
+        InOrder inOrder = inOrder(persistence, extract);
+        inOrder.verify(persistence).loadCoreShard(jobId, 1);
+        inOrder.verify(extract).processCoreShard(job, 1, shardBundle);
+        inOrder.verify(persistence).onCoreShardSuccess(result);
+    }
+
+    @Test
+    void execute_recordsShardErrorWhenProcessingFails() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+
+        ExtractionResourceBundle shardBundle = new ExtractionResourceBundle();
+        IOException boom = new IOException("boom");
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreShard(jobId, 0)).thenReturn(shardBundle);
+        when(extract.processCoreShard(job, 0, shardBundle)).thenReturn(Mono.error(boom));
+
+        StepVerifier.create(new ProcessCoreShardWorkUnit(job, 0).execute(ctx)).verifyComplete();
+
+        verify(persistence, never()).onCoreShardSuccess(any());
+        verify(persistence).onCoreShardError(eq(jobId), eq(0), eq(List.of()), eq(boom));
+    }
+}
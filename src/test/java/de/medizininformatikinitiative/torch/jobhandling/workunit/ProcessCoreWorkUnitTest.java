@@ -3,18 +3,24 @@ package de.medizininformatikinitiative.torch.jobhandling.workunit;
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.jobhandling.result.CorePartition;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardOutcome;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -44,21 +50,21 @@ class ProcessCoreWorkUnitTest {
         Job job = mock(Job.class);
         when(job.id()).thenReturn(jobId);
 
-        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        Flux<ExtractionResourceBundle> coreParts = Flux.just(new ExtractionResourceBundle());
         CoreResult result = mock(CoreResult.class);
 
         when(ctx.persistence()).thenReturn(persistence);
         when(ctx.extract()).thenReturn(extract);
-        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
-        when(extract.processCore(job, coreInfo)).thenReturn(Mono.just(result));
+        when(persistence.coreBatchParts(jobId)).thenReturn(coreParts);
+        when(extract.processCore(job, coreParts)).thenReturn(Mono.just(result));
 
         ProcessCoreWorkUnit wu = new ProcessCoreWorkUnit(job);
 
         StepVerifier.create(wu.execute(ctx)).verifyComplete();
 
         InOrder inOrder = inOrder(persistence, extract);
-        inOrder.verify(persistence).loadCoreInfo(jobId);
-        inOrder.verify(extract).processCore(job, coreInfo);
+        inOrder.verify(persistence).coreBatchParts(jobId);
+        inOrder.verify(extract).processCore(job, coreParts);
         inOrder.verify(persistence).onCoreSuccess(result);
 
         verify(persistence, never()).onJobError(any(), anyList(), any());
@@ -70,13 +76,13 @@ class ProcessCoreWorkUnitTest {
         Job job = mock(Job.class);
         when(job.id()).thenReturn(jobId);
 
-        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        Flux<ExtractionResourceBundle> coreParts = Flux.just(new ExtractionResourceBundle());
         IOException boom = new IOException("boom");
 
         when(ctx.persistence()).thenReturn(persistence);
         when(ctx.extract()).thenReturn(extract);
-        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
-        when(extract.processCore(job, coreInfo)).thenReturn(Mono.error(boom));
+        when(persistence.coreBatchParts(jobId)).thenReturn(coreParts);
+        when(extract.processCore(job, coreParts)).thenReturn(Mono.error(boom));
 
         ProcessCoreWorkUnit wu = new ProcessCoreWorkUnit(job);
 
@@ -92,13 +98,13 @@ class ProcessCoreWorkUnitTest {
         Job job = mock(Job.class);
         when(job.id()).thenReturn(jobId);
 
-        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        Flux<ExtractionResourceBundle> coreParts = Flux.just(new ExtractionResourceBundle());
         RuntimeException boom = new RuntimeException("bad input");
 
         when(ctx.persistence()).thenReturn(persistence);
         when(ctx.extract()).thenReturn(extract);
-        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
-        when(extract.processCore(job, coreInfo)).thenReturn(Mono.error(boom));
+        when(persistence.coreBatchParts(jobId)).thenReturn(coreParts);
+        when(extract.processCore(job, coreParts)).thenReturn(Mono.error(boom));
 
         ProcessCoreWorkUnit wu = new ProcessCoreWorkUnit(job);
 
@@ -114,13 +120,13 @@ class ProcessCoreWorkUnitTest {
         Job job = mock(Job.class);
         when(job.id()).thenReturn(jobId);
 
-        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        Flux<ExtractionResourceBundle> coreParts = Flux.just(new ExtractionResourceBundle());
         CoreResult result = mock(CoreResult.class);
 
         when(ctx.persistence()).thenReturn(persistence);
         when(ctx.extract()).thenReturn(extract);
-        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
-        when(extract.processCore(job, coreInfo)).thenReturn(Mono.just(result));
+        when(persistence.coreBatchParts(jobId)).thenReturn(coreParts);
+        when(extract.processCore(job, coreParts)).thenReturn(Mono.just(result));
 
         doThrow(new JobNotFoundException(jobId))
                 .when(persistence).onCoreSuccess(result);
@@ -129,8 +135,8 @@ class ProcessCoreWorkUnitTest {
 
         StepVerifier.create(wu.execute(ctx)).verifyComplete();
 
-        verify(persistence).loadCoreInfo(jobId);
-        verify(extract).processCore(job, coreInfo);
+        verify(persistence).coreBatchParts(jobId);
+        verify(extract).processCore(job, coreParts);
         verify(persistence).onCoreSuccess(result);
         verify(persistence, never()).onCoreError(any(), anyList(), any());
     }
@@ -141,13 +147,13 @@ class ProcessCoreWorkUnitTest {
         Job job = mock(Job.class);
         when(job.id()).thenReturn(jobId);
 
-        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        Flux<ExtractionResourceBundle> coreParts = Flux.just(new ExtractionResourceBundle());
         IOException boom = new IOException("boom");
 
         when(ctx.persistence()).thenReturn(persistence);
         when(ctx.extract()).thenReturn(extract);
-        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
-        when(extract.processCore(job, coreInfo)).thenReturn(Mono.error(boom));
+        when(persistence.coreBatchParts(jobId)).thenReturn(coreParts);
+        when(extract.processCore(job, coreParts)).thenReturn(Mono.error(boom));
 
         doThrow(new JobNotFoundException(jobId))
                 .when(persistence).onCoreError(eq(jobId), eq(List.of()), eq(boom));
@@ -159,4 +165,70 @@ class ProcessCoreWorkUnitTest {
         verify(persistence, never()).onCoreSuccess(any());
         verify(persistence).onCoreError(eq(jobId), eq(List.of()), eq(boom));
     }
+
+    @Test
+    void execute_partitionsCoreWhenShardsAreConfigured() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+        when(job.coreShards()).thenReturn(Map.of());
+
+        ExtractionResourceBundle coreInfo = new ExtractionResourceBundle();
+        CorePartition partition = new CorePartition(jobId, List.of(new ExtractionResourceBundle(),
+                new ExtractionResourceBundle()), Optional.empty(), List.of());
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(ctx.coreShards()).thenReturn(2);
+        when(persistence.loadCoreInfo(jobId)).thenReturn(coreInfo);
+        when(extract.partitionCore(job, coreInfo, 2)).thenReturn(Mono.just(partition));
+
+        StepVerifier.create(new ProcessCoreWorkUnit(job).execute(ctx)).verifyComplete();
+
+        verify(persistence).onCorePartitioned(partition);
+        verify(extract, never()).processCore(any(), any());
+        verify(persistence, never()).onCoreSuccess(any());
+    }
+
+    @Test
+    void execute_reconcilesShardsOncePartitioned() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+        when(job.coreShards()).thenReturn(Map.of(0, WorkUnitState.startNow().finishNow(WorkUnitStatus.FINISHED)));
+
+        List<CoreShardOutcome> outcomes = List.of(new CoreShardOutcome(0, Set.of(), Set.of(), Set.of()));
+        CoreResult result = mock(CoreResult.class);
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreShardOutcomes(jobId)).thenReturn(outcomes);
+        when(extract.reconcileCoreShards(jobId, outcomes)).thenReturn(result);
+
+        StepVerifier.create(new ProcessCoreWorkUnit(job).execute(ctx)).verifyComplete();
+
+        verify(persistence).onCoreSuccess(result);
+        verify(persistence, never()).loadCoreInfo(any());
+    }
+
+    @Test
+    void execute_recordsCoreErrorIfReconcilingShardsFails() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+        when(job.coreShards()).thenReturn(Map.of(0, WorkUnitState.startNow().finishNow(WorkUnitStatus.FINISHED)));
+
+        List<CoreShardOutcome> outcomes = List.of(new CoreShardOutcome(0, Set.of(), Set.of(), Set.of()));
+        IllegalStateException dangling = new IllegalStateException("Core resources reference 1 resources missing");
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreShardOutcomes(jobId)).thenReturn(outcomes);
+        when(extract.reconcileCoreShards(jobId, outcomes)).thenThrow(dangling);
+
+        StepVerifier.create(new ProcessCoreWorkUnit(job).execute(ctx)).verifyComplete();
+
+        verify(persistence).onCoreError(jobId, List.of(), dangling);
+        verify(persistence, never()).onCoreSuccess(any());
+    }
 }
@@ -0,0 +1,76 @@
+package de.medizininformatikinitiative.torch.jobhandling.workunit;
+
+import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobExecutionContext;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.service.ExtractDataService;
+import de.medizininformatikinitiative.torch.service.JobPersistenceService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StageCoreWorkUnitTest {
+
+    @Mock
+    JobExecutionContext ctx;
+    @Mock
+    JobPersistenceService persistence;
+    @Mock
+    ExtractDataService extract;
+
+    @Test
+    void execute_stagesCorePartAndRecordsOutcome() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+        ExtractionResourceBundle part = new ExtractionResourceBundle();
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreBatchPart(jobId, batchId)).thenReturn(part);
+        when(extract.stageCore(jobId, batchId, part)).thenReturn(Mono.just(WorkUnitStatus.FINISHED));
+
+        StepVerifier.create(new StageCoreWorkUnit(job, batchId).execute(ctx)).verifyComplete();
+
+        InOrder inOrder = inOrder(persistence, extract);
+        inOrder.verify(persistence).loadCoreBatchPart(jobId, batchId);
+        inOrder.verify(extract).stageCore(jobId, batchId, part);
+        inOrder.verify(persistence).onCoreStaged(jobId, batchId, WorkUnitStatus.FINISHED);
+    }
+
+    @Test
+    void execute_skipsStagingWhenFetchFails() throws Exception {
+        UUID jobId = UUID.randomUUID();
+        UUID batchId = UUID.randomUUID();
+        Job job = mock(Job.class);
+        when(job.id()).thenReturn(jobId);
+        ExtractionResourceBundle part = new ExtractionResourceBundle();
+
+        when(ctx.persistence()).thenReturn(persistence);
+        when(ctx.extract()).thenReturn(extract);
+        when(persistence.loadCoreBatchPart(jobId, batchId)).thenReturn(part);
+        when(extract.stageCore(jobId, batchId, part)).thenReturn(Mono.error(new IOException("boom")));
+
+        StepVerifier.create(new StageCoreWorkUnit(job, batchId).execute(ctx)).verifyComplete();
+
+        verify(persistence, never()).onCoreStaged(any(), any(), any());
+        verify(persistence).onCoreStageError(eq(jobId), eq(batchId));
+    }
+}
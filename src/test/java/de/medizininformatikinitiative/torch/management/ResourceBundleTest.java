@@ -1,21 +1,32 @@
 package de.medizininformatikinitiative.torch.management;
 
+import ca.uhn.fhir.context.FhirContext;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttribute;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
 import de.medizininformatikinitiative.torch.model.management.ResourceAttribute;
 import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceGroup;
 import de.medizininformatikinitiative.torch.model.management.ResourceGroupWrapper;
 import de.medizininformatikinitiative.torch.util.ResourceUtils;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -194,6 +205,131 @@ class ResourceBundleTest {
         }
     }
 
+    @Nested
+    class EncodedTests {
+
+        private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+        @Test
+        void putEncoded_decodesOnGet_andKeepsFirstForm() {
+            ResourceBundle bundle = new ResourceBundle();
+            patient1.setActive(true);
+
+            assertThat(bundle.put(EncodedResource.encode(patient1, FHIR_CONTEXT), "group1", true)).isTrue();
+            assertThat(bundle.put(patient1, "group2", false)).isFalse();
+
+            assertThat(bundle.cache()).isEmpty();
+            assertThat(bundle.contains(id)).isTrue();
+            assertThat(bundle.isEmpty()).isFalse();
+            assertThat(bundle.get(id)).hasValueSatisfying(resource ->
+                    assertThat(((Patient) resource).getActive()).isTrue());
+            assertThat(bundle.getValidResourceGroups()).containsExactly(new ResourceGroup(id, "group1"));
+        }
+
+        @Test
+        void putDecoded_replacesEncoded() {
+            ResourceBundle bundle = new ResourceBundle();
+            bundle.put(EncodedResource.encode(patient1, FHIR_CONTEXT), "group1", true);
+
+            bundle.put(wrapper1);
+
+            assertThat(bundle.encodedCache()).isEmpty();
+            assertThat(bundle.get(id)).contains(patient1);
+        }
+
+        @Test
+        void get_decodesOnce_andReplacesEncoded() {
+            ResourceBundle bundle = new ResourceBundle();
+            bundle.put(EncodedResource.encode(patient1, FHIR_CONTEXT), "group1", true);
+
+            Optional<Resource> first = bundle.get(id);
+
+            assertThat(bundle.encodedCache()).isEmpty();
+            assertThat(bundle.cache()).containsKey(id);
+            assertThat(bundle.get(id)).containsSame(first.orElseThrow());
+        }
+
+        @Test
+        void get_keepsChangesToDecoded() {
+            ResourceBundle bundle = new ResourceBundle();
+            bundle.put(EncodedResource.encode(patient1, FHIR_CONTEXT), "group1", true);
+
+            ((Patient) bundle.get(id).orElseThrow()).setActive(false);
+
+            assertThat(bundle.get(id)).hasValueSatisfying(resource ->
+                    assertThat(((Patient) resource).hasActive()).isTrue());
+        }
+
+        @Test
+        void decodeAll_containsBothForms() {
+            ResourceBundle bundle = new ResourceBundle();
+            bundle.put(EncodedResource.encode(patient2, FHIR_CONTEXT), "group1", true);
+            bundle.put(wrapper3);
+            assertThat(bundle.encodedSizeBytes()).isPositive();
+
+            var decoded = bundle.decodeAll();
+
+            assertThat(decoded).containsOnlyKeys(ResourceUtils.getRelativeURL(patient2), ResourceUtils.getRelativeURL(patient3));
+            assertThat(bundle.encodedCache()).isEmpty();
+        }
+
+        /**
+         * Compares the heap retained by parsed and encoded observations, run with {@code -Dtorch.benchmark=true}.
+         */
+        @Test
+        @EnabledIfSystemProperty(named = "torch.benchmark", matches = "true")
+        void encoded_retainsLessHeapThanParsed() {
+            int count = 20_000;
+
+            List<Resource> parsed = new ArrayList<>(count);
+            long parsedBytes = retainedHeap(() -> IntStream.range(0, count).forEach(i -> parsed.add(observation(i))));
+            List<EncodedResource> encoded = new ArrayList<>(count);
+            long encodedBytes = retainedHeap(() -> parsed.forEach(o -> encoded.add(EncodedResource.encode(o, FHIR_CONTEXT))));
+
+            System.out.printf("%d observations: parsed %d bytes, encoded %d bytes%n", count, parsedBytes, encodedBytes);
+            assertThat(encoded).hasSize(count);
+            assertThat(encodedBytes).isLessThan(parsedBytes);
+        }
+
+        private static Observation observation(int i) {
+            Observation observation = new Observation();
+            observation.setId("Observation/obs-" + i);
+            observation.getMeta().addProfile("https://www.medizininformatik-initiative.de/fhir/core/modul-labor/StructureDefinition/ObservationLab");
+            observation.setStatus(Observation.ObservationStatus.FINAL);
+            observation.getCode().addCoding().setSystem("http://loinc.org").setCode("718-7").setDisplay("Hemoglobin");
+            observation.setSubject(new Reference("Patient/patient-" + i));
+            observation.setEffective(new DateTimeType("2024-01-15T12:00:00+01:00"));
+            observation.setValue(new Quantity().setValue(13.5 + i % 10).setUnit("g/dL").setSystem("http://unitsofmeasure.org").setCode("g/dL"));
+            return observation;
+        }
+
+        private static long retainedHeap(Runnable allocation) {
+            long before = usedHeap();
+            allocation.run();
+            return usedHeap() - before;
+        }
+
+        private static long usedHeap() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        @Test
+        void removeAndRelease_dropEncoded() {
+            ResourceBundle bundle = new ResourceBundle();
+            bundle.put(EncodedResource.encode(patient1, FHIR_CONTEXT), "group1", true);
+            bundle.put(EncodedResource.encode(patient2, FHIR_CONTEXT), "group1", true);
+
+            bundle.remove(id);
+            assertThat(bundle.get(id)).isNull();
+
+            bundle.release();
+            assertThat(bundle.isEmpty()).isTrue();
+        }
+    }
+
     @Nested
     class BidirectionalRelationMapping {
         private static final AnnotatedAttribute ATTRIBUTE = new AnnotatedAttribute("test", "test", false);
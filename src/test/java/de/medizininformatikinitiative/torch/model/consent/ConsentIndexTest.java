@@ -0,0 +1,55 @@
+package de.medizininformatikinitiative.torch.model.consent;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConsentIndexTest {
+
+    private static Period p(String start, String end) {
+        return Period.of(LocalDate.parse(start), LocalDate.parse(end));
+    }
+
+    @Test
+    void empty() {
+        ConsentIndex index = ConsentIndex.of(List.of());
+
+        assertThat(index.size()).isZero();
+        assertThat(index.within(p("2024-01-01", "2024-01-01"))).isFalse();
+    }
+
+    @Test
+    void mergesOverlappingAndAdjacentPeriods() {
+        ConsentIndex index = ConsentIndex.of(List.of(
+                p("2024-03-01", "2024-03-31"),
+                p("2024-01-01", "2024-01-20"),
+                p("2024-01-10", "2024-01-31"),
+                p("2024-02-01", "2024-02-10")
+        ));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.within(p("2024-01-05", "2024-02-10"))).isTrue();
+        assertThat(index.within(p("2024-02-05", "2024-03-05"))).isFalse();
+    }
+
+    @Test
+    void containment() {
+        ConsentIndex index = ConsentIndex.of(List.of(
+                p("2024-01-01", "2024-01-10"),
+                p("2024-02-01", "2024-02-10"),
+                p("2024-03-01", "2024-03-10")
+        ));
+
+        assertThat(index.containsDate(LocalDate.parse("2023-12-31"))).isFalse();
+        assertThat(index.containsDate(LocalDate.parse("2024-01-01"))).isTrue();
+        assertThat(index.containsDate(LocalDate.parse("2024-02-10"))).isTrue();
+        assertThat(index.containsDate(LocalDate.parse("2024-02-11"))).isFalse();
+        assertThat(index.containsDate(LocalDate.parse("2024-03-10"))).isTrue();
+        assertThat(index.containsDate(LocalDate.parse("2024-03-11"))).isFalse();
+        assertThat(index.within(p("2024-02-05", "2024-02-10"))).isTrue();
+        assertThat(index.within(p("2024-02-05", "2024-02-11"))).isFalse();
+    }
+}
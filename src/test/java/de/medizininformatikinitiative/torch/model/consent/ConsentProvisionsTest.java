@@ -82,6 +82,21 @@ class ConsentProvisionsTest {
         assertThat(updated.provisions().getFirst().period().end()).isEqualTo(LocalDate.of(2025, 9, 30));
     }
 
+    @Test
+    void updateByEncounters_earlierEncounterEndedBefore_shiftsToCoveringEncounter() {
+        Provision p1 = new Provision(CODE, Period.of(LocalDate.of(2025, 9, 10), LocalDate.of(2025, 9, 30)), true);
+        ConsentProvisions consent = new ConsentProvisions("patient1", null, List.of(p1));
+
+        Encounter ended = createEncounter(LocalDate.of(2025, 9, 1), LocalDate.of(2025, 9, 3));
+        Encounter covering = createEncounter(LocalDate.of(2025, 9, 6), LocalDate.of(2025, 9, 12));
+        Encounter startingOnProvisionStart = createEncounter(LocalDate.of(2025, 9, 10), LocalDate.of(2025, 9, 20));
+
+        ConsentProvisions updated = consent.updateByEncounters(List.of(startingOnProvisionStart, covering, ended),
+                Set.of(CODE));
+
+        assertThat(updated.provisions()).hasSize(1);
+        assertThat(updated.provisions().getFirst().period().start()).isEqualTo(LocalDate.of(2025, 9, 6));
+    }
 
     @Test
     void updateByEncounters_encounterWithNullPeriod_isIgnored() {
@@ -0,0 +1,66 @@
+package de.medizininformatikinitiative.torch.model.consent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConsentWindowTest {
+
+    private static NonContinuousPeriod consent(String... startsAndEnds) {
+        NonContinuousPeriod consent = NonContinuousPeriod.of();
+        for (int i = 0; i < startsAndEnds.length; i += 2) {
+            consent = consent.merge(NonContinuousPeriod.of(Period.of(startsAndEnds[i], startsAndEnds[i + 1])));
+        }
+        return consent;
+    }
+
+    @Test
+    void patientsWithConsentInSameYearsShareWindow() {
+        List<ConsentWindow> windows = ConsentWindow.of(Map.of(
+                "p1", consent("2020-03-01", "2020-06-30"),
+                "p2", consent("2020-01-15", "2020-02-01", "2020-11-01", "2020-12-01"),
+                "p3", consent("2022-05-01", "2023-02-01")
+        ), 10);
+
+        assertThat(windows).hasSize(2);
+        assertThat(windows.get(0).period()).isEqualTo(Period.of("2020-01-01", "2020-12-31"));
+        assertThat(windows.get(0).patientIds()).containsExactlyInAnyOrder("p1", "p2");
+        assertThat(windows.get(1).period()).isEqualTo(Period.of("2022-01-01", "2023-12-31"));
+        assertThat(windows.get(1).patientIds()).containsExactly("p3");
+    }
+
+    @Test
+    void mergesNeighboursWideningLeast() {
+        List<ConsentWindow> windows = ConsentWindow.of(Map.of(
+                "p1", consent("2010-01-01", "2010-12-31"),
+                "p2", consent("2020-01-01", "2020-12-31"),
+                "p3", consent("2021-01-01", "2021-12-31")
+        ), 2);
+
+        assertThat(windows).extracting(ConsentWindow::period).containsExactly(
+                Period.of("2010-01-01", "2010-12-31"),
+                Period.of("2020-01-01", "2021-12-31"));
+        assertThat(windows.get(1).patientIds()).containsExactly("p2", "p3");
+    }
+
+    @Test
+    void patientsWithoutConsent_areLeftOut() {
+        List<ConsentWindow> windows = ConsentWindow.of(Map.of(
+                "p1", consent("2020-03-01", "2020-06-30"),
+                "p2", NonContinuousPeriod.of()
+        ), 1);
+
+        assertThat(windows).singleElement()
+                .satisfies(window -> assertThat(window.patientIds()).containsExactly("p1"));
+    }
+
+    @Test
+    void noWindowsAllowed_fails() {
+        assertThatThrownBy(() -> ConsentWindow.of(Map.of(), 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
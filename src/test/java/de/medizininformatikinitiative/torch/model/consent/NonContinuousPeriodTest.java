@@ -127,6 +127,22 @@ class NonContinuousPeriodTest {
             assertThat(ncp.within(resource)).isTrue();
         }
 
+        @Test
+        void trueWhenSpanningAdjacentPeriods() {
+            var ncp = new NonContinuousPeriod(List.of(p("2024-01-11", "2024-01-20"), p("2024-01-01", "2024-01-10")));
+            var resource = p("2024-01-09", "2024-01-12");
+
+            assertThat(ncp.within(resource)).isTrue();
+        }
+
+        @Test
+        void falseWhenSpanningGap() {
+            var ncp = new NonContinuousPeriod(List.of(p("2024-01-01", "2024-01-10"), p("2024-01-12", "2024-01-20")));
+            var resource = p("2024-01-09", "2024-01-12");
+
+            assertThat(ncp.within(resource)).isFalse();
+        }
+
         @Test
         void trueWhenPointDateEqualsConsentStart() {
             // Consent resource with dateTime == consent period start — the main bug case
@@ -229,6 +245,37 @@ class NonContinuousPeriodTest {
                     p("2024-02-05", "2024-02-10")
             );
         }
+
+        @Test
+        void oneSpanningSeveralOfOther() {
+            var a = new NonContinuousPeriod(List.of(p("2024-01-01", "2024-03-31")));
+            var b = new NonContinuousPeriod(List.of(
+                    p("2023-12-01", "2024-01-05"),
+                    p("2024-02-01", "2024-02-10"),
+                    p("2024-03-20", "2024-04-10")
+            ));
+
+            assertThat(a.intersect(b).periods()).containsExactly(
+                    p("2024-01-01", "2024-01-05"),
+                    p("2024-02-01", "2024-02-10"),
+                    p("2024-03-20", "2024-03-31")
+            );
+            assertThat(b.intersect(a)).isEqualTo(a.intersect(b));
+        }
+
+        @Test
+        void unsortedPeriodsIntersectAllPairs() {
+            var a = new NonContinuousPeriod(List.of(
+                    p("2024-02-01", "2024-02-10"),
+                    p("2024-01-01", "2024-01-10")
+            ));
+            var b = new NonContinuousPeriod(List.of(p("2024-01-05", "2024-02-05")));
+
+            assertThat(a.intersect(b).periods()).containsExactly(
+                    p("2024-02-01", "2024-02-05"),
+                    p("2024-01-05", "2024-01-10")
+            );
+        }
     }
 
 
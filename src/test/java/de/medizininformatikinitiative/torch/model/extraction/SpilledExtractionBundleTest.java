@@ -0,0 +1,122 @@
+package de.medizininformatikinitiative.torch.model.extraction;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
+import de.medizininformatikinitiative.torch.util.DiskResourceStore;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpilledExtractionBundleTest {
+
+    private static final FhirContext CTX = FhirContext.forR4();
+    private static final ExtractionId MEDICATION = ExtractionId.fromRelativeUrl("Medication/M1");
+    private static final ExtractionId ORGANIZATION = ExtractionId.fromRelativeUrl("Organization/O1");
+
+    @TempDir
+    Path tempDir;
+
+    private ExtractionResourceBundle inMemoryBundle() {
+        ExtractionResourceBundle bundle = new ExtractionResourceBundle();
+        bundle.extractionInfoMap().put(MEDICATION, new ResourceExtractionInfo(Set.of("G1"), Map.of()));
+        bundle.extractionInfoMap().put(ORGANIZATION, new ResourceExtractionInfo(Set.of("G2"), Map.of()));
+        bundle.put(new Medication().setId("M1"));
+        bundle.put(new Organization().setName("Org").setId("O1"));
+        return bundle;
+    }
+
+    private SpilledExtractionBundle spilled(DiskResourceStore store) throws IOException {
+        return SpilledExtractionBundle.spill(new ResourceBundle(), store).merge(inMemoryBundle());
+    }
+
+    @Test
+    void spillMovesResourcesIntoStore() throws IOException {
+        ResourceBundle bundle = new ResourceBundle();
+        bundle.put(new Medication().setId("M1"), "G1", true);
+        bundle.put(new Organization().setName("Org").setId("O1"), "G2", false);
+
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            SpilledExtractionBundle spilled = SpilledExtractionBundle.spill(bundle, store);
+
+            assertThat(bundle.cache()).isEmpty();
+            assertThat(store.ids()).containsExactlyInAnyOrder(MEDICATION, ORGANIZATION);
+            assertThat(spilled.extractionInfoMap()).containsOnlyKeys(MEDICATION);
+            assertThat(spilled.missingEntries()).isEmpty();
+            assertThat(spilled.isEmpty()).isFalse();
+        }
+    }
+
+    @Test
+    void mergeAddsMetadataAndMovesResourcesIntoStore() throws IOException {
+        ExtractionResourceBundle part = new ExtractionResourceBundle();
+        part.extractionInfoMap().put(MEDICATION, new ResourceExtractionInfo(Set.of("G1"), Map.of()));
+        part.extractionInfoMap().put(ORGANIZATION, new ResourceExtractionInfo(Set.of("G2"), Map.of()));
+        part.put(new Medication().setId("M1"));
+
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            SpilledExtractionBundle spilled = SpilledExtractionBundle.spill(new ResourceBundle(), store).merge(part);
+
+            assertThat(store.ids()).containsExactly(MEDICATION);
+            assertThat(spilled.extractionInfoMap()).containsOnlyKeys(MEDICATION, ORGANIZATION);
+            assertThat(spilled.missingEntries()).containsExactly(ORGANIZATION);
+        }
+    }
+
+    @Test
+    void writesParsableTransactionBundleWithProvenance() throws IOException {
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            SpilledExtractionBundle spilled = spilled(store);
+            StringWriter out = new StringWriter();
+
+            Set<ExtractionId> written = spilled.writeToFhirBundle(CTX, out, "EX1",
+                    (id, resource, info) -> Optional.of(resource));
+
+            assertThat(written).containsExactlyInAnyOrder(MEDICATION, ORGANIZATION);
+            assertThat(out.toString()).endsWith("\n").doesNotContain("\n\n");
+
+            Bundle bundle = CTX.newJsonParser().parseResource(Bundle.class, out.toString());
+            assertThat(bundle.getType()).isEqualTo(Bundle.BundleType.TRANSACTION);
+            assertThat(bundle.getEntry()).extracting(e -> e.getRequest().getUrl())
+                    .startsWith("Medication/M1", "Organization/O1")
+                    .hasSize(4);
+            assertThat(bundle.getEntry()).allSatisfy(e ->
+                    assertThat(e.getRequest().getMethod()).isEqualTo(Bundle.HTTPVerb.PUT));
+            assertThat(bundle.getEntry().stream().map(Bundle.BundleEntryComponent::getResource)
+                    .filter(Provenance.class::isInstance))
+                    .hasSize(2);
+            assertThat(spilled.resourceInclusionCounts(written))
+                    .containsExactlyInAnyOrderEntriesOf(Map.of("G1", 1, "G2", 1));
+        }
+    }
+
+    @Test
+    void droppedResourcesAreNeitherWrittenNorReferenced() throws IOException {
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            SpilledExtractionBundle spilled = spilled(store);
+            StringWriter out = new StringWriter();
+
+            Set<ExtractionId> written = spilled.writeToFhirBundle(CTX, out, "EX1",
+                    (id, resource, info) -> id.equals(MEDICATION) ? Optional.empty() : Optional.of(resource));
+
+            assertThat(written).containsExactly(ORGANIZATION);
+            Bundle bundle = CTX.newJsonParser().parseResource(Bundle.class, out.toString());
+            assertThat(bundle.getEntry()).hasSize(2);
+            Provenance provenance = (Provenance) bundle.getEntry().get(1).getResource();
+            assertThat(provenance.getTarget()).extracting(Reference::getReference)
+                    .containsExactly("Organization/O1");
+        }
+    }
+}
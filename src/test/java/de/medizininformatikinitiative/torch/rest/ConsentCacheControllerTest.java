@@ -0,0 +1,89 @@
+package de.medizininformatikinitiative.torch.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.consent.ConsentCache;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+@ExtendWith(MockitoExtension.class)
+class ConsentCacheControllerTest {
+
+    @Mock
+    ConsentCache consentCache;
+
+    FhirContext fhirContext;
+    WebTestClient client;
+
+    @BeforeEach
+    void setUp() {
+        fhirContext = FhirContext.forR4();
+        client = WebTestClient.bindToRouterFunction(new ConsentCacheController(fhirContext, consentCache)
+                .consentCacheRouter()).build();
+    }
+
+    private OperationOutcome parseOutcome(String json) {
+        return fhirContext.newJsonParser().parseResource(OperationOutcome.class, json);
+    }
+
+    @Test
+    void invalidateAll() throws IOException {
+        client.delete()
+                .uri("/fhir/__consent-cache")
+                .exchange()
+                .expectStatus().isNoContent();
+
+        verify(consentCache).invalidateAll();
+    }
+
+    @Test
+    void invalidatePatient() throws IOException {
+        client.delete()
+                .uri("/fhir/__consent-cache/{patientId}", "VHF00006")
+                .exchange()
+                .expectStatus().isNoContent();
+
+        verify(consentCache).invalidate("VHF00006");
+    }
+
+    @Test
+    void malformedPatientId() {
+        String response = client.delete()
+                .uri("/fhir/__consent-cache/{patientId}", "..%2F..")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectHeader().contentType("application/fhir+json")
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertThat(parseOutcome(response).getIssueFirstRep().getCode()).isEqualTo(OperationOutcome.IssueType.INVALID);
+        verifyNoInteractions(consentCache);
+    }
+
+    @Test
+    void failedInvalidation() throws IOException {
+        doThrow(new IOException("disk failure")).when(consentCache).invalidateAll();
+
+        String response = client.delete()
+                .uri("/fhir/__consent-cache")
+                .exchange()
+                .expectStatus().is5xxServerError()
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertThat(parseOutcome(response).getIssueFirstRep().getCode()).isEqualTo(OperationOutcome.IssueType.EXCEPTION);
+    }
+}
@@ -0,0 +1,61 @@
+package de.medizininformatikinitiative.torch.rest;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.service.SearchResponseCache;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class SearchCacheControllerTest {
+
+    @Mock
+    SearchResponseCache searchCache;
+
+    FhirContext fhirContext;
+    WebTestClient client;
+
+    @BeforeEach
+    void setUp() {
+        fhirContext = FhirContext.forR4();
+        client = WebTestClient.bindToRouterFunction(new SearchCacheController(fhirContext, searchCache)
+                .searchCacheRouter()).build();
+    }
+
+    @Test
+    void invalidateAll() throws IOException {
+        client.delete()
+                .uri("/fhir/__search-cache")
+                .exchange()
+                .expectStatus().isNoContent();
+
+        verify(searchCache).invalidateAll();
+    }
+
+    @Test
+    void failedInvalidation() throws IOException {
+        doThrow(new IOException("disk failure")).when(searchCache).invalidateAll();
+
+        String response = client.delete()
+                .uri("/fhir/__search-cache")
+                .exchange()
+                .expectStatus().is5xxServerError()
+                .expectHeader().contentType("application/fhir+json")
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertThat(fhirContext.newJsonParser().parseResource(OperationOutcome.class, response)
+                .getIssueFirstRep().getCode()).isEqualTo(OperationOutcome.IssueType.EXCEPTION);
+    }
+}
@@ -33,6 +33,7 @@ import java.util.UUID;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -465,7 +466,7 @@ class TaskControllerTest {
             UUID jobId = UUID.randomUUID();
             Job updated = job(jobId, JobStatus.PENDING, 2).withPriority(JobPriority.HIGH);
 
-            when(persistence.changePriority(jobId, JobPriority.HIGH, 1L)).thenReturn(updated);
+            when(persistence.changeScheduling(jobId, JobPriority.HIGH, Optional.empty(), 1L)).thenReturn(updated);
 
             String response = client.put()
                     .uri("/fhir/Task/{id}", jobId)
@@ -488,7 +489,7 @@ class TaskControllerTest {
             UUID jobId = UUID.randomUUID();
             Job updated = job(jobId, JobStatus.PENDING, 2).withPriority(JobPriority.NORMAL);
 
-            when(persistence.changePriority(jobId, JobPriority.NORMAL, 1L)).thenReturn(updated);
+            when(persistence.changeScheduling(jobId, JobPriority.NORMAL, Optional.empty(), 1L)).thenReturn(updated);
 
             String response = client.put()
                     .uri("/fhir/Task/{id}", jobId)
@@ -510,11 +511,84 @@ class TaskControllerTest {
             assertThat(task.getPriority()).isEqualTo(Task.TaskPriority.ROUTINE);
         }
 
+        @Test
+        void okSetsMaxConcurrentBatches() throws JobNotFoundException, VersionConflictException {
+            UUID jobId = UUID.randomUUID();
+            Job updated = job(jobId, JobStatus.PENDING, 2).withMaxConcurrentBatches(2);
+
+            when(persistence.changeScheduling(jobId, JobPriority.NORMAL, Optional.of(2), 1L)).thenReturn(updated);
+
+            String response = client.put()
+                    .uri("/fhir/Task/{id}", jobId)
+                    .header("If-Match", "W/\"1\"")
+                    .contentType(MediaType.valueOf("application/fhir+json"))
+                    .bodyValue("""
+                            {
+                              "resourceType": "Task",
+                              "input": [{ "type": { "text": "maxConcurrentBatches" }, "valueUnsignedInt": 2 }]
+                            }
+                            """)
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectBody(String.class)
+                    .returnResult()
+                    .getResponseBody();
+
+            Task task = parseTask(response);
+            assertThat(task.getInput()).singleElement().satisfies(input -> {
+                assertThat(input.getType().getText()).isEqualTo(JobTaskMapper.MAX_CONCURRENT_BATCHES);
+                assertThat(input.getValue().primitiveValue()).isEqualTo("2");
+            });
+        }
+
+        @Test
+        void okKeepsMaxConcurrentBatchesWhenInputMissing() throws JobNotFoundException, VersionConflictException {
+            UUID jobId = UUID.randomUUID();
+            Job updated = job(jobId, JobStatus.PENDING, 2).withPriority(JobPriority.HIGH).withMaxConcurrentBatches(2);
+
+            when(persistence.changeScheduling(jobId, JobPriority.HIGH, Optional.empty(), 1L)).thenReturn(updated);
+
+            String response = client.put()
+                    .uri("/fhir/Task/{id}", jobId)
+                    .header("If-Match", "W/\"1\"")
+                    .contentType(MediaType.valueOf("application/fhir+json"))
+                    .bodyValue(taskBody(Task.TaskPriority.ASAP))
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectBody(String.class)
+                    .returnResult()
+                    .getResponseBody();
+
+            Task task = parseTask(response);
+            assertThat(task.getInput()).singleElement()
+                    .satisfies(input -> assertThat(input.getValue().primitiveValue()).isEqualTo("2"));
+        }
+
+        @Test
+        void badRequestOnNegativeMaxConcurrentBatches() {
+            UUID jobId = UUID.randomUUID();
+
+            client.put()
+                    .uri("/fhir/Task/{id}", jobId)
+                    .header("If-Match", "W/\"1\"")
+                    .contentType(MediaType.valueOf("application/fhir+json"))
+                    .bodyValue("""
+                            {
+                              "resourceType": "Task",
+                              "input": [{ "type": { "text": "maxConcurrentBatches" }, "valueInteger": -1 }]
+                            }
+                            """)
+                    .exchange()
+                    .expectStatus().isBadRequest();
+
+            verifyNoInteractions(persistence);
+        }
+
         @Test
         void versionConflict() throws JobNotFoundException, VersionConflictException {
             UUID jobId = UUID.randomUUID();
 
-            when(persistence.changePriority(jobId, JobPriority.NORMAL, 0L))
+            when(persistence.changeScheduling(jobId, JobPriority.NORMAL, Optional.empty(), 0L))
                     .thenThrow(new VersionConflictException(jobId, 0L, 3L));
 
             String response = client.put()
@@ -596,7 +670,7 @@ class TaskControllerTest {
         void notFound() throws JobNotFoundException, VersionConflictException {
             UUID jobId = UUID.randomUUID();
 
-            when(persistence.changePriority(jobId, JobPriority.NORMAL, 1L))
+            when(persistence.changeScheduling(jobId, JobPriority.NORMAL, Optional.empty(), 1L))
                     .thenThrow(new JobNotFoundException(jobId));
 
             String response = client.put()
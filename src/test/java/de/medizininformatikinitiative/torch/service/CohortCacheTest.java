@@ -0,0 +1,172 @@
+package de.medizininformatikinitiative.torch.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.service.SearchResponseCacheTest.TestClock;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CohortCacheTest {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static final Duration TTL = Duration.ofHours(1);
+    static final JsonNode COHORT = json("""
+            {"version": "http://json-schema.org/to-be-done/schema#",
+             "inclusionCriteria": [[{"termCodes": [{"code": "C71", "system": "icd10"}], "context": {"code": "Diagnose"}}]]}
+            """);
+
+    @TempDir
+    Path dir;
+
+    final TestClock clock = new TestClock(Instant.parse("2024-01-15T12:00:00Z"));
+
+    static JsonNode json(String json) {
+        try {
+            return MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    CohortCache cache() {
+        return cache("flare http://flare", "v1");
+    }
+
+    CohortCache cache(String backend, String ontologyVersion) {
+        return new CohortCache(dir.toString(), TTL, backend, ontologyVersion, new DefaultFileIO(), clock);
+    }
+
+    static void store(CohortCache cache, JsonNode cohort, List<String> ids) {
+        cache.open(cohort).flatMap(entry -> entry.append(ids).then(entry.commit())).block();
+    }
+
+    static List<String> cached(CohortCache cache, JsonNode cohort) {
+        return cache.lookup(cohort).orElseThrow().collectList().block();
+    }
+
+    List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.toList();
+        }
+    }
+
+    @Nested
+    class Key {
+
+        @Test
+        void ignoresOrderOfFields() {
+            JsonNode reordered = json("""
+                    {"inclusionCriteria": [[{"context": {"code": "Diagnose"}, "termCodes": [{"system": "icd10", "code": "C71"}]}]],
+                     "version": "http://json-schema.org/to-be-done/schema#"}
+                    """);
+
+            assertThat(cache().key(reordered)).isEqualTo(cache().key(COHORT));
+        }
+
+        @Test
+        void differsForOtherCriteria() {
+            JsonNode other = json("""
+                    {"version": "http://json-schema.org/to-be-done/schema#",
+                     "inclusionCriteria": [[{"termCodes": [{"code": "C72", "system": "icd10"}], "context": {"code": "Diagnose"}}]]}
+                    """);
+
+            assertThat(cache().key(other)).isNotEqualTo(cache().key(COHORT));
+        }
+
+        @Test
+        void differsForOtherBackend() {
+            assertThat(cache("cql http://blaze", "v1").key(COHORT)).isNotEqualTo(cache().key(COHORT));
+        }
+
+        @Test
+        void differsForOtherOntologyVersion() {
+            assertThat(cache("flare http://flare", "v2").key(COHORT)).isNotEqualTo(cache().key(COHORT));
+        }
+    }
+
+    @Test
+    void storedCohort_isServed() {
+        CohortCache cache = cache();
+
+        store(cache, COHORT, List.of("p1", "p2"));
+
+        assertThat(cached(cache, COHORT)).containsExactly("p1", "p2");
+    }
+
+    @Test
+    void unknownCohort_isMissed() {
+        assertThat(cache().lookup(COHORT)).isEmpty();
+    }
+
+    @Test
+    void discardedCohort_isNotStored() throws IOException {
+        CohortCache cache = cache();
+
+        cache.open(COHORT).flatMap(entry -> entry.append(List.of("p1")).then(entry.discard())).block();
+
+        assertThat(cache.lookup(COHORT)).isEmpty();
+        assertThat(files()).isEmpty();
+    }
+
+    @Test
+    void failedCohortQuery_isNotStored() {
+        CohortCache cache = cache();
+
+        StepVerifier.create(Flux.usingWhen(cache.open(COHORT),
+                        entry -> entry.append(List.of("p1")).thenMany(Flux.<String>error(new IOException("reset"))),
+                        FileEntryStore.PendingEntry::commit,
+                        (entry, e) -> entry.discard(),
+                        FileEntryStore.PendingEntry::discard))
+                .verifyError(IOException.class);
+
+        assertThat(cache.lookup(COHORT)).isEmpty();
+    }
+
+    @Test
+    void expiredCohort_isMissedAndDeleted() throws IOException {
+        CohortCache cache = cache();
+        store(cache, COHORT, List.of("p1"));
+
+        clock.advance(TTL);
+
+        assertThat(cache.lookup(COHORT)).isEmpty();
+        assertThat(files()).isEmpty();
+    }
+
+    @Test
+    void storedCohorts_areLoadedOnRestart() {
+        store(cache(), COHORT, List.of("p1", "p2"));
+
+        assertThat(cached(cache(), COHORT)).containsExactly("p1", "p2");
+    }
+
+    @Test
+    void disabled_cachesNothing() {
+        assertThat(CohortCache.disabled().enabled()).isFalse();
+        assertThat(CohortCache.disabled().lookup(COHORT)).isEmpty();
+    }
+
+    @Test
+    void ontologyVersion_changesWithFileContents() throws IOException {
+        Path mappings = Files.writeString(dir.resolve("mappings.json"), "[]");
+        String before = CohortCache.ontologyVersion(List.of(mappings));
+
+        Files.writeString(mappings, "[{}]");
+
+        assertThat(CohortCache.ontologyVersion(List.of(mappings))).isNotEqualTo(before);
+    }
+}
@@ -3,6 +3,7 @@ package de.medizininformatikinitiative.torch.service;
 import ca.uhn.fhir.context.FhirContext;
 import ch.qos.logback.classic.Level;
 import de.medizininformatikinitiative.torch.exceptions.DataStoreException;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.fhir.Query;
 import okhttp3.mockwebserver.Dispatcher;
@@ -20,6 +21,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.slf4j.LoggerFactory;
@@ -30,9 +32,13 @@ import reactor.test.StepVerifier;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static de.medizininformatikinitiative.torch.service.DataStoreIT.createBundleFromQuery;
 import static java.util.Objects.requireNonNull;
@@ -358,6 +364,82 @@ class DataStoreTest {
 
     }
 
+    @Nested
+    class CachedSearch {
+
+        @TempDir
+        Path cacheDir;
+
+        @BeforeEach
+        void setUp() {
+            dataStore = new DataStore(client, ctx, 1000, false,
+                    new SearchResponseCache(cacheDir.toString(), 1_000_000, Duration.ofHours(1), new DefaultFileIO()));
+        }
+
+        @Test
+        void repeatedSearch_isServedFromCache() {
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextMatches(patient -> patient.getIdPart().equals("123"))
+                    .verifyComplete();
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextMatches(patient -> patient.getIdPart().equals("123"))
+                    .verifyComplete();
+
+            assertThat(mockStore.getRequestCount()).isEqualTo(1);
+        }
+
+        @Test
+        void cachedResponseRemovedAfterLookup_isFetchedAgain() throws IOException {
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextCount(1)
+                    .verifyComplete();
+            try (Stream<Path> files = Files.list(cacheDir)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextMatches(patient -> patient.getIdPart().equals("123"))
+                    .verifyComplete();
+
+            assertThat(mockStore.getRequestCount()).isEqualTo(2);
+        }
+
+        @Test
+        void failedSearch_isNotCached() {
+            mockStore.enqueue(new MockResponse().setResponseCode(400));
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .verifyError(WebClientResponseException.BadRequest.class);
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextCount(1)
+                    .verifyComplete();
+
+            assertThat(mockStore.getRequestCount()).isEqualTo(2);
+        }
+
+        @Test
+        void freshSearch_bypassesCache() {
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(PATIENT_BUNDLE));
+
+            StepVerifier.create(dataStore.search(Query.ofType("Patient"), Patient.class))
+                    .expectNextCount(1)
+                    .verifyComplete();
+            StepVerifier.create(dataStore.searchFresh(Query.ofType("Patient"), Patient.class))
+                    .expectNextCount(1)
+                    .verifyComplete();
+
+            assertThat(mockStore.getRequestCount()).isEqualTo(2);
+        }
+    }
+
     @Nested
     class FetchReferencesByBatch {
 
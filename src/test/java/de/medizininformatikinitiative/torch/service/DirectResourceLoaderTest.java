@@ -1,14 +1,19 @@
 package de.medizininformatikinitiative.torch.service;
 
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.config.BatchProcessingProperties;
 import de.medizininformatikinitiative.torch.consent.ConsentValidator;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
 import de.medizininformatikinitiative.torch.diagnostics.MustHaveEvaluation;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.BatchExclusions;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionEvent;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionStage;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.ResourceExclusionEvent;
 import de.medizininformatikinitiative.torch.exceptions.MustHaveViolatedException;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
 import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
+import de.medizininformatikinitiative.torch.model.consent.Period;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttribute;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
@@ -26,6 +31,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Flux;
@@ -43,12 +49,15 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class DirectResourceLoaderTest {
 
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
     @Mock
     DataStore dataStore;
 
@@ -69,7 +78,9 @@ class DirectResourceLoaderTest {
                 dataStore,
                 dseMappingTreeBase,
                 profileMustHaveChecker,
-                consentValidator
+                consentValidator,
+                FHIR_CONTEXT,
+                new BatchProcessingProperties(false, 4, false, false, false, 0)
         );
     }
 
@@ -584,5 +595,110 @@ class DirectResourceLoaderTest {
                     })
                     .verifyComplete();
         }
+
+        @Test
+        void lazyDecode_storesObservationEncoded() {
+            var loader = new DirectResourceLoader(dataStore, dseMappingTreeBase, profileMustHaveChecker,
+                    consentValidator, FHIR_CONTEXT, new BatchProcessingProperties(false, 4, true, false, false, 0));
+            var attributeGroup = new AnnotatedAttributeGroup("test", "Observation", "groupId", List.of(), List.of());
+
+            var patientBundle = new PatientResourceBundle("1");
+            var batchWithConsent = PatientBatchWithConsent.fromList(List.of(patientBundle));
+            var safeSet = new HashSet<>(List.of("1"));
+
+            Observation observation = new Observation();
+            observation.setId("Observation/xyz");
+            observation.getMeta().addProfile("https://example.com/obs|1.0");
+            observation.setSubject(new Reference("Patient/1"));
+
+            when(dataStore.search(any(), any())).thenReturn(Flux.just(observation));
+            when(profileMustHaveChecker.evaluateFirst(observation, attributeGroup))
+                    .thenReturn(new MustHaveEvaluation.Fulfilled());
+
+            StepVerifier.create(loader.processPatientAttributeGroups(List.of(attributeGroup), batchWithConsent, safeSet))
+                    .assertNext(processedBatch -> {
+                        ResourceBundle bundle = processedBatch.get("1").bundle();
+                        ExtractionId id = ExtractionId.fromRelativeUrl("Observation/xyz");
+
+                        assertThat(bundle.cache()).isEmpty();
+                        assertThat(bundle.contains(id)).isTrue();
+                        assertThat(bundle.getEncoded(id)).hasValueSatisfying(encoded -> {
+                            assertThat(encoded.resourceType()).isEqualTo("Observation");
+                            assertThat(encoded.patientId()).isEqualTo("1");
+                            assertThat(encoded.profiles()).containsExactly("https://example.com/obs");
+                        });
+                        assertThat(bundle.get(id)).hasValueSatisfying(decoded ->
+                                assertThat(FHIR_CONTEXT.newJsonParser().encodeResourceToString(decoded))
+                                        .isEqualTo(FHIR_CONTEXT.newJsonParser().encodeResourceToString(observation)));
+                        assertThat(bundle.getValidResourceGroups()).containsExactly(new ResourceGroup(id, "test"));
+                    })
+                    .verifyComplete();
+        }
+    }
+
+    @Nested
+    class ConsentWindows {
+
+        @Test
+        void searchesEachWindowForResourcesDatedWithinIt() {
+            var loader = new DirectResourceLoader(dataStore, dseMappingTreeBase, profileMustHaveChecker,
+                    consentValidator, FHIR_CONTEXT, new BatchProcessingProperties(false, 4, false, false, false, 2));
+            var group = new AnnotatedAttributeGroup("test", "Observation", "groupRef",
+                    List.of(new AnnotatedAttribute("Observation.code", "Observation.code", false)), List.of());
+            var batchWithConsent = new PatientBatchWithConsent(Map.of(
+                    "1", new PatientResourceBundle("1", NonContinuousPeriod.of(Period.of("2020-03-01", "2020-06-30")),
+                            new ResourceBundle()),
+                    "2", new PatientResourceBundle("2", NonContinuousPeriod.of(Period.of("2023-01-01", "2023-12-31")),
+                            new ResourceBundle())),
+                    true, new ResourceBundle(), UUID.randomUUID(), BatchDiagnostics.empty());
+
+            Observation observation = new Observation();
+            observation.setId("Observation/xyz");
+            observation.setSubject(new Reference("Patient/1"));
+
+            when(consentValidator.dateSearchParam("Observation")).thenReturn(Optional.of("date"));
+            when(dataStore.search(any(), any())).thenReturn(Flux.just(observation), Flux.empty());
+            when(consentValidator.checkConsent(observation, batchWithConsent)).thenReturn(true);
+            when(profileMustHaveChecker.evaluateFirst(observation, group)).thenReturn(new MustHaveEvaluation.Fulfilled());
+
+            StepVerifier.create(loader.processPatientAttributeGroups(List.of(group), batchWithConsent,
+                            new HashSet<>(List.of("1", "2"))))
+                    .expectNextCount(1)
+                    .verifyComplete();
+
+            ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+            verify(dataStore, times(2)).search(queries.capture(), eq(DomainResource.class));
+            assertThat(queries.getAllValues()).extracting(Query::toString).containsExactly(
+                    "Observation?patient=Patient/1&_profile:below=groupRef&date=ge2020-01-01&date=le2020-12-31",
+                    "Observation?patient=Patient/2&_profile:below=groupRef&date=ge2023-01-01&date=le2023-12-31");
+            assertThat(batchWithConsent.diagnostics().batchDetails().measurements())
+                    .containsEntry(BatchMeasurement.DIRECT_LOAD_DOWNLOADED_RESOURCES, 1L)
+                    .containsEntry(BatchMeasurement.DIRECT_LOAD_CONSENTED_RESOURCES, 1L);
+        }
+
+        @Test
+        void typeWithoutDateSearchParam_isSearchedWhole() {
+            var loader = new DirectResourceLoader(dataStore, dseMappingTreeBase, profileMustHaveChecker,
+                    consentValidator, FHIR_CONTEXT, new BatchProcessingProperties(false, 4, false, false, false, 2));
+            var group = new AnnotatedAttributeGroup("test", "Observation", "groupRef",
+                    List.of(new AnnotatedAttribute("Observation.code", "Observation.code", false)), List.of());
+            var batchWithConsent = new PatientBatchWithConsent(Map.of(
+                    "1", new PatientResourceBundle("1", NonContinuousPeriod.of(Period.of("2020-03-01", "2020-06-30")),
+                            new ResourceBundle())),
+                    true, new ResourceBundle(), UUID.randomUUID(), BatchDiagnostics.empty());
+
+            when(consentValidator.dateSearchParam("Observation")).thenReturn(Optional.empty());
+            when(dataStore.search(any(), any())).thenReturn(Flux.empty());
+
+            StepVerifier.create(loader.processPatientAttributeGroups(List.of(group), batchWithConsent,
+                            new HashSet<>(List.of("1"))))
+                    .expectNextCount(1)
+                    .verifyComplete();
+
+            verify(dataStore).search(Query.of("Observation", batchWithConsent.patientBatch()
+                    .compartmentSearchParam("Observation")
+                    .appendParams(group.queries(dseMappingTreeBase, "Observation").getFirst().params())),
+                    DomainResource.class);
+        }
     }
 }
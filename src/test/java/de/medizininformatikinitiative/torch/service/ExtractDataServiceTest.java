@@ -1,14 +1,19 @@
 package de.medizininformatikinitiative.torch.service;
 
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.config.BatchProcessingProperties;
+import de.medizininformatikinitiative.torch.config.CoreProcessingProperties;
 import de.medizininformatikinitiative.torch.config.TorchProperties;
 import de.medizininformatikinitiative.torch.consent.ConsentHandler;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAudit;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.ResourceExclusionEvent;
 import de.medizininformatikinitiative.torch.diagnostics.exclusions.ResourceExclusionReason;
 import de.medizininformatikinitiative.torch.exceptions.ConsentViolatedException;
 import de.medizininformatikinitiative.torch.exceptions.MustHaveViolatedException;
 import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobParameters;
 import de.medizininformatikinitiative.torch.jobhandling.JobPriority;
@@ -25,24 +30,34 @@ import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
+import de.medizininformatikinitiative.torch.model.extraction.ResourceExtractionInfo;
+import de.medizininformatikinitiative.torch.model.extraction.SpilledExtractionBundle;
 import de.medizininformatikinitiative.torch.model.management.GroupsToProcess;
 import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
 import de.medizininformatikinitiative.torch.model.management.ResourceGroup;
 import de.medizininformatikinitiative.torch.model.management.TermCode;
+import de.medizininformatikinitiative.torch.util.DiskResourceStore;
 import de.medizininformatikinitiative.torch.util.ResultFileManager;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -133,7 +148,9 @@ class ExtractDataServiceTest {
                 dataStore,
                 postCascadeMustHaveChecker,
                 torchProperties,
-                compartmentManager
+                compartmentManager,
+                new CoreProcessingProperties(false, 1, false),
+                new BatchProcessingProperties(false, 4, false, false, false, 0)
         );
         spyService = Mockito.spy(service);
     }
@@ -174,7 +191,7 @@ class ExtractDataServiceTest {
             when(bwc.keep(any())).thenReturn(bwc);
             when(bwc.diagnostics()).thenReturn(BatchDiagnostics.empty());
 
-            when(directResourceLoader.directLoadPatientCompartment(anyList(), any()))
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), any(), any(), any()))
                     .thenReturn(Mono.just(bwc));
             when(referenceResolver.resolvePatientBatch(eq(bwc), anyMap()))
                     .thenReturn(Mono.just(bwc));
@@ -214,6 +231,76 @@ class ExtractDataServiceTest {
             }
         }
 
+        @Test
+        void processBatch_streaming_writesOneLinePerPatientAndReleasesBundles(@TempDir Path tempDir) throws IOException {
+            ResultFileManager fileManager = new ResultFileManager(tempDir.toString(), FhirContext.forR4(), new DefaultFileIO());
+            ExtractDataService streamingService = new ExtractDataService(
+                    fileManager, processedGroupFactory, directResourceLoader, referenceResolver,
+                    batchCopierRedacter, cascadingDelete, batchToCoreWriter, consentHandler, dataStore,
+                    postCascadeMustHaveChecker, torchProperties, compartmentManager,
+                    new CoreProcessingProperties(false, 1, false), new BatchProcessingProperties(true, 2, false, false, false, 0));
+            UUID jobId = UUID.randomUUID();
+            UUID batchId = UUID.randomUUID();
+
+            Job job = job(jobId, JobStatus.PENDING, WorkUnitState.initNow(), Map.of(), WorkUnitState.initNow());
+
+            GroupsToProcess groups = mock(GroupsToProcess.class);
+            when(processedGroupFactory.create(any())).thenReturn(groups);
+            when(groups.directPatientCompartmentGroups()).thenReturn(List.of());
+            when(groups.allGroups()).thenReturn(Map.of());
+
+            PatientBatch rawBatch = mock(PatientBatch.class);
+            when(rawBatch.batchId()).thenReturn(batchId);
+            when(rawBatch.ids()).thenReturn(List.of());
+            when(rawBatch.diagnostics()).thenReturn(BatchDiagnostics.empty());
+
+            BatchState batchState = mock(BatchState.class);
+            BatchState finishedState = mock(BatchState.class);
+            when(batchState.finishNow(WorkUnitStatus.FINISHED)).thenReturn(finishedState);
+
+            BatchSelection selection = mock(BatchSelection.class);
+            when(selection.job()).thenReturn(job);
+            when(selection.batchState()).thenReturn(batchState);
+            when(selection.batch()).thenReturn(rawBatch);
+
+            Map<String, PatientResourceBundle> bundles = new LinkedHashMap<>();
+            for (String patientId : List.of("P1", "P2", "P3")) {
+                ResourceBundle rb = new ResourceBundle();
+                rb.put(new Observation().setId("O-" + patientId), "G1", true);
+                bundles.put(patientId, new PatientResourceBundle(patientId, rb));
+            }
+            PatientBatchWithConsent bwc = new PatientBatchWithConsent(bundles, batchId, BatchDiagnostics.empty());
+
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), any(), any(), any()))
+                    .thenReturn(Mono.just(bwc));
+            when(referenceResolver.resolvePatientBatch(any(), anyMap()))
+                    .thenAnswer(inv -> Mono.just(inv.getArgument(0)));
+            when(cascadingDelete.handlePatientBatch(any(), anyMap()))
+                    .thenAnswer(inv -> inv.getArgument(0));
+            when(batchCopierRedacter.transformBundle(any(ExtractionResourceBundle.class), anyMap()))
+                    .thenAnswer(inv -> inv.getArgument(0));
+            when(compartmentManager.isInCompartment(any(ExtractionId.class))).thenReturn(true);
+
+            StepVerifier.create(streamingService.processBatch(selection))
+                    .assertNext(res -> {
+                        assertThat(res.batchState()).isSameAs(finishedState);
+                        assertThat(res.resultCoreBundle()).isPresent();
+                        var details = res.diagnostics().orElseThrow().batchDetails();
+                        assertThat(details.numFinalPatients()).isEqualTo(3);
+                        assertThat(details.resourceInclusions()).containsExactlyInAnyOrderEntriesOf(Map.of("G1", 3));
+                        assertThat(details.measurements()).containsKey(BatchMeasurement.PEAK_HEAP_BYTES);
+                    })
+                    .verifyComplete();
+
+            Path jobDir = tempDir.resolve(jobId.toString());
+            assertThat(Files.readAllLines(jobDir.resolve(batchId + ".ndjson"))).hasSize(3);
+            try (var files = Files.list(jobDir)) {
+                assertThat(files).noneMatch(file -> file.toString().endsWith(".tmp"));
+            }
+            assertThat(bundles.values()).allMatch(PatientResourceBundle::isEmpty);
+            verify(batchToCoreWriter, Mockito.times(3)).addPatientBundle(any(), any());
+        }
+
         @Test
         void processBatch_recordsResourceInclusionCounts() {
             UUID jobId = UUID.randomUUID();
@@ -245,7 +332,7 @@ class ExtractDataServiceTest {
             when(bwc.keep(any())).thenReturn(bwc);
             when(bwc.diagnostics()).thenReturn(diagnostics);
 
-            when(directResourceLoader.directLoadPatientCompartment(anyList(), any()))
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), any(), any(), any()))
                     .thenReturn(Mono.just(bwc));
             when(referenceResolver.resolvePatientBatch(eq(bwc), anyMap()))
                     .thenReturn(Mono.just(bwc));
@@ -316,10 +403,10 @@ class ExtractDataServiceTest {
             when(bwc.patientIds()).thenReturn(List.of("p1"));
             when(bwc.keep(any())).thenReturn(bwc);
 
-            when(consentHandler.fetchAndBuildConsentInfo(Set.of(termcode), rawBatch))
+            when(consentHandler.fetchAndBuildConsentInfo(eq(Set.of(termcode)), eq(rawBatch), any()))
                     .thenReturn(Mono.just(bwc));
 
-            when(directResourceLoader.directLoadPatientCompartment(anyList(), eq(bwc)))
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), eq(bwc), any(), any()))
                     .thenReturn(Mono.just(bwc));
             when(referenceResolver.resolvePatientBatch(eq(bwc), anyMap()))
                     .thenReturn(Mono.just(bwc));
@@ -348,7 +435,7 @@ class ExtractDataServiceTest {
                 // Assert we actually hit the static conversion
                 mocked.verify(() -> ExtractionPatientBatch.of(any()));
 
-                verify(consentHandler).fetchAndBuildConsentInfo(Set.of(termcode), rawBatch);
+                verify(consentHandler).fetchAndBuildConsentInfo(eq(Set.of(termcode)), eq(rawBatch), any());
             }
         }
 
@@ -393,7 +480,7 @@ class ExtractDataServiceTest {
             when(bwc.keep(any())).thenReturn(bwc);
             when(bwc.diagnostics()).thenReturn(BatchDiagnostics.empty());
 
-            when(directResourceLoader.directLoadPatientCompartment(anyList(), any()))
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), any(), any(), any()))
                     .thenReturn(Mono.just(bwc));
             when(referenceResolver.resolvePatientBatch(eq(bwc), anyMap()))
                     .thenReturn(Mono.just(bwc));
@@ -453,7 +540,7 @@ class ExtractDataServiceTest {
             when(selection.batchState()).thenReturn(batchState);
             when(selection.batch()).thenReturn(rawBatch);
 
-            when(consentHandler.fetchAndBuildConsentInfo(Set.of(termcode), rawBatch))
+            when(consentHandler.fetchAndBuildConsentInfo(eq(Set.of(termcode)), eq(rawBatch), any()))
                     .thenReturn(Mono.error(new ConsentViolatedException("no consent")));
 
             StepVerifier.create(spyService.processBatch(selection))
@@ -502,7 +589,7 @@ class ExtractDataServiceTest {
             when(bwc.keep(any())).thenReturn(bwc);
             when(bwc.diagnostics()).thenReturn(BatchDiagnostics.empty());
 
-            when(directResourceLoader.directLoadPatientCompartment(anyList(), any()))
+            when(directResourceLoader.directLoadPatientCompartment(anyList(), any(), any(), any()))
                     .thenReturn(Mono.just(bwc));
             when(referenceResolver.resolvePatientBatch(eq(bwc), anyMap()))
                     .thenReturn(Mono.just(bwc));
@@ -648,7 +735,7 @@ class ExtractDataServiceTest {
                     .thenReturn(transformed);
 
 
-            StepVerifier.create(spyService.processCore(job, new ExtractionResourceBundle()))
+            StepVerifier.create(spyService.processCore(job, Flux.empty()))
                     .assertNext(res -> {
                         assertThat(res.jobId()).isEqualTo(jobId);
                         assertThat(res.status()).isEqualTo(WorkUnitStatus.SKIPPED);
@@ -687,7 +774,7 @@ class ExtractDataServiceTest {
 
             doReturn(Mono.empty()).when(spyService).writeBundle(eq(jobId.toString()), eq(transformed));
 
-            StepVerifier.create(spyService.processCore(job, new ExtractionResourceBundle()))
+            StepVerifier.create(spyService.processCore(job, Flux.empty()))
                     .assertNext(res -> {
                         assertThat(res.jobId()).isEqualTo(jobId);
                         assertThat(res.status()).isEqualTo(WorkUnitStatus.FINISHED);
@@ -726,12 +813,63 @@ class ExtractDataServiceTest {
 
             doReturn(Mono.empty()).when(spyService).writeBundle(eq(jobId.toString()), eq(transformed));
 
-            StepVerifier.create(spyService.processCore(job, new ExtractionResourceBundle()))
+            StepVerifier.create(spyService.processCore(job, Flux.empty()))
                     .assertNext(res -> assertThat(res.diagnostics().orElseThrow().batchDetails().resourceInclusions())
                             .containsExactlyInAnyOrderEntriesOf(Map.of("G1", 2)))
                     .verifyComplete();
         }
 
+        @Test
+        void processCore_spillToDisk_streamsStoredResourcesAndRemovesStore(@TempDir Path tempDir) throws IOException {
+            ExtractDataService spillService = new ExtractDataService(
+                    resultFileManager, processedGroupFactory, directResourceLoader, referenceResolver,
+                    batchCopierRedacter, cascadingDelete, batchToCoreWriter, consentHandler, dataStore,
+                    postCascadeMustHaveChecker, torchProperties, compartmentManager,
+                    new CoreProcessingProperties(true, 1, false), new BatchProcessingProperties(false, 4, false, false, false, 0));
+            UUID jobId = UUID.randomUUID();
+
+            Job job = job(jobId, JobStatus.PENDING, WorkUnitState.initNow(), Map.of(), WorkUnitState.initNow());
+            AnnotatedCrtdl crtdl = job.parameters().crtdl();
+
+            GroupsToProcess groups = mock(GroupsToProcess.class);
+            when(processedGroupFactory.create(crtdl)).thenReturn(groups);
+            when(groups.directNoPatientGroups()).thenReturn(List.of());
+            when(groups.allGroups()).thenReturn(Map.of());
+
+            ResourceBundle rb = new ResourceBundle();
+            when(directResourceLoader.processCoreAttributeGroups(anyList(), any(ResourceBundle.class), any()))
+                    .thenReturn(Mono.just(rb));
+            when(referenceResolver.resolveCoreBundle(eq(rb), anyMap(), any()))
+                    .thenReturn(Mono.just(rb));
+            when(dataStore.groupReferencesByTypeInChunks(any())).thenReturn(List.of());
+
+            ExtractionId medicationId = ExtractionId.fromRelativeUrl("Medication/M1");
+            ExtractionResourceBundle preComputed = new ExtractionResourceBundle();
+            preComputed.extractionInfoMap().put(medicationId, new ResourceExtractionInfo(Set.of("G1"), Map.of()));
+            preComputed.put(new Medication().setId("M1"));
+
+            Path storeFile = tempDir.resolve("core-store.tmp");
+            when(resultFileManager.openCoreStore(jobId.toString()))
+                    .thenReturn(DiskResourceStore.create(storeFile, FhirContext.forR4()));
+            when(resultFileManager.saveCoreBundleToNDJSON(eq(jobId.toString()), any(SpilledExtractionBundle.class), any()))
+                    .thenAnswer(inv -> {
+                        SpilledExtractionBundle spilled = inv.getArgument(1);
+                        assertThat(spilled.store().contains(medicationId)).isTrue();
+                        return Set.of(medicationId);
+                    });
+
+            StepVerifier.create(spillService.processCore(job, Flux.just(preComputed)))
+                    .assertNext(res -> {
+                        assertThat(res.status()).isEqualTo(WorkUnitStatus.FINISHED);
+                        assertThat(res.diagnostics().orElseThrow().batchDetails().resourceInclusions())
+                                .containsExactlyInAnyOrderEntriesOf(Map.of("G1", 1));
+                    })
+                    .verifyComplete();
+
+            verify(batchCopierRedacter, never()).transformBundle(any(), anyMap());
+            assertThat(storeFile).doesNotExist();
+        }
+
         @Test
         void processCore_whenPostCascadeMustHaveFails_emitsError() throws Exception {
             UUID jobId = UUID.randomUUID();
@@ -756,7 +894,7 @@ class ExtractDataServiceTest {
             doThrow(new MustHaveViolatedException.GroupViolated("required direct core group missing"))
                     .when(postCascadeMustHaveChecker).validate(rb, directNoPatientGroups);
 
-            StepVerifier.create(spyService.processCore(job, new ExtractionResourceBundle()))
+            StepVerifier.create(spyService.processCore(job, Flux.empty()))
                     .verifyErrorSatisfies(e -> {
                         assertThat(e).isInstanceOf(MustHaveViolatedException.class);
                         assertThat(e).hasMessageContaining("required direct core group missing");
@@ -798,7 +936,7 @@ class ExtractDataServiceTest {
 
             doReturn(Mono.empty()).when(spyService).writeBundle(eq(jobId.toString()), eq(transformed));
 
-            StepVerifier.create(spyService.processCore(job, new ExtractionResourceBundle()))
+            StepVerifier.create(spyService.processCore(job, Flux.empty()))
                     .assertNext(res -> {
                         assertThat(res.diagnostics()).isPresent();
                         assertThat(res.diagnostics().get().batchExclusions().getResourceExclusions())
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.opencsv.exceptions.CsvValidationException;
+import de.medizininformatikinitiative.torch.config.JobJournalProperties;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDetails;
 import de.medizininformatikinitiative.torch.diagnostics.BatchDiagnostics;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAudit;
@@ -15,21 +16,28 @@ import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclus
 import de.medizininformatikinitiative.torch.exceptions.JobNotFoundException;
 import de.medizininformatikinitiative.torch.exceptions.StateConflictException;
 import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.CohortCacheStatus;
 import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
 import de.medizininformatikinitiative.torch.jobhandling.FileIo;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobJournal;
 import de.medizininformatikinitiative.torch.jobhandling.JobParameters;
 import de.medizininformatikinitiative.torch.jobhandling.JobPriority;
 import de.medizininformatikinitiative.torch.jobhandling.JobStatus;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Issue;
 import de.medizininformatikinitiative.torch.jobhandling.failure.Severity;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessBatchWorkUnit;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.ProcessCoreShardWorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnit;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedCrtdl;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedDataExtraction;
 import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CorePartition;
 import de.medizininformatikinitiative.torch.jobhandling.result.CoreResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardOutcome;
+import de.medizininformatikinitiative.torch.jobhandling.result.CoreShardResult;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
 import de.medizininformatikinitiative.torch.model.extraction.ResourceExtractionInfo;
@@ -59,6 +67,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 import static de.medizininformatikinitiative.torch.TestUtils.concat;
@@ -274,6 +283,57 @@ class JobPersistenceServiceTest {
             assertThat(persistenceService.getJob(j2)).isPresent();
         }
 
+        @Test
+        void parametersAreStoredOnceAndReferencedByHash() throws IOException {
+            UUID jobId = persistenceService.createJob(EMPTY_PARAMETERS.crtdl(), List.of("p1", "p2"), "http://kick-off");
+
+            Path jobDir = baseDir.resolve(jobId.toString());
+            var parameters = MAPPER.readTree(Files.readString(jobDir.resolve("job.json"))).get("parameters");
+            assertThat(parameters.has("paramBatch")).isFalse();
+            assertThat(parameters.has("crtdl")).isFalse();
+            assertThat(parameters.get("kickOffUrl").asText()).isEqualTo("http://kick-off");
+            String hash = parameters.get("hash").asText();
+            try (Stream<Path> files = Files.list(jobDir)) {
+                assertThat(files.map(p -> p.getFileName().toString()).filter(n -> n.startsWith("parameters-")))
+                        .containsExactly("parameters-" + hash + ".json");
+            }
+
+            JobPersistenceService reloaded = new JobPersistenceService(new DefaultFileIO(), MAPPER,
+                    baseDir.toString(), 5, new DiagnosticsStore(new DefaultFileIO(), MAPPER));
+            reloaded.init();
+
+            JobParameters actual = reloaded.getJob(jobId).orElseThrow().parameters();
+            assertThat(actual.hash()).isEqualTo(hash);
+            assertThat(actual.paramBatch()).containsExactly("p1", "p2");
+            assertThat(actual.crtdl()).isEqualTo(EMPTY_PARAMETERS.crtdl());
+        }
+
+        @Test
+        void initMovesEmbeddedParametersIntoTheirOwnFile() throws IOException {
+            UUID jobId = UUID.randomUUID();
+            Path jobDir = Files.createDirectories(baseDir.resolve(jobId.toString()));
+            Files.writeString(jobDir.resolve("job.json"), MAPPER.writeValueAsString(createJob(jobId)));
+
+            persistenceService.init();
+
+            JobParameters parameters = persistenceService.getJob(jobId).orElseThrow().parameters();
+            assertThat(parameters.isStored()).isTrue();
+            assertThat(parameters).isEqualTo(EMPTY_PARAMETERS);
+            assertThat(MAPPER.readTree(Files.readString(jobDir.resolve("job.json"))).get("parameters").has("crtdl"))
+                    .isFalse();
+        }
+
+        @Test
+        void storedParametersAreComparedWithoutLoadingTheirContent() {
+            JobParameters stored = JobParameters.stored(EMPTY_PARAMETERS.hash(), null, hash -> {
+                throw new IOException("must not be loaded");
+            });
+
+            assertThat(stored).isEqualTo(EMPTY_PARAMETERS);
+            assertThat(EMPTY_PARAMETERS).isEqualTo(stored);
+            assertThat(stored).isNotEqualTo(new JobParameters(EMPTY_PARAMETERS.crtdl(), List.of("p1"), null));
+        }
+
         @Test
         void saveCoreBatch_and_loadCoreInfo_shouldPersistAndReloadSingleCoreBundle()
                 throws IOException {
@@ -302,6 +362,23 @@ class JobPersistenceServiceTest {
             assertThat(merged.extractionInfoMap().get(ExtractionId.fromRelativeUrl("r/rid-1")).groups())
                     .containsExactly("G1");
         }
+
+        @Test
+        void coreBatchParts_emitsEachSavedPart() throws IOException {
+            UUID jobId = UUID.randomUUID();
+            ExtractionId first = ExtractionId.fromRelativeUrl("r/rid-1");
+            ExtractionId second = ExtractionId.fromRelativeUrl("r/rid-2");
+            for (ExtractionId id : List.of(first, second)) {
+                persistenceService.saveCoreBatch(jobId, UUID.randomUUID(), new ExtractionResourceBundle(
+                        new ConcurrentHashMap<>(Map.of(id, new ResourceExtractionInfo(Set.of("G1"), Map.of()))),
+                        new ConcurrentHashMap<>()));
+            }
+
+            List<ExtractionResourceBundle> parts = persistenceService.coreBatchParts(jobId).collectList().block();
+
+            assertThat(parts).hasSize(2).flatExtracting(part -> part.extractionInfoMap().keySet())
+                    .containsExactlyInAnyOrder(first, second);
+        }
     }
 
     @Nested
@@ -388,8 +465,12 @@ class JobPersistenceServiceTest {
 
             UUID jobId = service.createJob(EMPTY_PARAMETERS.crtdl(), EMPTY_PARAMETERS.paramBatch(), null);
 
+            verify(io).newBufferedWriter(argThat(path ->
+                    path.toString().contains(jobId.toString()) && path.endsWith("job.json.tmp")
+            ));
             verify(io).newBufferedWriter(argThat(path ->
                     path.toString().contains(jobId.toString())
+                            && path.getFileName().toString().startsWith("parameters-")
             ));
         }
     }
@@ -599,6 +680,86 @@ class JobPersistenceServiceTest {
         }
     }
 
+    @Nested
+    class JournalTests {
+
+        @TempDir
+        Path baseDir;
+
+        JobPersistenceService newService() throws IOException {
+            return newService(new DefaultFileIO());
+        }
+
+        JobPersistenceService newService(FileIo io) throws IOException {
+            JobPersistenceService service = new JobPersistenceService(
+                    io,
+                    MAPPER,
+                    baseDir.toString(),
+                    2,
+                    new DiagnosticsStore(new DefaultFileIO(), MAPPER),
+                    new JobJournalProperties(true, 1_000)
+            );
+            service.init();
+            return service;
+        }
+
+        private Job readJobFile(UUID jobId) throws IOException {
+            return MAPPER.readValue(Files.readString(baseDir.resolve(jobId.toString()).resolve("job.json")), Job.class);
+        }
+
+        @Test
+        void stateChangesAreJournaledAndReplayedOnRestart() throws Exception {
+            JobPersistenceService service = newService();
+            UUID jobId = service.createJob(EMPTY_PARAMETERS.crtdl(), EMPTY_PARAMETERS.paramBatch(), null);
+            WorkUnit cohort = service.selectNextWorkUnit().orElseThrow();
+            service.onCohortSuccess(jobId, List.of("p1", "p2", "p3"), Optional.empty());
+            UUID batchId = service.getJob(jobId).orElseThrow().getNextBatch().orElseThrow();
+            assertThat(service.tryStartBatch(jobId, batchId)).isTrue();
+            Job current = service.getJob(jobId).orElseThrow();
+
+            assertThat(cohort.job().status()).isEqualTo(JobStatus.RUNNING_GET_COHORT);
+            assertThat(readJobFile(jobId).version()).isZero();
+            assertThat(baseDir.resolve(jobId.toString()).resolve(JobJournal.JOURNAL_FILE_NAME)).exists();
+
+            service.close();
+            JobPersistenceService reloaded = newService();
+
+            Job actual = reloaded.getJob(jobId).orElseThrow();
+            assertThat(actual.version()).isEqualTo(current.version());
+            assertThat(actual.status()).isEqualTo(JobStatus.RUNNING_PROCESS_BATCH);
+            assertThat(actual.batches()).containsOnlyKeys(current.batches().keySet());
+            // the claimed batch is rolled back on restart
+            assertThat(actual.batches().get(batchId).status()).isEqualTo(WorkUnitStatus.INIT);
+            assertThat(readJobFile(jobId)).isEqualTo(actual);
+            assertThat(baseDir.resolve(jobId.toString()).resolve(JobJournal.JOURNAL_FILE_NAME)).doesNotExist();
+            reloaded.close();
+        }
+
+        @Test
+        void failedJournalWrite_persistsErrorStateAsSnapshot() throws Exception {
+            AtomicBoolean failAppend = new AtomicBoolean();
+            JobPersistenceService service = newService(new DefaultFileIO() {
+                @Override
+                public BufferedWriter newAppendingWriter(Path path) throws IOException {
+                    if (failAppend.get()) {
+                        throw new IOException("disk full");
+                    }
+                    return super.newAppendingWriter(path);
+                }
+            });
+            UUID jobId = service.createJob(EMPTY_PARAMETERS.crtdl(), EMPTY_PARAMETERS.paramBatch(), null);
+            service.selectNextWorkUnit().orElseThrow();
+            failAppend.set(true);
+
+            service.onCohortSuccess(jobId, List.of("p1"), Optional.empty());
+
+            Job actual = service.getJob(jobId).orElseThrow();
+            assertThat(actual.status()).isIn(JobStatus.FAILED, JobStatus.TEMP_FAILED);
+            assertThat(readJobFile(jobId)).isEqualTo(actual);
+            service.close();
+        }
+    }
+
     @Nested
     class OnBatchErrorTests {
 
@@ -751,6 +912,74 @@ class JobPersistenceServiceTest {
             assertThat(job.issues()).extracting("msg").contains("Empty cohort");
         }
 
+        @Test
+        void onCohortBatch_AddsBatchWhileCohortRuns() throws IOException {
+            Instant attempt = service.getJob(jobId).orElseThrow().cohortState().startedAt();
+
+            assertThat(service.onCohortBatch(jobId, attempt, List.of("P1", "P2"))).isTrue();
+            assertThat(service.onCohortBatch(jobId, attempt, List.of("P3"))).isTrue();
+
+            Job job = service.getJob(jobId).orElseThrow();
+            assertThat(job.status()).isEqualTo(JobStatus.RUNNING_GET_COHORT);
+            assertThat(job.cohortSize()).isEqualTo(3);
+            assertThat(job.batches()).hasSize(2);
+            assertThat(service.batchedIds(jobId, job.batches().keySet()).collectList().block())
+                    .containsExactlyInAnyOrder("P1", "P2", "P3");
+            assertThat(service.selectNextWorkUnit()).get().isInstanceOf(ProcessBatchWorkUnit.class);
+        }
+
+        @Test
+        void onCohortBatch_OfOtherAttempt_IsRejected() throws IOException {
+            Instant attempt = service.getJob(jobId).orElseThrow().cohortState().startedAt();
+
+            assertThat(service.onCohortBatch(jobId, attempt.minusSeconds(1), List.of("P1"))).isFalse();
+
+            assertThat(service.getJob(jobId).orElseThrow().batches()).isEmpty();
+            try (Stream<Path> files = Files.list(baseDir.resolve(jobId.toString()).resolve("batches"))) {
+                assertThat(files).isEmpty();
+            }
+        }
+
+        @Test
+        void onCohortComplete_ContinuesWithBatches() {
+            Instant attempt = service.getJob(jobId).orElseThrow().cohortState().startedAt();
+            service.onCohortBatch(jobId, attempt, List.of("P1", "P2"));
+
+            service.onCohortComplete(jobId, attempt, Optional.of(1000L), Optional.of(CohortCacheStatus.MISS));
+
+            Job job = service.getJob(jobId).orElseThrow();
+            assertThat(job.status()).isEqualTo(JobStatus.RUNNING_PROCESS_BATCH);
+            assertThat(job.cohortSize()).isEqualTo(2);
+            assertThat(job.cohortCache()).contains(CohortCacheStatus.MISS);
+        }
+
+        @Test
+        void coreShards_ArePersistedClaimedAndReloaded() throws IOException {
+            service.onCohortSuccess(jobId, List.of(), Optional.empty());
+            ExtractionId a = ExtractionId.fromRelativeUrl("Medication/a");
+            ExtractionId b = ExtractionId.fromRelativeUrl("Medication/b");
+            ResourceExtractionInfo info = new ResourceExtractionInfo(Set.of("G1"), Map.of());
+            List<ExtractionResourceBundle> shards = List.of(
+                    new ExtractionResourceBundle(new ConcurrentHashMap<>(Map.of(a, info)), new ConcurrentHashMap<>()),
+                    new ExtractionResourceBundle(new ConcurrentHashMap<>(Map.of(b, info)), new ConcurrentHashMap<>()));
+
+            service.onCorePartitioned(new CorePartition(jobId, shards, Optional.empty(), List.of()));
+
+            assertThat(service.getJob(jobId).orElseThrow().coreShards()).containsOnlyKeys(0, 1);
+            assertThat(service.loadCoreShard(jobId, 1).extractionInfoMap()).containsOnlyKeys(b);
+
+            WorkUnit claimed = service.selectNextWorkUnit().orElseThrow();
+            assertThat(claimed).isInstanceOf(ProcessCoreShardWorkUnit.class);
+            service.onCoreShardSuccess(new CoreShardResult(jobId, 0, WorkUnitStatus.FINISHED,
+                    new CoreShardOutcome(0, Set.of(a), Set.of(a), Set.of(b)), Optional.empty(), List.of()));
+
+            assertThat(service.getJob(jobId).orElseThrow().coreShards().get(0).status())
+                    .isEqualTo(WorkUnitStatus.FINISHED);
+            assertThat(service.loadCoreShardOutcomes(jobId))
+                    .extracting(CoreShardOutcome::referenced)
+                    .containsExactly(Set.of(b));
+        }
+
         @Test
         void tryStartBatch_TransitionsStatus() {
             service.onCohortSuccess(jobId, List.of("P1"), Optional.empty());
@@ -763,6 +992,42 @@ class JobPersistenceServiceTest {
                     .isEqualTo(WorkUnitStatus.IN_PROGRESS);
         }
 
+        @Test
+        void splitBatch_replacesClaimedBatchWithPersistedSubBatches() throws IOException {
+            service.onCohortSuccess(jobId, List.of("P1", "P2"), Optional.empty());
+            UUID batchId = service.getJob(jobId).orElseThrow().batches().keySet().iterator().next();
+            service.tryStartBatch(jobId, batchId);
+            List<PatientBatch> subBatches = service.loadBatch(jobId, batchId).split(1);
+
+            boolean split = service.splitBatch(jobId, batchId, subBatches);
+
+            assertThat(split).isTrue();
+            Job job = service.getJob(jobId).orElseThrow();
+            assertThat(job.batches()).containsOnlyKeys(subBatches.stream().map(PatientBatch::batchId).toList());
+            assertThat(job.batches().values()).allMatch(bs -> bs.status() == WorkUnitStatus.INIT);
+            assertThat(service.loadBatch(jobId, subBatches.get(0).batchId()).ids()).containsExactly("P1");
+            assertThat(service.loadBatch(jobId, subBatches.get(1).batchId()).ids()).containsExactly("P2");
+            assertThatThrownBy(() -> service.loadBatch(jobId, batchId)).isInstanceOf(IOException.class);
+
+            Job persisted = MAPPER.readValue(Files.readString(baseDir.resolve(jobId.toString()).resolve("job.json")), Job.class);
+            assertThat(persisted.batches()).containsOnlyKeys(job.batches().keySet());
+        }
+
+        @Test
+        void splitBatch_ReturnsFalse_WhenBatchNotClaimed() throws IOException {
+            service.onCohortSuccess(jobId, List.of("P1", "P2"), Optional.empty());
+            UUID batchId = service.getJob(jobId).orElseThrow().batches().keySet().iterator().next();
+
+            List<PatientBatch> subBatches = service.loadBatch(jobId, batchId).split(1);
+
+            boolean split = service.splitBatch(jobId, batchId, subBatches);
+
+            assertThat(split).isFalse();
+            assertThat(service.getJob(jobId).orElseThrow().batches()).containsOnlyKeys(batchId);
+            assertThatThrownBy(() -> service.loadBatch(jobId, subBatches.get(0).batchId()))
+                    .isInstanceOf(IOException.class);
+        }
+
         @Test
         void selectNextWorkUnit_OrdersByPriority() throws IOException {
             // Job 1: Normal Priority
@@ -778,6 +1043,50 @@ class JobPersistenceServiceTest {
             assertThat(wu.orElseThrow().job().id()).isEqualTo(j2);
         }
 
+        @Test
+        void selectNextWorkUnit_HandsOutUnclaimedBatchOnlyOnce() {
+            service.onCohortSuccess(jobId, List.of("P1", "P2", "P3"), Optional.empty());
+
+            ProcessBatchWorkUnit first = (ProcessBatchWorkUnit) service.selectNextWorkUnit().orElseThrow();
+            assertThat(service.selectNextWorkUnit()).isEmpty();
+
+            service.tryStartBatch(jobId, first.batchId());
+            ProcessBatchWorkUnit second = (ProcessBatchWorkUnit) service.selectNextWorkUnit().orElseThrow();
+
+            assertThat(second.batchId()).isNotEqualTo(first.batchId());
+        }
+
+        @Test
+        void selectNextWorkUnit_LeavesJobUnchangedForBatch() {
+            service.onCohortSuccess(jobId, List.of("P1"), Optional.empty());
+            Job before = service.getJob(jobId).orElseThrow();
+
+            service.selectNextWorkUnit().orElseThrow();
+
+            assertThat(service.getJob(jobId)).contains(before);
+        }
+
+        @Test
+        void onWorkUnitDispatchEnded_RequeuesUnclaimedBatch() {
+            service.onCohortSuccess(jobId, List.of("P1"), Optional.empty());
+            ProcessBatchWorkUnit first = (ProcessBatchWorkUnit) service.selectNextWorkUnit().orElseThrow();
+
+            service.onWorkUnitDispatchEnded(jobId);
+
+            assertThat(service.selectNextWorkUnit()).hasValueSatisfying(wu ->
+                    assertThat(((ProcessBatchWorkUnit) wu).batchId()).isEqualTo(first.batchId()));
+        }
+
+        @Test
+        void selectNextWorkUnit_SkipsPausedJob() throws JobNotFoundException {
+            service.onCohortSuccess(jobId, List.of("P1"), Optional.empty());
+
+            service.pauseJob(jobId);
+
+            assertThat(service.readyQueue().size()).isZero();
+            assertThat(service.selectNextWorkUnit()).isEmpty();
+        }
+
         @Test
         void onBatchError_PersistsIssues() {
             service.onCohortSuccess(jobId, List.of("P1"), Optional.empty());
@@ -925,6 +1234,19 @@ class JobPersistenceServiceTest {
             assertThat(started).isFalse();
         }
 
+        @Test
+        void tryStartBatch_ReturnsFalse_WhenMaxConcurrentBatchesReached() {
+            UUID jobId = UUID.randomUUID();
+            UUID batchId = UUID.randomUUID();
+            Job job = createJob(jobId)
+                    .withBatchState(new BatchState(UUID.randomUUID(), WorkUnitState.startNow()))
+                    .withBatchState(new BatchState(batchId, WorkUnitState.initNow()))
+                    .withMaxConcurrentBatches(1);
+            service.putJobForTest(job);
+
+            assertThat(service.tryStartBatch(jobId, batchId)).isFalse();
+        }
+
         @Test
         void tryMarkCoreInProgress_ReturnsFalse_WhenAlreadyStarted() {
             UUID jobId = UUID.randomUUID();
@@ -1233,7 +1555,9 @@ class JobPersistenceServiceTest {
             service.init();
             UUID jobId = service.createJob(EMPTY_PARAMETERS.crtdl(), List.of(), null);
             service.selectNextWorkUnit();
-            service.onCohortSuccess(jobId, List.of(), Optional.empty());
+            service.onCohortSuccess(jobId, List.of("p1"), Optional.empty());
+            UUID batchId = service.getJob(jobId).orElseThrow().getNextBatch().orElseThrow();
+            service.tryStartBatch(jobId, batchId);
 
             ResourceExtractionInfo rei = new ResourceExtractionInfo(
                     Set.of("G1"),
@@ -1243,17 +1567,40 @@ class JobPersistenceServiceTest {
                     new ConcurrentHashMap<>(Map.of(ExtractionId.fromRelativeUrl("r/rid-1"), rei)),
                     new ConcurrentHashMap<>()
             );
-            BatchState batchState = BatchState.init();
-            batchState.finishNow(WorkUnitStatus.FINISHED);
-            BatchResult result = new BatchResult(jobId, batchState.batchId(), batchState,
+            BatchState batchState = service.getJob(jobId).orElseThrow().batches().get(batchId)
+                    .finishNow(WorkUnitStatus.FINISHED);
+            BatchResult result = new BatchResult(jobId, batchId, batchState,
                     Optional.of(coreBundle), Optional.empty(), List.of());
 
             doThrow(new IOException("Disk full"))
                     .when(spyIo).newBufferedWriter(argThat(p -> p.toString().contains("core_batches")));
 
-            service.onBatchProcessingSuccess(result);
+            assertThat(service.onBatchProcessingSuccess(result)).isFalse();
 
-            assertThat(service.getJob(jobId).orElseThrow().status()).isEqualTo(JobStatus.TEMP_FAILED);
+            Job job = service.getJob(jobId).orElseThrow();
+            assertThat(job.status()).isEqualTo(JobStatus.TEMP_FAILED);
+            assertThat(job.batches().get(batchId).status()).isNotEqualTo(WorkUnitStatus.FINISHED);
+        }
+
+        @Test
+        void staleResult_writesNoCoreBatchPart() throws IOException {
+            JobPersistenceService service = new JobPersistenceService(new DefaultFileIO(), MAPPER, baseDir.toString(),
+                    5, new DiagnosticsStore(new DefaultFileIO(), MAPPER));
+            service.init();
+            UUID jobId = service.createJob(EMPTY_PARAMETERS.crtdl(), List.of(), null);
+            service.selectNextWorkUnit();
+            service.onCohortSuccess(jobId, List.of(), Optional.empty());
+            BatchState batchState = BatchState.init().startNow().finishNow(WorkUnitStatus.FINISHED);
+            ExtractionResourceBundle coreBundle = new ExtractionResourceBundle(
+                    new ConcurrentHashMap<>(Map.of(ExtractionId.fromRelativeUrl("r/rid-1"),
+                            new ResourceExtractionInfo(Set.of("G1"), Map.of()))),
+                    new ConcurrentHashMap<>()
+            );
+
+            service.onBatchProcessingSuccess(new BatchResult(jobId, batchState.batchId(), batchState,
+                    Optional.of(coreBundle), Optional.empty(), List.of()));
+
+            assertThat(service.loadCoreInfo(jobId).extractionInfoMap()).isEmpty();
         }
     }
 
@@ -1734,6 +2081,28 @@ class JobPersistenceServiceTest {
                     .isInstanceOf(de.medizininformatikinitiative.torch.exceptions.VersionConflictException.class);
         }
 
+        @Test
+        void changeSchedulingSetsPriorityAndMaxConcurrentBatches() throws JobNotFoundException {
+            Job before = service.getJob(jobId).orElseThrow();
+
+            Job result = service.changeScheduling(jobId, JobPriority.HIGH, Optional.of(3), before.version());
+
+            assertThat(result.priority()).isEqualTo(JobPriority.HIGH);
+            assertThat(result.maxConcurrentBatches()).isEqualTo(3);
+            assertThat(service.getJob(jobId).orElseThrow().maxConcurrentBatches()).isEqualTo(3);
+        }
+
+        @Test
+        void changeSchedulingKeepsMaxConcurrentBatchesWhenNotGiven() throws JobNotFoundException {
+            Job limited = service.changeScheduling(jobId, JobPriority.HIGH, Optional.of(3),
+                    service.getJob(jobId).orElseThrow().version());
+
+            Job result = service.changeScheduling(jobId, JobPriority.NORMAL, Optional.empty(), limited.version());
+
+            assertThat(result.priority()).isEqualTo(JobPriority.NORMAL);
+            assertThat(result.maxConcurrentBatches()).isEqualTo(3);
+        }
+
         @Test
         void throwsUnknownJobException() {
             assertThatThrownBy(() -> service.changePriority(UUID.randomUUID(), JobPriority.HIGH, 0L))
@@ -0,0 +1,76 @@
+package de.medizininformatikinitiative.torch.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PatientIdArrayParserTest {
+
+    static PatientIdArrayParser parser() throws IOException {
+        return new PatientIdArrayParser(new JsonFactory());
+    }
+
+    @Test
+    void parsesIdsSplitAcrossChunks() throws IOException {
+        PatientIdArrayParser parser = parser();
+
+        assertThat(parser.feed("[\"id-1\", \"i".getBytes(UTF_8))).containsExactly("id-1");
+        assertThat(parser.feed("d-2\",".getBytes(UTF_8))).containsExactly("id-2");
+        assertThat(parser.feed(" \"id-3\"]".getBytes(UTF_8))).containsExactly("id-3");
+        assertThat(parser.complete()).isEmpty();
+    }
+
+    @Test
+    void parsesByteByByte() throws IOException {
+        PatientIdArrayParser parser = parser();
+        List<String> ids = new ArrayList<>();
+
+        for (byte b : "[\"a\",\"b\"]".getBytes(UTF_8)) {
+            ids.addAll(parser.feed(new byte[]{b}));
+        }
+        ids.addAll(parser.complete());
+
+        assertThat(ids).containsExactly("a", "b");
+    }
+
+    @Test
+    void emptyArray() throws IOException {
+        PatientIdArrayParser parser = parser();
+
+        assertThat(parser.feed("[]".getBytes(UTF_8))).isEmpty();
+        assertThat(parser.complete()).isEmpty();
+    }
+
+    @Test
+    void incompleteArray() throws IOException {
+        PatientIdArrayParser parser = parser();
+        parser.feed("[\"a\",".getBytes(UTF_8));
+
+        assertThatThrownBy(parser::complete).isInstanceOf(JsonParseException.class);
+    }
+
+    @Test
+    void nonStringElement() throws IOException {
+        PatientIdArrayParser parser = parser();
+
+        assertThatThrownBy(() -> parser.feed("[\"a\", 1]".getBytes(UTF_8)))
+                .isInstanceOf(JsonParseException.class)
+                .hasMessageContaining("Expected an array of patient ids");
+    }
+
+    @Test
+    void noArray() throws IOException {
+        PatientIdArrayParser parser = parser();
+
+        assertThatThrownBy(() -> parser.feed("{\"ids\": []}".getBytes(UTF_8)))
+                .isInstanceOf(JsonParseException.class);
+    }
+}
@@ -0,0 +1,227 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.multiStringValue;
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.stringValue;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchResponseCacheTest {
+
+    static final Duration TTL = Duration.ofHours(24);
+    static final Query QUERY = query(List.of("p1", "p2"));
+    static final Query OTHER_QUERY = query(List.of("p3"));
+
+    @TempDir
+    Path dir;
+
+    final TestClock clock = new TestClock(Instant.parse("2024-01-15T12:00:00Z"));
+
+    static Query query(List<String> patientIds) {
+        return Query.of("Observation", QueryParams.of("patient", multiStringValue(patientIds))
+                .appendParam("code", stringValue("http://loinc.org|718-7")));
+    }
+
+    SearchResponseCache cache(long maxBytes) {
+        return new SearchResponseCache(dir.toString(), maxBytes, TTL, new DefaultFileIO(), clock);
+    }
+
+    static void store(SearchResponseCache cache, Query query, String... bodies) {
+        cache.open(query)
+                .flatMap(entry -> Flux.fromArray(bodies).concatMap(entry::append).then(entry.commit()))
+                .block();
+    }
+
+    static List<String> cached(SearchResponseCache cache, Query query) {
+        return cache.lookup(query).orElseThrow().collectList().block();
+    }
+
+    List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.toList();
+        }
+    }
+
+    @Nested
+    class Key {
+
+        @Test
+        void ignoresOrderOfParamsAndValues() {
+            Query reordered = Query.of("Observation", QueryParams.of("code", stringValue("http://loinc.org|718-7"))
+                    .appendParam("patient", multiStringValue(List.of("p2", "p1"))));
+
+            assertThat(SearchResponseCache.key(reordered)).isEqualTo(SearchResponseCache.key(QUERY));
+        }
+
+        @Test
+        void differsForOtherValues() {
+            assertThat(SearchResponseCache.key(OTHER_QUERY)).isNotEqualTo(SearchResponseCache.key(QUERY));
+        }
+
+        @Test
+        void keepsOrderOfSortValues() {
+            Query ab = Query.of("Observation", QueryParams.of("_sort", multiStringValue(List.of("a", "b"))));
+            Query ba = Query.of("Observation", QueryParams.of("_sort", multiStringValue(List.of("b", "a"))));
+
+            assertThat(SearchResponseCache.key(ab)).isNotEqualTo(SearchResponseCache.key(ba));
+        }
+
+        @Test
+        void differsForOtherType() {
+            Query condition = Query.of("Condition", QUERY.params());
+
+            assertThat(SearchResponseCache.key(condition)).isNotEqualTo(SearchResponseCache.key(QUERY));
+        }
+    }
+
+    @Test
+    void missingEntry() {
+        assertThat(cache(1000).lookup(QUERY)).isEmpty();
+    }
+
+    @Test
+    void storedEntry_isFound() {
+        SearchResponseCache cache = cache(1000);
+
+        store(cache, QUERY, "{\"page\":1}", "{\n\"page\":2\n}");
+
+        StepVerifier.create(cache.lookup(QUERY).orElseThrow())
+                .expectNext("{\"page\":1}", "{ \"page\":2 }")
+                .verifyComplete();
+        assertThat(cache.lookup(OTHER_QUERY)).isEmpty();
+    }
+
+    @Test
+    void storedEntry_survivesRestart() {
+        store(cache(1000), QUERY, "{\"page\":1}");
+
+        assertThat(cached(cache(1000), QUERY)).containsExactly("{\"page\":1}");
+    }
+
+    @Test
+    void expiredEntry_isRemoved() throws IOException {
+        SearchResponseCache cache = cache(1000);
+        store(cache, QUERY, "{\"page\":1}");
+
+        clock.advance(TTL);
+
+        assertThat(cache.lookup(QUERY)).isEmpty();
+        assertThat(files()).isEmpty();
+    }
+
+    @Test
+    void discardedEntry_isNotStored() throws IOException {
+        SearchResponseCache cache = cache(1000);
+
+        cache.open(QUERY)
+                .flatMap(entry -> entry.append("{\"page\":1}").then(entry.discard()))
+                .block();
+
+        assertThat(cache.lookup(QUERY)).isEmpty();
+        assertThat(files()).isEmpty();
+    }
+
+    @Test
+    void leastRecentlyUsedEntry_isEvicted() {
+        SearchResponseCache cache = cache(25);
+        Query third = query(List.of("p4"));
+        store(cache, QUERY, "{\"page\":1}");
+        clock.advance(Duration.ofMinutes(1));
+        store(cache, OTHER_QUERY, "{\"page\":2}");
+        clock.advance(Duration.ofMinutes(1));
+        cached(cache, QUERY);
+        clock.advance(Duration.ofMinutes(1));
+
+        store(cache, third, "{\"page\":3}");
+
+        assertThat(cache.lookup(OTHER_QUERY)).isEmpty();
+        assertThat(cached(cache, QUERY)).containsExactly("{\"page\":1}");
+        assertThat(cached(cache, third)).containsExactly("{\"page\":3}");
+    }
+
+    @Test
+    void invalidateAll_removesAllEntries() throws IOException {
+        SearchResponseCache cache = cache(1000);
+        store(cache, QUERY, "{\"page\":1}");
+        store(cache, OTHER_QUERY, "{\"page\":2}");
+
+        cache.invalidateAll();
+
+        assertThat(cache.lookup(QUERY)).isEmpty();
+        assertThat(cache.lookup(OTHER_QUERY)).isEmpty();
+        assertThat(files()).isEmpty();
+    }
+
+    @Test
+    void metrics_countHitAndMissBytes() {
+        SearchResponseCache cache = cache(1000);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+
+        cache.lookup(QUERY);
+        store(cache, QUERY, "{\"page\":1}");
+        cached(cache, QUERY);
+        cached(cache, QUERY);
+
+        assertThat(registry.get("torch.search.cache.hits").functionCounter().count()).isEqualTo(2);
+        assertThat(registry.get("torch.search.cache.misses").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("torch.search.cache.miss.bytes").functionCounter().count()).isEqualTo(11);
+        assertThat(registry.get("torch.search.cache.hit.bytes").functionCounter().count()).isEqualTo(22);
+        assertThat(registry.get("torch.search.cache.size").gauge().value()).isEqualTo(11);
+    }
+
+    @Test
+    void disabled_cachesNothing() {
+        SearchResponseCache disabled = SearchResponseCache.disabled();
+
+        assertThat(disabled.enabled()).isFalse();
+        assertThat(disabled.lookup(QUERY)).isEmpty();
+    }
+
+    static final class TestClock extends Clock {
+
+        private Instant now;
+
+        TestClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.config.JobJournalProperties;
+import de.medizininformatikinitiative.torch.config.SchedulerProperties;
+import de.medizininformatikinitiative.torch.diagnostics.DiagnosticsStore;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.jobhandling.Job;
+import de.medizininformatikinitiative.torch.jobhandling.JobStatus;
+import de.medizininformatikinitiative.torch.jobhandling.LeaseStore;
+import de.medizininformatikinitiative.torch.jobhandling.result.BatchResult;
+import de.medizininformatikinitiative.torch.jobhandling.result.BatchSelection;
+import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static de.medizininformatikinitiative.torch.service.JobPersistenceServiceTest.EMPTY_PARAMETERS;
+import static de.medizininformatikinitiative.torch.service.JobPersistenceServiceTest.MAPPER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Two instances sharing one results directory, each with its own lease store and clock.
+ */
+class SharedJobDirectoryTest {
+
+    static final Duration TTL = Duration.ofMinutes(1);
+    static final Instant NOW = Instant.parse("2024-01-15T12:00:00Z");
+    static final Instant AFTER_TTL = NOW.plus(TTL.multipliedBy(2));
+
+    @TempDir
+    Path baseDir;
+
+    static LeaseStore leases(String instanceId, Instant now) {
+        return new LeaseStore(new DefaultFileIO(), MAPPER, instanceId, TTL, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    JobPersistenceService instance(String instanceId, Instant now) throws IOException {
+        return instance(leases(instanceId, now));
+    }
+
+    JobPersistenceService instance(LeaseStore leases) throws IOException {
+        JobPersistenceService service = new JobPersistenceService(new DefaultFileIO(), MAPPER, baseDir.toString(), 1,
+                new DiagnosticsStore(new DefaultFileIO(), MAPPER), new JobJournalProperties(false, 1),
+                new SchedulerProperties(false, 1, 1, 1, false), leases);
+        service.init();
+        return service;
+    }
+
+    static UUID jobProcessingBatches(JobPersistenceService owner) throws IOException {
+        UUID jobId = owner.createJob(EMPTY_PARAMETERS.crtdl(), List.of(), null);
+        owner.selectNextWorkUnit();
+        owner.onCohortSuccess(jobId, List.of("p1", "p2"), Optional.empty());
+        return jobId;
+    }
+
+    static BatchResult finished(BatchSelection selection) {
+        return new BatchResult(selection.job().id(), selection.batch().batchId(),
+                selection.batchState().finishNow(WorkUnitStatus.FINISHED), Optional.empty(), Optional.empty(),
+                List.of());
+    }
+
+    @Test
+    void jobsOfOtherInstance_areNotOwned() throws IOException {
+        JobPersistenceService a = instance("a", NOW);
+        UUID jobId = jobProcessingBatches(a);
+
+        JobPersistenceService b = instance("b", NOW);
+
+        assertThat(b.findJobs(Set.of(), Set.of())).isEmpty();
+        assertThat(b.selectNextWorkUnit()).isEmpty();
+        assertThat(b.getJob(jobId)).map(Job::status).contains(JobStatus.RUNNING_PROCESS_BATCH);
+    }
+
+    @Test
+    void batchProcessedByOtherInstance_isAppliedByOwner() throws IOException {
+        JobPersistenceService a = instance("a", NOW);
+        UUID jobId = jobProcessingBatches(a);
+        JobPersistenceService b = instance("b", NOW);
+
+        BatchSelection claimed = b.claimSharedBatch().orElseThrow();
+        UUID batchId = claimed.batch().batchId();
+
+        assertThat(claimed.batch().ids()).hasSize(1);
+        assertThat(a.tryStartBatch(jobId, batchId)).isFalse();
+        assertThat(a.getJob(jobId).orElseThrow().batches().get(batchId).status())
+                .isEqualTo(WorkUnitStatus.IN_PROGRESS);
+
+        b.onSharedBatchSuccess(finished(claimed));
+        a.syncSharedJobs();
+
+        Job job = a.getJob(jobId).orElseThrow();
+        assertThat(job.batches().get(batchId).status()).isEqualTo(WorkUnitStatus.FINISHED);
+        assertThat(job.batches().values()).filteredOn(bs -> !bs.batchId().equals(batchId))
+                .singleElement()
+                .satisfies(bs -> assertThat(bs.status()).isEqualTo(WorkUnitStatus.INIT));
+    }
+
+    @Test
+    void batchesClaimedByOwner_areNotShared() throws IOException {
+        JobPersistenceService a = instance("a", NOW);
+        UUID jobId = jobProcessingBatches(a);
+        for (UUID batchId : a.getJob(jobId).orElseThrow().batches().keySet()) {
+            assertThat(a.tryStartBatch(jobId, batchId)).isTrue();
+        }
+
+        JobPersistenceService b = instance("b", NOW);
+
+        assertThat(b.claimSharedBatch()).isEmpty();
+    }
+
+    @Test
+    void failureOnOtherInstance_isAppliedByOwner() throws IOException {
+        JobPersistenceService a = instance("a", NOW);
+        UUID jobId = jobProcessingBatches(a);
+        JobPersistenceService b = instance("b", NOW);
+        UUID batchId = b.claimSharedBatch().orElseThrow().batch().batchId();
+
+        b.onSharedBatchError(jobId, batchId, new IOException("connection reset"));
+        a.syncSharedJobs();
+
+        Job job = a.getJob(jobId).orElseThrow();
+        assertThat(job.batches().get(batchId).status()).isEqualTo(WorkUnitStatus.TEMP_FAILED);
+        assertThat(job.issues()).extracting("msg").anySatisfy(msg ->
+                assertThat(msg.toString()).contains("Batch " + batchId + " failed"));
+    }
+
+    @Test
+    void batchOfGoneInstance_isRolledBackByOwner() throws IOException {
+        JobPersistenceService a = instance("a", NOW);
+        UUID jobId = jobProcessingBatches(a);
+        LeaseStore bLeases = leases("b", NOW);
+        UUID batchId = instance(bLeases).claimSharedBatch().orElseThrow().batch().batchId();
+        a.tryStartBatch(jobId, batchId);
+
+        bLeases.close();
+        a.syncSharedJobs();
+
+        assertThat(a.getJob(jobId).orElseThrow().batches().get(batchId).status()).isEqualTo(WorkUnitStatus.INIT);
+        assertThat(a.tryStartBatch(jobId, batchId)).isTrue();
+    }
+
+    @Test
+    void resultOfBatchWhoseLeaseWasLost_isDiscarded() throws IOException {
+        LeaseStore aLeases = leases("a", NOW);
+        JobPersistenceService a = instance(aLeases);
+        UUID jobId = jobProcessingBatches(a);
+        UUID batchId = a.getJob(jobId).orElseThrow().batches().keySet().iterator().next();
+        assertThat(a.tryStartBatch(jobId, batchId)).isTrue();
+        leases("b", AFTER_TTL).tryAcquire(baseDir.resolve(jobId.toString()).resolve("leases")
+                .resolve(batchId + ".lease"));
+
+        aLeases.renewAll();
+        boolean persisted = a.onBatchProcessingSuccess(new BatchResult(jobId, batchId,
+                a.getJob(jobId).orElseThrow().batches().get(batchId).finishNow(WorkUnitStatus.FINISHED),
+                Optional.empty(), Optional.empty(), List.of()));
+
+        assertThat(persisted).isFalse();
+        assertThat(a.getJob(jobId).orElseThrow().batches().get(batchId).status())
+                .isEqualTo(WorkUnitStatus.IN_PROGRESS);
+    }
+
+    @Test
+    void jobOfGoneInstance_isTakenOver() throws IOException {
+        JobPersistenceService b = instance("b", AFTER_TTL);
+        UUID jobId = jobProcessingBatches(instance("a", NOW));
+        assertThat(b.findJobs(Set.of(), Set.of())).isEmpty();
+
+        b.syncSharedJobs();
+
+        assertThat(b.findJobs(Set.of(), Set.of())).extracting(Job::id).containsExactly(jobId);
+        assertThat(b.selectNextWorkUnit()).isPresent();
+    }
+
+    @Test
+    void ownerLosingItsJobLease_dropsTheJob() throws IOException {
+        LeaseStore aLeases = leases("a", NOW);
+        JobPersistenceService a = instance(aLeases);
+        UUID jobId = jobProcessingBatches(a);
+        instance("b", AFTER_TTL).syncSharedJobs();
+
+        aLeases.renewAll();
+        a.syncSharedJobs();
+
+        assertThat(a.findJobs(Set.of(), Set.of())).isEmpty();
+        assertThat(a.getJob(jobId)).isPresent();
+    }
+}
@@ -0,0 +1,171 @@
+package de.medizininformatikinitiative.torch.service;
+
+import de.medizininformatikinitiative.torch.diagnostics.BatchDetails;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.model.fhir.Query;
+import de.medizininformatikinitiative.torch.model.fhir.QueryParams;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.sq.Comparator;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.dateValue;
+import static de.medizininformatikinitiative.torch.model.fhir.QueryParams.stringValue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class SharedSearchesTest {
+
+    static final String PROFILE = "http://example.com/StructureDefinition/profile";
+    static final PatientBatch BATCH = PatientBatch.of("p1", "p2");
+    static final Query ENCOUNTERS = Query.of("Encounter", QueryParams.of("_profile:below", stringValue(PROFILE)));
+    static final Query ENCOUNTER_PERIODS = Query.of("Encounter", ENCOUNTERS.params()
+            .appendParam("_elements", stringValue("subject,period")));
+    static final Query CONSENTS = Query.of("Consent", QueryParams.of("_profile:below", stringValue(PROFILE)));
+    static final Query ACTIVE_CONSENTS = Query.of("Consent", QueryParams.of("status", stringValue("active"))
+            .appendParam("_profile:below", stringValue(PROFILE)));
+
+    @Mock
+    DataStore dataStore;
+
+    static Encounter encounter(String id, String patientId) {
+        Encounter encounter = new Encounter();
+        encounter.setId(id);
+        encounter.setSubject(new Reference("Patient/" + patientId));
+        return encounter;
+    }
+
+    static Consent consent(String id, Consent.ConsentState status) {
+        Consent consent = new Consent();
+        consent.setId(id);
+        consent.setPatient(new Reference("Patient/p1"));
+        consent.setStatus(status);
+        return consent;
+    }
+
+    static Query withCompartment(PatientBatch batch, Query query) {
+        return Query.of(query.type(), batch.compartmentSearchParam(query.type()).appendParams(query.params()));
+    }
+
+    @Nested
+    class Covers {
+
+        @Test
+        void queryAddingLocalParams() {
+            assertThat(SharedSearches.covers(ENCOUNTERS, ENCOUNTER_PERIODS)).isTrue();
+            assertThat(SharedSearches.covers(CONSENTS, ACTIVE_CONSENTS)).isTrue();
+            assertThat(SharedSearches.covers(ENCOUNTERS, ENCOUNTERS)).isTrue();
+        }
+
+        @Test
+        void notQueryAddingOtherParams() {
+            Query datedEncounters = Query.of("Encounter", ENCOUNTERS.params()
+                    .appendParam("date", dateValue(Comparator.GREATER_EQUAL, LocalDate.parse("2020-01-01"))));
+
+            assertThat(SharedSearches.covers(ENCOUNTERS, datedEncounters)).isFalse();
+            assertThat(SharedSearches.covers(datedEncounters, ENCOUNTERS)).isFalse();
+        }
+
+        @Test
+        void notWithElementsOrOtherType() {
+            assertThat(SharedSearches.covers(ENCOUNTER_PERIODS, ENCOUNTERS)).isFalse();
+            assertThat(SharedSearches.covers(CONSENTS, ENCOUNTERS)).isFalse();
+        }
+    }
+
+    @Test
+    void widenedSearch_servesPlannedSearchWithoutRequest() {
+        BatchDetails details = BatchDetails.empty();
+        SharedSearches searches = SharedSearches.of(List.of(ENCOUNTERS), details);
+        when(dataStore.search(withCompartment(BATCH, ENCOUNTERS), DomainResource.class))
+                .thenReturn(Flux.just(encounter("e1", "p1"), encounter("e2", "p2")));
+
+        StepVerifier.create(searches.searchAndShare(dataStore, BATCH, ENCOUNTER_PERIODS, Encounter.class)
+                        .map(Encounter::getIdPart))
+                .expectNext("e1", "e2")
+                .verifyComplete();
+        StepVerifier.create(searches.searchShared(dataStore, PatientBatch.of("p2"), ENCOUNTERS)
+                        .map(DomainResource::getIdPart))
+                .expectNext("e2")
+                .verifyComplete();
+
+        verify(dataStore, times(1)).search(any(), any());
+        assertThat(details.measurements())
+                .containsEntry(BatchMeasurement.SHARED_SEARCHES_WIDENED, 1L)
+                .containsEntry(BatchMeasurement.SHARED_SEARCHES_SAVED, 1L);
+    }
+
+    @Test
+    void sharedResults_areReleasedAfterPlannedSearch() {
+        SharedSearches searches = SharedSearches.of(List.of(ENCOUNTERS), BatchDetails.empty());
+        when(dataStore.search(withCompartment(BATCH, ENCOUNTERS), DomainResource.class))
+                .thenReturn(Flux.just(encounter("e1", "p1")));
+
+        searches.searchAndShare(dataStore, BATCH, ENCOUNTER_PERIODS, Encounter.class).blockLast();
+        searches.searchShared(dataStore, BATCH, ENCOUNTERS).blockLast();
+        searches.searchShared(dataStore, BATCH, ENCOUNTERS).blockLast();
+
+        verify(dataStore, times(2)).search(withCompartment(BATCH, ENCOUNTERS), DomainResource.class);
+    }
+
+    @Test
+    void widenedSearch_evaluatesStatusLocally() {
+        SharedSearches searches = SharedSearches.of(List.of(CONSENTS), BatchDetails.empty());
+        when(dataStore.search(withCompartment(BATCH, CONSENTS), DomainResource.class))
+                .thenReturn(Flux.just(consent("c1", Consent.ConsentState.ACTIVE),
+                        consent("c2", Consent.ConsentState.INACTIVE)));
+
+        StepVerifier.create(searches.searchAndShare(dataStore, BATCH, ACTIVE_CONSENTS, Consent.class)
+                        .map(Consent::getIdPart))
+                .expectNext("c1")
+                .verifyComplete();
+        StepVerifier.create(searches.searchShared(dataStore, BATCH, CONSENTS).map(DomainResource::getIdPart))
+                .expectNext("c1", "c2")
+                .verifyComplete();
+    }
+
+    @Test
+    void uncoveredSearch_isRunOnItsOwn() {
+        BatchDetails details = BatchDetails.empty();
+        SharedSearches searches = SharedSearches.of(List.of(CONSENTS), details);
+        when(dataStore.search(withCompartment(BATCH, ENCOUNTER_PERIODS), Encounter.class))
+                .thenReturn(Flux.just(encounter("e1", "p1")));
+        when(dataStore.search(withCompartment(BATCH, CONSENTS), DomainResource.class))
+                .thenReturn(Flux.empty());
+
+        StepVerifier.create(searches.searchAndShare(dataStore, BATCH, ENCOUNTER_PERIODS, Encounter.class))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(searches.searchShared(dataStore, BATCH, CONSENTS))
+                .verifyComplete();
+
+        assertThat(details.measurements()).isEmpty();
+    }
+
+    @Test
+    void disabled_runsEverySearchOnItsOwn() {
+        when(dataStore.search(withCompartment(BATCH, ENCOUNTERS), DomainResource.class))
+                .thenReturn(Flux.just(encounter("e1", "p1")));
+
+        SharedSearches.disabled().searchShared(dataStore, BATCH, ENCOUNTERS).blockLast();
+        SharedSearches.disabled().searchShared(dataStore, BATCH, ENCOUNTERS).blockLast();
+
+        verify(dataStore, times(2)).search(withCompartment(BATCH, ENCOUNTERS), DomainResource.class);
+    }
+}
@@ -3,12 +3,14 @@ package de.medizininformatikinitiative.torch.taskhandling;
 import de.medizininformatikinitiative.torch.TestUtils;
 import de.medizininformatikinitiative.torch.config.TorchProperties;
 import de.medizininformatikinitiative.torch.jobhandling.BatchState;
+import de.medizininformatikinitiative.torch.jobhandling.CohortCacheStatus;
 import de.medizininformatikinitiative.torch.jobhandling.Job;
 import de.medizininformatikinitiative.torch.jobhandling.JobPriority;
 import de.medizininformatikinitiative.torch.jobhandling.JobStatus;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitState;
 import de.medizininformatikinitiative.torch.jobhandling.workunit.WorkUnitStatus;
 import de.medizininformatikinitiative.torch.util.ResultFileManager;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Task;
 import org.hl7.fhir.r4.model.UrlType;
 import org.junit.jupiter.api.Test;
@@ -16,6 +18,7 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.util.Date;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Stream;
 
@@ -179,7 +182,31 @@ class JobTaskMapperTest {
 
         Task t = mapper.toFhirTask(job);
 
-        assertThat(t.getOutput()).isEmpty();
+        assertThat(t.getOutput()).extracting(output -> output.getType().getText())
+                .containsExactly(JobTaskMapper.BATCHES_IN_PROGRESS);
         verifyNoInteractions(resultFileManager);
     }
+
+    @Test
+    void addsCohortCacheOutput() {
+        Job job = Job.init(UUID.randomUUID(), TestUtils.emptyJobParams())
+                .withStatus(JobStatus.RUNNING_GET_COHORT)
+                .withCohortState(WorkUnitState.startNow());
+        job = job.onCohortComplete(job.cohortState().startedAt(), Optional.of(CohortCacheStatus.HIT));
+
+        Task t = mapper.toFhirTask(job);
+
+        assertThat(t.getOutput()).singleElement().satisfies(output -> {
+            assertThat(output.getType().getText()).isEqualTo(JobTaskMapper.COHORT_CACHE);
+            assertThat(output.getValue()).isInstanceOf(StringType.class);
+            assertThat(((StringType) output.getValue()).getValue()).isEqualTo("HIT");
+        });
+    }
+
+    @Test
+    void omitsCohortCacheOutput_whenCacheNotConsulted() {
+        Task t = mapper.toFhirTask(job(UUID.randomUUID(), JobStatus.PENDING, JobPriority.NORMAL, 1));
+
+        assertThat(t.getOutput()).isEmpty();
+    }
 }
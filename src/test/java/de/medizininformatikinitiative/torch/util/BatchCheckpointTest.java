@@ -0,0 +1,200 @@
+package de.medizininformatikinitiative.torch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.medizininformatikinitiative.torch.diagnostics.BatchMeasurement;
+import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionEvent;
+import de.medizininformatikinitiative.torch.diagnostics.exclusions.PatientExclusionStage;
+import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.model.consent.NonContinuousPeriod;
+import de.medizininformatikinitiative.torch.model.consent.PatientBatchWithConsent;
+import de.medizininformatikinitiative.torch.model.consent.Period;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
+import de.medizininformatikinitiative.torch.model.management.PatientBatch;
+import de.medizininformatikinitiative.torch.model.management.PatientResourceBundle;
+import de.medizininformatikinitiative.torch.model.management.ResourceBundle;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchCheckpointTest {
+
+    static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new Jdk8Module())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    static final UUID BATCH_ID = UUID.randomUUID();
+    static final NonContinuousPeriod CONSENTED = NonContinuousPeriod.of(Period.of("2020-01-01", "2024-12-31"));
+
+    @TempDir
+    Path tempDir;
+
+    BatchCheckpointStore store() {
+        return new BatchCheckpointStore(tempDir.toString(), FHIR_CONTEXT, new DefaultFileIO(), MAPPER);
+    }
+
+    /**
+     * A fresh batch with empty diagnostics, as seen by each processing attempt.
+     */
+    static PatientBatch batch() {
+        return new PatientBatch(List.of("p1", "p2"), BATCH_ID);
+    }
+
+    static PatientBatchWithConsent consented(PatientBatch batch) {
+        return new PatientBatchWithConsent(
+                Map.of("p1", new PatientResourceBundle("p1", CONSENTED, new ResourceBundle())), true,
+                new ResourceBundle(), batch.batchId(), batch.diagnostics());
+    }
+
+    static Observation observation(String id) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/p1"));
+        return observation;
+    }
+
+    @Test
+    void consentAndGroups_areRestoredByLaterAttempt() {
+        PatientBatch first = batch();
+        BatchCheckpoint checkpoint = store().open("job", first);
+        first.diagnostics().batchExclusions().addPatientExclusion(PatientExclusionStage.CONSENT_FETCH, "p2");
+        first.diagnostics().consentAudit().add("p1", new Consent().setId("c1"));
+        PatientBatchWithConsent consented = consented(first);
+        checkpoint.saveConsent(consented);
+        consented.get("p1").put(observation("o1"), "group-a", true);
+        first.diagnostics().batchExclusions().addConsentExclusion("group-a", "Observation/o2", "p1");
+        checkpoint.saveGroup(0, "group-a", consented, Set.of("p1"));
+
+        PatientBatch second = batch();
+        BatchCheckpoint resumed = store().open("job", second);
+
+        assertThat(resumed.restoreConsent(second)).hasValueSatisfying(restored -> {
+            assertThat(restored.applyConsent()).isTrue();
+            assertThat(restored.patientIds()).containsExactly("p1");
+            assertThat(restored.get("p1").consentPeriods()).isEqualTo(CONSENTED);
+        });
+        assertThat(resumed.restoreGroup(0, "group-a")).hasValueSatisfying(group -> {
+            assertThat(group.safe()).containsExactly("p1");
+            assertThat(group.resources()).singleElement().satisfies(resource -> {
+                assertThat(resource.patientId()).isEqualTo("p1");
+                assertThat(resource.valid()).isTrue();
+                assertThat(resource.resource().getIdPart()).isEqualTo("o1");
+            });
+        });
+        assertThat(second.diagnostics().batchExclusions())
+                .isEqualTo(first.diagnostics().batchExclusions());
+        assertThat(second.diagnostics().consentAudit().entries()).singleElement()
+                .satisfies(entry -> assertThat(entry.resource().getIdElement().getIdPart()).isEqualTo("c1"));
+        assertThat(second.diagnostics().batchDetails().measurements())
+                .containsEntry(BatchMeasurement.CHECKPOINT_RESTORED_STAGES, 2L);
+    }
+
+    @Test
+    void groupsAreOnlyRestoredAsPrefix() {
+        PatientBatch first = batch();
+        BatchCheckpoint checkpoint = store().open("job", first);
+        PatientBatchWithConsent consented = consented(first);
+        checkpoint.saveGroup(1, "group-b", consented, Set.of("p1"));
+
+        BatchCheckpoint resumed = store().open("job", batch());
+
+        assertThat(resumed.restoreGroup(0, "group-a")).isEmpty();
+        assertThat(resumed.restoreGroup(1, "group-b")).isEmpty();
+    }
+
+    @Test
+    void resolvedBatch_isRestoredWithAllDiagnosticsAndRemovedOnDelete() {
+        PatientBatch first = batch();
+        BatchCheckpoint checkpoint = store().open("job", first);
+        PatientBatchWithConsent consented = consented(first);
+        checkpoint.saveConsent(consented);
+        consented.get("p1").put(observation("o1"), "group-a", true);
+        consented.get("p1").put(new ExtractionId("Observation", "missing"));
+        consented.coreBundle().put(new Medication().setId("m1"), "group-m", true);
+        first.diagnostics().batchExclusions().addPatientExclusion(PatientExclusionStage.DIRECT_LOAD, "p2");
+        checkpoint.saveResolved(consented);
+
+        PatientBatch second = batch();
+        BatchCheckpoint resumed = store().open("job", second);
+        Optional<ExtractionPatientBatch> restored = resumed.restoreResolved();
+
+        assertThat(restored).hasValueSatisfying(resolved -> {
+            assertThat(resolved.id()).isEqualTo(BATCH_ID);
+            assertThat(resolved.get("p1").extractionInfoMap().get(new ExtractionId("Observation", "o1")).groups())
+                    .containsExactly("group-a");
+            assertThat(resolved.get("p1").cache()).containsEntry(new ExtractionId("Observation", "missing"),
+                    Optional.empty());
+            assertThat(resolved.coreBundle().getResource(new ExtractionId("Medication", "m1"))).isPresent();
+        });
+        assertThat(second.diagnostics().batchExclusions().getPatientExclusions())
+                .containsExactly(new PatientExclusionEvent(PatientExclusionStage.DIRECT_LOAD, "p2"));
+
+        resumed.delete();
+
+        assertThat(tempDir.resolve("job").resolve(BatchCheckpointStore.CHECKPOINT_DIR).resolve(BATCH_ID.toString()))
+                .doesNotExist();
+    }
+
+    @Test
+    void resolvedBatchMissing_stillRestoresEarlierStages() {
+        PatientBatch first = batch();
+        store().open("job", first).saveConsent(consented(first));
+
+        PatientBatch second = batch();
+        BatchCheckpoint resumed = store().open("job", second);
+
+        assertThat(resumed.restoreResolved()).isEmpty();
+        assertThat(resumed.restoreConsent(second)).isPresent();
+    }
+
+    @Test
+    void storeDelete_removesCheckpointsOfBatch() {
+        PatientBatch first = batch();
+        store().open("job", first).saveConsent(consented(first));
+
+        store().delete("job", BATCH_ID);
+
+        assertThat(tempDir.resolve("job").resolve(BatchCheckpointStore.CHECKPOINT_DIR).resolve(BATCH_ID.toString()))
+                .doesNotExist();
+    }
+
+    @Test
+    void unreadableCheckpoint_isIgnored() throws Exception {
+        Path dir = tempDir.resolve("job").resolve(BatchCheckpointStore.CHECKPOINT_DIR).resolve(BATCH_ID.toString());
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("consent.json"), "{not json");
+
+        PatientBatch batch = batch();
+
+        assertThat(store().open("job", batch).restoreConsent(batch)).isEmpty();
+    }
+
+    @Test
+    void disabledStore_restoresNothing() {
+        PatientBatch first = batch();
+        BatchCheckpoint checkpoint = BatchCheckpointStore.disabled().open("job", first);
+        checkpoint.saveConsent(consented(first));
+
+        assertThat(checkpoint.enabled()).isFalse();
+        assertThat(checkpoint.restoreConsent(first)).isEmpty();
+        assertThat(tempDir.resolve("job")).doesNotExist();
+    }
+}
@@ -0,0 +1,75 @@
+package de.medizininformatikinitiative.torch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiskResourceStoreTest {
+
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void storesAndDecodesResources() throws IOException {
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            store.put(new Medication().setStatus(Medication.MedicationStatus.ACTIVE).setId("M1"));
+            store.put(new Organization().setName("Org").setId("O1"));
+
+            Optional<Resource> medication = store.get(ExtractionId.fromRelativeUrl("Medication/M1"));
+            Optional<Resource> organization = store.get(ExtractionId.fromRelativeUrl("Organization/O1"));
+
+            assertThat(medication).get().isInstanceOfSatisfying(Medication.class, m -> {
+                assertThat(m.getIdPart()).isEqualTo("M1");
+                assertThat(m.getStatus()).isEqualTo(Medication.MedicationStatus.ACTIVE);
+            });
+            assertThat(organization).get().isInstanceOfSatisfying(Organization.class,
+                    o -> assertThat(o.getName()).isEqualTo("Org"));
+            assertThat(store.size()).isEqualTo(2);
+            assertThat(store.sizeBytes()).isPositive();
+        }
+    }
+
+    @Test
+    void unknownIdIsEmpty() throws IOException {
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            assertThat(store.get(ExtractionId.fromRelativeUrl("Medication/unknown"))).isEmpty();
+            assertThat(store.isEmpty()).isTrue();
+        }
+    }
+
+    @Test
+    void putOverwritesPreviousVersion() throws IOException {
+        try (DiskResourceStore store = DiskResourceStore.create(tempDir.resolve("store.tmp"), CTX)) {
+            store.put(new Organization().setName("old").setId("O1"));
+            store.put(new Organization().setName("new").setId("O1"));
+
+            assertThat(store.size()).isEqualTo(1);
+            assertThat(store.get(ExtractionId.fromRelativeUrl("Organization/O1"))).get()
+                    .isInstanceOfSatisfying(Organization.class, o -> assertThat(o.getName()).isEqualTo("new"));
+        }
+    }
+
+    @Test
+    void closeDeletesSegmentFile() throws IOException {
+        Path file = tempDir.resolve("store.tmp");
+        DiskResourceStore store = DiskResourceStore.create(file, CTX);
+        store.put(new Medication().setId("M1"));
+        assertThat(file).exists();
+
+        store.close();
+
+        assertThat(file).doesNotExist();
+    }
+}
@@ -3,6 +3,7 @@ package de.medizininformatikinitiative.torch.util;
 import de.medizininformatikinitiative.torch.diagnostics.MustHaveEvaluation;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttribute;
 import de.medizininformatikinitiative.torch.model.crtdl.annotated.AnnotatedAttributeGroup;
+import de.medizininformatikinitiative.torch.model.management.EncodedResource;
 import de.medizininformatikinitiative.torch.setup.IntegrationTestSetup;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.Meta;
@@ -71,6 +72,23 @@ class ProfileMustHaveCheckerTest {
         assertThat(checker.fulfilled(validObservation, group)).isTrue();
     }
 
+    @Test
+    void encodedGroupMustHave() {
+        AnnotatedAttribute id = new AnnotatedAttribute("Observation.id", "Observation.id", true);
+        AnnotatedAttributeGroup group = new AnnotatedAttributeGroup("Test", "Observation", "Test", List.of(id), List.of());
+        ProfileMustHaveChecker checker = new ProfileMustHaveChecker(integrationTestSetup.fhirContext());
+
+        assertThat(checker.fulfilled(EncodedResource.encode(validObservation, integrationTestSetup.fhirContext()), group)).isTrue();
+    }
+
+    @Test
+    void encodedProfileMismatchFails() {
+        AnnotatedAttributeGroup group = new AnnotatedAttributeGroup("Test", "Observation", "Other", List.of(), List.of());
+        ProfileMustHaveChecker checker = new ProfileMustHaveChecker(integrationTestSetup.fhirContext());
+
+        assertThat(checker.fulfilled(EncodedResource.encode(validObservation, integrationTestSetup.fhirContext()), group)).isFalse();
+    }
+
     @Test
     void groupMustHaveFail() {
         Observation observation = new Observation();
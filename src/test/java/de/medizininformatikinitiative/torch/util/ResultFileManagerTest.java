@@ -3,11 +3,13 @@ package de.medizininformatikinitiative.torch.util;
 import ca.uhn.fhir.context.FhirContext;
 import de.medizininformatikinitiative.torch.diagnostics.ConsentAudit;
 import de.medizininformatikinitiative.torch.jobhandling.DefaultFileIO;
+import de.medizininformatikinitiative.torch.model.extraction.ExtractionId;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionPatientBatch;
 import de.medizininformatikinitiative.torch.model.extraction.ExtractionResourceBundle;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Medication;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -16,6 +18,7 @@ import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -111,6 +114,41 @@ class ResultFileManagerTest {
         assertThat(Files.readAllLines(ndjson)).containsExactly("{\"resourceType\":\"Bundle\"}");
     }
 
+    @Test
+    void openBatchWriter_commitMovesFileIntoPlace() throws IOException {
+        ResultFileManager manager = new ResultFileManager(tempDir.toString(), FhirContext.forR4(), new DefaultFileIO());
+        UUID batchId = UUID.randomUUID();
+
+        try (ResultFileManager.BatchWriter writer = manager.openBatchWriter("jobX", batchId)) {
+            writer.writePatient("{\"resourceType\":\"Bundle\",\"id\":\"1\"}", false);
+            writer.writePatient("{\"resourceType\":\"Bundle\",\"id\":\"2\"}", true);
+            assertThat(writer.commit()).isTrue();
+        }
+
+        Path jobDir = tempDir.resolve("jobX");
+        assertThat(Files.readAllLines(jobDir.resolve(batchId + ".ndjson"))).hasSize(2);
+        try (var files = Files.list(jobDir)) {
+            assertThat(files).containsExactly(jobDir.resolve(batchId + ".ndjson"));
+        }
+    }
+
+    @Test
+    void openBatchWriter_discardsFileWhenAllPatientsEmptyOrNotCommitted() throws IOException {
+        ResultFileManager manager = new ResultFileManager(tempDir.toString(), FhirContext.forR4(), new DefaultFileIO());
+
+        try (ResultFileManager.BatchWriter writer = manager.openBatchWriter("jobX", UUID.randomUUID())) {
+            writer.writePatient("{\"resourceType\":\"Bundle\"}", true);
+            assertThat(writer.commit()).isFalse();
+        }
+        try (ResultFileManager.BatchWriter writer = manager.openBatchWriter("jobX", UUID.randomUUID())) {
+            writer.writePatient("{\"resourceType\":\"Bundle\"}", false);
+        }
+
+        try (var files = Files.list(tempDir.resolve("jobX"))) {
+            assertThat(files).isEmpty();
+        }
+    }
+
     @Test
     void saveConsentBatchToNDJSON_skipsWhenAuditEmpty() throws IOException {
         FhirContext ctx = FhirContext.forR4();
@@ -174,4 +212,49 @@ class ResultFileManagerTest {
         assertThat(manager.consentAuditExists("jobZ", writtenBatchId)).isTrue();
         assertThat(manager.consentAuditExists("jobZ", missingBatchId)).isFalse();
     }
+
+    @Test
+    void stagedCoreResources_areReloadedByIdAndRemoved() throws IOException {
+        FhirContext ctx = FhirContext.forR4();
+        ResultFileManager manager = new ResultFileManager(tempDir.toString(), ctx, new DefaultFileIO());
+        Medication a = new Medication();
+        a.setId("Medication/a");
+        Medication b = new Medication();
+        b.setId("Medication/b");
+
+        manager.saveStagedCoreResources("jobS", UUID.randomUUID(), List.of(a, b));
+
+        ResultFileManager restarted = new ResultFileManager(tempDir.toString(), ctx, new DefaultFileIO());
+        assertThat(restarted.stagedCoreIds("jobS")).containsExactlyInAnyOrder(
+                ExtractionId.fromRelativeUrl("Medication/a"), ExtractionId.fromRelativeUrl("Medication/b"));
+        assertThat(restarted.loadStagedCoreResources("jobS", Set.of(ExtractionId.fromRelativeUrl("Medication/b"))))
+                .extracting(resource -> resource.getIdPart())
+                .containsExactly("b");
+
+        restarted.deleteStagedCoreResources("jobS");
+
+        assertThat(restarted.stagedCoreIds("jobS")).isEmpty();
+        assertThat(tempDir.resolve("jobS").resolve("core_staged")).doesNotExist();
+    }
+
+    @Test
+    void coreShardResources_areReloadedPerShardAndRemoved() throws IOException {
+        FhirContext ctx = FhirContext.forR4();
+        ResultFileManager manager = new ResultFileManager(tempDir.toString(), ctx, new DefaultFileIO());
+        Medication a = new Medication();
+        a.setId("Medication/a");
+
+        manager.saveCoreShardResources("jobS", 1, List.of(a));
+
+        ResultFileManager restarted = new ResultFileManager(tempDir.toString(), ctx, new DefaultFileIO());
+        assertThat(restarted.loadCoreShardResources("jobS", 1))
+                .extracting(resource -> resource.getIdPart())
+                .containsExactly("a");
+        assertThat(restarted.loadCoreShardResources("jobS", 0)).isEmpty();
+
+        restarted.deleteCoreShardResources("jobS");
+
+        assertThat(restarted.loadCoreShardResources("jobS", 1)).isEmpty();
+        assertThat(tempDir.resolve("jobS").resolve("core_shards_staged")).doesNotExist();
+    }
 }